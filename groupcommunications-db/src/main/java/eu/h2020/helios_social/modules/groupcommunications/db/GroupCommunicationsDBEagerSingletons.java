@@ -2,6 +2,7 @@ package eu.h2020.helios_social.modules.groupcommunications.db;
 
 import eu.h2020.helios_social.modules.groupcommunications.db.crypto.CryptoExecutorModule;
 import eu.h2020.helios_social.modules.groupcommunications.db.database.DatabaseExecutorModule;
+import eu.h2020.helios_social.modules.groupcommunications.db.database.DatabaseModule;
 import eu.h2020.helios_social.modules.groupcommunications.db.identity.IdentityModule;
 import eu.h2020.helios_social.modules.groupcommunications.db.lifecycle.LifecycleModule;
 import eu.h2020.helios_social.modules.groupcommunications.db.system.SystemModule;
@@ -13,6 +14,8 @@ public interface GroupCommunicationsDBEagerSingletons {
 
     void inject(DatabaseExecutorModule.EagerSingletons init);
 
+    void inject(DatabaseModule.EagerSingletons init);
+
     void inject(IdentityModule.EagerSingletons init);
 
     void inject(LifecycleModule.EagerSingletons init);
@@ -25,6 +28,7 @@ public interface GroupCommunicationsDBEagerSingletons {
         public static void injectEagerSingletons(GroupCommunicationsDBEagerSingletons c) {
             c.inject(new CryptoExecutorModule.EagerSingletons());
             c.inject(new DatabaseExecutorModule.EagerSingletons());
+            c.inject(new DatabaseModule.EagerSingletons());
             c.inject(new IdentityModule.EagerSingletons());
             c.inject(new LifecycleModule.EagerSingletons());
             c.inject(new SystemModule.EagerSingletons());
@@ -1,5 +1,6 @@
 package eu.h2020.helios_social.modules.groupcommunications.db.crypto.security;
 
+import java.nio.ByteBuffer;
 import java.security.KeyFactory;
 import java.security.KeyPair;
 import java.security.NoSuchAlgorithmException;
@@ -9,10 +10,55 @@ import java.security.spec.EncodedKeySpec;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.PKCS8EncodedKeySpec;
 import java.security.spec.X509EncodedKeySpec;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.annotation.concurrent.GuardedBy;
 
 public class RSAKeyUtils {
 
+    /**
+     * The maximum number of decoded public keys to cache.
+     */
+    private static final int MAX_CACHED_PUBLIC_KEYS = 4096;
+
+    /**
+     * Decoded public keys, keyed by their X.509 encoding, in least recently
+     * used order. Decoding a key is expensive and the same contact keys are
+     * decoded every time a contact list is loaded.
+     */
+    @GuardedBy("publicKeyCache")
+    private static final Map<ByteBuffer, PublicKey> publicKeyCache =
+            new LinkedHashMap<ByteBuffer, PublicKey>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<ByteBuffer, PublicKey> eldest) {
+                    return size() > MAX_CACHED_PUBLIC_KEYS;
+                }
+            };
+
+    /**
+     * Returns the public key with the given X.509 encoding, or null if the
+     * encoding is invalid. Decoded keys are cached, so callers may call this
+     * repeatedly for the same key.
+     */
     public static PublicKey getPublicKeyFromBytes(byte[] publicKeyBytes){
+        synchronized (publicKeyCache) {
+            PublicKey cached = publicKeyCache.get(ByteBuffer.wrap(publicKeyBytes));
+            if (cached != null) return cached;
+        }
+        PublicKey publicKey = decodePublicKey(publicKeyBytes);
+        if (publicKey != null) {
+            // Copy the key bytes in case the caller modifies them
+            ByteBuffer key = ByteBuffer.wrap(publicKeyBytes.clone());
+            synchronized (publicKeyCache) {
+                publicKeyCache.put(key, publicKey);
+            }
+        }
+        return publicKey;
+    }
+
+    private static PublicKey decodePublicKey(byte[] publicKeyBytes){
 
             // Get key pair Objects from their respective byte arrays
             // We initialize encoded key specifications based on the encoding formats
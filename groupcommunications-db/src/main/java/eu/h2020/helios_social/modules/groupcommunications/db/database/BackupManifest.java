@@ -0,0 +1,113 @@
+package eu.h2020.helios_social.modules.groupcommunications.db.database;
+
+import eu.h2020.helios_social.modules.groupcommunications_utils.nullsafety.NotNullByDefault;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * Describes what a backup contained, so a later backup can send only what
+ * has changed since. The manifest holds a hash of each block of the
+ * encrypted database file and the names of the stored blobs, so it reveals
+ * nothing about the contents of the database.
+ * <p/>
+ * Callers should store the manifest returned by each backup, using
+ * {@link #getBytes()}, and pass it to the next backup.
+ */
+@Immutable
+@NotNullByDefault
+public class BackupManifest {
+
+	private static final int FORMAT_VERSION = 1;
+
+	/**
+	 * The length of a block hash in bytes.
+	 */
+	static final int HASH_LENGTH = 32;
+
+	private final byte[] blockHashes;
+	private final Set<String> blobs;
+
+	BackupManifest(byte[] blockHashes, Collection<String> blobs) {
+		if (blockHashes.length % HASH_LENGTH != 0)
+			throw new IllegalArgumentException();
+		this.blockHashes = blockHashes;
+		this.blobs = Collections.unmodifiableSet(new HashSet<>(blobs));
+	}
+
+	/**
+	 * Returns the number of database file blocks in the backup.
+	 */
+	int getBlockCount() {
+		return blockHashes.length / HASH_LENGTH;
+	}
+
+	/**
+	 * Returns true if the given block of the database file had the given
+	 * hash when the backup was made.
+	 */
+	boolean hasBlock(int index, byte[] hash) {
+		if (index >= getBlockCount()) return false;
+		int off = index * HASH_LENGTH;
+		return Arrays.equals(hash,
+				Arrays.copyOfRange(blockHashes, off, off + HASH_LENGTH));
+	}
+
+	boolean hasBlob(String name) {
+		return blobs.contains(name);
+	}
+
+	/**
+	 * Returns an encoding of the manifest that can be passed to
+	 * {@link #fromBytes(byte[])}.
+	 */
+	public byte[] getBytes() {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeInt(FORMAT_VERSION);
+			out.writeInt(blockHashes.length);
+			out.write(blockHashes);
+			out.writeInt(blobs.size());
+			for (String blob : blobs) out.writeUTF(blob);
+			out.flush();
+		} catch (IOException e) {
+			// Writing to a byte array can't fail
+			throw new AssertionError(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Decodes a manifest returned by {@link #getBytes()}.
+	 *
+	 * @throws IOException if the encoding is invalid
+	 */
+	public static BackupManifest fromBytes(byte[] encoded) throws IOException {
+		DataInputStream in =
+				new DataInputStream(new ByteArrayInputStream(encoded));
+		if (in.readInt() != FORMAT_VERSION)
+			throw new IOException("Unsupported manifest version");
+		int hashesLength = in.readInt();
+		if (hashesLength < 0 || hashesLength > encoded.length
+				|| hashesLength % HASH_LENGTH != 0)
+			throw new IOException("Invalid manifest");
+		byte[] blockHashes = new byte[hashesLength];
+		in.readFully(blockHashes);
+		int blobCount = in.readInt();
+		if (blobCount < 0) throw new IOException("Invalid manifest");
+		Set<String> blobs = new HashSet<>();
+		for (int i = 0; i < blobCount; i++) blobs.add(in.readUTF());
+		return new BackupManifest(blockHashes, blobs);
+	}
+}
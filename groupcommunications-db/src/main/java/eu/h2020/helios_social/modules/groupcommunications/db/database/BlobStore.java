@@ -0,0 +1,431 @@
+package eu.h2020.helios_social.modules.groupcommunications.db.database;
+
+import eu.h2020.helios_social.modules.groupcommunications.api.exception.DbException;
+import eu.h2020.helios_social.modules.groupcommunications_utils.crypto.SecretKey;
+import eu.h2020.helios_social.modules.groupcommunications_utils.nullsafety.NotNullByDefault;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import static eu.h2020.helios_social.modules.groupcommunications_utils.util.LogUtils.logException;
+import static java.util.logging.Level.INFO;
+import static java.util.logging.Level.WARNING;
+import static java.util.logging.Logger.getLogger;
+
+/**
+ * A content-addressed store for large binary values, such as profile
+ * pictures, that are kept in files next to the database rather than in
+ * table rows.
+ * <p/>
+ * Each blob is identified by a keyed hash of its content, so identical blobs
+ * are stored once and the identifiers reveal nothing about the content to
+ * anyone without the database key. Blobs are encrypted in fixed-size chunks
+ * with AES-GCM, so they can be read as a stream without holding the whole
+ * blob in memory.
+ * <p/>
+ * Blobs are never modified once written. Blobs that are no longer referenced
+ * are deleted by {@link #retainOnly(References)}. A blob that has been
+ * stored is pending until the caller {@link #release(byte[]) releases} it,
+ * which it does once the reference is committed or abandoned, and pending
+ * blobs are never deleted.
+ */
+@ThreadSafe
+@NotNullByDefault
+class BlobStore {
+
+	private static final Logger LOG = getLogger(BlobStore.class.getName());
+
+	/**
+	 * The length of a blob reference in bytes.
+	 */
+	static final int REF_LENGTH = 32;
+
+	private static final int CHUNK_LENGTH = 64 * 1024;
+	private static final int NONCE_LENGTH = 12;
+	private static final int TAG_BITS = 128;
+	private static final String CIPHER = "AES/GCM/NoPadding";
+	private static final String MAC = "HmacSHA256";
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	private final File dir;
+	private final byte[] encryptionKey, refKey;
+	private final SecureRandom random = new SecureRandom();
+
+	private final Object lock = new Object();
+	/**
+	 * The number of times each pending blob has been stored and not yet
+	 * released, keyed by file name.
+	 */
+	@GuardedBy("lock")
+	private final Map<String, Integer> pending = new HashMap<>();
+	/**
+	 * The number of callers that need blobs not to be deleted.
+	 */
+	@GuardedBy("lock")
+	private int holds = 0;
+
+	BlobStore(File dir, SecretKey key) {
+		this.dir = dir;
+		// Derive separate keys for naming and encrypting blobs
+		encryptionKey = deriveKey(key, "BLOB_ENCRYPTION");
+		refKey = deriveKey(key, "BLOB_REFERENCE");
+	}
+
+	/**
+	 * Stores the given blob if it isn't already stored and returns its
+	 * reference. The blob is pending until the caller releases it.
+	 */
+	byte[] put(byte[] blob) throws IOException {
+		byte[] ref = mac(refKey, blob);
+		File f = getFile(ref);
+		// Mark the blob as pending before checking whether it's stored, so
+		// an existing copy can't be collected before the caller refers to it
+		synchronized (lock) {
+			Integer count = pending.get(f.getName());
+			pending.put(f.getName(), count == null ? 1 : count + 1);
+		}
+		boolean stored = false;
+		try {
+			write(ref, blob, f);
+			stored = true;
+		} finally {
+			if (!stored) release(ref);
+		}
+		return ref;
+	}
+
+	/**
+	 * Releases a blob returned by {@link #put(byte[])}, so it can be deleted
+	 * if it's not referenced.
+	 */
+	void release(byte[] ref) {
+		String name = getFile(ref).getName();
+		synchronized (lock) {
+			Integer count = pending.get(name);
+			if (count == null) throw new IllegalStateException();
+			if (count == 1) pending.remove(name);
+			else pending.put(name, count - 1);
+		}
+	}
+
+	private void write(byte[] ref, byte[] blob, File f) throws IOException {
+		if (f.exists()) return;
+		if (!dir.exists() && !dir.mkdirs() && !dir.exists())
+			throw new IOException("Could not create " + dir);
+		// Write to a temporary file so a partly written blob is never read
+		File temp = new File(dir, f.getName() + "." + random.nextInt()
+				+ TEMP_SUFFIX);
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new FileOutputStream(temp));
+			int chunk = 0, off = 0;
+			do {
+				int len = Math.min(CHUNK_LENGTH, blob.length - off);
+				boolean last = off + len == blob.length;
+				byte[] nonce = new byte[NONCE_LENGTH];
+				random.nextBytes(nonce);
+				Cipher cipher = getCipher(Cipher.ENCRYPT_MODE, nonce);
+				cipher.updateAAD(getAssociatedData(ref, chunk, last));
+				byte[] ciphertext = cipher.doFinal(blob, off, len);
+				out.writeBoolean(last);
+				out.write(nonce);
+				out.writeInt(ciphertext.length);
+				out.write(ciphertext);
+				chunk++;
+				off += len;
+			} while (off < blob.length);
+			out.close();
+		} catch (GeneralSecurityException e) {
+			tryToClose(out);
+			delete(temp);
+			throw new IOException(e);
+		} catch (IOException e) {
+			tryToClose(out);
+			delete(temp);
+			throw e;
+		}
+		if (!temp.renameTo(f)) {
+			delete(temp);
+			// Another thread may have stored the same blob
+			if (!f.exists()) throw new IOException("Could not rename blob");
+		}
+	}
+
+	/**
+	 * Returns a stream for reading the blob with the given reference. The
+	 * caller must close the stream.
+	 */
+	InputStream open(byte[] ref) throws IOException {
+		if (ref.length != REF_LENGTH) throw new IllegalArgumentException();
+		return new BlobInputStream(ref,
+				new DataInputStream(new FileInputStream(getFile(ref))));
+	}
+
+	/**
+	 * Returns the blob with the given reference.
+	 */
+	byte[] get(byte[] ref) throws IOException {
+		InputStream in = open(ref);
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buf = new byte[CHUNK_LENGTH];
+			int read;
+			while ((read = in.read(buf)) != -1) out.write(buf, 0, read);
+			return out.toByteArray();
+		} finally {
+			tryToClose(in);
+		}
+	}
+
+	/**
+	 * Deletes any stored blobs that are neither pending nor referenced.
+	 * <p/>
+	 * The references are read while blobs can't be stored, so a blob stored
+	 * by a concurrent transaction is either still pending or has been
+	 * committed, in which case the references include it. Temporary files
+	 * are left alone, as they may belong to blobs that are being stored.
+	 */
+	void retainOnly(References references) throws DbException {
+		synchronized (lock) {
+			if (holds > 0) {
+				LOG.info("Not deleting blobs while deletion is held");
+				return;
+			}
+			File[] files = dir.listFiles();
+			if (files == null) return;
+			Set<String> keep = new HashSet<>(pending.keySet());
+			for (byte[] ref : references.getReferences())
+				keep.add(getFile(ref).getName());
+			int deleted = 0;
+			for (File f : files) {
+				String name = f.getName();
+				if (!name.endsWith(TEMP_SUFFIX) && !keep.contains(name)) {
+					delete(f);
+					deleted++;
+				}
+			}
+			if (LOG.isLoggable(INFO))
+				LOG.info("Deleted " + deleted + " unreferenced blobs");
+		}
+	}
+
+	/**
+	 * Stops {@link #retainOnly(References)} from deleting blobs until
+	 * {@link #allowDeletion()} is called, so a backup can copy the blobs
+	 * referenced by its snapshot. Blobs that become unreferenced meanwhile
+	 * are deleted by a later call.
+	 */
+	void holdDeletion() {
+		synchronized (lock) {
+			holds++;
+		}
+	}
+
+	void allowDeletion() {
+		synchronized (lock) {
+			if (holds == 0) throw new IllegalStateException();
+			holds--;
+		}
+	}
+
+	/**
+	 * Deletes any temporary files left over from blobs that were being
+	 * stored when the process exited. Must not be called while blobs are
+	 * being stored.
+	 */
+	void deleteTemporaryFiles() {
+		File[] files = dir.listFiles();
+		if (files == null) return;
+		for (File f : files) {
+			if (f.getName().endsWith(TEMP_SUFFIX)) delete(f);
+		}
+	}
+
+	/**
+	 * Returns the names of the files holding stored blobs.
+	 */
+	Collection<String> listFiles() {
+		File[] files = dir.listFiles();
+		List<String> names = new ArrayList<>();
+		if (files == null) return names;
+		for (File f : files) {
+			if (!f.getName().endsWith(TEMP_SUFFIX)) names.add(f.getName());
+		}
+		return names;
+	}
+
+	/**
+	 * Returns a stream for reading the encrypted contents of the file with
+	 * the given name. The caller must close the stream.
+	 */
+	InputStream openFile(String name) throws IOException {
+		if (!isFileName(name)) throw new IllegalArgumentException();
+		return new FileInputStream(new File(dir, name));
+	}
+
+	/**
+	 * Returns true if the given string is a valid name for a file holding a
+	 * stored blob.
+	 */
+	static boolean isFileName(String name) {
+		return name.matches("[0-9a-f]{" + REF_LENGTH * 2 + "}");
+	}
+
+	private File getFile(byte[] ref) {
+		StringBuilder sb = new StringBuilder(ref.length * 2);
+		for (byte b : ref) sb.append(String.format("%02x", b & 0xFF));
+		return new File(dir, sb.toString());
+	}
+
+	private Cipher getCipher(int mode, byte[] nonce)
+			throws GeneralSecurityException {
+		Cipher cipher = Cipher.getInstance(CIPHER);
+		cipher.init(mode, new SecretKeySpec(encryptionKey, "AES"),
+				new GCMParameterSpec(TAG_BITS, nonce));
+		return cipher;
+	}
+
+	/**
+	 * Binds each chunk to its blob, its position and whether it's the last
+	 * chunk, so chunks can't be swapped, reordered or truncated.
+	 */
+	private static byte[] getAssociatedData(byte[] ref, int chunk,
+			boolean last) {
+		return ByteBuffer.allocate(REF_LENGTH + 5).put(ref).putInt(chunk)
+				.put((byte) (last ? 1 : 0)).array();
+	}
+
+	private static byte[] deriveKey(SecretKey key, String label) {
+		return mac(key.getBytes(), label.getBytes(Charset.forName("UTF-8")));
+	}
+
+	private static byte[] mac(byte[] key, byte[] input) {
+		try {
+			Mac mac = Mac.getInstance(MAC);
+			mac.init(new SecretKeySpec(key, MAC));
+			return mac.doFinal(input);
+		} catch (GeneralSecurityException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	private static void tryToClose(@Nullable Closeable c) {
+		if (c == null) return;
+		try {
+			c.close();
+		} catch (IOException e) {
+			logException(LOG, WARNING, e);
+		}
+	}
+
+	private static void delete(File f) {
+		if (!f.delete() && LOG.isLoggable(WARNING))
+			LOG.warning("Could not delete " + f.getName());
+	}
+
+	/**
+	 * The blob references stored in the database.
+	 */
+	interface References {
+
+		Collection<byte[]> getReferences() throws DbException;
+	}
+
+	/**
+	 * Decrypts a blob one chunk at a time.
+	 */
+	private class BlobInputStream extends InputStream {
+
+		private final byte[] ref;
+		private final DataInputStream in;
+
+		@Nullable
+		private byte[] chunk = null;
+		private int chunkIndex = 0, pos = 0;
+		private boolean last = false;
+
+		private BlobInputStream(byte[] ref, DataInputStream in) {
+			this.ref = ref;
+			this.in = in;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (!fill()) return -1;
+			return chunk[pos++] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) return 0;
+			if (!fill()) return -1;
+			int n = Math.min(len, chunk.length - pos);
+			System.arraycopy(chunk, pos, b, off, n);
+			pos += n;
+			return n;
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+
+		/**
+		 * Decrypts the next chunk if the current one has been consumed.
+		 * Returns false at the end of the blob.
+		 */
+		private boolean fill() throws IOException {
+			while (chunk == null || pos == chunk.length) {
+				if (last) return false;
+				try {
+					last = in.readBoolean();
+					byte[] nonce = new byte[NONCE_LENGTH];
+					in.readFully(nonce);
+					int len = in.readInt();
+					if (len < 0 || len > CHUNK_LENGTH + TAG_BITS / 8)
+						throw new IOException("Invalid chunk length");
+					byte[] ciphertext = new byte[len];
+					in.readFully(ciphertext);
+					Cipher cipher = getCipher(Cipher.DECRYPT_MODE, nonce);
+					cipher.updateAAD(getAssociatedData(ref, chunkIndex, last));
+					chunk = cipher.doFinal(ciphertext);
+				} catch (EOFException e) {
+					throw new IOException("Blob is truncated", e);
+				} catch (GeneralSecurityException e) {
+					throw new IOException(e);
+				}
+				chunkIndex++;
+				pos = 0;
+			}
+			return true;
+		}
+	}
+}
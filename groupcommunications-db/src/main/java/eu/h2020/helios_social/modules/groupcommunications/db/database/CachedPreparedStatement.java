@@ -0,0 +1,680 @@
+package eu.h2020.helios_social.modules.groupcommunications.db.database;
+
+import java.io.InputStream;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.net.URL;
+import java.sql.Array;
+import java.sql.Blob;
+import java.sql.Clob;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.NClob;
+import java.sql.ParameterMetaData;
+import java.sql.PreparedStatement;
+import java.sql.Ref;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.RowId;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLWarning;
+import java.sql.SQLXML;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.Calendar;
+
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * A {@link PreparedStatement} handed out by a {@link StatementCache}, which
+ * delegates to a cached statement. Closing it returns the statement to the
+ * cache instead of closing it, after which it can't be used.
+ */
+@NotThreadSafe
+class CachedPreparedStatement implements PreparedStatement {
+
+	private final StatementCache cache;
+	private final String sql;
+	private final PreparedStatement ps;
+
+	private boolean released = false;
+
+	CachedPreparedStatement(StatementCache cache, String sql,
+			PreparedStatement ps) {
+		this.cache = cache;
+		this.sql = sql;
+		this.ps = ps;
+	}
+
+	private void checkNotReleased() throws SQLException {
+		if (released) throw new SQLException("Statement returned to cache");
+	}
+
+	@Override
+	public <T> T unwrap(Class<T> iface) throws SQLException {
+		checkNotReleased();
+		return ps.unwrap(iface);
+	}
+
+	@Override
+	public boolean isWrapperFor(Class<?> iface) throws SQLException {
+		checkNotReleased();
+		return ps.isWrapperFor(iface);
+	}
+
+	@Override
+	public ResultSet executeQuery(String sql) throws SQLException {
+		checkNotReleased();
+		return ps.executeQuery(sql);
+	}
+
+	@Override
+	public int executeUpdate(String sql) throws SQLException {
+		checkNotReleased();
+		return ps.executeUpdate(sql);
+	}
+
+	@Override
+	public void close() throws SQLException {
+		if (released) return;
+		released = true;
+		cache.release(sql, ps);
+	}
+
+	@Override
+	public int getMaxFieldSize() throws SQLException {
+		checkNotReleased();
+		return ps.getMaxFieldSize();
+	}
+
+	@Override
+	public void setMaxFieldSize(int max) throws SQLException {
+		checkNotReleased();
+		ps.setMaxFieldSize(max);
+	}
+
+	@Override
+	public int getMaxRows() throws SQLException {
+		checkNotReleased();
+		return ps.getMaxRows();
+	}
+
+	@Override
+	public void setMaxRows(int max) throws SQLException {
+		checkNotReleased();
+		ps.setMaxRows(max);
+	}
+
+	@Override
+	public void setEscapeProcessing(boolean enable) throws SQLException {
+		checkNotReleased();
+		ps.setEscapeProcessing(enable);
+	}
+
+	@Override
+	public int getQueryTimeout() throws SQLException {
+		checkNotReleased();
+		return ps.getQueryTimeout();
+	}
+
+	@Override
+	public void setQueryTimeout(int seconds) throws SQLException {
+		checkNotReleased();
+		ps.setQueryTimeout(seconds);
+	}
+
+	@Override
+	public void cancel() throws SQLException {
+		checkNotReleased();
+		ps.cancel();
+	}
+
+	@Override
+	public SQLWarning getWarnings() throws SQLException {
+		checkNotReleased();
+		return ps.getWarnings();
+	}
+
+	@Override
+	public void clearWarnings() throws SQLException {
+		checkNotReleased();
+		ps.clearWarnings();
+	}
+
+	@Override
+	public void setCursorName(String name) throws SQLException {
+		checkNotReleased();
+		ps.setCursorName(name);
+	}
+
+	@Override
+	public boolean execute(String sql) throws SQLException {
+		checkNotReleased();
+		return ps.execute(sql);
+	}
+
+	@Override
+	public ResultSet getResultSet() throws SQLException {
+		checkNotReleased();
+		return ps.getResultSet();
+	}
+
+	@Override
+	public int getUpdateCount() throws SQLException {
+		checkNotReleased();
+		return ps.getUpdateCount();
+	}
+
+	@Override
+	public boolean getMoreResults() throws SQLException {
+		checkNotReleased();
+		return ps.getMoreResults();
+	}
+
+	@Override
+	public void setFetchDirection(int direction) throws SQLException {
+		checkNotReleased();
+		ps.setFetchDirection(direction);
+	}
+
+	@Override
+	public int getFetchDirection() throws SQLException {
+		checkNotReleased();
+		return ps.getFetchDirection();
+	}
+
+	@Override
+	public void setFetchSize(int rows) throws SQLException {
+		checkNotReleased();
+		ps.setFetchSize(rows);
+	}
+
+	@Override
+	public int getFetchSize() throws SQLException {
+		checkNotReleased();
+		return ps.getFetchSize();
+	}
+
+	@Override
+	public int getResultSetConcurrency() throws SQLException {
+		checkNotReleased();
+		return ps.getResultSetConcurrency();
+	}
+
+	@Override
+	public int getResultSetType() throws SQLException {
+		checkNotReleased();
+		return ps.getResultSetType();
+	}
+
+	@Override
+	public void addBatch(String sql) throws SQLException {
+		checkNotReleased();
+		ps.addBatch(sql);
+	}
+
+	@Override
+	public void clearBatch() throws SQLException {
+		checkNotReleased();
+		ps.clearBatch();
+	}
+
+	@Override
+	public int[] executeBatch() throws SQLException {
+		checkNotReleased();
+		return ps.executeBatch();
+	}
+
+	@Override
+	public Connection getConnection() throws SQLException {
+		checkNotReleased();
+		return ps.getConnection();
+	}
+
+	@Override
+	public boolean getMoreResults(int current) throws SQLException {
+		checkNotReleased();
+		return ps.getMoreResults(current);
+	}
+
+	@Override
+	public ResultSet getGeneratedKeys() throws SQLException {
+		checkNotReleased();
+		return ps.getGeneratedKeys();
+	}
+
+	@Override
+	public int executeUpdate(String sql, int autoGeneratedKeys)
+			throws SQLException {
+		checkNotReleased();
+		return ps.executeUpdate(sql, autoGeneratedKeys);
+	}
+
+	@Override
+	public int executeUpdate(String sql, int[] columnIndexes)
+			throws SQLException {
+		checkNotReleased();
+		return ps.executeUpdate(sql, columnIndexes);
+	}
+
+	@Override
+	public int executeUpdate(String sql, String[] columnNames)
+			throws SQLException {
+		checkNotReleased();
+		return ps.executeUpdate(sql, columnNames);
+	}
+
+	@Override
+	public boolean execute(String sql, int autoGeneratedKeys)
+			throws SQLException {
+		checkNotReleased();
+		return ps.execute(sql, autoGeneratedKeys);
+	}
+
+	@Override
+	public boolean execute(String sql, int[] columnIndexes)
+			throws SQLException {
+		checkNotReleased();
+		return ps.execute(sql, columnIndexes);
+	}
+
+	@Override
+	public boolean execute(String sql, String[] columnNames)
+			throws SQLException {
+		checkNotReleased();
+		return ps.execute(sql, columnNames);
+	}
+
+	@Override
+	public int getResultSetHoldability() throws SQLException {
+		checkNotReleased();
+		return ps.getResultSetHoldability();
+	}
+
+	@Override
+	public boolean isClosed() throws SQLException {
+		return released || ps.isClosed();
+	}
+
+	@Override
+	public void setPoolable(boolean poolable) throws SQLException {
+		checkNotReleased();
+		ps.setPoolable(poolable);
+	}
+
+	@Override
+	public boolean isPoolable() throws SQLException {
+		checkNotReleased();
+		return ps.isPoolable();
+	}
+
+	@Override
+	public void closeOnCompletion() throws SQLException {
+		// The statement is reused, so it mustn't be closed with its results
+		throw new SQLFeatureNotSupportedException();
+	}
+
+	@Override
+	public boolean isCloseOnCompletion() throws SQLException {
+		return false;
+	}
+
+	@Override
+	public ResultSet executeQuery() throws SQLException {
+		checkNotReleased();
+		return ps.executeQuery();
+	}
+
+	@Override
+	public int executeUpdate() throws SQLException {
+		checkNotReleased();
+		return ps.executeUpdate();
+	}
+
+	@Override
+	public void setNull(int parameterIndex, int sqlType) throws SQLException {
+		checkNotReleased();
+		ps.setNull(parameterIndex, sqlType);
+	}
+
+	@Override
+	public void setBoolean(int parameterIndex, boolean x) throws SQLException {
+		checkNotReleased();
+		ps.setBoolean(parameterIndex, x);
+	}
+
+	@Override
+	public void setByte(int parameterIndex, byte x) throws SQLException {
+		checkNotReleased();
+		ps.setByte(parameterIndex, x);
+	}
+
+	@Override
+	public void setShort(int parameterIndex, short x) throws SQLException {
+		checkNotReleased();
+		ps.setShort(parameterIndex, x);
+	}
+
+	@Override
+	public void setInt(int parameterIndex, int x) throws SQLException {
+		checkNotReleased();
+		ps.setInt(parameterIndex, x);
+	}
+
+	@Override
+	public void setLong(int parameterIndex, long x) throws SQLException {
+		checkNotReleased();
+		ps.setLong(parameterIndex, x);
+	}
+
+	@Override
+	public void setFloat(int parameterIndex, float x) throws SQLException {
+		checkNotReleased();
+		ps.setFloat(parameterIndex, x);
+	}
+
+	@Override
+	public void setDouble(int parameterIndex, double x) throws SQLException {
+		checkNotReleased();
+		ps.setDouble(parameterIndex, x);
+	}
+
+	@Override
+	public void setBigDecimal(int parameterIndex, BigDecimal x)
+			throws SQLException {
+		checkNotReleased();
+		ps.setBigDecimal(parameterIndex, x);
+	}
+
+	@Override
+	public void setString(int parameterIndex, String x) throws SQLException {
+		checkNotReleased();
+		ps.setString(parameterIndex, x);
+	}
+
+	@Override
+	public void setBytes(int parameterIndex, byte[] x) throws SQLException {
+		checkNotReleased();
+		ps.setBytes(parameterIndex, x);
+	}
+
+	@Override
+	public void setDate(int parameterIndex, Date x) throws SQLException {
+		checkNotReleased();
+		ps.setDate(parameterIndex, x);
+	}
+
+	@Override
+	public void setTime(int parameterIndex, Time x) throws SQLException {
+		checkNotReleased();
+		ps.setTime(parameterIndex, x);
+	}
+
+	@Override
+	public void setTimestamp(int parameterIndex, Timestamp x)
+			throws SQLException {
+		checkNotReleased();
+		ps.setTimestamp(parameterIndex, x);
+	}
+
+	@Override
+	public void setAsciiStream(int parameterIndex, InputStream x, int length)
+			throws SQLException {
+		checkNotReleased();
+		ps.setAsciiStream(parameterIndex, x, length);
+	}
+
+	@Override
+	@Deprecated
+	public void setUnicodeStream(int parameterIndex, InputStream x, int length)
+			throws SQLException {
+		checkNotReleased();
+		ps.setUnicodeStream(parameterIndex, x, length);
+	}
+
+	@Override
+	public void setBinaryStream(int parameterIndex, InputStream x, int length)
+			throws SQLException {
+		checkNotReleased();
+		ps.setBinaryStream(parameterIndex, x, length);
+	}
+
+	@Override
+	public void clearParameters() throws SQLException {
+		checkNotReleased();
+		ps.clearParameters();
+	}
+
+	@Override
+	public void setObject(int parameterIndex, Object x, int targetSqlType)
+			throws SQLException {
+		checkNotReleased();
+		ps.setObject(parameterIndex, x, targetSqlType);
+	}
+
+	@Override
+	public void setObject(int parameterIndex, Object x) throws SQLException {
+		checkNotReleased();
+		ps.setObject(parameterIndex, x);
+	}
+
+	@Override
+	public boolean execute() throws SQLException {
+		checkNotReleased();
+		return ps.execute();
+	}
+
+	@Override
+	public void addBatch() throws SQLException {
+		checkNotReleased();
+		ps.addBatch();
+	}
+
+	@Override
+	public void setCharacterStream(int parameterIndex, Reader reader,
+			int length) throws SQLException {
+		checkNotReleased();
+		ps.setCharacterStream(parameterIndex, reader, length);
+	}
+
+	@Override
+	public void setRef(int parameterIndex, Ref x) throws SQLException {
+		checkNotReleased();
+		ps.setRef(parameterIndex, x);
+	}
+
+	@Override
+	public void setBlob(int parameterIndex, Blob x) throws SQLException {
+		checkNotReleased();
+		ps.setBlob(parameterIndex, x);
+	}
+
+	@Override
+	public void setClob(int parameterIndex, Clob x) throws SQLException {
+		checkNotReleased();
+		ps.setClob(parameterIndex, x);
+	}
+
+	@Override
+	public void setArray(int parameterIndex, Array x) throws SQLException {
+		checkNotReleased();
+		ps.setArray(parameterIndex, x);
+	}
+
+	@Override
+	public ResultSetMetaData getMetaData() throws SQLException {
+		checkNotReleased();
+		return ps.getMetaData();
+	}
+
+	@Override
+	public void setDate(int parameterIndex, Date x, Calendar cal)
+			throws SQLException {
+		checkNotReleased();
+		ps.setDate(parameterIndex, x, cal);
+	}
+
+	@Override
+	public void setTime(int parameterIndex, Time x, Calendar cal)
+			throws SQLException {
+		checkNotReleased();
+		ps.setTime(parameterIndex, x, cal);
+	}
+
+	@Override
+	public void setTimestamp(int parameterIndex, Timestamp x, Calendar cal)
+			throws SQLException {
+		checkNotReleased();
+		ps.setTimestamp(parameterIndex, x, cal);
+	}
+
+	@Override
+	public void setNull(int parameterIndex, int sqlType, String typeName)
+			throws SQLException {
+		checkNotReleased();
+		ps.setNull(parameterIndex, sqlType, typeName);
+	}
+
+	@Override
+	public void setURL(int parameterIndex, URL x) throws SQLException {
+		checkNotReleased();
+		ps.setURL(parameterIndex, x);
+	}
+
+	@Override
+	public ParameterMetaData getParameterMetaData() throws SQLException {
+		checkNotReleased();
+		return ps.getParameterMetaData();
+	}
+
+	@Override
+	public void setRowId(int parameterIndex, RowId x) throws SQLException {
+		checkNotReleased();
+		ps.setRowId(parameterIndex, x);
+	}
+
+	@Override
+	public void setNString(int parameterIndex, String value)
+			throws SQLException {
+		checkNotReleased();
+		ps.setNString(parameterIndex, value);
+	}
+
+	@Override
+	public void setNCharacterStream(int parameterIndex, Reader value,
+			long length) throws SQLException {
+		checkNotReleased();
+		ps.setNCharacterStream(parameterIndex, value, length);
+	}
+
+	@Override
+	public void setNClob(int parameterIndex, NClob value) throws SQLException {
+		checkNotReleased();
+		ps.setNClob(parameterIndex, value);
+	}
+
+	@Override
+	public void setClob(int parameterIndex, Reader reader, long length)
+			throws SQLException {
+		checkNotReleased();
+		ps.setClob(parameterIndex, reader, length);
+	}
+
+	@Override
+	public void setBlob(int parameterIndex, InputStream inputStream,
+			long length) throws SQLException {
+		checkNotReleased();
+		ps.setBlob(parameterIndex, inputStream, length);
+	}
+
+	@Override
+	public void setNClob(int parameterIndex, Reader reader, long length)
+			throws SQLException {
+		checkNotReleased();
+		ps.setNClob(parameterIndex, reader, length);
+	}
+
+	@Override
+	public void setSQLXML(int parameterIndex, SQLXML xmlObject)
+			throws SQLException {
+		checkNotReleased();
+		ps.setSQLXML(parameterIndex, xmlObject);
+	}
+
+	@Override
+	public void setObject(int parameterIndex, Object x, int targetSqlType,
+			int scaleOrLength) throws SQLException {
+		checkNotReleased();
+		ps.setObject(parameterIndex, x, targetSqlType, scaleOrLength);
+	}
+
+	@Override
+	public void setAsciiStream(int parameterIndex, InputStream x, long length)
+			throws SQLException {
+		checkNotReleased();
+		ps.setAsciiStream(parameterIndex, x, length);
+	}
+
+	@Override
+	public void setBinaryStream(int parameterIndex, InputStream x, long length)
+			throws SQLException {
+		checkNotReleased();
+		ps.setBinaryStream(parameterIndex, x, length);
+	}
+
+	@Override
+	public void setCharacterStream(int parameterIndex, Reader reader,
+			long length) throws SQLException {
+		checkNotReleased();
+		ps.setCharacterStream(parameterIndex, reader, length);
+	}
+
+	@Override
+	public void setAsciiStream(int parameterIndex, InputStream x)
+			throws SQLException {
+		checkNotReleased();
+		ps.setAsciiStream(parameterIndex, x);
+	}
+
+	@Override
+	public void setBinaryStream(int parameterIndex, InputStream x)
+			throws SQLException {
+		checkNotReleased();
+		ps.setBinaryStream(parameterIndex, x);
+	}
+
+	@Override
+	public void setCharacterStream(int parameterIndex, Reader reader)
+			throws SQLException {
+		checkNotReleased();
+		ps.setCharacterStream(parameterIndex, reader);
+	}
+
+	@Override
+	public void setNCharacterStream(int parameterIndex, Reader value)
+			throws SQLException {
+		checkNotReleased();
+		ps.setNCharacterStream(parameterIndex, value);
+	}
+
+	@Override
+	public void setClob(int parameterIndex, Reader reader) throws SQLException {
+		checkNotReleased();
+		ps.setClob(parameterIndex, reader);
+	}
+
+	@Override
+	public void setBlob(int parameterIndex, InputStream inputStream)
+			throws SQLException {
+		checkNotReleased();
+		ps.setBlob(parameterIndex, inputStream);
+	}
+
+	@Override
+	public void setNClob(int parameterIndex, Reader reader)
+			throws SQLException {
+		checkNotReleased();
+		ps.setNClob(parameterIndex, reader);
+	}
+}
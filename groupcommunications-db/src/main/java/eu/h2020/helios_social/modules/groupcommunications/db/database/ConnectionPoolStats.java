@@ -0,0 +1,95 @@
+package eu.h2020.helios_social.modules.groupcommunications.db.database;
+
+import eu.h2020.helios_social.modules.groupcommunications_utils.nullsafety.NotNullByDefault;
+
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * A snapshot of the database's connection pool and prepared statement
+ * caches. The connection counts are taken together, so they're consistent
+ * with each other; the other counters are totals since the database was
+ * opened.
+ */
+@Immutable
+@NotNullByDefault
+public class ConnectionPoolStats {
+
+	private final int activeConnections, idleConnections, statementCaches;
+	private final long connectionWaits, connectionWaitTimeMs;
+	private final long maxConnectionWaitTimeMs;
+	private final long statementCacheHits, statementCacheMisses;
+
+	ConnectionPoolStats(int activeConnections, int idleConnections,
+			long connectionWaits, long connectionWaitTimeMs,
+			long maxConnectionWaitTimeMs, int statementCaches,
+			long statementCacheHits, long statementCacheMisses) {
+		this.activeConnections = activeConnections;
+		this.idleConnections = idleConnections;
+		this.connectionWaits = connectionWaits;
+		this.connectionWaitTimeMs = connectionWaitTimeMs;
+		this.maxConnectionWaitTimeMs = maxConnectionWaitTimeMs;
+		this.statementCaches = statementCaches;
+		this.statementCacheHits = statementCacheHits;
+		this.statementCacheMisses = statementCacheMisses;
+	}
+
+	/**
+	 * Returns the number of connections in use by transactions.
+	 */
+	public int getActiveConnections() {
+		return activeConnections;
+	}
+
+	/**
+	 * Returns the number of open connections waiting in the pool.
+	 */
+	public int getIdleConnections() {
+		return idleConnections;
+	}
+
+	/**
+	 * Returns the number of transactions that have taken a connection from
+	 * the pool, whether or not they had to wait for one.
+	 */
+	public long getConnectionWaits() {
+		return connectionWaits;
+	}
+
+	/**
+	 * Returns the total time in milliseconds that transactions have waited
+	 * for a connection.
+	 */
+	public long getConnectionWaitTimeMs() {
+		return connectionWaitTimeMs;
+	}
+
+	/**
+	 * Returns the longest time in milliseconds that a transaction has
+	 * waited for a connection.
+	 */
+	public long getMaxConnectionWaitTimeMs() {
+		return maxConnectionWaitTimeMs;
+	}
+
+	/**
+	 * Returns the number of prepared statement caches, one for each open
+	 * connection.
+	 */
+	public int getStatementCaches() {
+		return statementCaches;
+	}
+
+	/**
+	 * Returns the number of statements that were found in a cache.
+	 */
+	public long getStatementCacheHits() {
+		return statementCacheHits;
+	}
+
+	/**
+	 * Returns the number of statements that had to be prepared.
+	 */
+	public long getStatementCacheMisses() {
+		return statementCacheMisses;
+	}
+}
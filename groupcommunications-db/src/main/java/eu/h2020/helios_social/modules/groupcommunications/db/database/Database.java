@@ -1,7 +1,11 @@
 package eu.h2020.helios_social.modules.groupcommunications.db.database;
 
 import java.security.KeyPair;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.Collection;
+import java.util.List;
+import java.util.Set;
 import java.util.Map;
 
 import eu.h2020.helios_social.modules.groupcommunications.api.forum.sharing.ForumAccessRequest;
@@ -66,6 +70,36 @@ interface Database<T> {
      */
     void close() throws DbException;
 
+    /**
+     * Returns a snapshot of the connection pool and statement cache
+     * counters. This method may be called with or without a transaction.
+     */
+    ConnectionPoolStats getConnectionPoolStats();
+
+    /**
+     * Returns the fill rate of the database file as a percentage, or -1 if
+     * the database doesn't report it.
+     */
+    int getFillRate(T txn) throws DbException;
+
+    /**
+     * Compacts a small part of the database file, aiming for the given fill
+     * rate, unless any other transaction is running.
+     *
+     * @return true if any progress was made, false if there's nothing more
+     * that can be compacted or another transaction is running
+     */
+    boolean compactStepIfIdle(T txn, int targetFillRate) throws DbException;
+
+    /**
+     * Writes a backup of a consistent snapshot of the database to the given
+     * stream while other transactions continue, and returns its manifest.
+     * If the manifest of an earlier backup is given, only what has changed
+     * since that backup is written.
+     */
+    BackupManifest backup(OutputStream out, @Nullable BackupManifest previous)
+            throws DbException;
+
     /**
      * Starts a new transaction and returns an object representing it.
      */
@@ -80,15 +114,45 @@ interface Database<T> {
     /**
      * Commits the given transaction - all changes made during the transaction
      * will be applied to the database.
+     * <p/>
+     * If the commit fails, the transaction is rolled back and its connection
+     * is closed. The caller must still abort the transaction.
      */
     void commitTransaction(T txn) throws DbException;
 
+    /**
+     * Sets a savepoint in the given transaction. Changes made after the
+     * savepoint can be rolled back without aborting the transaction. Only one
+     * savepoint per transaction may be set at a time.
+     */
+    void setSavepoint(T txn) throws DbException;
+
+    /**
+     * Releases the savepoint in the given transaction, keeping the changes
+     * made since it was set.
+     */
+    void releaseSavepoint(T txn) throws DbException;
+
+    /**
+     * Rolls back the changes made since the savepoint in the given
+     * transaction was set, and releases the savepoint.
+     */
+    void rollbackToSavepoint(T txn) throws DbException;
+
     boolean containsIdentity(T txn)
             throws DbException;
 
+    /**
+     * Returns the identity, or null if it doesn't exist.
+     */
+    @Nullable
     Identity getIdentity(T txn)
             throws DbException;
 
+    /**
+     * Returns the profile for the given context, or null if it doesn't exist.
+     */
+    @Nullable
     Profile getProfile(T txn, String contextId)
             throws DbException;
 
@@ -116,6 +180,22 @@ interface Database<T> {
     Collection<GroupMember> getGroupMembers(T txn, String groupId)
         throws DbException;
 
+    /**
+     * Returns the members of the given group. If {@code includePictures} is
+     * true, each profile picture is read the first time it's requested,
+     * otherwise the members have no pictures.
+     */
+    Collection<GroupMember> getGroupMembers(T txn, String groupId,
+            boolean includePictures) throws DbException;
+
+    /**
+     * Returns a stream for reading the given group member's profile picture,
+     * or null if the member has no picture. The caller must close the stream.
+     */
+    @Nullable
+    InputStream getGroupMemberPicture(T txn, String groupId, String peerId)
+            throws DbException;
+
     void addGroup(T txn, Group group, byte[] descriptor, GroupType groupType)
             throws DbException;
 
@@ -151,6 +231,19 @@ interface Database<T> {
     void addMessage(T txn, Message message, MessageState state,
                     String contextId, boolean incoming) throws DbException;
 
+    /**
+     * Stores the given messages, none of which may already be in the
+     * database, using a single batched statement.
+     */
+    void addMessages(T txn, Collection<NewMessage> messages)
+            throws DbException;
+
+    /**
+     * Returns the subset of the given message IDs that are in the database.
+     */
+    Set<String> getExistingMessageIds(T txn, Collection<String> messageIds)
+            throws DbException;
+
     void addContext(T txn, DBContext c)
             throws DbException;
 
@@ -160,6 +253,49 @@ interface Database<T> {
                             MessageState state)
             throws DbException;
 
+    /**
+     * Sets the retention policy of the given group, or removes it if the
+     * policy is null.
+     */
+    void setGroupRetentionPolicy(T txn, String groupId,
+            @Nullable RetentionPolicy policy) throws DbException;
+
+    /**
+     * Sets the retention policy of the given context, or removes it if the
+     * policy is null.
+     */
+    void setContextRetentionPolicy(T txn, String contextId,
+            @Nullable RetentionPolicy policy) throws DbException;
+
+    @Nullable
+    RetentionPolicy getGroupRetentionPolicy(T txn, String groupId)
+            throws DbException;
+
+    @Nullable
+    RetentionPolicy getContextRetentionPolicy(T txn, String contextId)
+            throws DbException;
+
+    /**
+     * Returns the retention policy that applies to each group that has one,
+     * mapped by group ID. A group's own policy overrides its context's.
+     */
+    Map<String, RetentionPolicy> getRetentionPolicies(T txn)
+            throws DbException;
+
+    /**
+     * Returns the IDs of up to the given number of messages in the given
+     * group that the given policy says should be removed, oldest first.
+     */
+    List<String> getExpiredMessageIds(T txn, String groupId,
+            RetentionPolicy policy, int limit) throws DbException;
+
+    /**
+     * Removes the given messages along with their metadata, and updates the
+     * unread counts. IDs of messages that don't exist are ignored.
+     */
+    void removeMessages(T txn, Collection<String> messageIds)
+            throws DbException;
+
     boolean containsContact(T txn, ContactId contactId)
             throws DbException;
 
@@ -175,9 +311,17 @@ interface Database<T> {
     boolean containsForumMember(T txn, String groupId, String fakeId)
             throws DbException;
 
+    /**
+     * Returns the contact with the given ID, or null if it doesn't exist.
+     */
+    @Nullable
     Contact getContact(T txn, ContactId cid)
             throws DbException;
 
+    /**
+     * Returns the event with the given ID, or null if it doesn't exist.
+     */
+    @Nullable
     HeliosEvent getEvent(T txn, String eventId)
             throws DbException;
 
@@ -187,6 +331,22 @@ interface Database<T> {
 
     Collection<Contact> getContacts(T txn) throws DbException;
 
+    /**
+     * Returns all contacts. If {@code includePictures} is true, each
+     * profile picture is read the first time it's requested, otherwise the
+     * contacts have no pictures.
+     */
+    Collection<Contact> getContacts(T txn, boolean includePictures)
+            throws DbException;
+
+    /**
+     * Returns a stream for reading the given contact's profile picture, or
+     * null if the contact has no picture. The caller must close the stream.
+     */
+    @Nullable
+    InputStream getContactPicture(T txn, ContactId contactId)
+            throws DbException;
+
     Collection<String> getContactIds(T txn, String contextId)
             throws DbException;
 
@@ -201,6 +361,10 @@ interface Database<T> {
             throws DbException;
 
 
+    /**
+     * Returns the context with the given ID, or null if it doesn't exist.
+     */
+    @Nullable
     DBContext getContext(T txn, String contextId)
             throws DbException;
 
@@ -208,6 +372,10 @@ interface Database<T> {
                           String contextId)
             throws DbException;
 
+    /**
+     * Returns the group with the given ID, or null if it doesn't exist.
+     */
+    @Nullable
     Group getGroup(T txn, String groupId)
             throws DbException;
 
@@ -245,12 +413,50 @@ interface Database<T> {
     Metadata getGroupMetadata(T txn, String groupId)
             throws DbException;
 
+    /**
+     * Adds the given documents to the given term's posting list.
+     */
+    void addPostings(T txn, EntityType entityType, String contextId,
+            String term, Collection<String> docIds) throws DbException;
+
+    /**
+     * Removes the given documents from the given term's posting list.
+     */
+    void removePostings(T txn, EntityType entityType, String contextId,
+            String term, Collection<String> docIds) throws DbException;
+
+    /**
+     * Returns the documents in all of the given terms' posting lists if
+     * {@code matchAll} is true, or in any of them otherwise.
+     */
+    List<String> queryPostings(T txn, EntityType entityType,
+            String contextId, Collection<String> terms, boolean matchAll)
+            throws DbException;
+
     Metadata getInvertedIndexMetadata(T txn, EntityType entityType, String contextId)
             throws DbException;
 
     Map<String, Metadata> getGroupMetadata(T txn,
                                            String[] contextIds) throws DbException;
 
+    /**
+     * Returns the metadata of the messages in the given group whose metadata
+     * includes every key/value pair in the query, restricted to the given
+     * keys if they are not null.
+     */
+    Map<String, Metadata> getMessageMetadataByGroupId(T txn, String groupId,
+            Metadata query, @Nullable Collection<String> keys)
+            throws DbException;
+
+    /**
+     * Returns the metadata of the given groups whose metadata includes every
+     * key/value pair in the query, restricted to the given keys if they are
+     * not null.
+     */
+    Map<String, Metadata> getGroupMetadata(T txn, String[] groupIds,
+            Metadata query, @Nullable Collection<String> keys)
+            throws DbException;
+
     void removeContact(T txn, ContactId c)
             throws DbException;
 
@@ -321,6 +527,10 @@ interface Database<T> {
                             String messageId)
             throws DbException;
 
+    /**
+     * Returns the pending contact with the given ID, or null if it doesn't exist.
+     */
+    @Nullable
     PendingContact getPendingContact(T txn,
                                      ContactId pendingContactId)
             throws DbException;
@@ -328,6 +538,22 @@ interface Database<T> {
     Collection<PendingContact> getPendingContacts(T txn)
             throws DbException;
 
+    /**
+     * Returns all pending contacts. If {@code includePictures} is true, each
+     * profile picture is read the first time it's requested, otherwise the
+     * pending contacts have no pictures.
+     */
+    Collection<PendingContact> getPendingContacts(T txn,
+            boolean includePictures) throws DbException;
+
+    /**
+     * Returns a stream for reading the given pending contact's profile
+     * picture, or null if it has no picture. The caller must close the stream.
+     */
+    @Nullable
+    InputStream getPendingContactPicture(T txn, ContactId pendingContactId)
+            throws DbException;
+
     int countPendingContacts(T txn, PendingContactType pendingContactType)
             throws DbException;
 
@@ -347,9 +573,17 @@ interface Database<T> {
                                                                String contextId)
             throws DbException;
 
+    /**
+     * Returns the message with the given ID, or null if it doesn't exist.
+     */
+    @Nullable
     Message getMessage(T txn, String messageId)
             throws DbException;
 
+    /**
+     * Returns the state of the message with the given ID, or null if it doesn't exist.
+     */
+    @Nullable
     MessageState getMessageState(T txn, String messageId)
             throws DbException;
 
@@ -359,9 +593,99 @@ interface Database<T> {
     Collection<MessageHeader> getMessageHeaders(T txn, String groupId)
             throws DbException;
 
+    /**
+     * Returns up to {@code limit} headers of messages in the given group,
+     * ordered by timestamp and message ID and starting next to the given
+     * cursor, or at the newest or oldest message if the cursor is null.
+     */
+    List<MessageHeader> getMessageHeaders(T txn, String groupId,
+            @Nullable MessageCursor cursor, int limit,
+            MessageCursor.Direction direction) throws DbException;
+
+    /**
+     * Returns up to {@code limit} headers of messages in the given context,
+     * and in the given group if it's not null, whose text contains every
+     * term in the given query. The most recently added matches are ranked
+     * by relevance, and headers are ordered by relevance, then newest first.
+     */
+    List<MessageHeader> searchMessages(T txn, String contextId,
+            @Nullable String groupId, String query, int limit)
+            throws DbException;
+
+    /**
+     * Adds up to {@code limit} of the messages that are waiting to be added
+     * to the full-text index, oldest first, and returns the number of
+     * messages that were waiting. Fewer than {@code limit} are returned
+     * only if no more messages are waiting.
+     */
+    int indexMessages(T txn, int limit) throws DbException;
+
+    /**
+     * Passes the IDs of the messages in the given group to the visitor as
+     * they are read, fetching the given number of rows at a time.
+     */
+    void visitMessageIds(T txn, String groupId, int fetchSize,
+            RowVisitor<? super String> visitor) throws DbException;
+
+    /**
+     * Passes the headers of the messages in the given group to the visitor,
+     * ordered by timestamp and message ID, as they are read, fetching the
+     * given number of rows at a time.
+     */
+    void visitMessageHeaders(T txn, String groupId, int fetchSize,
+            RowVisitor<? super MessageHeader> visitor) throws DbException;
+
+    /**
+     * Passes the metadata of each message in the given group to the visitor,
+     * ordered by message ID, as it is read, fetching the given number of
+     * rows at a time.
+     */
+    void visitMessageMetadataByGroupId(T txn, String groupId, int fetchSize,
+            MetadataVisitor visitor) throws DbException;
+
+    /**
+     * Passes the members of the given forum to the visitor as they are
+     * read, fetching the given number of rows at a time.
+     */
+    void visitForumMembers(T txn, String groupId, int fetchSize,
+            RowVisitor<? super ForumMember> visitor) throws DbException;
+
+    /**
+     * Passes all contacts to the visitor as they are read, fetching the
+     * given number of rows at a time. If {@code includePictures} is true,
+     * each profile picture is read the first time it's requested.
+     */
+    void visitContacts(T txn, boolean includePictures, int fetchSize,
+            RowVisitor<? super Contact> visitor) throws DbException;
+
+    /**
+     * Returns the header of the message with the given ID, or null if it doesn't exist.
+     */
+    @Nullable
     MessageHeader getMessageHeader(T txn, String messageId)
             throws DbException;
 
+    /**
+     * Returns the messages with the given IDs, mapped by ID. IDs of messages
+     * that don't exist are ignored.
+     */
+    Map<String, Message> getMessages(T txn, Collection<String> messageIds)
+            throws DbException;
+
+    /**
+     * Returns the groups with the given IDs, mapped by ID. IDs of groups
+     * that don't exist are ignored.
+     */
+    Map<String, Group> getGroups(T txn, Collection<String> groupIds)
+            throws DbException;
+
+    /**
+     * Returns the contacts with the given IDs, mapped by ID. IDs of contacts
+     * that don't exist are ignored.
+     */
+    Map<ContactId, Contact> getContacts(T txn,
+            Collection<ContactId> contactIds) throws DbException;
+
     Collection<Message> getFavourites(T txn,
                                       String contextId)
             throws DbException;
@@ -437,6 +761,9 @@ interface Database<T> {
     int countUnreadMessagesInContext(T txn, String contextId)
             throws DbException;
 
+    int countUnreadMessagesInGroup(T txn, String groupId)
+            throws DbException;
+
     void addCryptoKeys(T txn, KeyPair keyPair) throws DbException;
 
     KeyPair getCryptoKeys(T txn) throws DbException;
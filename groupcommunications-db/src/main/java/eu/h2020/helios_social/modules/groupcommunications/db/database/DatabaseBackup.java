@@ -0,0 +1,249 @@
+package eu.h2020.helios_social.modules.groupcommunications.db.database;
+
+import eu.h2020.helios_social.modules.groupcommunications_utils.nullsafety.NotNullByDefault;
+
+import org.h2.store.fs.FilePath;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
+import static eu.h2020.helios_social.modules.groupcommunications_utils.util.LogUtils.logException;
+import static java.util.logging.Level.INFO;
+import static java.util.logging.Level.WARNING;
+import static java.util.logging.Logger.getLogger;
+
+/**
+ * Writes and restores backups of the database.
+ * <p/>
+ * A backup contains blocks of a consistent snapshot of the encrypted
+ * database file and the encrypted files of the blob store, so it is
+ * encrypted under the database key just like the database itself. A backup
+ * made with the {@link BackupManifest manifest} of an earlier backup only
+ * contains the blocks that have changed and the blobs that have been added
+ * since, and must be restored on top of the earlier backups, in order.
+ */
+@NotNullByDefault
+public class DatabaseBackup {
+
+	private static final Logger LOG =
+			getLogger(DatabaseBackup.class.getName());
+
+	/**
+	 * The name of the database file within the database directory, as
+	 * created by H2's MVStore.
+	 */
+	public static final String DATABASE_FILE_NAME = "db.mv.db";
+
+	/**
+	 * The name of the blob store's directory within the database directory.
+	 */
+	public static final String BLOB_DIRECTORY_NAME = "blobs";
+
+	/**
+	 * The file system prefix the database is opened with.
+	 */
+	static final String SPLIT_PREFIX = "split:";
+
+	private static final int FORMAT_VERSION = 1;
+	private static final int BLOCK_LENGTH = 64 * 1024;
+	private static final byte RECORD_BLOCK = 0, RECORD_BLOB = 1,
+			RECORD_END = 2;
+
+	private DatabaseBackup() {
+	}
+
+	/**
+	 * Writes a backup of the given database snapshot and blob store to the
+	 * given stream, skipping anything that is unchanged since the backup
+	 * described by {@code previous}, and returns the manifest of the new
+	 * backup.
+	 */
+	static BackupManifest write(InputStream snapshot, BlobStore blobStore,
+			@Nullable BackupManifest previous, OutputStream out)
+			throws IOException {
+		DataOutputStream dataOut = new DataOutputStream(out);
+		dataOut.writeInt(FORMAT_VERSION);
+		// Send the blocks of the database file that have changed
+		MessageDigest digest = getDigest();
+		ByteArrayOutputStream hashes = new ByteArrayOutputStream();
+		byte[] block = new byte[BLOCK_LENGTH];
+		long fileLength = 0;
+		int index = 0, changed = 0;
+		while (true) {
+			int length = readBlock(snapshot, block);
+			if (length == 0) break;
+			digest.update(block, 0, length);
+			byte[] hash = digest.digest();
+			hashes.write(hash);
+			if (previous == null || !previous.hasBlock(index, hash)) {
+				dataOut.writeByte(RECORD_BLOCK);
+				dataOut.writeInt(index);
+				dataOut.writeInt(length);
+				dataOut.write(block, 0, length);
+				changed++;
+			}
+			fileLength += length;
+			index++;
+		}
+		// Send the blobs that have been added. Blobs are never modified, so
+		// a blob that was in the previous backup is unchanged
+		Collection<String> blobs = blobStore.listFiles();
+		int added = 0;
+		for (String name : blobs) {
+			if (previous != null && previous.hasBlob(name)) continue;
+			byte[] contents = readFully(blobStore.openFile(name));
+			dataOut.writeByte(RECORD_BLOB);
+			dataOut.writeUTF(name);
+			dataOut.writeInt(contents.length);
+			dataOut.write(contents);
+			added++;
+		}
+		dataOut.writeByte(RECORD_END);
+		dataOut.writeLong(fileLength);
+		dataOut.flush();
+		if (LOG.isLoggable(INFO)) {
+			LOG.info("Backed up " + changed + " of " + index
+					+ " blocks and " + added + " of " + blobs.size()
+					+ " blobs");
+		}
+		return new BackupManifest(hashes.toByteArray(), blobs);
+	}
+
+	/**
+	 * Restores a backup into the given database directory, which must not be
+	 * open. A full backup should be restored into an empty directory, and
+	 * each later backup on top of the one before it.
+	 * <p/>
+	 * The database file is written through H2's split file system, which
+	 * the database opens it with, so a file larger than H2's split size is
+	 * restored into the same parts H2 would have written.
+	 */
+	public static void restore(InputStream in, File databaseDirectory)
+			throws IOException {
+		File blobDir = new File(databaseDirectory, BLOB_DIRECTORY_NAME);
+		if (!blobDir.exists() && !blobDir.mkdirs() && !blobDir.exists())
+			throw new IOException("Could not create " + blobDir);
+		DataInputStream dataIn = new DataInputStream(in);
+		if (dataIn.readInt() != FORMAT_VERSION)
+			throw new IOException("Unsupported backup version");
+		FileChannel db = FilePath.get(SPLIT_PREFIX + new File(
+				databaseDirectory, DATABASE_FILE_NAME).getAbsolutePath())
+				.open("rw");
+		try {
+			while (true) {
+				byte type = dataIn.readByte();
+				if (type == RECORD_BLOCK) {
+					int index = dataIn.readInt();
+					byte[] block = readRecord(dataIn, BLOCK_LENGTH);
+					if (index < 0) throw new IOException("Invalid block");
+					writeFully(db, block, (long) index * BLOCK_LENGTH);
+				} else if (type == RECORD_BLOB) {
+					String name = dataIn.readUTF();
+					if (!BlobStore.isFileName(name))
+						throw new IOException("Invalid blob name");
+					byte[] contents = readRecord(dataIn, Integer.MAX_VALUE);
+					writeFile(new File(blobDir, name), contents);
+				} else if (type == RECORD_END) {
+					long fileLength = dataIn.readLong();
+					if (fileLength < 0) throw new IOException("Invalid end");
+					if (db.size() < fileLength)
+						throw new IOException("Missing blocks");
+					db.truncate(fileLength);
+					break;
+				} else {
+					throw new IOException("Unknown record type " + type);
+				}
+			}
+			db.close();
+		} catch (IOException e) {
+			tryToClose(db);
+			throw e;
+		}
+	}
+
+	private static void writeFully(FileChannel f, byte[] b, long position)
+			throws IOException {
+		ByteBuffer buf = ByteBuffer.wrap(b);
+		while (buf.hasRemaining()) position += f.write(buf, position);
+	}
+
+	private static MessageDigest getDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	/**
+	 * Fills the given buffer from the stream, unless the stream ends first,
+	 * and returns the number of bytes read.
+	 */
+	private static int readBlock(InputStream in, byte[] block)
+			throws IOException {
+		int length = 0;
+		while (length < block.length) {
+			int read = in.read(block, length, block.length - length);
+			if (read == -1) break;
+			length += read;
+		}
+		return length;
+	}
+
+	private static byte[] readFully(InputStream in) throws IOException {
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buf = new byte[BLOCK_LENGTH];
+			int read;
+			while ((read = in.read(buf)) != -1) out.write(buf, 0, read);
+			return out.toByteArray();
+		} finally {
+			tryToClose(in);
+		}
+	}
+
+	private static byte[] readRecord(DataInputStream in, int maxLength)
+			throws IOException {
+		int length = in.readInt();
+		if (length < 0 || length > maxLength)
+			throw new IOException("Invalid record length");
+		byte[] b = new byte[length];
+		in.readFully(b);
+		return b;
+	}
+
+	private static void writeFile(File f, byte[] contents)
+			throws IOException {
+		OutputStream out = new FileOutputStream(f);
+		try {
+			out.write(contents);
+			out.close();
+		} catch (IOException e) {
+			tryToClose(out);
+			throw e;
+		}
+	}
+
+	private static void tryToClose(Closeable c) {
+		try {
+			c.close();
+		} catch (IOException e) {
+			logException(LOG, WARNING, e);
+		}
+	}
+}
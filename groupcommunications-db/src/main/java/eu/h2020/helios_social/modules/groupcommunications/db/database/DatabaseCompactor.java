@@ -0,0 +1,86 @@
+package eu.h2020.helios_social.modules.groupcommunications.db.database;
+
+import eu.h2020.helios_social.modules.groupcommunications.api.exception.DbException;
+import eu.h2020.helios_social.modules.groupcommunications_utils.db.Transaction;
+import eu.h2020.helios_social.modules.groupcommunications_utils.lifecycle.LifecycleManager.OpenDatabaseHook;
+import eu.h2020.helios_social.modules.groupcommunications_utils.lifecycle.Service;
+import eu.h2020.helios_social.modules.groupcommunications_utils.nullsafety.NotNullByDefault;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import static eu.h2020.helios_social.modules.groupcommunications.db.database.DatabaseConstants.COMPACTION_INTERVAL_MS;
+import static eu.h2020.helios_social.modules.groupcommunications.db.database.DatabaseConstants.MIN_FILL_RATE;
+import static eu.h2020.helios_social.modules.groupcommunications_utils.util.LogUtils.logException;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.logging.Level.WARNING;
+import static java.util.logging.Logger.getLogger;
+
+/**
+ * Periodically checks how much of the database file holds live data, and
+ * compacts part of the file when the fill rate is low and the database is
+ * idle. The first check runs soon after the database is opened, so a file
+ * left sparse by the last session is compacted without delaying startup.
+ * The checks stop when the services are stopped.
+ */
+@ThreadSafe
+@NotNullByDefault
+class DatabaseCompactor implements OpenDatabaseHook, Service {
+
+	private static final Logger LOG =
+			getLogger(DatabaseCompactor.class.getName());
+
+	private final ExtendedDatabaseComponent db;
+	private final Executor dbExecutor;
+	private final ScheduledExecutorService scheduler;
+	private final Object lock = new Object();
+
+	@GuardedBy("lock")
+	@Nullable
+	private ScheduledFuture<?> future = null;
+
+	DatabaseCompactor(ExtendedDatabaseComponent db, Executor dbExecutor,
+			ScheduledExecutorService scheduler) {
+		this.db = db;
+		this.dbExecutor = dbExecutor;
+		this.scheduler = scheduler;
+	}
+
+	@Override
+	public void onDatabaseOpened(Transaction txn) {
+		synchronized (lock) {
+			if (future != null) return;
+			future = scheduler.scheduleWithFixedDelay(
+					() -> dbExecutor.execute(this::compactIfIdle),
+					0, COMPACTION_INTERVAL_MS,
+					MILLISECONDS);
+		}
+	}
+
+	@Override
+	public void startService() {
+	}
+
+	@Override
+	public void stopService() {
+		synchronized (lock) {
+			if (future != null) future.cancel(false);
+			future = null;
+		}
+	}
+
+	private void compactIfIdle() {
+		try {
+			if (db.compactIfIdle(MIN_FILL_RATE))
+				LOG.info("Compacted database");
+		} catch (DbException e) {
+			logException(LOG, WARNING, e);
+		}
+	}
+}
@@ -2,6 +2,10 @@ package eu.h2020.helios_social.modules.groupcommunications.db.database;
 import java.security.KeyPair;
 
 import eu.h2020.helios_social.modules.groupcommunications.api.forum.sharing.ForumAccessRequest;
+import eu.h2020.helios_social.modules.groupcommunications.db.event.CryptoKeysAddedEvent;
+import eu.h2020.helios_social.modules.groupcommunications.db.event.MessagesAddedEvent;
+import eu.h2020.helios_social.modules.groupcommunications.db.event.MessagesRemovedEvent;
+import eu.h2020.helios_social.modules.groupcommunications.db.event.VersionedSettingsUpdatedEvent;
 import eu.h2020.helios_social.modules.groupcommunications.api.group.GroupMember;
 import eu.h2020.helios_social.modules.groupcommunications.api.resourcediscovery.EntityType;
 
@@ -10,7 +14,6 @@ import eu.h2020.helios_social.modules.groupcommunications_utils.db.CommitAction;
 import eu.h2020.helios_social.modules.groupcommunications_utils.db.CommitAction.Visitor;
 import eu.h2020.helios_social.modules.groupcommunications_utils.db.ContactExistsException;
 import eu.h2020.helios_social.modules.groupcommunications_utils.db.ContextExistsException;
-import eu.h2020.helios_social.modules.groupcommunications_utils.db.DatabaseComponent;
 import eu.h2020.helios_social.modules.groupcommunications_utils.db.DbCallable;
 import eu.h2020.helios_social.modules.groupcommunications_utils.db.GroupAccessRequestExistsException;
 import eu.h2020.helios_social.modules.groupcommunications_utils.db.GroupInvitationExistsException;
@@ -59,13 +62,13 @@ import eu.h2020.helios_social.modules.groupcommunications_utils.db.NullableDbCal
 import eu.h2020.helios_social.modules.groupcommunications_utils.db.PendingContactExistsException;
 import eu.h2020.helios_social.modules.groupcommunications_utils.db.TaskAction;
 import eu.h2020.helios_social.modules.groupcommunications_utils.db.Transaction;
+import eu.h2020.helios_social.modules.groupcommunications_utils.sync.event.Event;
 import eu.h2020.helios_social.modules.groupcommunications_utils.sync.event.EventBus;
 import eu.h2020.helios_social.modules.groupcommunications_utils.sync.event.EventExecutor;
 import eu.h2020.helios_social.modules.groupcommunications_utils.identity.Identity;
 import eu.h2020.helios_social.modules.groupcommunications_utils.lifecycle.ShutdownManager;
 import eu.h2020.helios_social.modules.groupcommunications_utils.nullsafety.NotNullByDefault;
 import eu.h2020.helios_social.modules.groupcommunications_utils.settings.Settings;
-import eu.h2020.helios_social.modules.groupcommunications_utils.settings.event.SettingsUpdatedEvent;
 import eu.h2020.helios_social.modules.groupcommunications_utils.sync.event.ContextAddedEvent;
 import eu.h2020.helios_social.modules.groupcommunications_utils.sync.event.ContextRemovedEvent;
 import eu.h2020.helios_social.modules.groupcommunications.api.contact.Contact;
@@ -75,17 +78,29 @@ import eu.h2020.helios_social.modules.groupcommunications.api.context.DBContext;
 import eu.h2020.helios_social.modules.groupcommunications.api.privategroup.sharing.GroupInvitation;
 import eu.h2020.helios_social.modules.groupcommunications.api.profile.Profile;
 
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Logger;
 
 import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
 import javax.annotation.concurrent.ThreadSafe;
 import javax.inject.Inject;
 
+import static eu.h2020.helios_social.modules.groupcommunications.db.database.DatabaseConstants.MAX_COMPACT_TIME_MS;
+import static java.util.logging.Level.FINE;
+import static java.util.logging.Level.INFO;
 import static java.util.logging.Level.WARNING;
 import static java.util.logging.Logger.getLogger;
 import static eu.h2020.helios_social.modules.groupcommunications_utils.util.LogUtils.logDuration;
@@ -94,7 +109,7 @@ import static eu.h2020.helios_social.modules.groupcommunications_utils.util.LogU
 
 @ThreadSafe
 @NotNullByDefault
-class DatabaseComponentImpl<T> implements DatabaseComponent {
+class DatabaseComponentImpl<T> implements ExtendedDatabaseComponent {
 
     private static final Logger LOG =
             getLogger(DatabaseComponentImpl.class.getName());
@@ -109,21 +124,66 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
             new ReentrantReadWriteLock(true);
     private final Visitor visitor = new CommitActionVisitor();
 
-    @Inject
+    private final long maxGroupCommitDelayMs;
+    private final int maxGroupCommitSize;
+    /**
+     * The group commit that write transactions currently join, if group
+     * commit is enabled.
+     */
+    @GuardedBy("lock")
+    @Nullable
+    private GroupCommit<T> currentGroup = null;
+    private final Map<Transaction, GroupCommitMember<T>> groupCommitMembers =
+            new ConcurrentHashMap<>();
+    private final ReadCache cache = new ReadCache();
+    @Nullable
+    private volatile MigrationListener migrationListener = null;
+    private final Map<Transaction, ReadCache.Scope> cacheScopes =
+            new ConcurrentHashMap<>();
+    private final AtomicLong nextSettingsVersion = new AtomicLong(0);
+    /**
+     * The version of the last committed change to each namespace's
+     * settings.
+     */
+    @GuardedBy("committedSettingsVersions")
+    private final Map<String, Long> committedSettingsVersions =
+            new HashMap<>();
+
     DatabaseComponentImpl(Database<T> db, Class<T> txnClass, EventBus eventBus,
                           @EventExecutor Executor eventExecutor,
                           ShutdownManager shutdownManager) {
+        this(db, txnClass, eventBus, eventExecutor, shutdownManager, 0, 1);
+    }
+
+    /**
+     * @param maxGroupCommitDelayMs how long the first write transaction of a
+     * group commit waits for other write transactions to join it
+     * @param maxGroupCommitSize the number of write transactions that
+     * triggers a group commit without waiting for the delay to expire. A
+     * value of 1 disables group commit, so each write transaction commits
+     * on its own
+     */
+    @Inject
+    DatabaseComponentImpl(Database<T> db, Class<T> txnClass, EventBus eventBus,
+                          @EventExecutor Executor eventExecutor,
+                          ShutdownManager shutdownManager,
+                          long maxGroupCommitDelayMs, int maxGroupCommitSize) {
+        if (maxGroupCommitSize < 1) throw new IllegalArgumentException();
         this.db = db;
         this.txnClass = txnClass;
         this.eventBus = eventBus;
         this.eventExecutor = eventExecutor;
         this.shutdownManager = shutdownManager;
+        this.maxGroupCommitDelayMs = maxGroupCommitDelayMs;
+        this.maxGroupCommitSize = maxGroupCommitSize;
     }
 
     @Override
     public boolean open(SecretKey key, @Nullable MigrationListener listener)
             throws DbException {
         boolean reopened = db.open(key, listener);
+        // Compaction continues in the background after opening
+        migrationListener = listener;
         shutdownManager.addShutdownHook(() -> {
             try {
                 close();
@@ -138,6 +198,83 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
     public void close() throws DbException {
         if (closed.getAndSet(true)) return;
         db.close();
+        if (LOG.isLoggable(INFO)) {
+            LOG.info("Read cache hits: " + cache.getHits()
+                    + ", misses: " + cache.getMisses());
+        }
+    }
+
+    // Package access for testing
+    long getCacheHits() {
+        return cache.getHits();
+    }
+
+    // Package access for testing
+    long getCacheMisses() {
+        return cache.getMisses();
+    }
+
+    @Override
+    public BackupManifest backup(OutputStream out,
+            @Nullable BackupManifest previous) throws DbException {
+        // The backup reads from a snapshot, so it doesn't need the lock
+        return db.backup(out, previous);
+    }
+
+    @Override
+    public ConnectionPoolStats getConnectionPoolStats() {
+        // The counters are thread-safe, so they don't need the lock
+        return db.getConnectionPoolStats();
+    }
+
+    @Override
+    public boolean compactIfIdle(int minFillRate) throws DbException {
+        if (lock.getReadHoldCount() > 0 || lock.isWriteLockedByCurrentThread())
+            throw new IllegalStateException();
+        // Don't wait for other transactions, the next pass can catch up
+        if (!lock.writeLock().tryLock()) return false;
+        try {
+            T txn = db.startTransaction();
+            try {
+                boolean compacted = compact(txn, minFillRate);
+                db.commitTransaction(txn);
+                return compacted;
+            } catch (DbException e) {
+                db.abortTransaction(txn);
+                throw e;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Compacts the database file in small steps until its fill rate reaches
+     * the given percentage, the pass has run for
+     * {@link DatabaseConstants#MAX_COMPACT_TIME_MS}, or another transaction
+     * is waiting for the lock or running.
+     * <p/>
+     * Locking: write lock held.
+     */
+    private boolean compact(T txn, int minFillRate) throws DbException {
+        int fillRate = db.getFillRate(txn);
+        if (LOG.isLoggable(INFO)) LOG.info("Fill rate: " + fillRate + "%");
+        if (fillRate < 0 || fillRate >= minFillRate) return false;
+        MigrationListener listener = migrationListener;
+        if (listener != null) listener.onDatabaseCompaction();
+        long start = now();
+        int steps = 0;
+        // Check for other transactions before every step
+        while (now() - start < MAX_COMPACT_TIME_MS && !lock.hasQueuedThreads()
+                && db.compactStepIfIdle(txn, minFillRate)) {
+            steps++;
+        }
+        logDuration(LOG, "Compacting database", start);
+        if (LOG.isLoggable(INFO)) {
+            LOG.info("Compacted in " + steps + " steps, fill rate now "
+                    + db.getFillRate(txn) + "%");
+        }
+        return steps > 0;
     }
 
     @Override
@@ -153,7 +290,12 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
             logDuration(LOG, "Waiting for write lock", start);
         }
         try {
-            return new Transaction(db.startTransaction(), readOnly);
+            if (!readOnly && maxGroupCommitSize > 1)
+                return startGroupedTransaction();
+            ReadCache.Scope scope = cache.newScope(readOnly);
+            Transaction txn = new Transaction(db.startTransaction(), readOnly);
+            cacheScopes.put(txn, scope);
+            return txn;
         } catch (DbException | RuntimeException e) {
             if (readOnly) lock.readLock().unlock();
             else lock.writeLock().unlock();
@@ -161,19 +303,150 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
         }
     }
 
+    /**
+     * Starts a write transaction that commits as part of a group commit.
+     * The first transaction of a group opens the connection. Later
+     * transactions share it, each starting at a savepoint so it can be
+     * rolled back on its own.
+     * <p/>
+     * Locking: write lock held.
+     */
+    private Transaction startGroupedTransaction() throws DbException {
+        GroupCommit<T> group = currentGroup;
+        boolean leader = group == null;
+        if (leader) {
+            group = new GroupCommit<>(db.startTransaction());
+            currentGroup = group;
+        } else {
+            db.setSavepoint(group.txn);
+        }
+        Transaction transaction = new Transaction(group.txn, false);
+        groupCommitMembers.put(transaction,
+                new GroupCommitMember<>(group, leader));
+        cacheScopes.put(transaction, cache.newScope(false));
+        return transaction;
+    }
+
     @Override
     public void commitTransaction(Transaction transaction) throws DbException {
         T txn = txnClass.cast(transaction.unbox());
         if (transaction.isCommitted()) throw new IllegalStateException();
+        GroupCommitMember<T> member = groupCommitMembers.get(transaction);
+        if (member == null) db.commitTransaction(txn);
+        else if (member.leader) commitGroup(member);
+        else joinGroupCommit(member);
+        // If the commit failed, endTransaction() aborts the transaction
+        // instead of running its commit actions
         transaction.setCommitted();
-        db.commitTransaction(txn);
+    }
+
+    /**
+     * Waits for other write transactions to join the leader's group, then
+     * commits the group.
+     * <p/>
+     * Locking: write lock held on entry and exit, released while waiting.
+     */
+    private void commitGroup(GroupCommitMember<T> member) throws DbException {
+        GroupCommit<T> group = member.group;
+        long deadline = now() + maxGroupCommitDelayMs;
+        lock.writeLock().unlock();
+        boolean interrupted = false;
+        synchronized (group) {
+            long remaining = deadline - now();
+            while (group.size < maxGroupCommitSize && remaining > 0) {
+                try {
+                    group.wait(remaining);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                    break;
+                }
+                remaining = deadline - now();
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+        lock.writeLock().lock();
+        // No transaction can be running on the group's connection now
+        currentGroup = null;
+        DbException failure = null;
+        if (group.broken) {
+            db.abortTransaction(group.txn);
+            failure = new DbException();
+        } else {
+            try {
+                db.commitTransaction(group.txn);
+            } catch (DbException e) {
+                db.abortTransaction(group.txn);
+                failure = e;
+            }
+        }
+        if (LOG.isLoggable(FINE))
+            LOG.fine("Group commit of " + group.size + " transactions");
+        synchronized (group) {
+            group.done = true;
+            group.failure = failure;
+            group.notifyAll();
+        }
+        if (failure != null) {
+            member.failed = true;
+            throw failure;
+        }
+    }
+
+    /**
+     * Adds a write transaction to its group and waits for the leader to
+     * commit the group.
+     * <p/>
+     * Locking: write lock held on entry, released on exit.
+     */
+    private void joinGroupCommit(GroupCommitMember<T> member) throws DbException {
+        GroupCommit<T> group = member.group;
+        try {
+            db.releaseSavepoint(group.txn);
+        } catch (DbException e) {
+            // The transaction's changes can't be separated from the group's
+            group.broken = true;
+            member.failed = true;
+            throw e;
+        }
+        synchronized (group) {
+            group.size++;
+            if (group.size >= maxGroupCommitSize) group.notifyAll();
+        }
+        member.lockReleased = true;
+        lock.writeLock().unlock();
+        boolean interrupted = false;
+        synchronized (group) {
+            while (!group.done) {
+                try {
+                    group.wait();
+                } catch (InterruptedException e) {
+                    // The outcome must be reported, so keep waiting
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+        if (group.failure != null) {
+            member.failed = true;
+            throw new DbException(group.failure);
+        }
     }
 
     @Override
     public void endTransaction(Transaction transaction) {
+        ReadCache.Scope scope = cacheScopes.remove(transaction);
+        GroupCommitMember<T> member = groupCommitMembers.remove(transaction);
+        if (member != null) {
+            endGroupedTransaction(transaction, member, scope);
+            return;
+        }
         try {
             T txn = txnClass.cast(transaction.unbox());
             if (transaction.isCommitted()) {
+                // Invalidate the read cache before the transaction returns,
+                // so later transactions and event handlers don't read stale
+                // entries
+                if (scope != null) scope.commit();
                 for (CommitAction a : transaction.getActions())
                     a.accept(visitor);
             } else {
@@ -224,11 +497,66 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
         }
     }
 
+    private void endGroupedTransaction(Transaction transaction,
+            GroupCommitMember<T> member, @Nullable ReadCache.Scope scope) {
+        try {
+            if (transaction.isCommitted() && !member.failed) {
+                if (scope != null) scope.commit();
+                for (CommitAction a : transaction.getActions())
+                    a.accept(visitor);
+            } else if (!member.lockReleased) {
+                abortGroupedTransaction(member);
+            }
+        } finally {
+            if (!member.lockReleased) lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Locking: write lock held.
+     */
+    private void abortGroupedTransaction(GroupCommitMember<T> member) {
+        GroupCommit<T> group = member.group;
+        synchronized (group) {
+            if (group.done) return;
+        }
+        if (member.leader) {
+            // No other transactions can have joined the group yet
+            db.abortTransaction(group.txn);
+            currentGroup = null;
+            synchronized (group) {
+                group.done = true;
+            }
+        } else if (!group.broken) {
+            try {
+                db.rollbackToSavepoint(group.txn);
+            } catch (DbException e) {
+                logException(LOG, WARNING, e);
+                group.broken = true;
+            }
+        }
+    }
+
     private T unbox(Transaction transaction) {
         if (transaction.isCommitted()) throw new IllegalStateException();
         return txnClass.cast(transaction.unbox());
     }
 
+    private ReadCache.Scope getCacheScope(Transaction transaction) {
+        ReadCache.Scope scope = cacheScopes.get(transaction);
+        if (scope == null) throw new IllegalStateException();
+        return scope;
+    }
+
+    /**
+     * Returns the transaction's cache scope for recording a change. The
+     * changed entries are invalidated when the transaction ends, if it
+     * committed.
+     */
+    private ReadCache.Scope changeCache(Transaction transaction) {
+        return getCacheScope(transaction);
+    }
+
     @Override
     public void addIdentity(Transaction transaction, Identity i)
             throws DbException {
@@ -261,20 +589,20 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
     public Identity getIdentity(Transaction transaction)
             throws DbException {
         T txn = unbox(transaction);
-        if (!db.containsIdentity(txn))
-            throw new NoSuchIdentityException();
-        return db.getIdentity(txn);
+        Identity identity = db.getIdentity(txn);
+        if (identity == null) throw new NoSuchIdentityException();
+        return identity;
     }
 
     @Override
     public Profile getProfile(Transaction transaction, String contextId)
             throws DbException {
         T txn = unbox(transaction);
+        Profile profile = db.getProfile(txn, contextId);
+        if (profile != null) return profile;
         if (!db.containsContext(txn, contextId))
             throw new NoSuchContextException();
-        if (!db.containsProfile(txn, contextId))
-            return new Profile(contextId);
-        return db.getProfile(txn, contextId);
+        return new Profile(contextId);
     }
 
     @Override
@@ -344,10 +672,9 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
         T txn = unbox(transaction);
         if (db.containsContact(txn, p.getId()))
             throw new ContactExistsException(p.getId(), p.getAlias());
-        if (db.containsPendingContact(txn, p.getId())) {
-            PendingContact existing = db.getPendingContact(txn, p.getId());
+        PendingContact existing = db.getPendingContact(txn, p.getId());
+        if (existing != null)
             throw new PendingContactExistsException(existing);
-        }
         db.addPendingContact(txn, p);
         transaction.attach(new PendingContactAddedEvent(p));
     }
@@ -405,6 +732,7 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
         T txn = unbox(transaction);
         if (!db.containsGroup(txn, group.getId())) {
             db.addGroup(txn, group, descriptor, type);
+            changeCache(transaction).groupChanged(group.getId());
             transaction.attach(new GroupAddedEvent(group, type));
         }
     }
@@ -416,6 +744,7 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
         T txn = unbox(transaction);
         if (!db.containsContactGroup(txn, contactId, group.getContextId())) {
             db.addContactGroup(txn, group, contactId);
+            changeCache(transaction).groupChanged(group.getId());
         }
     }
 
@@ -468,6 +797,7 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
         if (!db.containsGroup(txn, groupId))
             throw new NoSuchGroupException();
         db.removeGroup(txn, groupId);
+        changeCache(transaction).groupChanged(groupId);
     }
 
 
@@ -485,9 +815,9 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
     public MessageState getMessageState(Transaction transaction,
                                         String messageId) throws DbException {
         T txn = unbox(transaction);
-        if (!db.containsMessage(txn, messageId))
-            throw new NoSuchMessageException();
-        return db.getMessageState(txn, messageId);
+        MessageState state = db.getMessageState(txn, messageId);
+        if (state == null) throw new NoSuchMessageException();
+        return state;
     }
 
     @Override
@@ -499,6 +829,71 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
         return db.setMessageState(txn, messageId, state);
     }
 
+    @Override
+    public void setGroupRetentionPolicy(Transaction transaction,
+                                        String groupId, @Nullable RetentionPolicy policy)
+            throws DbException {
+        if (transaction.isReadOnly()) throw new IllegalArgumentException();
+        T txn = unbox(transaction);
+        if (!db.containsGroup(txn, groupId))
+            throw new NoSuchGroupException();
+        db.setGroupRetentionPolicy(txn, groupId, policy);
+    }
+
+    @Override
+    public void setContextRetentionPolicy(Transaction transaction,
+                                          String contextId, @Nullable RetentionPolicy policy)
+            throws DbException {
+        if (transaction.isReadOnly()) throw new IllegalArgumentException();
+        T txn = unbox(transaction);
+        if (!db.containsContext(txn, contextId))
+            throw new NoSuchContextException();
+        db.setContextRetentionPolicy(txn, contextId, policy);
+    }
+
+    @Override
+    @Nullable
+    public RetentionPolicy getGroupRetentionPolicy(Transaction transaction,
+                                                   String groupId) throws DbException {
+        T txn = unbox(transaction);
+        if (!db.containsGroup(txn, groupId))
+            throw new NoSuchGroupException();
+        return db.getGroupRetentionPolicy(txn, groupId);
+    }
+
+    @Override
+    @Nullable
+    public RetentionPolicy getContextRetentionPolicy(Transaction transaction,
+                                                     String contextId) throws DbException {
+        T txn = unbox(transaction);
+        if (!db.containsContext(txn, contextId))
+            throw new NoSuchContextException();
+        return db.getContextRetentionPolicy(txn, contextId);
+    }
+
+    @Override
+    public Map<String, RetentionPolicy> getRetentionPolicies(
+            Transaction transaction) throws DbException {
+        T txn = unbox(transaction);
+        return db.getRetentionPolicies(txn);
+    }
+
+    @Override
+    public int pruneMessages(Transaction transaction, String groupId,
+                             RetentionPolicy policy, int limit) throws DbException {
+        if (transaction.isReadOnly()) throw new IllegalArgumentException();
+        if (limit <= 0) throw new IllegalArgumentException();
+        T txn = unbox(transaction);
+        if (!db.containsGroup(txn, groupId))
+            throw new NoSuchGroupException();
+        List<String> expired =
+                db.getExpiredMessageIds(txn, groupId, policy, limit);
+        if (expired.isEmpty()) return 0;
+        db.removeMessages(txn, expired);
+        transaction.attach(new MessagesRemovedEvent(groupId, expired));
+        return expired.size();
+    }
+
     @Override
     public boolean containsContact(Transaction transaction, ContactId contactId)
             throws DbException {
@@ -572,8 +967,6 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
     public PendingContact getPendingContact(Transaction transaction,
                                             ContactId pendingContactId) throws DbException {
         T txn = unbox(transaction);
-        if (!db.containsPendingContact(txn, pendingContactId))
-            return null;
         return db.getPendingContact(txn, pendingContactId);
     }
 
@@ -581,8 +974,6 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
     public Contact getContact(Transaction transaction, ContactId contactId)
             throws DbException {
         T txn = unbox(transaction);
-        if (!db.containsContact(txn, contactId))
-            return null;
         return db.getContact(txn, contactId);
     }
 
@@ -590,8 +981,6 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
     public HeliosEvent getEvent(Transaction transaction, String eventId)
             throws DbException {
         T txn = unbox(transaction);
-        if (!db.containsEvent(txn, eventId))
-            return null;
         return db.getEvent(txn, eventId);
     }
 
@@ -628,9 +1017,13 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
     public Group getGroup(Transaction transaction, String groupId)
             throws DbException {
         T txn = unbox(transaction);
-        if (!db.containsGroup(txn, groupId))
-            throw new NoSuchGroupException();
-        return db.getGroup(txn, groupId);
+        ReadCache.Scope scope = getCacheScope(transaction);
+        Group group = scope.getGroup(groupId);
+        if (group != null) return group;
+        group = db.getGroup(txn, groupId);
+        if (group == null) throw new NoSuchGroupException();
+        scope.putGroup(group);
+        return group;
     }
 
     @Override
@@ -672,9 +1065,14 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
     public String getGroupContext(Transaction transaction, String groupId)
             throws DbException {
         T txn = unbox(transaction);
+        ReadCache.Scope scope = getCacheScope(transaction);
+        String contextId = scope.getGroupContext(groupId);
+        if (contextId != null) return contextId;
         if (!db.containsGroup(txn, groupId))
             throw new NoSuchGroupException();
-        return db.getGroupContext(txn, groupId);
+        contextId = db.getGroupContext(txn, groupId);
+        scope.putGroupContext(groupId, contextId);
+        return contextId;
     }
 
     @Override
@@ -742,9 +1140,9 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
     public Message getMessage(Transaction transaction, String messageId)
             throws DbException {
         T txn = unbox(transaction);
-        if (!db.containsMessage(txn, messageId))
-            throw new NoSuchMessageException();
-        return db.getMessage(txn, messageId);
+        Message message = db.getMessage(txn, messageId);
+        if (message == null) throw new NoSuchMessageException();
+        return message;
     }
 
     @Override
@@ -774,12 +1172,23 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
         return db.getMessageHeaders(txn, groupId);
     }
 
+    @Override
+    public List<MessageHeader> getMessageHeaders(Transaction transaction,
+            String groupId, @Nullable MessageCursor cursor, int limit,
+            MessageCursor.Direction direction) throws DbException {
+        if (limit <= 0) throw new IllegalArgumentException();
+        T txn = unbox(transaction);
+        if (!db.containsGroup(txn, groupId))
+            throw new NoSuchGroupException();
+        return db.getMessageHeaders(txn, groupId, cursor, limit, direction);
+    }
+
     @Override
     public MessageHeader getMessageHeader(Transaction transaction, String messageId) throws DbException {
         T txn = unbox(transaction);
-        if (!db.containsMessage(txn, messageId))
-            throw new NoSuchMessageException();
-        return db.getMessageHeader(txn, messageId);
+        MessageHeader header = db.getMessageHeader(txn, messageId);
+        if (header == null) throw new NoSuchMessageException();
+        return header;
     }
 
     @Override
@@ -791,6 +1200,7 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
             throw new NoSuchContactException();
         db.removeContactGroups(txn, c);
         db.removeContact(txn, c);
+        changeCache(transaction).allGroupsChanged();
         transaction.attach(new ContactRemovedEvent(c));
     }
 
@@ -812,6 +1222,7 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
         T txn = unbox(transaction);
         if (!db.containsContext(txn, context.getId())) {
             db.addContext(txn, context);
+            changeCache(transaction).contextChanged(context.getId());
             logDuration(LOG, "Context added event attached", 1);
             transaction.attach(new ContextAddedEvent(context));
         }
@@ -882,11 +1293,42 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
         }
     }
 
+    @Override
+    public void addMessages(Transaction transaction,
+                            Collection<NewMessage> messages)
+            throws DbException {
+        if (transaction.isReadOnly()) throw new IllegalArgumentException();
+        T txn = unbox(transaction);
+        // Skip duplicates within the batch, keeping the first copy
+        Map<String, NewMessage> unique = new LinkedHashMap<>();
+        for (NewMessage m : messages)
+            unique.putIfAbsent(m.getMessage().getId(), m);
+        unique.keySet().removeAll(
+                db.getExistingMessageIds(txn, unique.keySet()));
+        if (unique.isEmpty()) return;
+        db.addMessages(txn, unique.values());
+        // Listeners that handle each message still get an event for each
+        // one, and listeners that handle each batch get one more at the end
+        List<MessageAddedEvent> events = new ArrayList<>(unique.size());
+        for (NewMessage m : unique.values()) {
+            MessageAddedEvent e = new MessageAddedEvent(m.getMessage(),
+                    m.isIncoming(), m.getState());
+            events.add(e);
+            transaction.attach(e);
+        }
+        transaction.attach(new MessagesAddedEvent(events));
+    }
+
     @Override
     public Collection<DBContext> getContexts(Transaction transaction)
             throws DbException {
         T txn = unbox(transaction);
-        return db.getContexts(txn);
+        ReadCache.Scope scope = getCacheScope(transaction);
+        Collection<DBContext> contexts = scope.getContexts();
+        if (contexts != null) return contexts;
+        contexts = db.getContexts(txn);
+        scope.putContexts(contexts);
+        return contexts;
     }
 
 
@@ -895,16 +1337,26 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
                                 String contextId)
             throws DbException {
         T txn = unbox(transaction);
-        return db.getContext(txn, contextId);
+        ReadCache.Scope scope = getCacheScope(transaction);
+        DBContext context = scope.getContext(contextId);
+        if (context != null) return context;
+        context = db.getContext(txn, contextId);
+        if (context != null) scope.putContext(context);
+        return context;
     }
 
     @Override
     public Integer getContextColor(Transaction transaction, String contextId)
             throws DbException {
         T txn = unbox(transaction);
+        ReadCache.Scope scope = getCacheScope(transaction);
+        Integer cached = scope.getContextColor(contextId);
+        if (cached != null) return cached;
         if (!db.containsContext(txn, contextId))
             throw new NoSuchContextException();
-        return db.getContextColor(txn, contextId);
+        Integer color = db.getContextColor(txn, contextId);
+        scope.putContextColor(contextId, color);
+        return color;
     }
 
     @Override
@@ -963,6 +1415,24 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
         return db.getGroupMetadata(txn, groupIds);
     }
 
+    @Override
+    public Map<String, Metadata> getMessageMetadataByGroupId(
+            Transaction transaction, String groupId, Metadata query,
+            @Nullable Collection<String> keys) throws DbException {
+        T txn = unbox(transaction);
+        if (!db.containsGroup(txn, groupId))
+            throw new NoSuchGroupException();
+        return db.getMessageMetadataByGroupId(txn, groupId, query, keys);
+    }
+
+    @Override
+    public Map<String, Metadata> getGroupMetadata(Transaction transaction,
+                                                  String[] groupIds, Metadata query, @Nullable Collection<String> keys)
+            throws DbException {
+        T txn = unbox(transaction);
+        return db.getGroupMetadata(txn, groupIds, query, keys);
+    }
+
     @Override
     public void removeContext(Transaction transaction, String contextId)
             throws DbException {
@@ -971,6 +1441,10 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
         if (!db.containsContext(txn, contextId))
             throw new NoSuchContextException();
         db.removeContext(txn, contextId);
+        ReadCache.Scope scope = changeCache(transaction);
+        scope.contextChanged(contextId);
+        // The context's groups are removed with it
+        scope.allGroupsChanged();
         transaction.attach(new ContextRemovedEvent(contextId));
     }
 
@@ -981,6 +1455,7 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
         if (!db.containsContext(txn, contextId))
             throw new NoSuchContextException();
         db.setContextPrivateName(txn,contextId,name);
+        changeCache(transaction).contextChanged(contextId);
         transaction.attach(new ContextRenamedEvent(contextId,name));
 
     }
@@ -994,6 +1469,7 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
         if (!db.containsContext(txn, contextId))
             throw new NoSuchContextException();
         db.setContextName(txn,contextId,name);
+        changeCache(transaction).contextChanged(contextId);
         transaction.attach(new ContextRenamedEvent(contextId,name));
     }
 
@@ -1006,6 +1482,7 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
         if (!db.containsContact(txn, new ContactId(contactId)))
             throw new NoSuchContactException();
         db.removeContact(txn, contactId, contextId);
+        changeCache(transaction).allGroupsChanged();
         transaction.attach(new ContactRemovedFromContextEvent(contactId, contextId));
     }
 
@@ -1081,6 +1558,22 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
         return db.getSettings(txn, namespace);
     }
 
+    @Override
+    public long getSettingsVersion(String namespace) {
+        synchronized (committedSettingsVersions) {
+            Long version = committedSettingsVersions.get(namespace);
+            return version == null ? 0 : version;
+        }
+    }
+
+    private void settingsCommitted(VersionedSettingsUpdatedEvent e) {
+        // The members of a group commit run their actions in any order
+        synchronized (committedSettingsVersions) {
+            if (e.getVersion() > getSettingsVersion(e.getNamespace()))
+                committedSettingsVersions.put(e.getNamespace(), e.getVersion());
+        }
+    }
+
     @Override
     public void mergeGroupMetadata(Transaction transaction, String groupId,
                                    Metadata meta)
@@ -1103,6 +1596,38 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
         db.mergeInvertedIndexMetadata(txn, entity, contextId, meta);
     }
 
+    @Override
+    public void addPostings(Transaction transaction, EntityType entityType,
+                            String contextId, String term, Collection<String> docIds)
+            throws DbException {
+        if (transaction.isReadOnly()) throw new IllegalArgumentException();
+        T txn = unbox(transaction);
+        if (!db.containsContext(txn, contextId))
+            throw new NoSuchContextException();
+        db.addPostings(txn, entityType, contextId, term, docIds);
+    }
+
+    @Override
+    public void removePostings(Transaction transaction, EntityType entityType,
+                               String contextId, String term, Collection<String> docIds)
+            throws DbException {
+        if (transaction.isReadOnly()) throw new IllegalArgumentException();
+        T txn = unbox(transaction);
+        if (!db.containsContext(txn, contextId))
+            throw new NoSuchContextException();
+        db.removePostings(txn, entityType, contextId, term, docIds);
+    }
+
+    @Override
+    public List<String> queryPostings(Transaction transaction,
+                                      EntityType entityType, String contextId, Collection<String> terms,
+                                      boolean matchAll) throws DbException {
+        T txn = unbox(transaction);
+        if (!db.containsContext(txn, contextId))
+            throw new NoSuchContextException();
+        return db.queryPostings(txn, entityType, contextId, terms, matchAll);
+    }
+
     @Override
     public void mergeMessageMetadata(Transaction transaction, String messageId,
                                      Metadata meta)
@@ -1136,7 +1661,8 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
         merged.putAll(s);
         if (!merged.equals(old)) {
             db.mergeSettings(txn, s, namespace);
-            transaction.attach(new SettingsUpdatedEvent(namespace, merged));
+            transaction.attach(new VersionedSettingsUpdatedEvent(namespace,
+                    merged, nextSettingsVersion.incrementAndGet()));
         }
     }
 
@@ -1188,6 +1714,158 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
         return db.countUnreadMessagesInContext(txn, contextId);
     }
 
+    @Override
+    public int countUnreadMessagesInGroup(Transaction transaction,
+                                          String groupId) throws DbException {
+        T txn = unbox(transaction);
+        if (!db.containsGroup(txn, groupId))
+            throw new NoSuchGroupException();
+        return db.countUnreadMessagesInGroup(txn, groupId);
+    }
+
+    @Override
+    public Collection<Contact> getContacts(Transaction transaction,
+                                           boolean includePictures) throws DbException {
+        T txn = unbox(transaction);
+        return db.getContacts(txn, includePictures);
+    }
+
+    @Override
+    @Nullable
+    public InputStream getContactPicture(Transaction transaction,
+                                         ContactId contactId) throws DbException {
+        T txn = unbox(transaction);
+        if (!db.containsContact(txn, contactId))
+            throw new NoSuchContactException();
+        return db.getContactPicture(txn, contactId);
+    }
+
+    @Override
+    public Collection<GroupMember> getGroupMembers(Transaction transaction,
+                                                   String groupId, boolean includePictures) throws DbException {
+        T txn = unbox(transaction);
+        return db.getGroupMembers(txn, groupId, includePictures);
+    }
+
+    @Override
+    @Nullable
+    public InputStream getGroupMemberPicture(Transaction transaction,
+                                             String groupId, String peerId) throws DbException {
+        T txn = unbox(transaction);
+        if (!db.containsGroup(txn, groupId))
+            throw new NoSuchGroupException();
+        return db.getGroupMemberPicture(txn, groupId, peerId);
+    }
+
+    @Override
+    public Collection<PendingContact> getPendingContacts(
+            Transaction transaction, boolean includePictures)
+            throws DbException {
+        T txn = unbox(transaction);
+        return db.getPendingContacts(txn, includePictures);
+    }
+
+    @Override
+    @Nullable
+    public InputStream getPendingContactPicture(Transaction transaction,
+                                                ContactId pendingContactId) throws DbException {
+        T txn = unbox(transaction);
+        if (!db.containsPendingContact(txn, pendingContactId))
+            throw new NoSuchPendingContactException();
+        return db.getPendingContactPicture(txn, pendingContactId);
+    }
+
+    @Override
+    public Map<String, Message> getMessages(Transaction transaction,
+                                            Collection<String> messageIds) throws DbException {
+        T txn = unbox(transaction);
+        return db.getMessages(txn, messageIds);
+    }
+
+    @Override
+    public Map<String, Group> getGroups(Transaction transaction,
+                                        Collection<String> groupIds) throws DbException {
+        T txn = unbox(transaction);
+        return db.getGroups(txn, groupIds);
+    }
+
+    @Override
+    public Map<ContactId, Contact> getContacts(Transaction transaction,
+                                               Collection<ContactId> contactIds) throws DbException {
+        T txn = unbox(transaction);
+        return db.getContacts(txn, contactIds);
+    }
+
+    @Override
+    public List<MessageHeader> searchMessages(Transaction transaction,
+                                              String contextId, @Nullable String groupId, String query,
+                                              int limit) throws DbException {
+        if (limit <= 0) throw new IllegalArgumentException();
+        T txn = unbox(transaction);
+        if (!db.containsContext(txn, contextId))
+            throw new NoSuchContextException();
+        if (groupId != null && !db.containsGroup(txn, groupId))
+            throw new NoSuchGroupException();
+        return db.searchMessages(txn, contextId, groupId, query, limit);
+    }
+
+    @Override
+    public int indexMessages(Transaction transaction, int limit)
+            throws DbException {
+        if (transaction.isReadOnly()) throw new IllegalArgumentException();
+        if (limit <= 0) throw new IllegalArgumentException();
+        T txn = unbox(transaction);
+        return db.indexMessages(txn, limit);
+    }
+
+    @Override
+    public void visitMessageIds(Transaction transaction, String groupId,
+                                int fetchSize, RowVisitor<? super String> visitor)
+            throws DbException {
+        T txn = unbox(transaction);
+        if (!db.containsGroup(txn, groupId))
+            throw new NoSuchGroupException();
+        db.visitMessageIds(txn, groupId, fetchSize, visitor);
+    }
+
+    @Override
+    public void visitMessageHeaders(Transaction transaction, String groupId,
+                                    int fetchSize, RowVisitor<? super MessageHeader> visitor)
+            throws DbException {
+        T txn = unbox(transaction);
+        if (!db.containsGroup(txn, groupId))
+            throw new NoSuchGroupException();
+        db.visitMessageHeaders(txn, groupId, fetchSize, visitor);
+    }
+
+    @Override
+    public void visitMessageMetadataByGroupId(Transaction transaction,
+                                              String groupId, int fetchSize, MetadataVisitor visitor)
+            throws DbException {
+        T txn = unbox(transaction);
+        if (!db.containsGroup(txn, groupId))
+            throw new NoSuchGroupException();
+        db.visitMessageMetadataByGroupId(txn, groupId, fetchSize, visitor);
+    }
+
+    @Override
+    public void visitForumMembers(Transaction transaction, String groupId,
+                                  int fetchSize, RowVisitor<? super ForumMember> visitor)
+            throws DbException {
+        T txn = unbox(transaction);
+        if (!db.containsGroup(txn, groupId))
+            throw new NoSuchGroupException();
+        db.visitForumMembers(txn, groupId, fetchSize, visitor);
+    }
+
+    @Override
+    public void visitContacts(Transaction transaction, boolean includePictures,
+                              int fetchSize, RowVisitor<? super Contact> visitor)
+            throws DbException {
+        T txn = unbox(transaction);
+        db.visitContacts(txn, includePictures, fetchSize, visitor);
+    }
+
     @Override
     public int countGroupAccessRequest(Transaction transaction,
                                             boolean isIncoming) throws DbException {
@@ -1202,6 +1880,7 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
         T txn = unbox(transaction);
         if (!db.containsCryptoKeyPair(txn)) {
             db.addCryptoKeys(txn, keyPair);
+            transaction.attach(new CryptoKeysAddedEvent());
         }
     }
 
@@ -1221,11 +1900,59 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
         return db.getCryptoKeys(txn);
     }
 
+    /**
+     * Write transactions that share a connection and are committed together.
+     */
+    private static class GroupCommit<T> {
+
+        private final T txn;
+
+        /**
+         * Set if a member's changes could not be rolled back or released,
+         * in which case the whole group is aborted. Guarded by the write
+         * lock.
+         */
+        private boolean broken = false;
+
+        @GuardedBy("this")
+        private int size = 1;
+        @GuardedBy("this")
+        private boolean done = false;
+        @GuardedBy("this")
+        @Nullable
+        private DbException failure = null;
+
+        private GroupCommit(T txn) {
+            this.txn = txn;
+        }
+    }
+
+    /**
+     * The state of one write transaction within a group commit. Only
+     * accessed by the thread that owns the transaction.
+     */
+    private static class GroupCommitMember<T> {
+
+        private final GroupCommit<T> group;
+        private final boolean leader;
+
+        private boolean lockReleased = false, failed = false;
+
+        private GroupCommitMember(GroupCommit<T> group, boolean leader) {
+            this.group = group;
+            this.leader = leader;
+        }
+    }
+
     private class CommitActionVisitor implements Visitor {
 
         @Override
         public void visit(EventAction a) {
-            eventBus.broadcast(a.getEvent());
+            Event e = a.getEvent();
+            // Record the version before listeners can compare against it
+            if (e instanceof VersionedSettingsUpdatedEvent)
+                settingsCommitted((VersionedSettingsUpdatedEvent) e);
+            eventBus.broadcast(e);
         }
 
         @Override
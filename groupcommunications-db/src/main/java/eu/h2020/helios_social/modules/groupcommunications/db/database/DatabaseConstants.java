@@ -3,6 +3,8 @@ package eu.h2020.helios_social.modules.groupcommunications.db.database;
 import eu.h2020.helios_social.modules.groupcommunications_utils.settings.Settings;
 
 import static java.util.concurrent.TimeUnit.DAYS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.SECONDS;
 
 interface DatabaseConstants {
 
@@ -32,9 +34,126 @@ interface DatabaseConstants {
 	String LAST_COMPACTED_KEY = "lastCompacted";
 
 	/**
-	 * The maximum time between database compactions in milliseconds. When the
-	 * database is opened it will be compacted if more than this amount of time
-	 * has passed since the last compaction.
+	 * The maximum time between database compactions in milliseconds, for
+	 * databases that don't report their fill rate. When such a database is
+	 * opened it will be compacted if more than this amount of time has
+	 * passed since the last compaction.
 	 */
 	long MAX_COMPACTION_INTERVAL_MS = DAYS.toMillis(30);
+
+	/**
+	 * The fill rate of the database file, as a percentage, below which the
+	 * file is compacted in the background. The fill rate is the lower of the
+	 * proportion of the used chunks that holds live data and the proportion
+	 * of the file that is used, which falls as the file fragments.
+	 */
+	int MIN_FILL_RATE = 60;
+
+	/**
+	 * How often in milliseconds the fill rate of the database file is
+	 * checked. At most one compaction pass runs per interval.
+	 */
+	long COMPACTION_INTERVAL_MS = MINUTES.toMillis(15);
+
+	/**
+	 * The maximum time in milliseconds spent on each compaction pass. A pass
+	 * also stops as soon as another transaction starts, and the next pass
+	 * carries on from where it stopped.
+	 */
+	int MAX_COMPACT_TIME_MS = 500;
+
+	/**
+	 * The maximum number of bytes rewritten by each step of a compaction
+	 * pass, so the pass can stop soon after another transaction starts.
+	 */
+	int COMPACT_STEP_BYTES = 1024 * 1024;
+
+	/**
+	 * How often in milliseconds messages are removed from groups according
+	 * to their retention policies.
+	 */
+	long PRUNING_INTERVAL_MS = MINUTES.toMillis(30);
+
+	/**
+	 * The maximum number of messages removed in each transaction while
+	 * pruning, so other transactions don't wait long for the lock.
+	 */
+	int PRUNING_BATCH_SIZE = 100;
+
+	/**
+	 * The maximum number of prepared statements cached per connection.
+	 */
+	int MAX_CACHED_STATEMENTS = 256;
+
+	/**
+	 * The maximum number of parameters in an IN clause. Longer lists are
+	 * split into chunks of this size.
+	 */
+	int MAX_IN_CLAUSE_PARAMETERS = 500;
+
+	/**
+	 * The maximum number of connections in the connection pool. Transactions
+	 * that start while all connections are in use wait for a connection to
+	 * be returned.
+	 */
+	int MAX_CONNECTIONS = 8;
+
+	/**
+	 * The number of connections opened when the database is opened, so the
+	 * first transactions don't pay the cost of opening an encrypted
+	 * connection.
+	 */
+	int PREWARM_CONNECTIONS = 2;
+
+	/**
+	 * How long in milliseconds a transaction waits for a free connection
+	 * before failing.
+	 */
+	long CONNECTION_TIMEOUT_MS = SECONDS.toMillis(30);
+
+	/**
+	 * How long in milliseconds the first write transaction of a group commit
+	 * waits for other write transactions to join it.
+	 */
+	long MAX_GROUP_COMMIT_DELAY_MS = 5;
+
+	/**
+	 * The number of write transactions that are committed together as a
+	 * group. Group commit is disabled by default: a value of 1 makes each
+	 * write transaction commit on its own.
+	 */
+	int MAX_GROUP_COMMIT_SIZE = 1;
+
+	/**
+	 * The {@link Settings} key under which the number of the last message
+	 * added to the full-text index is stored.
+	 */
+	String SEARCH_INDEXED_KEY = "searchIndexed";
+
+	/**
+	 * How often in milliseconds newly added messages are added to the
+	 * full-text index. Until then, searches find them by scanning their
+	 * text.
+	 */
+	long SEARCH_INDEXING_INTERVAL_MS = SECONDS.toMillis(10);
+
+	/**
+	 * The maximum number of messages added to the full-text index in each
+	 * transaction. Searches scan the text of at most this many of the
+	 * newest messages that haven't been indexed yet.
+	 */
+	int SEARCH_INDEXING_BATCH_SIZE = 1000;
+
+	/**
+	 * The number of the most recently added matching messages that a
+	 * search ranks by relevance, unless the search asks for more results
+	 * than this.
+	 */
+	int SEARCH_CANDIDATES = 100;
+
+	/**
+	 * The number of postings in each block of a posting list that is split
+	 * into blocks. A block is split when it grows beyond twice this size.
+	 */
+	int POSTING_BLOCK_SIZE = 128;
 }
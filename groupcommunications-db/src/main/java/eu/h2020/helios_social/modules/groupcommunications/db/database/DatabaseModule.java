@@ -2,23 +2,40 @@ package eu.h2020.helios_social.modules.groupcommunications.db.database;
 
 import eu.h2020.helios_social.modules.groupcommunications_utils.db.DatabaseComponent;
 import eu.h2020.helios_social.modules.groupcommunications_utils.db.DatabaseConfig;
+import eu.h2020.helios_social.modules.groupcommunications_utils.db.DatabaseExecutor;
 import eu.h2020.helios_social.modules.groupcommunications_utils.db.TransactionManager;
 import eu.h2020.helios_social.modules.groupcommunications_utils.sync.event.EventBus;
 import eu.h2020.helios_social.modules.groupcommunications_utils.sync.event.EventExecutor;
+import eu.h2020.helios_social.modules.groupcommunications_utils.lifecycle.LifecycleManager;
 import eu.h2020.helios_social.modules.groupcommunications_utils.lifecycle.ShutdownManager;
 import eu.h2020.helios_social.modules.groupcommunications_utils.system.Clock;
+import eu.h2020.helios_social.modules.groupcommunications_utils.system.Scheduler;
 
 import java.sql.Connection;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
 
+import javax.inject.Inject;
 import javax.inject.Singleton;
 
 import dagger.Module;
 import dagger.Provides;
 
+import static eu.h2020.helios_social.modules.groupcommunications.db.database.DatabaseConstants.MAX_GROUP_COMMIT_DELAY_MS;
+import static eu.h2020.helios_social.modules.groupcommunications.db.database.DatabaseConstants.MAX_GROUP_COMMIT_SIZE;
+
 @Module
 public class DatabaseModule {
 
+	public static class EagerSingletons {
+		@Inject
+		DatabaseCompactor databaseCompactor;
+		@Inject
+		MessagePruner messagePruner;
+		@Inject
+		SearchIndexer searchIndexer;
+	}
+
 	@Provides
 	@Singleton
 	Database<Connection> provideDatabase(DatabaseConfig config,
@@ -28,11 +45,55 @@ public class DatabaseModule {
 
 	@Provides
 	@Singleton
-	DatabaseComponent provideDatabaseComponent(Database<Connection> db,
-			EventBus eventBus, @EventExecutor Executor eventExecutor,
+	ExtendedDatabaseComponent provideExtendedDatabaseComponent(
+			Database<Connection> db, EventBus eventBus,
+			@EventExecutor Executor eventExecutor,
 			ShutdownManager shutdownManager) {
 		return new DatabaseComponentImpl<>(db, Connection.class, eventBus,
-				eventExecutor, shutdownManager);
+				eventExecutor, shutdownManager, MAX_GROUP_COMMIT_DELAY_MS,
+				MAX_GROUP_COMMIT_SIZE);
+	}
+
+	@Provides
+	@Singleton
+	DatabaseCompactor provideDatabaseCompactor(
+			LifecycleManager lifecycleManager, ExtendedDatabaseComponent db,
+			@DatabaseExecutor Executor dbExecutor,
+			@Scheduler ScheduledExecutorService scheduler) {
+		DatabaseCompactor compactor =
+				new DatabaseCompactor(db, dbExecutor, scheduler);
+		lifecycleManager.registerOpenDatabaseHook(compactor);
+		lifecycleManager.registerService(compactor);
+		return compactor;
+	}
+
+	@Provides
+	@Singleton
+	MessagePruner provideMessagePruner(LifecycleManager lifecycleManager,
+			ExtendedDatabaseComponent db,
+			@DatabaseExecutor Executor dbExecutor,
+			@Scheduler ScheduledExecutorService scheduler) {
+		MessagePruner pruner = new MessagePruner(db, dbExecutor, scheduler);
+		lifecycleManager.registerOpenDatabaseHook(pruner);
+		lifecycleManager.registerService(pruner);
+		return pruner;
+	}
+
+	@Provides
+	@Singleton
+	SearchIndexer provideSearchIndexer(LifecycleManager lifecycleManager,
+			ExtendedDatabaseComponent db,
+			@DatabaseExecutor Executor dbExecutor,
+			@Scheduler ScheduledExecutorService scheduler) {
+		SearchIndexer indexer = new SearchIndexer(db, dbExecutor, scheduler);
+		lifecycleManager.registerOpenDatabaseHook(indexer);
+		lifecycleManager.registerService(indexer);
+		return indexer;
+	}
+
+	@Provides
+	DatabaseComponent provideDatabaseComponent(ExtendedDatabaseComponent db) {
+		return db;
 	}
 
 	@Provides
@@ -0,0 +1,406 @@
+package eu.h2020.helios_social.modules.groupcommunications.db.database;
+
+import eu.h2020.helios_social.modules.groupcommunications.api.contact.Contact;
+import eu.h2020.helios_social.modules.groupcommunications.api.contact.ContactId;
+import eu.h2020.helios_social.modules.groupcommunications.api.contact.PendingContact;
+import eu.h2020.helios_social.modules.groupcommunications.api.exception.DbException;
+import eu.h2020.helios_social.modules.groupcommunications.api.forum.ForumMember;
+import eu.h2020.helios_social.modules.groupcommunications.api.group.Group;
+import eu.h2020.helios_social.modules.groupcommunications.api.group.GroupMember;
+import eu.h2020.helios_social.modules.groupcommunications.api.messaging.Message;
+import eu.h2020.helios_social.modules.groupcommunications.api.messaging.MessageHeader;
+import eu.h2020.helios_social.modules.groupcommunications.api.resourcediscovery.EntityType;
+import eu.h2020.helios_social.modules.groupcommunications_utils.db.DatabaseComponent;
+import eu.h2020.helios_social.modules.groupcommunications_utils.db.Metadata;
+import eu.h2020.helios_social.modules.groupcommunications_utils.db.Transaction;
+import eu.h2020.helios_social.modules.groupcommunications_utils.nullsafety.NotNullByDefault;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+/**
+ * Extends {@link DatabaseComponent} with operations provided by this module
+ * that are not part of the groupcommunications-utils interface. The same
+ * instance is bound to both interfaces.
+ */
+@NotNullByDefault
+public interface ExtendedDatabaseComponent extends DatabaseComponent {
+
+	/**
+	 * Returns up to {@code limit} headers of messages in the given group,
+	 * starting next to the given cursor and moving in the given direction.
+	 * If the cursor is null, paging starts from the newest message when
+	 * moving {@link MessageCursor.Direction#BEFORE before} the cursor, or
+	 * from the oldest message when moving
+	 * {@link MessageCursor.Direction#AFTER after} it.
+	 * <p/>
+	 * Headers are returned in the order they are visited, so the last header
+	 * in the list can be used as the cursor for the next page.
+	 */
+	List<MessageHeader> getMessageHeaders(Transaction txn, String groupId,
+			@Nullable MessageCursor cursor, int limit,
+			MessageCursor.Direction direction) throws DbException;
+
+	/**
+	 * Stores the given messages, skipping any that are already in the
+	 * database or that appear earlier in the collection. A
+	 * {@link eu.h2020.helios_social.modules.groupcommunications_utils.sync.event.MessageAddedEvent}
+	 * is broadcast for each message that was added, followed by a
+	 * {@link eu.h2020.helios_social.modules.groupcommunications.db.event.MessagesAddedEvent}
+	 * for the whole batch.
+	 * <p/>
+	 * Read-write.
+	 */
+	void addMessages(Transaction txn, Collection<NewMessage> messages)
+			throws DbException;
+
+	/**
+	 * Returns the number of incoming messages in the given group that have
+	 * not been seen.
+	 * <p/>
+	 * Read-only.
+	 */
+	int countUnreadMessagesInGroup(Transaction txn, String groupId)
+			throws DbException;
+
+	/**
+	 * Returns all contacts. If {@code includePictures} is false, profile
+	 * pictures are not loaded and can be read on demand with
+	 * {@link #getContactPicture(Transaction, ContactId)}.
+	 * <p/>
+	 * Read-only.
+	 */
+	Collection<Contact> getContacts(Transaction txn, boolean includePictures)
+			throws DbException;
+
+	/**
+	 * Returns a stream for reading the given contact's profile picture, or
+	 * null if the contact has no picture. The caller must close the stream
+	 * before the transaction ends.
+	 * <p/>
+	 * Read-only.
+	 */
+	@Nullable
+	InputStream getContactPicture(Transaction txn, ContactId contactId)
+			throws DbException;
+
+	/**
+	 * Returns the members of the given group. If {@code includePictures} is
+	 * false, profile pictures are not loaded and can be read on demand with
+	 * {@link #getGroupMemberPicture(Transaction, String, String)}.
+	 * <p/>
+	 * Read-only.
+	 */
+	Collection<GroupMember> getGroupMembers(Transaction txn, String groupId,
+			boolean includePictures) throws DbException;
+
+	/**
+	 * Returns a stream for reading the given group member's profile picture,
+	 * or null if the member has no picture. The caller must close the stream
+	 * before the transaction ends.
+	 * <p/>
+	 * Read-only.
+	 */
+	@Nullable
+	InputStream getGroupMemberPicture(Transaction txn, String groupId,
+			String peerId) throws DbException;
+
+	/**
+	 * Returns all pending contacts. If {@code includePictures} is false,
+	 * profile pictures are not loaded and can be read on demand with
+	 * {@link #getPendingContactPicture(Transaction, ContactId)}.
+	 * <p/>
+	 * Read-only.
+	 */
+	Collection<PendingContact> getPendingContacts(Transaction txn,
+			boolean includePictures) throws DbException;
+
+	/**
+	 * Returns a stream for reading the given pending contact's profile
+	 * picture, or null if it has no picture. The caller must close the
+	 * stream before the transaction ends.
+	 * <p/>
+	 * Read-only.
+	 */
+	@Nullable
+	InputStream getPendingContactPicture(Transaction txn,
+			ContactId pendingContactId) throws DbException;
+
+	/**
+	 * Returns up to {@code limit} headers of messages in the given context,
+	 * and in the given group if it's not null, whose text contains every
+	 * term in the given query. Matching is case- and accent-insensitive.
+	 * Headers are ordered by relevance, so messages where the query's rarer
+	 * terms occur more often come first, with ties broken by recency. Only
+	 * the most recently added matches, at least {@code limit} of them, are
+	 * ranked.
+	 * <p/>
+	 * The full-text index is stored in the encrypted database. Messages are
+	 * added to the index in the background by {@link #indexMessages}; until
+	 * then the newest messages are matched by scanning their text.
+	 * <p/>
+	 * Read-only.
+	 */
+	List<MessageHeader> searchMessages(Transaction txn, String contextId,
+			@Nullable String groupId, String query, int limit)
+			throws DbException;
+
+	/**
+	 * Adds up to {@code limit} of the messages that are waiting to be added
+	 * to the full-text index, oldest first, and returns the number of
+	 * messages that were waiting. Fewer than {@code limit} are returned
+	 * only if no more messages are waiting.
+	 */
+	int indexMessages(Transaction txn, int limit) throws DbException;
+
+	/**
+	 * Passes the IDs of the messages in the given group to the visitor as
+	 * they are read from the database, so groups of any size can be walked
+	 * with constant memory. Rows are fetched {@code fetchSize} at a time, or
+	 * in batches chosen by the database if {@code fetchSize} is zero.
+	 * <p/>
+	 * Read-only.
+	 */
+	void visitMessageIds(Transaction txn, String groupId, int fetchSize,
+			RowVisitor<? super String> visitor) throws DbException;
+
+	/**
+	 * Passes the headers of the messages in the given group to the visitor,
+	 * oldest first, as they are read from the database.
+	 * <p/>
+	 * Read-only.
+	 *
+	 * @see #visitMessageIds(Transaction, String, int, RowVisitor)
+	 */
+	void visitMessageHeaders(Transaction txn, String groupId, int fetchSize,
+			RowVisitor<? super MessageHeader> visitor) throws DbException;
+
+	/**
+	 * Passes the metadata of each message in the given group to the visitor
+	 * as it is read from the database.
+	 * <p/>
+	 * Read-only.
+	 *
+	 * @see #visitMessageIds(Transaction, String, int, RowVisitor)
+	 */
+	void visitMessageMetadataByGroupId(Transaction txn, String groupId,
+			int fetchSize, MetadataVisitor visitor) throws DbException;
+
+	/**
+	 * Passes the members of the given forum to the visitor as they are read
+	 * from the database.
+	 * <p/>
+	 * Read-only.
+	 *
+	 * @see #visitMessageIds(Transaction, String, int, RowVisitor)
+	 */
+	void visitForumMembers(Transaction txn, String groupId, int fetchSize,
+			RowVisitor<? super ForumMember> visitor) throws DbException;
+
+	/**
+	 * Passes all contacts to the visitor as they are read from the database,
+	 * loading profile pictures only if {@code includePictures} is true.
+	 * <p/>
+	 * Read-only.
+	 *
+	 * @see #visitMessageIds(Transaction, String, int, RowVisitor)
+	 */
+	void visitContacts(Transaction txn, boolean includePictures,
+			int fetchSize, RowVisitor<? super Contact> visitor)
+			throws DbException;
+
+	/**
+	 * Adds the given documents to the posting list of the given term in the
+	 * inverted index for the given entity type and context. Only the blocks
+	 * of the list that the documents fall into are rewritten.
+	 * <p/>
+	 * Read-write.
+	 */
+	void addPostings(Transaction txn, EntityType entityType, String contextId,
+			String term, Collection<String> docIds) throws DbException;
+
+	/**
+	 * Removes the given documents from the posting list of the given term in
+	 * the inverted index for the given entity type and context.
+	 * <p/>
+	 * Read-write.
+	 */
+	void removePostings(Transaction txn, EntityType entityType,
+			String contextId, String term, Collection<String> docIds)
+			throws DbException;
+
+	/**
+	 * Returns the documents whose posting lists in the inverted index for
+	 * the given entity type and context include all of the given terms if
+	 * {@code matchAll} is true, or any of them otherwise. Documents are
+	 * returned in the order they were first added to the index.
+	 * <p/>
+	 * Read-only.
+	 */
+	List<String> queryPostings(Transaction txn, EntityType entityType,
+			String contextId, Collection<String> terms, boolean matchAll)
+			throws DbException;
+
+	/**
+	 * Returns the metadata of the messages in the given group whose metadata
+	 * includes every key/value pair in the query, such as a flag that's set.
+	 * An empty query matches every message that has metadata. If
+	 * {@code keys} is not null, only those keys are returned for each
+	 * matching message, and an empty collection returns just the matching
+	 * message IDs, mapped to empty metadata.
+	 * <p/>
+	 * The query is evaluated by the database, so the metadata of messages
+	 * that don't match is never read.
+	 * <p/>
+	 * Read-only.
+	 */
+	Map<String, Metadata> getMessageMetadataByGroupId(Transaction txn,
+			String groupId, Metadata query, @Nullable Collection<String> keys)
+			throws DbException;
+
+	/**
+	 * Returns the metadata of the given groups whose metadata includes every
+	 * key/value pair in the query.
+	 * <p/>
+	 * Read-only.
+	 *
+	 * @see #getMessageMetadataByGroupId(Transaction, String, Metadata, Collection)
+	 */
+	Map<String, Metadata> getGroupMetadata(Transaction txn, String[] groupIds,
+			Metadata query, @Nullable Collection<String> keys)
+			throws DbException;
+
+	/**
+	 * Returns the messages with the given IDs, mapped by ID, using a few
+	 * queries rather than one per message. IDs of messages that don't exist
+	 * are ignored.
+	 * <p/>
+	 * Read-only.
+	 */
+	Map<String, Message> getMessages(Transaction txn,
+			Collection<String> messageIds) throws DbException;
+
+	/**
+	 * Returns the groups with the given IDs, mapped by ID. IDs of groups
+	 * that don't exist are ignored.
+	 * <p/>
+	 * Read-only.
+	 *
+	 * @see #getMessages(Transaction, Collection)
+	 */
+	Map<String, Group> getGroups(Transaction txn, Collection<String> groupIds)
+			throws DbException;
+
+	/**
+	 * Returns the contacts with the given IDs, mapped by ID. IDs of contacts
+	 * that don't exist are ignored.
+	 * <p/>
+	 * Read-only.
+	 *
+	 * @see #getMessages(Transaction, Collection)
+	 */
+	Map<ContactId, Contact> getContacts(Transaction txn,
+			Collection<ContactId> contactIds) throws DbException;
+
+	/**
+	 * Returns the version of the last committed change to the given
+	 * namespace's settings, or zero if they haven't changed since the
+	 * database was opened. Settings read after this call include at least
+	 * the changes up to the returned version. The change is announced by a
+	 * {@link eu.h2020.helios_social.modules.groupcommunications.db.event.VersionedSettingsUpdatedEvent}
+	 * with the same version, which is recorded here before the event is
+	 * broadcast.
+	 */
+	long getSettingsVersion(String namespace);
+
+	/**
+	 * Sets the retention policy of the given group, or removes it if the
+	 * policy is null. A group's policy overrides the policy of its context.
+	 */
+	void setGroupRetentionPolicy(Transaction txn, String groupId,
+			@Nullable RetentionPolicy policy) throws DbException;
+
+	/**
+	 * Sets the retention policy of the given context, or removes it if the
+	 * policy is null. The policy applies to each group in the context that
+	 * doesn't have its own policy.
+	 */
+	void setContextRetentionPolicy(Transaction txn, String contextId,
+			@Nullable RetentionPolicy policy) throws DbException;
+
+	/**
+	 * Returns the given group's own retention policy, or null if it doesn't
+	 * have one.
+	 * <p/>
+	 * Read-only.
+	 */
+	@Nullable
+	RetentionPolicy getGroupRetentionPolicy(Transaction txn, String groupId)
+			throws DbException;
+
+	/**
+	 * Returns the given context's retention policy, or null if it doesn't
+	 * have one.
+	 * <p/>
+	 * Read-only.
+	 */
+	@Nullable
+	RetentionPolicy getContextRetentionPolicy(Transaction txn,
+			String contextId) throws DbException;
+
+	/**
+	 * Returns the retention policy that applies to each group that has one,
+	 * mapped by group ID.
+	 * <p/>
+	 * Read-only.
+	 */
+	Map<String, RetentionPolicy> getRetentionPolicies(Transaction txn)
+			throws DbException;
+
+	/**
+	 * Removes up to the given number of the oldest messages in the given
+	 * group that the given policy says should be removed, along with their
+	 * metadata, and returns the number removed. Fewer than the given number
+	 * are removed only if no more messages need to be removed.
+	 */
+	int pruneMessages(Transaction txn, String groupId, RetentionPolicy policy,
+			int limit) throws DbException;
+
+	/**
+	 * Writes an encrypted backup of a consistent snapshot of the database
+	 * to the given stream and returns its manifest. If the manifest of an
+	 * earlier backup is given, only what has changed since that backup is
+	 * written. The backup can be restored with
+	 * {@link DatabaseBackup#restore(java.io.InputStream, java.io.File)}.
+	 * <p/>
+	 * This method must not be called within a transaction. Other
+	 * transactions can run while the backup is written.
+	 */
+	BackupManifest backup(OutputStream out, @Nullable BackupManifest previous)
+			throws DbException;
+
+	/**
+	 * Returns a snapshot of the database's connection pool and statement
+	 * cache counters, for monitoring. This method may be called within or
+	 * outside a transaction and doesn't wait for other transactions.
+	 */
+	ConnectionPoolStats getConnectionPoolStats();
+
+	/**
+	 * Compacts part of the database file if its fill rate is below the given
+	 * percentage, telling the listener passed to {@link #open} before the
+	 * first step. Compaction holds the write lock and stops as soon as
+	 * another transaction is waiting or running. If the write lock isn't
+	 * free, nothing is compacted.
+	 * <p/>
+	 * This method must not be called within a transaction.
+	 *
+	 * @return true if any part of the file was compacted
+	 */
+	boolean compactIfIdle(int minFillRate) throws DbException;
+}
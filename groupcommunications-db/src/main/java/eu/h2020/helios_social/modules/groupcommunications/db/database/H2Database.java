@@ -9,7 +9,18 @@ import eu.h2020.helios_social.modules.groupcommunications_utils.nullsafety.NotNu
 import eu.h2020.helios_social.modules.groupcommunications_utils.system.Clock;
 import eu.h2020.helios_social.modules.groupcommunications_utils.util.StringUtils;
 
+import org.h2.engine.Session;
+import org.h2.engine.SessionInterface;
+import org.h2.jdbc.JdbcConnection;
+import org.h2.mvstore.FileStore;
+import org.h2.mvstore.MVStore;
+import org.h2.mvstore.db.MVTableEngine.Store;
+
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
@@ -20,6 +31,10 @@ import java.util.logging.Logger;
 import javax.annotation.Nullable;
 import javax.inject.Inject;
 
+import static eu.h2020.helios_social.modules.groupcommunications.db.database.DatabaseBackup.BLOB_DIRECTORY_NAME;
+import static eu.h2020.helios_social.modules.groupcommunications.db.database.DatabaseBackup.SPLIT_PREFIX;
+import static eu.h2020.helios_social.modules.groupcommunications.db.database.DatabaseConstants.COMPACT_STEP_BYTES;
+import static eu.h2020.helios_social.modules.groupcommunications.db.database.DatabaseConstants.MAX_COMPACT_TIME_MS;
 import static eu.h2020.helios_social.modules.groupcommunications.db.database.JdbcUtils.tryToClose;
 import static java.util.logging.Level.INFO;
 import static java.util.logging.Level.WARNING;
@@ -52,12 +67,29 @@ class H2Database extends JdbcDatabase {
 	@Inject
 	H2Database(DatabaseConfig config,
 			Clock clock) {
+		this(config, clock, getTuningProfile(config));
+	}
+
+	private H2Database(DatabaseConfig config, Clock clock,
+			TuningProfile profile) {
 		super(dbTypes, clock);
 		this.config = config;
 		File dir = config.getDatabaseDirectory();
 		String path = new File(dir, "db").getAbsolutePath();
-		url = "jdbc:h2:split:" + path + ";CIPHER=AES;MULTI_THREADED=1"
-				+ ";WRITE_DELAY=0";
+		url = "jdbc:h2:" + SPLIT_PREFIX + path
+				+ ";CIPHER=AES;MULTI_THREADED=1;WRITE_DELAY=0"
+				+ ";CACHE_SIZE=" + profile.getCacheSizeKb()
+				+ ";MAX_COMPACT_TIME=" + MAX_COMPACT_TIME_MS;
+		if (LOG.isLoggable(INFO)) LOG.info("Tuning profile: " + profile);
+	}
+
+	private static TuningProfile getTuningProfile(DatabaseConfig config) {
+		if (config instanceof TunableDatabaseConfig) {
+			TuningProfile profile =
+					((TunableDatabaseConfig) config).getTuningProfile();
+			if (profile != null) return profile;
+		}
+		return TuningProfile.forMaxMemory(Runtime.getRuntime().maxMemory());
 	}
 
 	@Override
@@ -106,6 +138,109 @@ class H2Database extends JdbcDatabase {
 		return url;
 	}
 
+	@Override
+	protected BlobStore createBlobStore(SecretKey key) {
+		File dir = new File(config.getDatabaseDirectory(), BLOB_DIRECTORY_NAME);
+		return new BlobStore(dir, key);
+	}
+
+	@Override
+	protected void setLazyQueryExecution(Connection txn, boolean lazy)
+			throws SQLException {
+		Statement s = null;
+		try {
+			s = txn.createStatement();
+			s.execute("SET LAZY_QUERY_EXECUTION " + (lazy ? 1 : 0));
+			s.close();
+		} catch (SQLException e) {
+			tryToClose(s, LOG, WARNING);
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns the lower of the fill rate of the MVStore's chunks and the
+	 * fill rate of its file. H2 doesn't report either through SQL, so they
+	 * are read from the store behind the connection.
+	 */
+	@Override
+	public int getFillRate(Connection txn) throws DbException {
+		MVStore store = getMvStore(txn);
+		if (store == null) return -1;
+		return Math.min(store.getCurrentFillRate(),
+				store.getFileStore().getFillRate());
+	}
+
+	/**
+	 * Rewrites sparse chunks into new chunks or, once the chunks are full
+	 * enough, moves chunks into the free space between them so the end of
+	 * the file can be truncated. Both are bounded by
+	 * {@link DatabaseConstants#COMPACT_STEP_BYTES} and run while other
+	 * connections use the store.
+	 */
+	@Override
+	protected boolean compactStep(Connection txn, int targetFillRate)
+			throws DbException {
+		MVStore store = getMvStore(txn);
+		// Don't move chunks while a backup is reading them
+		if (store == null || !store.getReuseSpace()) return false;
+		try {
+			if (store.getCurrentFillRate() < targetFillRate)
+				return store.compact(targetFillRate, COMPACT_STEP_BYTES);
+			FileStore file = store.getFileStore();
+			int fillRate = file.getFillRate();
+			if (fillRate >= targetFillRate) return false;
+			store.compactMoveChunks(targetFillRate, COMPACT_STEP_BYTES);
+			return file.getFillRate() > fillRate;
+		} catch (IllegalStateException e) {
+			// The MVStore reports errors, including a closed store, this way
+			throw new DbException(e);
+		}
+	}
+
+	@Nullable
+	private MVStore getMvStore(Connection txn) throws DbException {
+		try {
+			SessionInterface session =
+					txn.unwrap(JdbcConnection.class).getSession();
+			if (!(session instanceof Session)) return null;
+			Store store = ((Session) session).getDatabase().getStore();
+			return store == null ? null : store.getMvStore();
+		} catch (SQLException e) {
+			throw new DbException(e);
+		}
+	}
+
+	/**
+	 * Streams the encrypted database file straight from the MVStore, as
+	 * H2's BACKUP command does but without writing a copy first. Pending
+	 * changes are committed and the store stops reusing free space until
+	 * the returned stream is closed, so the chunks of the committed version
+	 * aren't overwritten while they're read. Chunks written meanwhile are
+	 * only appended, and the stream ends at the length the file had when
+	 * the snapshot was taken.
+	 */
+	@Override
+	protected InputStream openSnapshot(Connection txn) throws DbException {
+		MVStore store = getMvStore(txn);
+		if (store == null) throw new DbException();
+		try {
+			store.commit();
+			store.setReuseSpace(false);
+		} catch (IllegalStateException e) {
+			throw new DbException(e);
+		}
+		try {
+			FileStore file = store.getFileStore();
+			FileChannel channel = file.getEncryptedFile();
+			if (channel == null) channel = file.getFile();
+			return new SnapshotInputStream(store, channel, channel.size());
+		} catch (IOException | IllegalStateException e) {
+			store.setReuseSpace(true);
+			throw new DbException(e);
+		}
+	}
+
 	@Override
 	protected void compactAndClose() throws DbException {
 		Connection c = null;
@@ -123,4 +258,50 @@ class H2Database extends JdbcDatabase {
 			throw new DbException(e);
 		}
 	}
+
+	/**
+	 * Reads the database file up to a fixed length, and lets the store reuse
+	 * free space again when closed.
+	 */
+	private static class SnapshotInputStream extends InputStream {
+
+		private final MVStore store;
+		private final FileChannel channel;
+		private final long length;
+
+		private long position = 0;
+		private boolean closed = false;
+
+		private SnapshotInputStream(MVStore store, FileChannel channel,
+				long length) {
+			this.store = store;
+			this.channel = channel;
+			this.length = length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (closed) throw new IOException("Snapshot closed");
+			if (position == length) return -1;
+			len = (int) Math.min(len, length - position);
+			// Positional reads don't move the channel the store writes with
+			int read = channel.read(ByteBuffer.wrap(b, off, len), position);
+			if (read == -1) throw new IOException("Database file truncated");
+			position += read;
+			return read;
+		}
+
+		@Override
+		public void close() {
+			if (closed) return;
+			closed = true;
+			store.setReuseSpace(true);
+		}
+	}
 }
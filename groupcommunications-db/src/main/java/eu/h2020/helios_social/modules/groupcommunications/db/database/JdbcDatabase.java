@@ -8,6 +8,9 @@ import eu.h2020.helios_social.modules.groupcommunications.api.resourcediscovery.
 import eu.h2020.helios_social.modules.groupcommunications.api.sharing.Request;
 import eu.h2020.helios_social.modules.groupcommunications.db.crypto.security.RSAKeyPair;
 import eu.h2020.helios_social.modules.groupcommunications.db.crypto.security.RSAKeyUtils;
+import eu.h2020.helios_social.modules.groupcommunications.db.database.LazyPicture.LazyContact;
+import eu.h2020.helios_social.modules.groupcommunications.db.database.LazyPicture.LazyGroupMember;
+import eu.h2020.helios_social.modules.groupcommunications.db.database.LazyPicture.LazyPendingContact;
 import eu.h2020.helios_social.modules.groupcommunications_utils.crypto.SecretKey;
 import eu.h2020.helios_social.modules.groupcommunications_utils.db.DataTooNewException;
 import eu.h2020.helios_social.modules.groupcommunications_utils.db.DataTooOldException;
@@ -48,19 +51,29 @@ import java.security.spec.EncodedKeySpec;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.PKCS8EncodedKeySpec;
 import java.security.spec.X509EncodedKeySpec;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Savepoint;
 import java.sql.Statement;
-import java.sql.Types;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -73,6 +86,9 @@ import static eu.h2020.helios_social.modules.groupcommunications_utils.db.Metada
 import static java.sql.Types.BINARY;
 import static java.sql.Types.VARCHAR;
 import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.logging.Level.FINE;
 import static java.util.logging.Level.INFO;
 import static java.util.logging.Level.WARNING;
 import static java.util.logging.Logger.getLogger;
@@ -89,7 +105,7 @@ import static eu.h2020.helios_social.modules.groupcommunications_utils.util.LogU
 abstract class JdbcDatabase implements Database<Connection> {
 
     // Package access for testing
-    static final int CODE_SCHEMA_VERSION = 9;
+    static final int CODE_SCHEMA_VERSION = 16;
 
     private static final String CREATE_SETTINGS =
             "CREATE TABLE settings"
@@ -102,7 +118,7 @@ abstract class JdbcDatabase implements Database<Connection> {
             "CREATE TABLE identities"
                     + " (id _STRING NOT NULL,"
                     + " networkId _STRING,"
-                    + " profilePicture BLOB,"
+                    + " profilePictureRef _HASH,"
                     + " alias _STRING NOT NULL,"
                     + " timestamp BIGINT NOT NULL,"
                     + " PRIMARY KEY (id))";
@@ -118,13 +134,13 @@ abstract class JdbcDatabase implements Database<Connection> {
                     + " work _STRING,"
                     + " interests _STRING,"
                     + " quote _STRING,"
-                    + " profilepic BLOB,"
+                    + " profilePictureRef _HASH,"
                     + " PRIMARY KEY (contextId))";
 
     private static final String CREATE_CONTACTS =
             "CREATE TABLE contacts"
                     + " (contactId _STRING NOT NULL,"
-                    + " profilePicture BLOB,"
+                    + " profilePictureRef _HASH,"
                     + " publicKey BLOB,"
                     + " alias _STRING NOT NULL,"
                     + " PRIMARY KEY (contactId))";
@@ -132,7 +148,7 @@ abstract class JdbcDatabase implements Database<Connection> {
     private static final String CREATE_GROUP_MEMBERS =
             "CREATE TABLE groupMembers"
                     + " (peerId _STRING NOT NULL,"
-                    + " profilePicture BLOB,"
+                    + " profilePictureRef _HASH,"
                     + " alias _STRING NOT NULL,"
                     + " groupId _STRING NOT NULL,"
                     + " PRIMARY KEY (peerId, groupId),"
@@ -144,7 +160,7 @@ abstract class JdbcDatabase implements Database<Connection> {
             "CREATE TABLE pendingContacts"
                     + " (pendingContactId _STRING NOT NULL,"
                     + " alias _STRING NOT NULL,"
-                    + " profilePicture BLOB,"
+                    + " profilePictureRef _HASH,"
                     + " message _STRING,"
                     + " type INT NOT NULL,"
                     + " timestamp BIGINT NOT NULL,"
@@ -319,14 +335,178 @@ abstract class JdbcDatabase implements Database<Connection> {
                     + " REFERENCES contexts (contextId)"
                     + " ON DELETE CASCADE)";
 
+    // Maps the IDs of documents in posting lists to the numbers stored in
+    // the lists
+    private static final String CREATE_POSTING_DOCUMENTS =
+            "CREATE TABLE postingDocuments"
+                    + " (docNumber _COUNTER,"
+                    + " entity _STRING NOT NULL,"
+                    + " contextId _STRING NOT NULL,"
+                    + " docId _STRING NOT NULL,"
+                    + " PRIMARY KEY (docNumber),"
+                    + " UNIQUE (entity, contextId, docId),"
+                    + " FOREIGN KEY (contextId)"
+                    + " REFERENCES contexts (contextId)"
+                    + " ON DELETE CASCADE)";
+
+    // Each posting list is stored as one or more blocks, keyed by the first
+    // document number in the block. Declaring contextId unselective stops
+    // H2 from planning key lookups on the contextId foreign key index when
+    // a statement is prepared while the table is empty: the plan is kept
+    // by the statement cache and would scan every block in the context
+    private static final String CREATE_POSTING_BLOCKS =
+            "CREATE TABLE postingBlocks"
+                    + " (entity _STRING NOT NULL,"
+                    + " contextId _STRING NOT NULL SELECTIVITY 1,"
+                    + " term _STRING NOT NULL,"
+                    + " firstDoc INT NOT NULL,"
+                    + " postingCount INT NOT NULL,"
+                    + " postings _BINARY NOT NULL,"
+                    + " PRIMARY KEY (entity, contextId, term, firstDoc),"
+                    + " FOREIGN KEY (contextId)"
+                    + " REFERENCES contexts (contextId)"
+                    + " ON DELETE CASCADE)";
+
+    // A group's retention policy overrides the policy of its context
+    private static final String CREATE_GROUP_RETENTION_POLICIES =
+            "CREATE TABLE groupRetentionPolicies"
+                    + " (groupId _STRING NOT NULL,"
+                    + " maxAge BIGINT NOT NULL,"
+                    + " maxCount INT NOT NULL,"
+                    + " keepFavourites BOOLEAN NOT NULL,"
+                    + " PRIMARY KEY (groupId),"
+                    + " FOREIGN KEY (groupId)"
+                    + " REFERENCES groups (groupId)"
+                    + " ON DELETE CASCADE)";
+
+    private static final String CREATE_CONTEXT_RETENTION_POLICIES =
+            "CREATE TABLE contextRetentionPolicies"
+                    + " (contextId _STRING NOT NULL,"
+                    + " maxAge BIGINT NOT NULL,"
+                    + " maxCount INT NOT NULL,"
+                    + " keepFavourites BOOLEAN NOT NULL,"
+                    + " PRIMARY KEY (contextId),"
+                    + " FOREIGN KEY (contextId)"
+                    + " REFERENCES contexts (contextId)"
+                    + " ON DELETE CASCADE)";
+
     private static final String CREATE_CRYPTO_KEYS =
             "CREATE TABLE crypto_keys"
                     + " (privateKey BLOB,"
                     + " publicKey BLOB)";
 
+    /**
+     * The number of unread incoming messages in each group, split by the
+     * context the messages belong to. Rows are removed along with their
+     * group or context.
+     */
+    private static final String CREATE_UNREAD_COUNTS =
+            "CREATE TABLE unreadCounts"
+                    + " (groupId _STRING NOT NULL,"
+                    + " contextId _STRING NOT NULL,"
+                    + " unread INT NOT NULL,"
+                    + " PRIMARY KEY (groupId, contextId),"
+                    + " FOREIGN KEY (groupId)"
+                    + " REFERENCES groups (groupId)"
+                    + " ON DELETE CASCADE,"
+                    + " FOREIGN KEY (contextId)"
+                    + " REFERENCES contexts (contextId)"
+                    + " ON DELETE CASCADE)";
+
+    // Numbers the messages with text in the order they were added, which
+    // is the order they are added to the full-text index. Rows are never
+    // updated, so adding a message only appends to the table
+    private static final String CREATE_SEARCH_DOCUMENTS =
+            "CREATE TABLE searchDocuments"
+                    + " (docNumber _COUNTER,"
+                    + " messageId _STRING NOT NULL,"
+                    + " PRIMARY KEY (docNumber))";
+
+    // The number of messages containing each term of the full-text index,
+    // and the end of the term's posting list: the postings that don't fill
+    // a block yet. Keeping them with the count means adding postings to a
+    // list only rewrites this row until a block is full. contextId is
+    // declared unselective for the same reason as in postingBlocks
+    private static final String CREATE_SEARCH_TERMS =
+            "CREATE TABLE searchTerms"
+                    + " (contextId _STRING NOT NULL SELECTIVITY 1,"
+                    + " term _STRING NOT NULL,"
+                    + " documents INT NOT NULL,"
+                    + " postings _BINARY NOT NULL,"
+                    + " PRIMARY KEY (contextId, term),"
+                    + " FOREIGN KEY (contextId)"
+                    + " REFERENCES contexts (contextId)"
+                    + " ON DELETE CASCADE)";
+
+    // The number of messages in each context that have been added to the
+    // full-text index
+    private static final String CREATE_SEARCH_CONTEXTS =
+            "CREATE TABLE searchContexts"
+                    + " (contextId _STRING NOT NULL,"
+                    + " documents INT NOT NULL,"
+                    + " PRIMARY KEY (contextId),"
+                    + " FOREIGN KEY (contextId)"
+                    + " REFERENCES contexts (contextId)"
+                    + " ON DELETE CASCADE)";
+
+    // The entity under which the posting lists of the full-text index are
+    // stored in the postingBlocks table
+    private static final String SEARCH_ENTITY = "MESSAGE_TEXT";
+
+    // The prefix of the terms under which the posting list of each group's
+    // documents is stored, so searches can be limited to a group
+    private static final String GROUP_TERM_PREFIX = "#";
+
+    private static final String INDEX_MESSAGES_BY_GROUP_ID_TIMESTAMP =
+            "CREATE INDEX IF NOT EXISTS messagesByGroupIdTimestamp"
+                    + " ON messages (groupId, timestamp, messageId)";
+
+    // H2 can't read an index backwards, so reading a group newest first in
+    // index order needs an index of its own
+    private static final String INDEX_MESSAGES_BY_GROUP_ID_TIMESTAMP_DESC =
+            "CREATE INDEX IF NOT EXISTS messagesByGroupIdTimestampDesc"
+                    + " ON messages (groupId DESC, timestamp DESC,"
+                    + " messageId DESC)";
+
+    private static final String INDEX_MESSAGES_BY_CONTEXT_ID_INCOMING_STATE =
+            "CREATE INDEX IF NOT EXISTS messagesByContextIdIncomingState"
+                    + " ON messages (contextId, incoming, state)";
+
+    private static final String INDEX_MESSAGES_BY_CONTEXT_ID_FAVOURITE =
+            "CREATE INDEX IF NOT EXISTS messagesByContextIdFavourite"
+                    + " ON messages (contextId, favourite)";
+
+    private static final String INDEX_GROUPS_BY_CONTEXT_ID_TYPE =
+            "CREATE INDEX IF NOT EXISTS groupsByContextIdType"
+                    + " ON groups (contextId, type)";
+
+    private static final String INDEX_GROUPS_BY_CONTACT_ID_CONTEXT_ID =
+            "CREATE INDEX IF NOT EXISTS groupsByContactIdContextId"
+                    + " ON groups (contactId, contextId)";
+
+    private static final String INDEX_EVENTS_BY_CONTEXT_ID =
+            "CREATE INDEX IF NOT EXISTS eventsByContextId"
+                    + " ON events (contextId)";
+
+    // Includes messageId so a group's metadata can be read in message order
+    private static final String INDEX_MESSAGE_METADATA_BY_GROUP_ID_MESSAGE_ID =
+            "CREATE INDEX IF NOT EXISTS messageMetadataByGroupIdMessageId"
+                    + " ON messageMetadata (groupId, messageId)";
+
+    // Superseded by INDEX_MESSAGE_METADATA_BY_GROUP_ID_MESSAGE_ID
+    private static final String DROP_INDEX_MESSAGE_METADATA_BY_GROUP_ID =
+            "DROP INDEX IF EXISTS messageMetadataByGroupId";
+
     private static final Logger LOG =
             getLogger(JdbcDatabase.class.getName());
 
+    private static final int VALIDATION_TIMEOUT_SECONDS = 1;
+
+    /**
+     * The value of {@link MessageState} for messages that have been seen.
+     */
+    private static final int MESSAGE_STATE_SEEN = 3;
+
     private final Clock clock;
     private final DatabaseTypes dbTypes;
 
@@ -336,24 +516,143 @@ abstract class JdbcDatabase implements Database<Connection> {
     @GuardedBy("connectionsLock")
     private final LinkedList<Connection> connections = new LinkedList<>();
 
+    private final Map<Connection, StatementCache> statementCaches =
+            new ConcurrentHashMap<>();
+    private final AtomicLong statementCacheHits = new AtomicLong();
+    private final AtomicLong statementCacheMisses = new AtomicLong();
+
+    /**
+     * The number of connections that have been opened and not yet closed,
+     * including connections that are being opened.
+     */
     @GuardedBy("connectionsLock")
     private int openConnections = 0;
+    /**
+     * The number of connections currently in use by transactions.
+     */
+    @GuardedBy("connectionsLock")
+    private int activeConnections = 0;
     @GuardedBy("connectionsLock")
     private boolean closed = false;
+    /**
+     * Connections that were closed because their transactions failed to
+     * commit, and that haven't been aborted yet.
+     */
+    @GuardedBy("connectionsLock")
+    private final Set<Connection> failedCommits = new HashSet<>();
+
+    private final int maxConnections, prewarmConnections;
+    private final long connectionTimeoutMs;
+
+    @Nullable
+    private volatile BlobStore blobStore = null;
+    /**
+     * Blobs stored by each connection's current transaction, which are
+     * released when the transaction ends.
+     */
+    private final Map<Connection, List<byte[]>> storedBlobs =
+            new ConcurrentHashMap<>();
+    /**
+     * Connections whose current transactions may have removed the last
+     * reference to a blob.
+     */
+    private final Set<Connection> removedBlobRefs =
+            Collections.newSetFromMap(
+                    new ConcurrentHashMap<Connection, Boolean>());
+
+    private final Map<Connection, Savepoint> savepoints =
+            new ConcurrentHashMap<>();
+
+    private final Object backupLock = new Object();
+
+    private final AtomicLong connectionWaits = new AtomicLong();
+    private final AtomicLong connectionWaitTimeMs = new AtomicLong();
+    private final AtomicLong maxConnectionWaitTimeMs = new AtomicLong();
 
     protected abstract Connection createConnection()
             throws DbException, SQLException;
 
     protected abstract void compactAndClose() throws DbException;
 
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Databases that don't report their fill rate are compacted when they're
+     * opened, at intervals of
+     * {@link DatabaseConstants#MAX_COMPACTION_INTERVAL_MS}, instead of in the
+     * background.
+     */
+    @Override
+    public int getFillRate(Connection txn) throws DbException {
+        return -1;
+    }
+
+    /**
+     * Compacts a small part of the database file while the database is in
+     * use, aiming for the given fill rate.
+     *
+     * @return true if any progress was made, false if there's nothing more
+     * that can be compacted
+     */
+    protected boolean compactStep(Connection txn, int targetFillRate)
+            throws DbException {
+        return false;
+    }
+
+    /**
+     * Returns a store for blobs that are kept outside the database, encrypted
+     * with the given key.
+     */
+    protected abstract BlobStore createBlobStore(SecretKey key);
+
+    /**
+     * Returns a stream for reading a consistent snapshot of the encrypted
+     * database file, taken while other transactions continue. The caller
+     * must close the stream.
+     */
+    protected abstract InputStream openSnapshot(Connection txn)
+            throws DbException;
+
+    /**
+     * Tells the database whether queries on the given connection should
+     * produce their results as they are read, rather than computing the
+     * whole result before returning the first row. Databases that always
+     * behave one way can ignore this.
+     */
+    protected void setLazyQueryExecution(Connection txn, boolean lazy)
+            throws SQLException {
+    }
+
     JdbcDatabase(DatabaseTypes databaseTypes,
                  Clock clock) {
+        this(databaseTypes, clock, DatabaseConstants.MAX_CONNECTIONS,
+                DatabaseConstants.PREWARM_CONNECTIONS,
+                DatabaseConstants.CONNECTION_TIMEOUT_MS);
+    }
+
+    /**
+     * @param maxConnections the maximum number of connections the pool will
+     * open. Transactions that start when all connections are in use wait
+     * for a connection to be returned
+     * @param prewarmConnections the number of connections to open when the
+     * database is opened
+     * @param connectionTimeoutMs how long a transaction waits for a free
+     * connection before failing
+     */
+    JdbcDatabase(DatabaseTypes databaseTypes, Clock clock,
+                 int maxConnections, int prewarmConnections,
+                 long connectionTimeoutMs) {
+        if (maxConnections < 1) throw new IllegalArgumentException();
         this.dbTypes = databaseTypes;
         this.clock = clock;
+        this.maxConnections = maxConnections;
+        this.prewarmConnections = Math.min(prewarmConnections,
+                maxConnections);
+        this.connectionTimeoutMs = connectionTimeoutMs;
     }
 
     protected void open(String driverClass, boolean reopen,
-                        @SuppressWarnings("unused") SecretKey key,
+                        SecretKey key,
                         @Nullable MigrationListener listener) throws DbException {
         // Load the JDBC driver
         try {
@@ -361,19 +660,36 @@ abstract class JdbcDatabase implements Database<Connection> {
         } catch (ClassNotFoundException e) {
             throw new DbException(e);
         }
+        blobStore = createBlobStore(key);
+        // No blobs are being stored yet, so any temporary files are leftovers
+        blobStore.deleteTemporaryFiles();
+        // Allow transactions to start, in case the database was closed
+        connectionsLock.lock();
+        try {
+            closed = false;
+        } finally {
+            connectionsLock.unlock();
+        }
         // Open the database and create the tables and indexes if necessary
         boolean compact;
         Connection txn = startTransaction();
         try {
             if (reopen) {
                 Settings s = getSettings(txn, DatabaseConstants.DB_SETTINGS_NAMESPACE);
-                compact = migrateSchema(txn, s, listener) || isCompactionDue(s);
+                // Migrations can leave a lot of free space, so compact the
+                // whole file now rather than in the background
+                compact = migrateSchema(txn, s, listener);
+                // Without fill rate statistics, fall back to compacting the
+                // whole file at intervals
+                if (!compact && getFillRate(txn) < 0)
+                    compact = isCompactionDue(s);
             } else {
                 createTables(txn);
                 initialiseSettings(txn);
                 compact = false;
             }
             createIndexes(txn);
+            if (reopen) deleteUnreferencedBlobs(txn);
             commitTransaction(txn);
         } catch (DbException e) {
             abortTransaction(txn);
@@ -386,8 +702,11 @@ abstract class JdbcDatabase implements Database<Connection> {
             compactAndClose();
             logDuration(LOG, "Compacting database", start);
             // Allow the next transaction to reopen the DB
-            synchronized (connectionsLock) {
+            connectionsLock.lock();
+            try {
                 closed = false;
+            } finally {
+                connectionsLock.unlock();
             }
             txn = startTransaction();
             try {
@@ -398,6 +717,45 @@ abstract class JdbcDatabase implements Database<Connection> {
                 throw e;
             }
         }
+        prewarmConnections();
+    }
+
+    /**
+     * Opens idle connections until the pool holds the configured number of
+     * prewarmed connections, so the first transactions don't pay the cost of
+     * opening an encrypted connection.
+     */
+    private void prewarmConnections() {
+        while (true) {
+            connectionsLock.lock();
+            try {
+                if (closed || openConnections >= prewarmConnections) return;
+                openConnections++;
+            } finally {
+                connectionsLock.unlock();
+            }
+            Connection txn;
+            try {
+                txn = openConnection();
+            } catch (DbException | SQLException e) {
+                logException(LOG, WARNING, e);
+                connectionsLock.lock();
+                try {
+                    openConnections--;
+                    connectionsChanged.signalAll();
+                } finally {
+                    connectionsLock.unlock();
+                }
+                return;
+            }
+            connectionsLock.lock();
+            try {
+                connections.add(txn);
+                connectionsChanged.signalAll();
+            } finally {
+                connectionsLock.unlock();
+            }
+        }
     }
 
     /**
@@ -449,7 +807,14 @@ abstract class JdbcDatabase implements Database<Connection> {
                 new Migration5_6(dbTypes),
                 new Migration6_7(dbTypes),
                 new Migration7_8(),
-                new Migration8_9(dbTypes)
+                new Migration8_9(dbTypes),
+                new Migration9_10(),
+                new Migration10_11(dbTypes),
+                new Migration11_12(dbTypes, blobStore),
+                new Migration12_13(dbTypes),
+                new Migration13_14(dbTypes),
+                new Migration14_15(dbTypes),
+                new Migration15_16(dbTypes)
         );
     }
 
@@ -504,6 +869,16 @@ abstract class JdbcDatabase implements Database<Connection> {
             s.executeUpdate(dbTypes.replaceTypes(CREATE_GROUP_MEMBERS));
             s.executeUpdate(dbTypes.replaceTypes(CREATE_GROUP_ACCESS_REQUESTS));
             s.execute(dbTypes.replaceTypes(CREATE_CRYPTO_KEYS));
+            s.executeUpdate(dbTypes.replaceTypes(CREATE_UNREAD_COUNTS));
+            s.executeUpdate(dbTypes.replaceTypes(CREATE_SEARCH_DOCUMENTS));
+            s.executeUpdate(dbTypes.replaceTypes(CREATE_SEARCH_TERMS));
+            s.executeUpdate(dbTypes.replaceTypes(CREATE_SEARCH_CONTEXTS));
+            s.executeUpdate(dbTypes.replaceTypes(CREATE_POSTING_DOCUMENTS));
+            s.executeUpdate(dbTypes.replaceTypes(CREATE_POSTING_BLOCKS));
+            s.executeUpdate(dbTypes.replaceTypes(
+                    CREATE_GROUP_RETENTION_POLICIES));
+            s.executeUpdate(dbTypes.replaceTypes(
+                    CREATE_CONTEXT_RETENTION_POLICIES));
             s.close();
         } catch (SQLException e) {
             JdbcUtils.tryToClose(s, LOG, WARNING);
@@ -515,6 +890,15 @@ abstract class JdbcDatabase implements Database<Connection> {
         Statement s = null;
         try {
             s = txn.createStatement();
+            s.executeUpdate(INDEX_MESSAGES_BY_GROUP_ID_TIMESTAMP);
+            s.executeUpdate(INDEX_MESSAGES_BY_GROUP_ID_TIMESTAMP_DESC);
+            s.executeUpdate(INDEX_MESSAGES_BY_CONTEXT_ID_INCOMING_STATE);
+            s.executeUpdate(INDEX_MESSAGES_BY_CONTEXT_ID_FAVOURITE);
+            s.executeUpdate(INDEX_GROUPS_BY_CONTEXT_ID_TYPE);
+            s.executeUpdate(INDEX_GROUPS_BY_CONTACT_ID_CONTEXT_ID);
+            s.executeUpdate(INDEX_EVENTS_BY_CONTEXT_ID);
+            s.executeUpdate(INDEX_MESSAGE_METADATA_BY_GROUP_ID_MESSAGE_ID);
+            s.executeUpdate(DROP_INDEX_MESSAGE_METADATA_BY_GROUP_ID);
             s.close();
         } catch (SQLException e) {
             JdbcUtils.tryToClose(s, LOG, WARNING);
@@ -525,55 +909,98 @@ abstract class JdbcDatabase implements Database<Connection> {
     @Override
     public Connection startTransaction() throws DbException {
         Connection txn;
+        long start = now();
         connectionsLock.lock();
-        closed=false;
         try {
-            if (closed) throw new DbClosedException();
-            txn = connections.poll();
+            long remaining = MILLISECONDS.toNanos(connectionTimeoutMs);
+            while (true) {
+                if (closed) throw new DbClosedException();
+                txn = connections.poll();
+                if (txn != null) break;
+                if (openConnections < maxConnections) {
+                    // Reserve a slot for a new connection
+                    openConnections++;
+                    break;
+                }
+                if (remaining <= 0) {
+                    throw new DbException(new TimeoutException(
+                            "No connection available after "
+                                    + connectionTimeoutMs + " ms"));
+                }
+                remaining = connectionsChanged.awaitNanos(remaining);
+            }
+            activeConnections++;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DbException(e);
         } finally {
             connectionsLock.unlock();
         }
+        recordConnectionWait(now() - start);
         try {
             if (txn == null) {
                 // Open a new connection
-                txn = createConnection();
-                txn.setAutoCommit(false);
-                connectionsLock.lock();
-                try {
-                    openConnections++;
-                } finally {
-                    connectionsLock.unlock();
-                }
+                txn = openConnection();
+            } else if (!txn.isValid(VALIDATION_TIMEOUT_SECONDS)) {
+                // Replace the broken connection, keeping its slot
+                LOG.warning("Replacing invalid connection");
+                closeStatementCache(txn);
+                JdbcUtils.tryToClose(txn, LOG, WARNING);
+                txn = openConnection();
             }
-        } catch (SQLException e) {
+        } catch (DbException | SQLException e) {
+            // Give up the slot
+            connectionsLock.lock();
+            try {
+                openConnections--;
+                activeConnections--;
+                connectionsChanged.signalAll();
+            } finally {
+                connectionsLock.unlock();
+            }
+            if (e instanceof DbException) throw (DbException) e;
             throw new DbException(e);
         }
         return txn;
     }
 
+    private Connection openConnection() throws DbException, SQLException {
+        Connection txn = createConnection();
+        txn.setAutoCommit(false);
+        statementCaches.put(txn, new StatementCache(txn,
+                DatabaseConstants.MAX_CACHED_STATEMENTS,
+                statementCacheHits, statementCacheMisses));
+        return txn;
+    }
+
+    private void recordConnectionWait(long waitMs) {
+        connectionWaits.incrementAndGet();
+        connectionWaitTimeMs.addAndGet(waitMs);
+        long max = maxConnectionWaitTimeMs.get();
+        while (waitMs > max
+                && !maxConnectionWaitTimeMs.compareAndSet(max, waitMs)) {
+            max = maxConnectionWaitTimeMs.get();
+        }
+        if (waitMs > 0 && LOG.isLoggable(FINE))
+            LOG.fine("Waited " + waitMs + " ms for a connection");
+    }
+
     @Override
     public void abortTransaction(Connection txn) {
+        connectionsLock.lock();
+        try {
+            // The connection was closed when the commit failed
+            if (failedCommits.remove(txn)) return;
+        } finally {
+            connectionsLock.unlock();
+        }
         try {
             txn.rollback();
-            connectionsLock.lock();
-            try {
-                connections.add(txn);
-                connectionsChanged.signalAll();
-            } finally {
-                connectionsLock.unlock();
-            }
+            returnConnection(txn);
         } catch (SQLException e) {
             // Try to close the connection
             logException(LOG, WARNING, e);
-            JdbcUtils.tryToClose(txn, LOG, WARNING);
-            // Whatever happens, allow the database to close
-            connectionsLock.lock();
-            try {
-                openConnections--;
-                connectionsChanged.signalAll();
-            } finally {
-                connectionsLock.unlock();
-            }
+            discardConnection(txn, false);
         }
     }
 
@@ -581,11 +1008,58 @@ abstract class JdbcDatabase implements Database<Connection> {
     public void commitTransaction(Connection txn) throws DbException {
         try {
             txn.commit();
+        } catch (SQLException e) {
+            // The connection may be broken, so don't return it to the pool
+            try {
+                txn.rollback();
+            } catch (SQLException e1) {
+                logException(LOG, WARNING, e1);
+            }
+            discardConnection(txn, true);
+            throw new DbException(e);
+        }
+        if (removedBlobRefs.contains(txn) && !collectBlobs(txn)) return;
+        returnConnection(txn);
+    }
+
+    @Override
+    public void setSavepoint(Connection txn) throws DbException {
+        try {
+            if (savepoints.put(txn, txn.setSavepoint()) != null)
+                throw new IllegalStateException();
+        } catch (SQLException e) {
+            throw new DbException(e);
+        }
+    }
+
+    @Override
+    public void releaseSavepoint(Connection txn) throws DbException {
+        Savepoint savepoint = savepoints.remove(txn);
+        if (savepoint == null) throw new IllegalStateException();
+        try {
+            txn.releaseSavepoint(savepoint);
         } catch (SQLException e) {
             throw new DbException(e);
         }
+    }
+
+    @Override
+    public void rollbackToSavepoint(Connection txn) throws DbException {
+        Savepoint savepoint = savepoints.remove(txn);
+        if (savepoint == null) throw new IllegalStateException();
+        try {
+            txn.rollback(savepoint);
+        } catch (SQLException e) {
+            throw new DbException(e);
+        }
+    }
+
+    private void returnConnection(Connection txn) {
+        savepoints.remove(txn);
+        releaseBlobs(txn);
         connectionsLock.lock();
         try {
+            activeConnections--;
             connections.add(txn);
             connectionsChanged.signalAll();
         } finally {
@@ -593,12 +1067,39 @@ abstract class JdbcDatabase implements Database<Connection> {
         }
     }
 
+    /**
+     * Closes a connection that's in use instead of returning it to the pool,
+     * and gives up its slot.
+     *
+     * @param failedCommit true if the connection's transaction failed to
+     * commit, so the caller will still abort it
+     */
+    private void discardConnection(Connection txn, boolean failedCommit) {
+        savepoints.remove(txn);
+        releaseBlobs(txn);
+        closeStatementCache(txn);
+        JdbcUtils.tryToClose(txn, LOG, WARNING);
+        // Whatever happens, allow the database to close
+        connectionsLock.lock();
+        try {
+            if (failedCommit) failedCommits.add(txn);
+            openConnections--;
+            activeConnections--;
+            connectionsChanged.signalAll();
+        } finally {
+            connectionsLock.unlock();
+        }
+    }
+
     void closeAllConnections() throws SQLException {
         boolean interrupted = false;
         connectionsLock.lock();
         try {
             closed = true;
-            for (Connection c : connections) c.close();
+            for (Connection c : connections) {
+                closeStatementCache(c);
+                c.close();
+            }
             openConnections -= connections.size();
             connections.clear();
             while (openConnections > 0) {
@@ -608,55 +1109,162 @@ abstract class JdbcDatabase implements Database<Connection> {
                     LOG.warning("Interrupted while closing connections");
                     interrupted = true;
                 }
-                for (Connection c : connections) c.close();
+                for (Connection c : connections) {
+                    closeStatementCache(c);
+                    c.close();
+                }
                 openConnections -= connections.size();
                 connections.clear();
             }
         } finally {
             connectionsLock.unlock();
         }
-
+        if (LOG.isLoggable(INFO)) {
+            LOG.info("Statement cache hits: " + statementCacheHits.get()
+                    + ", misses: " + statementCacheMisses.get());
+            LOG.info("Connection waits: " + connectionWaits.get()
+                    + ", total " + connectionWaitTimeMs.get() + " ms"
+                    + ", max " + maxConnectionWaitTimeMs.get() + " ms");
+        }
         if (interrupted) Thread.currentThread().interrupt();
     }
 
+    /**
+     * Returns a prepared statement for the given SQL from the connection's
+     * statement cache. Closing the returned statement returns it to the
+     * cache.
+     */
+    private PreparedStatement prepareStatement(Connection txn, String sql)
+            throws SQLException {
+        StatementCache cache = statementCaches.get(txn);
+        if (cache == null) return txn.prepareStatement(sql);
+        return cache.prepareStatement(sql);
+    }
+
+    private void closeStatementCache(Connection c) {
+        StatementCache cache = statementCaches.remove(c);
+        if (cache != null) cache.close();
+    }
+
     @Override
-    public boolean containsIdentity(Connection txn)
-            throws DbException {
-        PreparedStatement ps = null;
-        ResultSet rs = null;
+    public ConnectionPoolStats getConnectionPoolStats() {
+        int active, idle;
+        connectionsLock.lock();
         try {
-            String sql = "SELECT NULL FROM identities";
-            ps = txn.prepareStatement(sql);
-            rs = ps.executeQuery();
-            boolean found = rs.next();
-            if (rs.next()) throw new DbStateException();
-            rs.close();
-            ps.close();
-            return found;
-        } catch (SQLException e) {
-            JdbcUtils.tryToClose(rs, LOG, WARNING);
-            JdbcUtils.tryToClose(ps, LOG, WARNING);
-            throw new DbException(e);
+            active = activeConnections;
+            idle = connections.size();
+        } finally {
+            connectionsLock.unlock();
         }
+        return new ConnectionPoolStats(active, idle, connectionWaits.get(),
+                connectionWaitTimeMs.get(), maxConnectionWaitTimeMs.get(),
+                statementCaches.size(), statementCacheHits.get(),
+                statementCacheMisses.get());
     }
 
     @Override
-    public Identity getIdentity(Connection txn)
+    public boolean compactStepIfIdle(Connection txn, int targetFillRate)
             throws DbException {
-        PreparedStatement ps = null;
-        ResultSet rs = null;
+        return !hasOtherTransactions() && compactStep(txn, targetFillRate);
+    }
+
+    /**
+     * Returns true if any transaction other than the caller's is running or
+     * waiting for a connection to open.
+     */
+    private boolean hasOtherTransactions() {
+        connectionsLock.lock();
         try {
-            String sql =
-                    "SELECT id, networkId, profilePicture, alias, timestamp"
-                            + " FROM identities";
-            ps = txn.prepareStatement(sql);
-            rs = ps.executeQuery();
-            if (!rs.next()) throw new DbStateException();
-            String id = rs.getString(1);
-            String networkId = rs.getString(2);
-            byte[] profilePic = rs.getBytes(3);
-            String alias = rs.getString(4);
-            long timestamp = rs.getLong(5);
+            return activeConnections > 1;
+        } finally {
+            connectionsLock.unlock();
+        }
+    }
+
+    @Override
+    public BackupManifest backup(OutputStream out,
+            @Nullable BackupManifest previous) throws DbException {
+        BlobStore blobStore = getBlobStore();
+        // Only one snapshot can be taken at a time
+        synchronized (backupLock) {
+            // Keep the blobs referenced by the snapshot until they're copied
+            blobStore.holdDeletion();
+            try {
+                return writeBackup(blobStore, out, previous);
+            } finally {
+                blobStore.allowDeletion();
+            }
+        }
+    }
+
+    private BackupManifest writeBackup(BlobStore blobStore, OutputStream out,
+            @Nullable BackupManifest previous) throws DbException {
+        InputStream snapshot;
+        Connection txn = startTransaction();
+        try {
+            snapshot = openSnapshot(txn);
+            commitTransaction(txn);
+        } catch (DbException e) {
+            abortTransaction(txn);
+            throw e;
+        }
+        long start = now();
+        try {
+            return DatabaseBackup.write(snapshot, blobStore, previous, out);
+        } catch (IOException e) {
+            throw new DbException(e);
+        } finally {
+            try {
+                snapshot.close();
+            } catch (IOException e) {
+                logException(LOG, WARNING, e);
+            }
+            logDuration(LOG, "Writing backup", start);
+        }
+    }
+
+    @Override
+    public boolean containsIdentity(Connection txn)
+            throws DbException {
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        try {
+            String sql = "SELECT NULL FROM identities";
+            ps = prepareStatement(txn, sql);
+            rs = ps.executeQuery();
+            boolean found = rs.next();
+            if (rs.next()) throw new DbStateException();
+            rs.close();
+            ps.close();
+            return found;
+        } catch (SQLException e) {
+            JdbcUtils.tryToClose(rs, LOG, WARNING);
+            JdbcUtils.tryToClose(ps, LOG, WARNING);
+            throw new DbException(e);
+        }
+    }
+
+    @Override
+    public Identity getIdentity(Connection txn)
+            throws DbException {
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        try {
+            String sql =
+                    "SELECT id, networkId, profilePictureRef, alias, timestamp"
+                            + " FROM identities";
+            ps = prepareStatement(txn, sql);
+            rs = ps.executeQuery();
+            if (!rs.next()) {
+                rs.close();
+                ps.close();
+                return null;
+            }
+            String id = rs.getString(1);
+            String networkId = rs.getString(2);
+            byte[] profilePic = loadBlob(rs.getBytes(3));
+            String alias = rs.getString(4);
+            long timestamp = rs.getLong(5);
             rs.close();
             ps.close();
             Identity i = new Identity(id, alias, timestamp);
@@ -678,11 +1286,15 @@ abstract class JdbcDatabase implements Database<Connection> {
         try {
             String sql = "SELECT alias, fullname, gender, " +
                     "country, university, work, interests, quote, " +
-                    "profilepic FROM profiles WHERE contextId = ?";
-            ps = txn.prepareStatement(sql);
+                    "profilePictureRef FROM profiles WHERE contextId = ?";
+            ps = prepareStatement(txn, sql);
             ps.setString(1, contextId);
             rs = ps.executeQuery();
-            if (!rs.next()) throw new DbStateException();
+            if (!rs.next()) {
+                rs.close();
+                ps.close();
+                return null;
+            }
             Profile profile = new ProfileBuilder(contextId)
                     .setAlias(rs.getString(1))
                     .setFullname(rs.getString(2))
@@ -692,7 +1304,7 @@ abstract class JdbcDatabase implements Database<Connection> {
                     .setWork(rs.getString(6))
                     .setInterests(rs.getString(7))
                     .setQuote(rs.getString(8))
-                    .setProfilePicture(rs.getBytes(9))
+                    .setProfilePicture(loadBlob(rs.getBytes(9)))
                     .build();
             rs.close();
             ps.close();
@@ -712,7 +1324,7 @@ abstract class JdbcDatabase implements Database<Connection> {
         int affected = 0;
         try {
             String sql = "UPDATE identities SET networkId = ?";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             ps.setString(1, networkId);
             affected = ps.executeUpdate();
             if (affected < 0) throw new DbStateException();
@@ -727,13 +1339,14 @@ abstract class JdbcDatabase implements Database<Connection> {
     @Override
     public void setIdentityProfilePicture(Connection txn, byte[] profilePic)
             throws DbException {
+        blobRefsMayBeRemoved(txn);
         PreparedStatement ps = null;
         ResultSet rs = null;
         int affected = 0;
         try {
-            String sql = "UPDATE identities SET profilePicture = ?";
-            ps = txn.prepareStatement(sql);
-            ps.setBytes(1, profilePic);
+            String sql = "UPDATE identities SET profilePictureRef = ?";
+            ps = prepareStatement(txn, sql);
+            setBlobRef(ps, 1, storeBlob(txn, profilePic));
             affected = ps.executeUpdate();
             if (affected < 0) throw new DbStateException();
             ps.close();
@@ -750,7 +1363,7 @@ abstract class JdbcDatabase implements Database<Connection> {
         PreparedStatement ps = null;
         try {
             String sql = "DELETE FROM localAuthors WHERE contextId = ?";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             ps.setString(1, contextId);
             ps.executeUpdate();
             ps.close();
@@ -768,7 +1381,7 @@ abstract class JdbcDatabase implements Database<Connection> {
             String sql = "INSERT INTO identities"
                     + " (id, alias, timestamp)"
                     + " VALUES (?, ?, ?)";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             ps.setString(1, identity.getId());
             ps.setString(2, identity.getAlias());
             ps.setLong(3, identity.getTimeCreated());
@@ -788,15 +1401,12 @@ abstract class JdbcDatabase implements Database<Connection> {
         try {
             // Create a contact row
             String sql = "INSERT INTO contacts"
-                    + " (contactId, alias, profilePicture, publicKey)"
+                    + " (contactId, alias, profilePictureRef, publicKey)"
                     + " VALUES (?, ?, ?, ?)";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             ps.setString(1, contact.getId().getId());
             ps.setString(2, contact.getAlias());
-            if (contact.getProfilePicture() != null)
-                ps.setBytes(3, contact.getProfilePicture());
-            else
-                ps.setNull(3, BINARY);
+            setBlobRef(ps, 3, storeBlob(txn, contact.getProfilePicture()));
 
             ps.setBytes(4,contact.getPublicKey().getEncoded());
             int affected = ps.executeUpdate();
@@ -815,15 +1425,12 @@ abstract class JdbcDatabase implements Database<Connection> {
         try {
             // Create a new group member row
             String sql = "INSERT INTO groupMembers"
-                    + " (peerId, alias, profilePicture, groupId)"
+                    + " (peerId, alias, profilePictureRef, groupId)"
                     + " VALUES (?, ?, ?, ?)";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             ps.setString(1, groupMember.getPeerId().getId());
             ps.setString(2, groupMember.getAlias());
-            if (groupMember.getProfilePic() != null)
-                ps.setBytes(3, groupMember.getProfilePic());
-            else
-                ps.setNull(3, BINARY);
+            setBlobRef(ps, 3, storeBlob(txn, groupMember.getProfilePic()));
             ps.setString(4,groupMember.getGroupId());
             int affected = ps.executeUpdate();
             if (affected != 1) throw new DbStateException();
@@ -836,11 +1443,12 @@ abstract class JdbcDatabase implements Database<Connection> {
 
     @Override
     public void removeGroupMember(Connection txn, GroupMember groupMember) throws DbException {
+        blobRefsMayBeRemoved(txn);
         PreparedStatement ps = null;
         try {
             String sql =
                     "DELETE FROM groupMembers WHERE peerId = ? AND groupId = ?";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             ps.setString(1, groupMember.getPeerId().getId());
             ps.setString(2, groupMember.getGroupId());
             int affected = ps.executeUpdate();
@@ -862,7 +1470,7 @@ abstract class JdbcDatabase implements Database<Connection> {
             String sql = "INSERT INTO groups"
                     + " (groupId, contextId, descriptor, type)"
                     + " VALUES (?, ?, ?, ?)";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             ps.setString(1, group.getId());
             ps.setString(2, group.getContextId());
             ps.setBytes(3, descriptor);
@@ -884,7 +1492,7 @@ abstract class JdbcDatabase implements Database<Connection> {
             String sql = "INSERT INTO events"
                     + " (eventId, contextId, title, description, url, lat, lng, type, timestamp)"
                     + " VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             ps.setString(1, event.getId());
             ps.setString(2, event.getContextId());
             ps.setString(3, event.getTitle());
@@ -911,7 +1519,7 @@ abstract class JdbcDatabase implements Database<Connection> {
             String sql = "INSERT INTO forumMemberList"
                     + " (groupId, peerId, fakeId, alias, fakename, role, timestamp)"
                     + " VALUES (?, ?, ?, ?, ?, ?, ?)";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             ps.setString(1, forumMember.getGroupId());
             ps.setString(2, forumMember.getPeerId().getId());
             ps.setString(3, forumMember.getPeerId().getFakeId());
@@ -937,7 +1545,7 @@ abstract class JdbcDatabase implements Database<Connection> {
             String sql = "INSERT INTO forumMemberList"
                     + " (groupId, peerId, fakeId, alias, fakename, role, timestamp)"
                     + " VALUES (?, ?, ?, ?, ?, ?, ?)";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
 
             for (ForumMember forumMember : forumMembers) {
                 ps.setString(1, forumMember.getGroupId());
@@ -969,7 +1577,7 @@ abstract class JdbcDatabase implements Database<Connection> {
         try {
             String sql = "UPDATE forumMemberList SET role = ? " +
                     "WHERE groupId = ? AND fakeId = ? AND timestamp < ?";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             ps.setInt(1, forumMember.getRole().getInt());
             ps.setString(2, forumMember.getGroupId());
             ps.setString(3, forumMember.getPeerId().getFakeId());
@@ -991,7 +1599,7 @@ abstract class JdbcDatabase implements Database<Connection> {
         try {
             String sql = "UPDATE forumMemberList SET role = ? " +
                     "WHERE groupId = ? AND fakeId = ? AND timestamp < ?";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             ps.setInt(1, forumMemberRole.getInt());
             ps.setString(2, groupId);
             ps.setString(3, fakeId);
@@ -1006,14 +1614,15 @@ abstract class JdbcDatabase implements Database<Connection> {
 
     @Override
     public void updateProfile(Connection txn, Profile p) throws DbException {
+        blobRefsMayBeRemoved(txn);
         PreparedStatement ps = null;
         try {
             String sql = "UPDATE profiles"
                     + " SET alias = ?, fullname = ?, gender = ?, country = ?,"
-                    + " interests = ?, quote = ?, profilepic = ?,"
+                    + " interests = ?, quote = ?, profilePictureRef = ?,"
                     + " university = ?, work = ?"
                     + " WHERE contextId = ?";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             ps.setString(10, p.getContextId());
             ps.setString(1, p.getAlias());
             ps.setString(2, p.getFullname());
@@ -1021,11 +1630,7 @@ abstract class JdbcDatabase implements Database<Connection> {
             ps.setInt(4, p.getCountry());
             ps.setString(5, p.getInterests());
             ps.setString(6, p.getQuote());
-            if (p.getProfilePic() == null) {
-                ps.setNull(7, Types.BLOB);
-            } else {
-                ps.setBytes(7, p.getProfilePic());
-            }
+            setBlobRef(ps, 7, storeBlob(txn, p.getProfilePic()));
             ps.setString(8, p.getUniversity());
             ps.setString(9, p.getWork());
             int affected = ps.executeUpdate();
@@ -1038,40 +1643,1115 @@ abstract class JdbcDatabase implements Database<Connection> {
     }
 
     @Override
-    public void addContactGroup(Connection txn, Group group,
-                                ContactId contactId)
+    public void addContactGroup(Connection txn, Group group,
+                                ContactId contactId)
+            throws DbException {
+        PreparedStatement ps = null;
+        try {
+            String sql = "INSERT INTO groups"
+                    + " (groupId, contextId, contactId, type)"
+                    + " VALUES (?, ?, ?, ?)";
+            ps = prepareStatement(txn, sql);
+            ps.setString(1, group.getId());
+            ps.setString(2, group.getContextId());
+            ps.setString(3, contactId.getId());
+            ps.setInt(4, GroupType.PrivateConversation.getValue());
+            int affected = ps.executeUpdate();
+            if (affected != 1) throw new DbStateException();
+            ps.close();
+        } catch (SQLException e) {
+            JdbcUtils.tryToClose(ps, LOG, WARNING);
+            throw new DbException(e);
+        }
+    }
+
+    @Override
+    public void raiseFavouriteFlag(Connection txn, String messageId)
+            throws DbException {
+        PreparedStatement ps = null;
+        try {
+            String sql = "UPDATE messages SET favourite = TRUE"
+                    + " WHERE messageId = ?";
+            ps = prepareStatement(txn, sql);
+            ps.setString(1, messageId);
+            int affected = ps.executeUpdate();
+            if (affected < 0 || affected > 1) throw new DbStateException();
+            ps.close();
+        } catch (SQLException e) {
+            JdbcUtils.tryToClose(ps, LOG, WARNING);
+            throw new DbException(e);
+        }
+    }
+
+    @Override
+    public void removeFavouriteFlag(Connection txn, String messageId)
+            throws DbException {
+        PreparedStatement ps = null;
+        try {
+            String sql = "UPDATE messages SET favourite = FALSE"
+                    + " WHERE messageId = ?";
+            ps = prepareStatement(txn, sql);
+            ps.setString(1, messageId);
+            int affected = ps.executeUpdate();
+            if (affected < 0 || affected > 1) throw new DbStateException();
+            ps.close();
+        } catch (SQLException e) {
+            JdbcUtils.tryToClose(ps, LOG, WARNING);
+            throw new DbException(e);
+        }
+    }
+
+    @Override
+    public void addMessage(Connection txn, Message message, MessageState
+            state,
+                           String contextId, boolean incoming) throws DbException {
+        PreparedStatement ps = null;
+        try {
+            String sql =
+                    "INSERT INTO messages (messageId, contextId, groupId, timestamp,"
+                            +
+                            " text, mediaFileName, type, state, incoming, favourite, temporary)"
+                            + " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+            ps = prepareStatement(txn, sql);
+            ps.setString(1, message.getId());
+            ps.setString(2, contextId);
+            ps.setString(3, message.getGroupId());
+            ps.setLong(4, message.getTimestamp());
+            ps.setString(5, message.getMessageBody());
+            ps.setString(6, message.getMediaFileName());
+            ps.setInt(7, message.getMessageType().getValue());
+            ps.setInt(8, state.getValue());
+            ps.setBoolean(9, incoming);
+            ps.setBoolean(10, false);
+            ps.setBoolean(11, false);
+            int affected = ps.executeUpdate();
+            if (affected != 1) throw new DbStateException();
+            ps.close();
+        } catch (SQLException e) {
+            JdbcUtils.tryToClose(ps, LOG, WARNING);
+            throw new DbException(e);
+        }
+        if (isUnread(incoming, state.getValue()))
+            adjustUnreadCount(txn, message.getGroupId(), contextId, 1);
+        if (message.getMessageBody() != null)
+            addSearchDocuments(txn, singletonList(message.getId()));
+    }
+
+    @Override
+    public void addMessages(Connection txn, Collection<NewMessage> messages)
+            throws DbException {
+        PreparedStatement ps = null;
+        try {
+            String sql = "INSERT INTO messages (messageId, contextId, groupId,"
+                    + " timestamp, text, mediaFileName, type, state, incoming,"
+                    + " favourite, temporary)"
+                    + " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+            ps = prepareStatement(txn, sql);
+            for (NewMessage m : messages) {
+                Message message = m.getMessage();
+                ps.setString(1, message.getId());
+                ps.setString(2, m.getContextId());
+                ps.setString(3, message.getGroupId());
+                ps.setLong(4, message.getTimestamp());
+                ps.setString(5, message.getMessageBody());
+                ps.setString(6, message.getMediaFileName());
+                ps.setInt(7, message.getMessageType().getValue());
+                ps.setInt(8, m.getState().getValue());
+                ps.setBoolean(9, m.isIncoming());
+                ps.setBoolean(10, false);
+                ps.setBoolean(11, false);
+                ps.addBatch();
+            }
+            int[] batchAffected = ps.executeBatch();
+            if (batchAffected.length != messages.size())
+                throw new DbStateException();
+            for (int rows : batchAffected)
+                if (rows != 1) throw new DbStateException();
+            ps.close();
+        } catch (SQLException e) {
+            JdbcUtils.tryToClose(ps, LOG, WARNING);
+            throw new DbException(e);
+        }
+        // Update each affected counter once
+        Map<List<String>, Integer> unread = new HashMap<>();
+        for (NewMessage m : messages) {
+            if (isUnread(m.isIncoming(), m.getState().getValue())) {
+                unread.merge(asList(m.getMessage().getGroupId(),
+                        m.getContextId()), 1, Integer::sum);
+            }
+        }
+        for (Map.Entry<List<String>, Integer> e : unread.entrySet()) {
+            adjustUnreadCount(txn, e.getKey().get(0), e.getKey().get(1),
+                    e.getValue());
+        }
+        List<String> documents = new ArrayList<>();
+        for (NewMessage m : messages) {
+            Message message = m.getMessage();
+            if (message.getMessageBody() != null)
+                documents.add(message.getId());
+        }
+        addSearchDocuments(txn, documents);
+    }
+
+    /**
+     * Queues the given messages to be added to the full-text index by
+     * {@link #indexMessages(Connection, int)}. Each message takes one row,
+     * appended at the end of the table, so adding messages doesn't wait for
+     * their text to be indexed.
+     */
+    private void addSearchDocuments(Connection txn, List<String> messageIds)
+            throws DbException {
+        if (messageIds.isEmpty()) return;
+        PreparedStatement ps = null;
+        try {
+            String sql = "INSERT INTO searchDocuments (messageId) VALUES (?)";
+            ps = prepareStatement(txn, sql);
+            for (String messageId : messageIds) {
+                ps.setString(1, messageId);
+                ps.addBatch();
+            }
+            int[] batchAffected = ps.executeBatch();
+            if (batchAffected.length != messageIds.size())
+                throw new DbStateException();
+            for (int rows : batchAffected)
+                if (rows != 1) throw new DbStateException();
+            ps.close();
+        } catch (SQLException e) {
+            JdbcUtils.tryToClose(ps, LOG, WARNING);
+            throw new DbException(e);
+        }
+    }
+
+    @Override
+    public int indexMessages(Connection txn, int limit) throws DbException {
+        int last = getLastIndexedDocument(txn);
+        // The new postings of each term in each context, in document order
+        Map<String, Map<String, List<Integer>>> postings = new HashMap<>();
+        Map<String, Integer> documents = new HashMap<>();
+        int queued = 0;
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        try {
+            String sql = "SELECT d.docNumber, m.contextId, m.groupId, m.text"
+                    + " FROM searchDocuments AS d"
+                    + " LEFT OUTER JOIN messages AS m"
+                    + " ON m.messageId = d.messageId"
+                    + " WHERE d.docNumber > ?"
+                    + " ORDER BY d.docNumber LIMIT ?";
+            ps = prepareStatement(txn, sql);
+            ps.setInt(1, last);
+            ps.setInt(2, limit);
+            rs = ps.executeQuery();
+            while (rs.next()) {
+                last = rs.getInt(1);
+                queued++;
+                String contextId = rs.getString(2);
+                // The message may have been removed before it was indexed
+                if (contextId == null) continue;
+                Set<String> terms =
+                        MessageTokenizer.tokenize(rs.getString(4)).keySet();
+                if (terms.isEmpty()) continue;
+                // Write each context's terms in primary key order
+                Map<String, List<Integer>> contextPostings =
+                        postings.computeIfAbsent(contextId,
+                                k -> new TreeMap<>());
+                for (String term : terms) {
+                    contextPostings.computeIfAbsent(term,
+                            k -> new ArrayList<>()).add(last);
+                }
+                contextPostings.computeIfAbsent(getGroupTerm(rs.getString(3)),
+                        k -> new ArrayList<>()).add(last);
+                documents.merge(contextId, 1, Integer::sum);
+            }
+            rs.close();
+            ps.close();
+        } catch (SQLException e) {
+            JdbcUtils.tryToClose(rs, LOG, WARNING);
+            JdbcUtils.tryToClose(ps, LOG, WARNING);
+            throw new DbException(e);
+        }
+        if (queued == 0) return 0;
+        for (Map.Entry<String, Map<String, List<Integer>>> e
+                : postings.entrySet()) {
+            appendPostings(txn, e.getKey(), e.getValue());
+        }
+        for (Map.Entry<String, Integer> e : documents.entrySet())
+            addSearchContextDocuments(txn, e.getKey(), e.getValue());
+        Settings s = new Settings();
+        s.putInt(DatabaseConstants.SEARCH_INDEXED_KEY, last);
+        mergeSettings(txn, s, DatabaseConstants.DB_SETTINGS_NAMESPACE);
+        return queued;
+    }
+
+    /**
+     * Returns the number of the last document that has been added to the
+     * full-text index, or zero if no documents have been added.
+     */
+    private int getLastIndexedDocument(Connection txn) throws DbException {
+        Settings s =
+                getSettings(txn, DatabaseConstants.DB_SETTINGS_NAMESPACE);
+        return s.getInt(DatabaseConstants.SEARCH_INDEXED_KEY, 0);
+    }
+
+    /**
+     * Returns the term under which the posting list of the given group's
+     * documents is stored. Message terms only contain letters and digits,
+     * so they can't clash with group terms.
+     */
+    private static String getGroupTerm(String groupId) {
+        return GROUP_TERM_PREFIX + groupId;
+    }
+
+    /**
+     * Adds postings to the end of the given terms' posting lists. The
+     * postings of each term must be greater than any posting already in
+     * its list. The postings that fill a block are moved from the end of
+     * the list into a block of their own, so full blocks are only written
+     * once.
+     */
+    private void appendPostings(Connection txn, String contextId,
+            Map<String, List<Integer>> postings) throws DbException {
+        Map<String, SearchTerm> existing =
+                getSearchTerms(txn, contextId, postings.keySet());
+        PreparedStatement insertBlock = null, update = null, insert = null;
+        try {
+            String sql = "INSERT INTO postingBlocks (entity, contextId, term,"
+                    + " firstDoc, postingCount, postings)"
+                    + " VALUES (?, ?, ?, ?, ?, ?)";
+            insertBlock = prepareStatement(txn, sql);
+            sql = "UPDATE searchTerms SET documents = ?, postings = ?"
+                    + " WHERE contextId = ? AND term = ?";
+            update = prepareStatement(txn, sql);
+            sql = "INSERT INTO searchTerms"
+                    + " (contextId, term, documents, postings)"
+                    + " VALUES (?, ?, ?, ?)";
+            insert = prepareStatement(txn, sql);
+            int blocks = 0, updates = 0, inserts = 0;
+            int blockSize = DatabaseConstants.POSTING_BLOCK_SIZE;
+            for (Map.Entry<String, List<Integer>> e : postings.entrySet()) {
+                String term = e.getKey();
+                List<Integer> added = e.getValue();
+                SearchTerm t = existing.get(term);
+                int[] tail = t == null ? new int[0] : t.tail;
+                int[] docs = Arrays.copyOf(tail, tail.length + added.size());
+                for (int i = 0; i < added.size(); i++)
+                    docs[tail.length + i] = added.get(i);
+                int i = 0;
+                for (; i + blockSize <= docs.length; i += blockSize) {
+                    insertBlock.setString(1, SEARCH_ENTITY);
+                    insertBlock.setString(2, contextId);
+                    insertBlock.setString(3, term);
+                    insertBlock.setInt(4, docs[i]);
+                    insertBlock.setInt(5, blockSize);
+                    insertBlock.setBytes(6, PostingList.encode(
+                            Arrays.copyOfRange(docs, i, i + blockSize),
+                            blockSize));
+                    insertBlock.addBatch();
+                    blocks++;
+                }
+                byte[] rest = PostingList.encode(
+                        Arrays.copyOfRange(docs, i, docs.length),
+                        docs.length - i);
+                int documents = (t == null ? 0 : t.documents) + added.size();
+                if (t == null) {
+                    insert.setString(1, contextId);
+                    insert.setString(2, term);
+                    insert.setInt(3, documents);
+                    insert.setBytes(4, rest);
+                    insert.addBatch();
+                    inserts++;
+                } else {
+                    update.setInt(1, documents);
+                    update.setBytes(2, rest);
+                    update.setString(3, contextId);
+                    update.setString(4, term);
+                    update.addBatch();
+                    updates++;
+                }
+            }
+            executeBatch(insertBlock, blocks);
+            executeBatch(update, updates);
+            executeBatch(insert, inserts);
+            insertBlock.close();
+            update.close();
+            insert.close();
+        } catch (SQLException | IllegalArgumentException e) {
+            JdbcUtils.tryToClose(insertBlock, LOG, WARNING);
+            JdbcUtils.tryToClose(update, LOG, WARNING);
+            JdbcUtils.tryToClose(insert, LOG, WARNING);
+            throw new DbException(e);
+        }
+    }
+
+    /**
+     * Executes a batch of statements that should each affect one row.
+     */
+    private static void executeBatch(PreparedStatement ps, int size)
+            throws SQLException {
+        if (size == 0) return;
+        int[] batchAffected = ps.executeBatch();
+        if (batchAffected.length != size) throw new DbStateException();
+        for (int rows : batchAffected)
+            if (rows != 1) throw new DbStateException();
+    }
+
+    /**
+     * Returns the number of documents containing each of the given terms
+     * and the end of each term's posting list. Terms that aren't in the
+     * index are left out.
+     * <p/>
+     * Each term is looked up on its own: H2 only uses an IN list to seek
+     * an index on its first column, so {@code term IN (...)} would scan
+     * every term in the context.
+     */
+    private Map<String, SearchTerm> getSearchTerms(Connection txn,
+            String contextId, Collection<String> terms) throws DbException {
+        Map<String, SearchTerm> found = new HashMap<>();
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        try {
+            String sql = "SELECT documents, postings FROM searchTerms"
+                    + " WHERE contextId = ? AND term = ?";
+            ps = prepareStatement(txn, sql);
+            ps.setString(1, contextId);
+            for (String term : terms) {
+                ps.setString(2, term);
+                rs = ps.executeQuery();
+                if (rs.next()) {
+                    found.put(term, new SearchTerm(rs.getInt(1),
+                            PostingList.decode(rs.getBytes(2))));
+                }
+                rs.close();
+            }
+            ps.close();
+            return found;
+        } catch (SQLException | IllegalArgumentException e) {
+            JdbcUtils.tryToClose(rs, LOG, WARNING);
+            JdbcUtils.tryToClose(ps, LOG, WARNING);
+            throw new DbException(e);
+        }
+    }
+
+    /**
+     * Returns the number of documents in the given context that have been
+     * added to the full-text index.
+     */
+    private int getSearchContextDocuments(Connection txn, String contextId)
+            throws DbException {
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        try {
+            String sql = "SELECT documents FROM searchContexts"
+                    + " WHERE contextId = ?";
+            ps = prepareStatement(txn, sql);
+            ps.setString(1, contextId);
+            rs = ps.executeQuery();
+            int documents = rs.next() ? rs.getInt(1) : 0;
+            rs.close();
+            ps.close();
+            return documents;
+        } catch (SQLException e) {
+            JdbcUtils.tryToClose(rs, LOG, WARNING);
+            JdbcUtils.tryToClose(ps, LOG, WARNING);
+            throw new DbException(e);
+        }
+    }
+
+    private void addSearchContextDocuments(Connection txn, String contextId,
+            int documents) throws DbException {
+        PreparedStatement ps = null;
+        try {
+            String sql = "UPDATE searchContexts"
+                    + " SET documents = documents + ?"
+                    + " WHERE contextId = ?";
+            ps = prepareStatement(txn, sql);
+            ps.setInt(1, documents);
+            ps.setString(2, contextId);
+            int affected = ps.executeUpdate();
+            if (affected < 0 || affected > 1) throw new DbStateException();
+            ps.close();
+            if (affected == 1) return;
+            sql = "INSERT INTO searchContexts (contextId, documents)"
+                    + " VALUES (?, ?)";
+            ps = prepareStatement(txn, sql);
+            ps.setString(1, contextId);
+            ps.setInt(2, documents);
+            affected = ps.executeUpdate();
+            if (affected != 1) throw new DbStateException();
+            ps.close();
+        } catch (SQLException e) {
+            JdbcUtils.tryToClose(ps, LOG, WARNING);
+            throw new DbException(e);
+        }
+    }
+
+    @Override
+    public List<MessageHeader> searchMessages(Connection txn,
+            String contextId, @Nullable String groupId, String query,
+            int limit) throws DbException {
+        Set<String> terms = MessageTokenizer.tokenize(query).keySet();
+        if (terms.isEmpty()) return new ArrayList<>();
+        List<String> lists = new ArrayList<>(terms);
+        if (groupId != null) lists.add(getGroupTerm(groupId));
+        Map<String, SearchTerm> found =
+                getSearchTerms(txn, contextId, lists);
+        // Weight rare terms more heavily than common ones
+        int total = getSearchContextDocuments(txn, contextId);
+        Map<String, Double> weights = new HashMap<>();
+        for (String term : terms) {
+            SearchTerm t = found.get(term);
+            int documents = t == null ? 1 : t.documents;
+            weights.put(term, Math.log(1 + (double) Math.max(total, 1)
+                    / documents));
+        }
+        Map<String, MessageHeader> matches = new HashMap<>();
+        Map<String, Double> scores = new HashMap<>();
+        int indexed = getLastIndexedDocument(txn);
+        searchUnindexedDocuments(txn, contextId, groupId, indexed, weights,
+                matches, scores);
+        // Every term, and the group if any, must have a posting list for
+        // an indexed message to match
+        if (found.size() == lists.size()) {
+            int wanted = Math.max(limit, DatabaseConstants.SEARCH_CANDIDATES);
+            searchPostingLists(txn, contextId, lists, found, wanted, weights,
+                    matches, scores);
+        }
+        List<MessageHeader> headers = new ArrayList<>(matches.values());
+        Collections.sort(headers, (a, b) -> {
+            int c = Double.compare(scores.get(b.getMessageId()),
+                    scores.get(a.getMessageId()));
+            if (c != 0) return c;
+            c = Long.compare(b.getTimestamp(), a.getTimestamp());
+            if (c != 0) return c;
+            return a.getMessageId().compareTo(b.getMessageId());
+        });
+        if (headers.size() > limit) return headers.subList(0, limit);
+        return headers;
+    }
+
+    /**
+     * Matches the newest documents that haven't been added to the
+     * full-text index yet by scanning their text. At most
+     * {@link DatabaseConstants#SEARCH_INDEXING_BATCH_SIZE} documents are
+     * scanned.
+     */
+    private void searchUnindexedDocuments(Connection txn, String contextId,
+            @Nullable String groupId, int indexed, Map<String, Double> weights,
+            Map<String, MessageHeader> matches, Map<String, Double> scores)
+            throws DbException {
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        try {
+            String sql = "SELECT MAX(docNumber) FROM searchDocuments";
+            ps = prepareStatement(txn, sql);
+            rs = ps.executeQuery();
+            int newest = rs.next() ? rs.getInt(1) : 0;
+            rs.close();
+            ps.close();
+            if (newest <= indexed) return;
+            int from = Math.max(indexed,
+                    newest - DatabaseConstants.SEARCH_INDEXING_BATCH_SIZE);
+            sql = "SELECT m.messageId, m.timestamp, m.state, m.incoming,"
+                    + " m.favourite, m.type, TRUE, m.groupId, m.text"
+                    + " FROM searchDocuments AS d"
+                    + " JOIN messages AS m ON m.messageId = d.messageId"
+                    + " WHERE d.docNumber > ? AND m.contextId = ?";
+            if (groupId != null) sql += " AND m.groupId = ?";
+            ps = prepareStatement(txn, sql);
+            ps.setInt(1, from);
+            ps.setString(2, contextId);
+            if (groupId != null) ps.setString(3, groupId);
+            rs = ps.executeQuery();
+            while (rs.next()) readSearchMatch(rs, weights, matches, scores);
+            rs.close();
+            ps.close();
+        } catch (SQLException e) {
+            JdbcUtils.tryToClose(rs, LOG, WARNING);
+            JdbcUtils.tryToClose(ps, LOG, WARNING);
+            throw new DbException(e);
+        }
+    }
+
+    /**
+     * Intersects the given posting lists, newest documents first, until
+     * the given number of matching messages have been found.
+     * <p/>
+     * The shortest list drives the search one block at a time, and only
+     * the blocks of the other lists that overlap the driving block are
+     * loaded.
+     */
+    private void searchPostingLists(Connection txn, String contextId,
+            List<String> lists, Map<String, SearchTerm> terms, int wanted,
+            Map<String, Double> weights, Map<String, MessageHeader> matches,
+            Map<String, Double> scores) throws DbException {
+        List<String> ordered = new ArrayList<>(lists);
+        Collections.sort(ordered, (a, b) ->
+                terms.get(a).documents - terms.get(b).documents);
+        int[][] starts = new int[ordered.size()][];
+        List<Map<Integer, int[]>> blocks = new ArrayList<>();
+        for (int i = 0; i < ordered.size(); i++) {
+            int[] full = getPostingBlockStarts(txn, SEARCH_ENTITY, contextId,
+                    ordered.get(i));
+            Map<Integer, int[]> cache = new HashMap<>();
+            // The end of the list, if any, follows the full blocks
+            int[] tail = terms.get(ordered.get(i)).tail;
+            if (tail.length > 0) {
+                starts[i] = Arrays.copyOf(full, full.length + 1);
+                starts[i][full.length] = tail[0];
+                cache.put(tail[0], tail);
+            } else {
+                starts[i] = full;
+            }
+            blocks.add(cache);
+        }
+        int found = matches.size();
+        List<Integer> docs = new ArrayList<>();
+        for (int b = starts[0].length - 1; b >= 0 && found < wanted; b--) {
+            int[] block = loadPostingRange(txn, contextId, ordered.get(0),
+                    starts[0], blocks.get(0), starts[0][b], starts[0][b]);
+            for (int i = 1; i < ordered.size() && block.length > 0; i++) {
+                block = PostingList.intersect(block, loadPostingRange(txn,
+                        contextId, ordered.get(i), starts[i], blocks.get(i),
+                        block[0], block[block.length - 1]));
+            }
+            for (int i = block.length - 1; i >= 0; i--) docs.add(block[i]);
+            // Look up the messages once enough documents have matched
+            if (docs.size() >= wanted - found || b == 0) {
+                readSearchMatches(txn, docs, weights, matches, scores);
+                found = matches.size();
+                docs.clear();
+            }
+        }
+    }
+
+    /**
+     * Returns the postings between {@code from} and {@code to} inclusive,
+     * and possibly others, from the given term's posting list, caching the
+     * blocks that are loaded. The end of the list must already be cached.
+     */
+    private int[] loadPostingRange(Connection txn, String contextId,
+            String term, int[] starts, Map<Integer, int[]> cache, int from,
+            int to) throws DbException {
+        // Find the last block that starts at or before the range
+        int first = Arrays.binarySearch(starts, from);
+        if (first < 0) first = Math.max(0, -first - 2);
+        int[] docs = new int[0];
+        for (int b = first; b < starts.length && starts[b] <= to; b++) {
+            int[] block = cache.get(starts[b]);
+            if (block == null) {
+                block = loadPostingBlock(txn, SEARCH_ENTITY, contextId, term,
+                        starts[b]);
+                cache.put(starts[b], block);
+            }
+            int length = docs.length;
+            docs = Arrays.copyOf(docs, length + block.length);
+            System.arraycopy(block, 0, docs, length, block.length);
+        }
+        return docs;
+    }
+
+    /**
+     * Looks up the messages for the given document numbers. Documents of
+     * messages that have been removed are skipped.
+     */
+    private void readSearchMatches(Connection txn, List<Integer> docs,
+            Map<String, Double> weights, Map<String, MessageHeader> matches,
+            Map<String, Double> scores) throws DbException {
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        try {
+            for (List<Integer> chunk : inClauseChunks(docs)) {
+                String sql = "SELECT m.messageId, m.timestamp, m.state,"
+                        + " m.incoming, m.favourite, m.type, TRUE,"
+                        + " m.groupId, m.text"
+                        + " FROM searchDocuments AS d"
+                        + " JOIN messages AS m ON m.messageId = d.messageId"
+                        + " WHERE d.docNumber IN ("
+                        + placeholders(chunk.size()) + ")";
+                ps = prepareStatement(txn, sql);
+                int index = 1;
+                for (int doc : chunk) ps.setInt(index++, doc);
+                rs = ps.executeQuery();
+                while (rs.next()) readSearchMatch(rs, weights, matches, scores);
+                rs.close();
+                ps.close();
+            }
+        } catch (SQLException e) {
+            JdbcUtils.tryToClose(rs, LOG, WARNING);
+            JdbcUtils.tryToClose(ps, LOG, WARNING);
+            throw new DbException(e);
+        }
+    }
+
+    /**
+     * Reads a message header and text from a row, and adds the header to
+     * the matches if the text contains every term. The match is scored by
+     * the weighted number of times the terms occur in the text.
+     */
+    private void readSearchMatch(ResultSet rs, Map<String, Double> weights,
+            Map<String, MessageHeader> matches, Map<String, Double> scores)
+            throws SQLException {
+        Map<String, Integer> occurrences =
+                MessageTokenizer.tokenize(rs.getString(9));
+        double score = 0;
+        for (Map.Entry<String, Double> e : weights.entrySet()) {
+            Integer count = occurrences.get(e.getKey());
+            if (count == null) return;
+            score += count * e.getValue();
+        }
+        MessageHeader header = readMessageHeader(rs, rs.getString(8));
+        matches.put(header.getMessageId(), header);
+        scores.put(header.getMessageId(), score);
+    }
+
+    @Override
+    public Set<String> getExistingMessageIds(Connection txn,
+            Collection<String> messageIds) throws DbException {
+        Set<String> existing = new HashSet<>();
+        for (List<String> chunk : inClauseChunks(messageIds)) {
+            PreparedStatement ps = null;
+            ResultSet rs = null;
+            try {
+                String sql = "SELECT messageId FROM messages"
+                        + " WHERE messageId IN ("
+                        + placeholders(chunk.size()) + ")";
+                ps = prepareStatement(txn, sql);
+                for (int j = 0; j < chunk.size(); j++)
+                    ps.setString(j + 1, chunk.get(j));
+                rs = ps.executeQuery();
+                while (rs.next()) existing.add(rs.getString(1));
+                rs.close();
+                ps.close();
+            } catch (SQLException e) {
+                JdbcUtils.tryToClose(rs, LOG, WARNING);
+                JdbcUtils.tryToClose(ps, LOG, WARNING);
+                throw new DbException(e);
+            }
+        }
+        return existing;
+    }
+
+    /**
+     * Splits the given values into chunks for use in IN clauses, each padded
+     * by {@link #padInClause(List)}.
+     */
+    // Package access for testing
+    static <V> List<List<V>> inClauseChunks(Collection<V> values) {
+        List<V> list = new ArrayList<>(values);
+        List<List<V>> chunks = new ArrayList<>();
+        for (int i = 0; i < list.size();
+             i += DatabaseConstants.MAX_IN_CLAUSE_PARAMETERS) {
+            chunks.add(padInClause(list.subList(i, Math.min(list.size(),
+                    i + DatabaseConstants.MAX_IN_CLAUSE_PARAMETERS))));
+        }
+        return chunks;
+    }
+
+    /**
+     * Pads the given non-empty values to the next power of two, or to
+     * {@link DatabaseConstants#MAX_IN_CLAUSE_PARAMETERS} if that's smaller,
+     * by repeating the last value. IN clauses built from padded values only
+     * come in a few sizes, so their statements and query plans are reused
+     * from the statement cache instead of being compiled for every length.
+     * Repeating a value doesn't change the result of an IN clause.
+     */
+    // Package access for testing
+    static <V> List<V> padInClause(List<V> values) {
+        int size = Math.max(values.size(),
+                Integer.highestOneBit(values.size() - 1) << 1);
+        size = Math.min(size, Math.max(values.size(),
+                DatabaseConstants.MAX_IN_CLAUSE_PARAMETERS));
+        List<V> padded = new ArrayList<>(size);
+        padded.addAll(values);
+        V last = values.get(values.size() - 1);
+        while (padded.size() < size) padded.add(last);
+        return padded;
+    }
+
+    /**
+     * Returns a comma-separated list of the given number of parameter
+     * placeholders, for use in an IN clause.
+     */
+    private static String placeholders(int count) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) sb.append(", ");
+            sb.append('?');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Reads one row of a result set.
+     */
+    /**
+     * A term of the full-text index: the number of documents containing
+     * the term and the end of its posting list.
+     */
+    private static class SearchTerm {
+
+        private final int documents;
+        private final int[] tail;
+
+        private SearchTerm(int documents, int[] tail) {
+            this.documents = documents;
+            this.tail = tail;
+        }
+    }
+
+    private interface RowReader<V> {
+
+        V read(ResultSet rs) throws SQLException, DbException;
+    }
+
+    /**
+     * Runs the given query with the given string arguments and passes each
+     * row to the visitor as it's read, stopping early if the visitor returns
+     * false. Rows are fetched in batches of the given size, or a size chosen
+     * by the driver if the size is zero, rather than all at once.
+     */
+    private <V> void visitRows(Connection txn, String sql, int fetchSize,
+            RowReader<V> reader, RowVisitor<? super V> visitor,
+            String... args) throws DbException {
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        try {
+            setLazyQueryExecution(txn, true);
+            try {
+                ps = prepareStatement(txn, sql);
+                for (int i = 0; i < args.length; i++)
+                    ps.setString(i + 1, args[i]);
+                ps.setFetchSize(fetchSize);
+                rs = ps.executeQuery();
+                while (rs.next()) {
+                    if (!visitor.visit(reader.read(rs))) break;
+                }
+                rs.close();
+                ps.close();
+            } finally {
+                setLazyQueryExecution(txn, false);
+            }
+        } catch (SQLException e) {
+            JdbcUtils.tryToClose(rs, LOG, WARNING);
+            JdbcUtils.tryToClose(ps, LOG, WARNING);
+            throw new DbException(e);
+        } catch (DbException | RuntimeException e) {
+            JdbcUtils.tryToClose(rs, LOG, WARNING);
+            JdbcUtils.tryToClose(ps, LOG, WARNING);
+            throw e;
+        }
+    }
+
+    private BlobStore getBlobStore() throws DbException {
+        BlobStore blobStore = this.blobStore;
+        if (blobStore == null) throw new DbClosedException();
+        return blobStore;
+    }
+
+    /**
+     * Stores the given blob outside the database and returns its reference,
+     * or returns null if the blob is null. The blob won't be deleted before
+     * the transaction ends.
+     */
+    @Nullable
+    private byte[] storeBlob(Connection txn, @Nullable byte[] blob)
+            throws DbException {
+        if (blob == null) return null;
+        byte[] ref;
+        try {
+            ref = getBlobStore().put(blob);
+        } catch (IOException e) {
+            throw new DbException(e);
+        }
+        // Keep the blob until the transaction that refers to it has ended
+        List<byte[]> stored = storedBlobs.get(txn);
+        if (stored == null) {
+            stored = new ArrayList<>();
+            storedBlobs.put(txn, stored);
+        }
+        stored.add(ref);
+        return ref;
+    }
+
+    /**
+     * Releases the blobs stored by the given connection's transaction,
+     * which has ended.
+     */
+    private void releaseBlobs(Connection txn) {
+        removedBlobRefs.remove(txn);
+        List<byte[]> stored = storedBlobs.remove(txn);
+        BlobStore blobStore = this.blobStore;
+        if (stored == null || blobStore == null) return;
+        for (byte[] ref : stored) blobStore.release(ref);
+    }
+
+    /**
+     * Records that the given connection's transaction may remove the last
+     * reference to a blob, so unreferenced blobs are deleted when it
+     * commits.
+     */
+    private void blobRefsMayBeRemoved(Connection txn) {
+        removedBlobRefs.add(txn);
+    }
+
+    /**
+     * Returns the blob with the given reference, or null if the reference
+     * is null.
+     */
+    @Nullable
+    private byte[] loadBlob(@Nullable byte[] ref) throws DbException {
+        if (ref == null) return null;
+        try {
+            return getBlobStore().get(ref);
+        } catch (IOException e) {
+            throw new DbException(e);
+        }
+    }
+
+    /**
+     * Returns a picture that's read from the blob store the first time it's
+     * needed, or null if the reference is null.
+     */
+    @Nullable
+    private LazyPicture lazyPicture(@Nullable byte[] ref) throws DbException {
+        if (ref == null) return null;
+        return new LazyPicture(getBlobStore(), ref);
+    }
+
+    private void setBlobRef(PreparedStatement ps, int index,
+            @Nullable byte[] ref) throws SQLException {
+        if (ref == null) ps.setNull(index, BINARY);
+        else ps.setBytes(index, ref);
+    }
+
+    @Override
+    @Nullable
+    public InputStream getContactPicture(Connection txn, ContactId c)
+            throws DbException {
+        return openPicture(txn, "SELECT profilePictureRef FROM contacts"
+                + " WHERE contactId = ?", c.getId());
+    }
+
+    @Override
+    @Nullable
+    public InputStream getGroupMemberPicture(Connection txn, String groupId,
+            String peerId) throws DbException {
+        return openPicture(txn, "SELECT profilePictureRef FROM groupMembers"
+                + " WHERE groupId = ? AND peerId = ?", groupId, peerId);
+    }
+
+    @Override
+    @Nullable
+    public InputStream getPendingContactPicture(Connection txn,
+            ContactId pendingContactId) throws DbException {
+        return openPicture(txn, "SELECT profilePictureRef"
+                + " FROM pendingContacts WHERE pendingContactId = ?",
+                pendingContactId.getId());
+    }
+
+    @Nullable
+    private InputStream openPicture(Connection txn, String sql,
+            String... args) throws DbException {
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        try {
+            ps = prepareStatement(txn, sql);
+            for (int i = 0; i < args.length; i++) ps.setString(i + 1, args[i]);
+            rs = ps.executeQuery();
+            byte[] ref = rs.next() ? rs.getBytes(1) : null;
+            rs.close();
+            ps.close();
+            if (ref == null) return null;
+            return getBlobStore().open(ref);
+        } catch (SQLException | IOException e) {
+            JdbcUtils.tryToClose(rs, LOG, WARNING);
+            JdbcUtils.tryToClose(ps, LOG, WARNING);
+            throw new DbException(e);
+        }
+    }
+
+    /**
+     * Deletes blobs that are no longer referenced by any row, after a
+     * transaction that may have removed references has committed. The
+     * transaction has already committed, so if this fails the blobs are
+     * left for a later collection.
+     *
+     * @return false if the connection was discarded
+     */
+    private boolean collectBlobs(Connection txn) {
+        try {
+            deleteUnreferencedBlobs(txn);
+            txn.commit();
+        } catch (DbException | SQLException e) {
+            logException(LOG, WARNING, e);
+            try {
+                txn.rollback();
+            } catch (SQLException e1) {
+                logException(LOG, WARNING, e1);
+                discardConnection(txn, false);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Deletes blobs that are no longer referenced by any row.
+     */
+    private void deleteUnreferencedBlobs(Connection txn) throws DbException {
+        getBlobStore().retainOnly(() -> getBlobRefs(txn));
+    }
+
+    private List<byte[]> getBlobRefs(Connection txn) throws DbException {
+        Statement s = null;
+        ResultSet rs = null;
+        try {
+            List<byte[]> refs = new ArrayList<>();
+            s = txn.createStatement();
+            for (String table : asList("identities", "profiles", "contacts",
+                    "groupMembers", "pendingContacts")) {
+                rs = s.executeQuery("SELECT DISTINCT profilePictureRef"
+                        + " FROM " + table
+                        + " WHERE profilePictureRef IS NOT NULL");
+                while (rs.next()) refs.add(rs.getBytes(1));
+                rs.close();
+            }
+            s.close();
+            return refs;
+        } catch (SQLException e) {
+            JdbcUtils.tryToClose(rs, LOG, WARNING);
+            JdbcUtils.tryToClose(s, LOG, WARNING);
+            throw new DbException(e);
+        }
+    }
+
+    @Override
+    public void addContext(Connection txn, DBContext c)
+            throws DbException {
+        PreparedStatement ps = null;
+        try {
+            String sql = "INSERT INTO contexts"
+                    + " (contextId, name, color, type, privateName)"
+                    + " VALUES (?, ?, ?, ?, ?)";
+            ps = prepareStatement(txn, sql);
+            ps.setString(1, c.getId());
+            ps.setString(2, c.getName());
+            ps.setInt(3, c.getColor());
+            ps.setInt(4, c.getContextType().getValue());
+            ps.setString(5, c.getPrivateName());
+            int affected = ps.executeUpdate();
+            if (affected != 1) throw new DbStateException();
+            ps.close();
+        } catch (SQLException e) {
+            JdbcUtils.tryToClose(ps, LOG, WARNING);
+            throw new DbException(e);
+        }
+    }
+
+    @Override
+    public void addProfile(Connection txn, Profile p) throws DbException {
+        PreparedStatement ps = null;
+        try {
+            String sql = "INSERT INTO profiles"
+                    + " (contextId, alias, fullname, gender, country,"
+                    + " university, work, interests, quote, profilePictureRef)"
+                    + " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+            ps = prepareStatement(txn, sql);
+            ps.setString(1, p.getContextId());
+            ps.setString(2, p.getAlias());
+            ps.setString(3, p.getFullname());
+            ps.setInt(4, p.getGender());
+            ps.setInt(5, p.getCountry());
+            ps.setString(6, p.getUniversity());
+            ps.setString(7, p.getWork());
+            ps.setString(8, p.getInterests());
+            ps.setString(9, p.getQuote());
+            setBlobRef(ps, 10, storeBlob(txn, p.getProfilePic()));
+            int affected = ps.executeUpdate();
+            if (affected != 1) throw new DbStateException();
+            ps.close();
+        } catch (SQLException e) {
+            JdbcUtils.tryToClose(ps, LOG, WARNING);
+            throw new DbException(e);
+        }
+    }
+
+    @Override
+    public boolean setMessageState(Connection txn, String messageId,
+                                   MessageState state)
             throws DbException {
         PreparedStatement ps = null;
+        ResultSet rs = null;
         try {
-            String sql = "INSERT INTO groups"
-                    + " (groupId, contextId, contactId, type)"
-                    + " VALUES (?, ?, ?, ?)";
-            ps = txn.prepareStatement(sql);
-            ps.setString(1, group.getId());
-            ps.setString(2, group.getContextId());
-            ps.setString(3, contactId.getId());
-            ps.setInt(4, GroupType.PrivateConversation.getValue());
+            // Get the old state so the unread counter can be updated
+            String sql = "SELECT groupId, contextId, incoming, state"
+                    + " FROM messages WHERE messageId = ?";
+            ps = prepareStatement(txn, sql);
+            ps.setString(1, messageId);
+            rs = ps.executeQuery();
+            if (!rs.next()) {
+                rs.close();
+                ps.close();
+                return false;
+            }
+            String groupId = rs.getString(1);
+            String contextId = rs.getString(2);
+            boolean incoming = rs.getBoolean(3);
+            boolean wasUnread = isUnread(incoming, rs.getInt(4));
+            rs.close();
+            ps.close();
+            sql = "UPDATE messages SET state = ?"
+                    + " WHERE messageId = ?";
+            ps = prepareStatement(txn, sql);
+            ps.setInt(1, state.getValue());
+            ps.setString(2, messageId);
             int affected = ps.executeUpdate();
-            if (affected != 1) throw new DbStateException();
             ps.close();
+            if (affected != 1) return false;
+            boolean unread = isUnread(incoming, state.getValue());
+            if (unread != wasUnread)
+                adjustUnreadCount(txn, groupId, contextId, unread ? 1 : -1);
+            return true;
         } catch (SQLException e) {
+            JdbcUtils.tryToClose(rs, LOG, WARNING);
             JdbcUtils.tryToClose(ps, LOG, WARNING);
             throw new DbException(e);
         }
     }
 
-    @Override
-    public void raiseFavouriteFlag(Connection txn, String messageId)
-            throws DbException {
+    private boolean isUnread(boolean incoming, int state) {
+        return incoming && state != MESSAGE_STATE_SEEN;
+    }
+
+    /**
+     * Adds the given delta, which may be negative, to the number of unread
+     * messages in the given group and context.
+     */
+    private void adjustUnreadCount(Connection txn, String groupId,
+            String contextId, int delta) throws DbException {
         PreparedStatement ps = null;
         try {
-            String sql = "UPDATE messages SET favourite = TRUE"
-                    + " WHERE messageId = ?";
-            ps = txn.prepareStatement(sql);
-            ps.setString(1, messageId);
+            String sql = "UPDATE unreadCounts SET unread = unread + ?"
+                    + " WHERE groupId = ? AND contextId = ?";
+            ps = prepareStatement(txn, sql);
+            ps.setInt(1, delta);
+            ps.setString(2, groupId);
+            ps.setString(3, contextId);
             int affected = ps.executeUpdate();
             if (affected < 0 || affected > 1) throw new DbStateException();
             ps.close();
+            if (affected == 1) return;
+            // The counter doesn't exist yet
+            if (delta < 0) throw new DbStateException();
+            sql = "INSERT INTO unreadCounts (groupId, contextId, unread)"
+                    + " VALUES (?, ?, ?)";
+            ps = prepareStatement(txn, sql);
+            ps.setString(1, groupId);
+            ps.setString(2, contextId);
+            ps.setInt(3, delta);
+            affected = ps.executeUpdate();
+            if (affected != 1) throw new DbStateException();
+            ps.close();
         } catch (SQLException e) {
             JdbcUtils.tryToClose(ps, LOG, WARNING);
             throw new DbException(e);
@@ -1079,17 +2759,42 @@ abstract class JdbcDatabase implements Database<Connection> {
     }
 
     @Override
-    public void removeFavouriteFlag(Connection txn, String messageId)
+    public void setGroupRetentionPolicy(Connection txn, String groupId,
+            @Nullable RetentionPolicy policy) throws DbException {
+        setRetentionPolicy(txn, "groupRetentionPolicies", "groupId", groupId,
+                policy);
+    }
+
+    @Override
+    public void setContextRetentionPolicy(Connection txn, String contextId,
+            @Nullable RetentionPolicy policy) throws DbException {
+        setRetentionPolicy(txn, "contextRetentionPolicies", "contextId",
+                contextId, policy);
+    }
+
+    private void setRetentionPolicy(Connection txn, String table,
+            String column, String id, @Nullable RetentionPolicy policy)
             throws DbException {
         PreparedStatement ps = null;
         try {
-            String sql = "UPDATE messages SET favourite = FALSE"
-                    + " WHERE messageId = ?";
-            ps = txn.prepareStatement(sql);
-            ps.setString(1, messageId);
+            String sql = "DELETE FROM " + table + " WHERE " + column + " = ?";
+            ps = prepareStatement(txn, sql);
+            ps.setString(1, id);
             int affected = ps.executeUpdate();
             if (affected < 0 || affected > 1) throw new DbStateException();
             ps.close();
+            if (policy == null) return;
+            sql = "INSERT INTO " + table + " (" + column + ", maxAge,"
+                    + " maxCount, keepFavourites)"
+                    + " VALUES (?, ?, ?, ?)";
+            ps = prepareStatement(txn, sql);
+            ps.setString(1, id);
+            ps.setLong(2, policy.getMaxAgeMs());
+            ps.setInt(3, policy.getMaxCount());
+            ps.setBoolean(4, policy.isKeepFavourites());
+            affected = ps.executeUpdate();
+            if (affected != 1) throw new DbStateException();
+            ps.close();
         } catch (SQLException e) {
             JdbcUtils.tryToClose(ps, LOG, WARNING);
             throw new DbException(e);
@@ -1097,111 +2802,175 @@ abstract class JdbcDatabase implements Database<Connection> {
     }
 
     @Override
-    public void addMessage(Connection txn, Message message, MessageState
-            state,
-                           String contextId, boolean incoming) throws DbException {
+    @Nullable
+    public RetentionPolicy getGroupRetentionPolicy(Connection txn,
+            String groupId) throws DbException {
+        return getRetentionPolicy(txn, "groupRetentionPolicies", "groupId",
+                groupId);
+    }
+
+    @Override
+    @Nullable
+    public RetentionPolicy getContextRetentionPolicy(Connection txn,
+            String contextId) throws DbException {
+        return getRetentionPolicy(txn, "contextRetentionPolicies",
+                "contextId", contextId);
+    }
+
+    @Nullable
+    private RetentionPolicy getRetentionPolicy(Connection txn, String table,
+            String column, String id) throws DbException {
         PreparedStatement ps = null;
+        ResultSet rs = null;
         try {
-            String sql =
-                    "INSERT INTO messages (messageId, contextId, groupId, timestamp,"
-                            +
-                            " text, mediaFileName, type, state, incoming, favourite, temporary)"
-                            + " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
-            ps = txn.prepareStatement(sql);
-            ps.setString(1, message.getId());
-            ps.setString(2, contextId);
-            ps.setString(3, message.getGroupId());
-            ps.setLong(4, message.getTimestamp());
-            ps.setString(5, message.getMessageBody());
-            ps.setString(6, message.getMediaFileName());
-            ps.setInt(7, message.getMessageType().getValue());
-            ps.setInt(8, state.getValue());
-            ps.setBoolean(9, incoming);
-            ps.setBoolean(10, false);
-            ps.setBoolean(11, false);
-            int affected = ps.executeUpdate();
-            if (affected != 1) throw new DbStateException();
+            String sql = "SELECT maxAge, maxCount, keepFavourites FROM "
+                    + table + " WHERE " + column + " = ?";
+            ps = prepareStatement(txn, sql);
+            ps.setString(1, id);
+            rs = ps.executeQuery();
+            RetentionPolicy policy = null;
+            if (rs.next()) {
+                policy = new RetentionPolicy(rs.getLong(1), rs.getInt(2),
+                        rs.getBoolean(3));
+            }
+            if (rs.next()) throw new DbStateException();
+            rs.close();
             ps.close();
+            return policy;
         } catch (SQLException e) {
+            JdbcUtils.tryToClose(rs, LOG, WARNING);
             JdbcUtils.tryToClose(ps, LOG, WARNING);
             throw new DbException(e);
         }
     }
 
     @Override
-    public void addContext(Connection txn, DBContext c)
+    public Map<String, RetentionPolicy> getRetentionPolicies(Connection txn)
             throws DbException {
-        PreparedStatement ps = null;
+        Statement s = null;
+        ResultSet rs = null;
         try {
-            String sql = "INSERT INTO contexts"
-                    + " (contextId, name, color, type, privateName)"
-                    + " VALUES (?, ?, ?, ?, ?)";
-            ps = txn.prepareStatement(sql);
-            ps.setString(1, c.getId());
-            ps.setString(2, c.getName());
-            ps.setInt(3, c.getColor());
-            ps.setInt(4, c.getContextType().getValue());
-            ps.setString(5, c.getPrivateName());
-            int affected = ps.executeUpdate();
-            if (affected != 1) throw new DbStateException();
-            ps.close();
+            String sql = "SELECT g.groupId,"
+                    + " gr.maxAge, gr.maxCount, gr.keepFavourites,"
+                    + " cr.maxAge, cr.maxCount, cr.keepFavourites"
+                    + " FROM groups AS g"
+                    + " LEFT OUTER JOIN groupRetentionPolicies AS gr"
+                    + " ON g.groupId = gr.groupId"
+                    + " LEFT OUTER JOIN contextRetentionPolicies AS cr"
+                    + " ON g.contextId = cr.contextId"
+                    + " WHERE gr.groupId IS NOT NULL"
+                    + " OR cr.contextId IS NOT NULL";
+            s = txn.createStatement();
+            rs = s.executeQuery(sql);
+            Map<String, RetentionPolicy> policies = new HashMap<>();
+            while (rs.next()) {
+                // Use the group's policy if it has one
+                int column = rs.getObject(2) == null ? 5 : 2;
+                policies.put(rs.getString(1), new RetentionPolicy(
+                        rs.getLong(column), rs.getInt(column + 1),
+                        rs.getBoolean(column + 2)));
+            }
+            rs.close();
+            s.close();
+            return policies;
         } catch (SQLException e) {
-            JdbcUtils.tryToClose(ps, LOG, WARNING);
+            JdbcUtils.tryToClose(rs, LOG, WARNING);
+            JdbcUtils.tryToClose(s, LOG, WARNING);
             throw new DbException(e);
         }
     }
 
     @Override
-    public void addProfile(Connection txn, Profile p) throws DbException {
+    public List<String> getExpiredMessageIds(Connection txn, String groupId,
+            RetentionPolicy policy, int limit) throws DbException {
+        List<String> expired = new ArrayList<>();
+        boolean ageLimit = policy.getMaxAgeMs() != RetentionPolicy.NO_LIMIT;
+        boolean countLimit = policy.getMaxCount() != RetentionPolicy.NO_LIMIT;
+        if (!ageLimit && !countLimit) return expired;
+        // Favourites are never removed and don't count towards maxCount
+        String favourites = policy.isKeepFavourites()
+                ? " AND favourite = FALSE" : "";
+        long cutoff = ageLimit
+                ? clock.currentTimeMillis() - policy.getMaxAgeMs()
+                : Long.MIN_VALUE;
         PreparedStatement ps = null;
+        ResultSet rs = null;
         try {
-            String sql = "INSERT INTO profiles"
-                    + " (contextId, alias, fullname, gender, country,"
-                    + " university, work, interests, quote, profilepic)"
-                    + " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
-            ps = txn.prepareStatement(sql);
-            ps.setString(1, p.getContextId());
-            ps.setString(2, p.getAlias());
-            ps.setString(3, p.getFullname());
-            ps.setInt(4, p.getGender());
-            ps.setInt(5, p.getCountry());
-            ps.setString(6, p.getUniversity());
-            ps.setString(7, p.getWork());
-            ps.setString(8, p.getInterests());
-            ps.setString(9, p.getQuote());
-            if (p.getProfilePic() == null) {
-                ps.setNull(10, Types.BLOB);
-            } else {
-                ps.setBytes(10, p.getProfilePic());
+            // The number of messages older than the newest maxCount
+            int excess = 0;
+            if (countLimit) {
+                String sql = "SELECT COUNT(*) FROM messages"
+                        + " WHERE groupId = ?" + favourites;
+                ps = prepareStatement(txn, sql);
+                ps.setString(1, groupId);
+                rs = ps.executeQuery();
+                if (!rs.next()) throw new DbStateException();
+                excess = Math.max(0, rs.getInt(1) - policy.getMaxCount());
+                rs.close();
+                ps.close();
             }
-            int affected = ps.executeUpdate();
-            if (affected != 1) throw new DbStateException();
+            // Read the messages oldest first in index order. Each one is
+            // expired if it's one of the excess messages or it's older than
+            // the cutoff, so the first message that's neither ends the walk
+            String sql = "SELECT messageId, timestamp FROM messages"
+                    + " USE INDEX (messagesByGroupIdTimestamp)"
+                    + " WHERE groupId = ?" + favourites
+                    + " ORDER BY groupId, timestamp, messageId"
+                    + " LIMIT ?";
+            ps = prepareStatement(txn, sql);
+            ps.setString(1, groupId);
+            ps.setInt(2, limit);
+            rs = ps.executeQuery();
+            while (rs.next()) {
+                if (expired.size() >= excess && rs.getLong(2) >= cutoff)
+                    break;
+                expired.add(rs.getString(1));
+            }
+            rs.close();
             ps.close();
+            return expired;
         } catch (SQLException e) {
+            JdbcUtils.tryToClose(rs, LOG, WARNING);
             JdbcUtils.tryToClose(ps, LOG, WARNING);
             throw new DbException(e);
         }
     }
 
     @Override
-    public boolean setMessageState(Connection txn, String messageId,
-                                   MessageState state)
+    public void removeMessages(Connection txn, Collection<String> messageIds)
             throws DbException {
+        if (messageIds.isEmpty()) return;
+        // Count the unread messages so their counters can be updated
+        String sql = "SELECT groupId, contextId FROM messages"
+                + " WHERE incoming = TRUE AND state <> " + MESSAGE_STATE_SEEN
+                + " AND messageId IN (";
+        Map<List<String>, Integer> unread = new HashMap<>();
+        for (List<String> key : getByIds(txn, sql, messageIds,
+                rs -> asList(rs.getString(1), rs.getString(2)))) {
+            unread.merge(key, 1, Integer::sum);
+        }
+        // Metadata is removed along with the messages. Their postings stay
+        // in the full-text index, and searches skip them
         PreparedStatement ps = null;
         try {
-            String sql = "UPDATE messages SET state = ?"
-                    + " WHERE messageId = ?";
-            ps = txn.prepareStatement(sql);
-            ps.setInt(1, state.getValue());
-            ps.setString(2, messageId);
-            int affected = ps.executeUpdate();
-            if (affected != 1) return false;
-            ps.close();
-            return true;
+            for (List<String> chunk :
+                    inClauseChunks(new HashSet<>(messageIds))) {
+                sql = "DELETE FROM messages WHERE messageId IN ("
+                        + placeholders(chunk.size()) + ")";
+                ps = prepareStatement(txn, sql);
+                int index = 1;
+                for (String id : chunk) ps.setString(index++, id);
+                ps.executeUpdate();
+                ps.close();
+            }
         } catch (SQLException e) {
             JdbcUtils.tryToClose(ps, LOG, WARNING);
             throw new DbException(e);
         }
+        for (Map.Entry<List<String>, Integer> e : unread.entrySet()) {
+            adjustUnreadCount(txn, e.getKey().get(0), e.getKey().get(1),
+                    -e.getValue());
+        }
     }
 
     @Override
@@ -1212,7 +2981,7 @@ abstract class JdbcDatabase implements Database<Connection> {
         try {
             String sql = "SELECT NULL FROM contacts"
                     + " WHERE contactId = ?";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             ps.setString(1, contactId.getId());
             rs = ps.executeQuery();
             boolean found = rs.next();
@@ -1235,7 +3004,7 @@ abstract class JdbcDatabase implements Database<Connection> {
         try {
             String sql = "SELECT NULL FROM events"
                     + " WHERE eventId = ?";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             ps.setString(1, eventId);
             rs = ps.executeQuery();
             boolean found = rs.next();
@@ -1257,7 +3026,7 @@ abstract class JdbcDatabase implements Database<Connection> {
         ResultSet rs = null;
         try {
             String sql = "SELECT NULL FROM contexts WHERE contextId = ?";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             ps.setString(1, contextId);
             rs = ps.executeQuery();
             boolean found = rs.next();
@@ -1279,7 +3048,7 @@ abstract class JdbcDatabase implements Database<Connection> {
         ResultSet rs = null;
         try {
             String sql = "SELECT NULL FROM groups WHERE groupId = ?";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             ps.setString(1, groupId);
             rs = ps.executeQuery();
             boolean found = rs.next();
@@ -1301,7 +3070,7 @@ abstract class JdbcDatabase implements Database<Connection> {
         ResultSet rs = null;
         try {
             String sql = "SELECT NULL FROM forumMemberList WHERE groupId = ? AND fakeId = ?";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             ps.setString(1, groupId);
             ps.setString(2, fakeId);
             rs = ps.executeQuery();
@@ -1323,15 +3092,19 @@ abstract class JdbcDatabase implements Database<Connection> {
         PreparedStatement ps = null;
         ResultSet rs = null;
         try {
-            String sql = "SELECT alias, profilePicture, publicKey"
+            String sql = "SELECT alias, profilePictureRef, publicKey"
                     + " FROM contacts"
                     + " WHERE contactId = ?";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             ps.setString(1, cid.getId());
             rs = ps.executeQuery();
-            if (!rs.next()) throw new DbStateException();
+            if (!rs.next()) {
+                rs.close();
+                ps.close();
+                return null;
+            }
             String alias = rs.getString(1);
-            byte[] profilePic = rs.getBytes(2);
+            byte[] profilePic = loadBlob(rs.getBytes(2));
             byte[] publicKeyBytes = rs.getBytes(3);
             rs.close();
             ps.close();
@@ -1351,22 +3124,29 @@ abstract class JdbcDatabase implements Database<Connection> {
     @Override
     public Collection<GroupMember> getGroupMembers(Connection txn, String groupId)
             throws DbException {
+        return getGroupMembers(txn, groupId, true);
+    }
 
+    @Override
+    public Collection<GroupMember> getGroupMembers(Connection txn,
+            String groupId, boolean includePictures) throws DbException {
         PreparedStatement ps = null;
         ResultSet rs = null;
         try {
-            String sql = "SELECT peerId, profilePicture, alias"
+            String sql = "SELECT peerId, profilePictureRef, alias"
                     + " FROM groupMembers"
                     + " WHERE groupId = ?";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             ps.setString(1, groupId);
             rs = ps.executeQuery();
             List<GroupMember> groupMembers = new ArrayList<>();
             while (rs.next()) {
                 PeerId peerId = new PeerId(rs.getString(1));
-                byte[] profilePicture = rs.getBytes(2);
+                LazyPicture profilePicture =
+                        includePictures ? lazyPicture(rs.getBytes(2)) : null;
                 String alias = rs.getString(3);
-                groupMembers.add(new GroupMember(peerId, alias, profilePicture, groupId));
+                groupMembers.add(new LazyGroupMember(peerId, alias,
+                        profilePicture, groupId));
             }
             rs.close();
             ps.close();
@@ -1388,10 +3168,14 @@ abstract class JdbcDatabase implements Database<Connection> {
             String sql = "SELECT contextId, title, description, url, lat, lng, type, timestamp"
                     + " FROM events"
                     + " WHERE eventId = ?";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             ps.setString(1, eventId);
             rs = ps.executeQuery();
-            if (!rs.next()) throw new DbStateException();
+            if (!rs.next()) {
+                rs.close();
+                ps.close();
+                return null;
+            }
             String contextId = rs.getString(1);
             String title = rs.getString(2);
             String desc = rs.getString(3);
@@ -1425,7 +3209,7 @@ abstract class JdbcDatabase implements Database<Connection> {
         try {
             String sql =
                     "SELECT NULL FROM groups WHERE contextId = ? AND contactId = ?";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             ps.setString(1, contextId);
             ps.setString(2, contactId.getId());
             rs = ps.executeQuery();
@@ -1444,27 +3228,21 @@ abstract class JdbcDatabase implements Database<Connection> {
     @Override
     public Collection<Contact> getContacts(Connection txn) throws
             DbException {
+        return getContacts(txn, true);
+    }
+
+    @Override
+    public Collection<Contact> getContacts(Connection txn,
+            boolean includePictures) throws DbException {
         Statement s = null;
         ResultSet rs = null;
         try {
-            String sql = "SELECT contactId, profilePicture, alias, publicKey"
+            String sql = "SELECT contactId, profilePictureRef, alias, publicKey"
                     + " FROM contacts";
             s = txn.createStatement();
             rs = s.executeQuery(sql);
             List<Contact> contacts = new ArrayList<>();
-            while (rs.next()) {
-                ContactId contactId = new ContactId(rs.getString(1));
-                byte[] profilePicture = rs.getBytes(2);
-                String alias = rs.getString(3);
-                byte[] publicKeyBytes = rs.getBytes(4);
-                if (publicKeyBytes==null){
-                    contacts.add(new Contact(contactId, alias, profilePicture, null));
-
-                } else{
-                    contacts.add(new Contact(contactId, alias, profilePicture, RSAKeyUtils.getPublicKeyFromBytes(publicKeyBytes)));
-
-                }
-            }
+            while (rs.next()) contacts.add(readContact(rs, includePictures));
             rs.close();
             s.close();
             return contacts;
@@ -1475,6 +3253,33 @@ abstract class JdbcDatabase implements Database<Connection> {
         }
     }
 
+    @Override
+    public void visitContacts(Connection txn, boolean includePictures,
+            int fetchSize, RowVisitor<? super Contact> visitor)
+            throws DbException {
+        String sql = "SELECT contactId, profilePictureRef, alias, publicKey"
+                + " FROM contacts";
+        visitRows(txn, sql, fetchSize, rs -> readContact(rs, includePictures),
+                visitor);
+    }
+
+    /**
+     * Reads a contact from a row containing contactId, profilePictureRef,
+     * alias and publicKey.
+     */
+    private Contact readContact(ResultSet rs, boolean includePictures)
+            throws SQLException, DbException {
+        ContactId contactId = new ContactId(rs.getString(1));
+        LazyPicture profilePicture =
+                includePictures ? lazyPicture(rs.getBytes(2)) : null;
+        String alias = rs.getString(3);
+        byte[] publicKeyBytes = rs.getBytes(4);
+        if (publicKeyBytes == null)
+            return new LazyContact(contactId, alias, profilePicture, null);
+        return new LazyContact(contactId, alias, profilePicture,
+                RSAKeyUtils.getPublicKeyFromBytes(publicKeyBytes));
+    }
+
     @Override
     public Collection<String> getContactIds(Connection txn, String
             contextId)
@@ -1485,7 +3290,7 @@ abstract class JdbcDatabase implements Database<Connection> {
             String sql = "SELECT contactId"
                     +
                     " FROM groups WHERE contextId = ? AND contactId IS NOT NULL";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             ps.setString(1, contextId);
             rs = ps.executeQuery();
             List<String> contacts = new ArrayList<>();
@@ -1511,7 +3316,7 @@ abstract class JdbcDatabase implements Database<Connection> {
         try {
             String sql = "SELECT eventId, title, description, url, lat, lng, type, timestamp"
                     + " FROM events WHERE contextId = ?";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             ps.setString(1, contextId);
             rs = ps.executeQuery();
             List<HeliosEvent> events = new ArrayList<>();
@@ -1549,7 +3354,7 @@ abstract class JdbcDatabase implements Database<Connection> {
             String sql = "SELECT color"
                     + " FROM contexts"
                     + " WHERE contextId = ?";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             ps.setString(1, contextId);
             rs = ps.executeQuery();
             if (!rs.next()) throw new DbStateException();
@@ -1573,7 +3378,7 @@ abstract class JdbcDatabase implements Database<Connection> {
         try {
             String sql =
                     "SELECT contextId, name, color, type, privateName FROM contexts";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             rs = ps.executeQuery();
             List<DBContext> contexts = new ArrayList<>();
             while (rs.next()) {
@@ -1604,7 +3409,7 @@ abstract class JdbcDatabase implements Database<Connection> {
             String sql =
                     "SELECT contextId, name, color, type, privateName FROM contexts " +
                             "WHERE contextId = ?";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             ps.setString(1, contextId);
             rs = ps.executeQuery();
             DBContext context = null;
@@ -1632,7 +3437,7 @@ abstract class JdbcDatabase implements Database<Connection> {
         try {
             String sql = "SELECT groupId FROM groups " +
                     "WHERE contactId = ? AND contextId = ?";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             ps.setString(1, contactId.getId());
             ps.setString(2, contextId);
             rs = ps.executeQuery();
@@ -1658,7 +3463,7 @@ abstract class JdbcDatabase implements Database<Connection> {
         try {
             String sql = "SELECT contextId, descriptor, type FROM groups " +
                     "WHERE groupId = ?";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             ps.setString(1, groupId);
             rs = ps.executeQuery();
             Group group = null;
@@ -1684,7 +3489,7 @@ abstract class JdbcDatabase implements Database<Connection> {
         try {
             String sql = "SELECT groupId, descriptor, type" +
                     " FROM groups WHERE contextId = ? AND type = ?";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             ps.setString(1, contextId);
             ps.setInt(2, groupType.getValue());
             rs = ps.executeQuery();
@@ -1713,7 +3518,7 @@ abstract class JdbcDatabase implements Database<Connection> {
         try {
             String sql = "SELECT groupId, descriptor, type" +
                     " FROM groups WHERE contextId = ? AND type >= 2";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             ps.setString(1, contextId);
             rs = ps.executeQuery();
             List<Group> groups = new ArrayList<>();
@@ -1742,21 +3547,11 @@ abstract class JdbcDatabase implements Database<Connection> {
         try {
             String sql = "SELECT peerId, fakeId, alias, fakename, role, timestamp" +
                     " FROM forumMemberList WHERE groupId = ?";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             ps.setString(1, groupId);
             rs = ps.executeQuery();
             List<ForumMember> forumMembers = new ArrayList<>();
-            while (rs.next()) {
-                forumMembers.add(
-                        new ForumMember(
-                                new PeerId(rs.getString(1),
-                                           rs.getString(2)),
-                                groupId,
-                                rs.getString(3),
-                                rs.getString(4),
-                                ForumMemberRole.valueOf(rs.getInt(5)),
-                                rs.getLong(6)));
-            }
+            while (rs.next()) forumMembers.add(readForumMember(rs, groupId));
             rs.close();
             ps.close();
             return forumMembers;
@@ -1767,6 +3562,32 @@ abstract class JdbcDatabase implements Database<Connection> {
         }
     }
 
+    @Override
+    public void visitForumMembers(Connection txn, String groupId,
+            int fetchSize, RowVisitor<? super ForumMember> visitor)
+            throws DbException {
+        String sql = "SELECT peerId, fakeId, alias, fakename, role, timestamp"
+                + " FROM forumMemberList WHERE groupId = ?";
+        visitRows(txn, sql, fetchSize, rs -> readForumMember(rs, groupId),
+                visitor, groupId);
+    }
+
+    /**
+     * Reads a forum member from a row containing peerId, fakeId, alias,
+     * fakename, role and timestamp.
+     */
+    private ForumMember readForumMember(ResultSet rs, String groupId)
+            throws SQLException {
+        return new ForumMember(
+                new PeerId(rs.getString(1),
+                           rs.getString(2)),
+                groupId,
+                rs.getString(3),
+                rs.getString(4),
+                ForumMemberRole.valueOf(rs.getInt(5)),
+                rs.getLong(6));
+    }
+
     @Override
     public Collection<Group> getGroups(Connection txn, GroupType groupType)
             throws DbException {
@@ -1775,7 +3596,7 @@ abstract class JdbcDatabase implements Database<Connection> {
         try {
             String sql = "SELECT groupId, contextId, descriptor" +
                     " FROM groups WHERE type = ?";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             ps.setInt(1, groupType.getValue());
             rs = ps.executeQuery();
             List<Group> groups = new ArrayList<>();
@@ -1802,7 +3623,7 @@ abstract class JdbcDatabase implements Database<Connection> {
         try {
             String sql = "SELECT groupId, contextId, descriptor, type" +
                     " FROM groups WHERE type >= 2";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             rs = ps.executeQuery();
             List<Group> groups = new ArrayList<>();
             while (rs.next()) {
@@ -1829,7 +3650,7 @@ abstract class JdbcDatabase implements Database<Connection> {
         try {
             String sql = "SELECT contextId FROM groups " +
                     "WHERE groupId = ?";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             ps.setString(1, groupId);
             rs = ps.executeQuery();
             String contextId = null;
@@ -1853,7 +3674,7 @@ abstract class JdbcDatabase implements Database<Connection> {
         try {
             String sql = "SELECT contextId FROM groups " +
                     "WHERE groupId = ?";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             ps.setString(1, groupId);
             rs = ps.executeQuery();
             String contextId = rs.getString(1);
@@ -1875,7 +3696,7 @@ abstract class JdbcDatabase implements Database<Connection> {
         try {
             String sql = "SELECT metaKey, value FROM contextMetadata"
                     + " WHERE contextId = ?";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             ps.setString(1, contextId);
             rs = ps.executeQuery();
             Metadata metadata = new Metadata();
@@ -1898,7 +3719,7 @@ abstract class JdbcDatabase implements Database<Connection> {
         try {
             String sql = "SELECT metaKey, value FROM messageMetadata"
                     + " WHERE messageId = ?";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             ps.setString(1, messageId);
             rs = ps.executeQuery();
             Metadata metadata = new Metadata();
@@ -1924,7 +3745,7 @@ abstract class JdbcDatabase implements Database<Connection> {
             String sql = "SELECT messageId, metaKey, value"
                     + " FROM messageMetadata"
                     + " WHERE groupId = ?";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             ps.setString(1, groupId);
             rs = ps.executeQuery();
             Map<String, Metadata> all = new HashMap<>();
@@ -1947,6 +3768,56 @@ abstract class JdbcDatabase implements Database<Connection> {
         }
     }
 
+    @Override
+    public void visitMessageMetadataByGroupId(Connection txn, String groupId,
+            int fetchSize, MetadataVisitor visitor) throws DbException {
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        try {
+            // Rows are sorted by the index, so each message's metadata is
+            // contiguous and can be passed on as soon as the next message
+            // starts
+            String sql = "SELECT messageId, metaKey, value"
+                    + " FROM messageMetadata"
+                    + " WHERE groupId = ?"
+                    + " ORDER BY groupId, messageId";
+            setLazyQueryExecution(txn, true);
+            try {
+                ps = prepareStatement(txn, sql);
+                ps.setString(1, groupId);
+                ps.setFetchSize(fetchSize);
+                rs = ps.executeQuery();
+                String messageId = null;
+                Metadata metadata = null;
+                boolean more = true;
+                while (more && rs.next()) {
+                    String id = rs.getString(1);
+                    if (!id.equals(messageId)) {
+                        if (metadata != null)
+                            more = visitor.visit(messageId, metadata);
+                        messageId = id;
+                        metadata = new Metadata();
+                    }
+                    metadata.put(rs.getString(2), rs.getBytes(3));
+                }
+                if (more && metadata != null)
+                    visitor.visit(messageId, metadata);
+                rs.close();
+                ps.close();
+            } finally {
+                setLazyQueryExecution(txn, false);
+            }
+        } catch (SQLException e) {
+            JdbcUtils.tryToClose(rs, LOG, WARNING);
+            JdbcUtils.tryToClose(ps, LOG, WARNING);
+            throw new DbException(e);
+        } catch (DbException | RuntimeException e) {
+            JdbcUtils.tryToClose(rs, LOG, WARNING);
+            JdbcUtils.tryToClose(ps, LOG, WARNING);
+            throw e;
+        }
+    }
+
     @Override
     public Metadata getGroupMetadata(Connection txn, String groupId)
             throws DbException {
@@ -1955,7 +3826,7 @@ abstract class JdbcDatabase implements Database<Connection> {
         try {
             String sql = "SELECT metaKey, value FROM groupMetadata"
                     + " WHERE groupId = ?";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             ps.setString(1, groupId);
             rs = ps.executeQuery();
             Metadata metadata = new Metadata();
@@ -1978,7 +3849,7 @@ abstract class JdbcDatabase implements Database<Connection> {
         try {
             String sql = "SELECT key, value FROM inverted_index"
                     + " WHERE entity = ? AND contextId = ?";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             ps.setString(1, entityType.toString());
             ps.setString(2, contextId);
             rs = ps.executeQuery();
@@ -2000,32 +3871,131 @@ abstract class JdbcDatabase implements Database<Connection> {
         PreparedStatement ps = null;
         ResultSet rs = null;
         try {
-            StringBuilder builder = new StringBuilder();
-
-            for (int i = 0; i < groupIds.length; i++) {
-                builder.append("?,");
-            }
-            String sql = "SELECT groupId, metaKey, value"
-                    + " FROM groupMetadata"
-                    + " WHERE groupId IN (" + builder.deleteCharAt(builder.length() - 1)
-                    .toString() + ")";
-            ps = txn.prepareStatement(sql);
-            for (int i = 0; i < groupIds.length; i++) {
-                ps.setString(i + 1, groupIds[i]);
-            }
-            rs = ps.executeQuery();
             Map<String, Metadata> all = new HashMap<>();
-            while (rs.next()) {
-                String messageId = rs.getString(1);
-                Metadata metadata = all.get(messageId);
-                if (metadata == null) {
-                    metadata = new Metadata();
-                    all.put(messageId, metadata);
+            for (List<String> chunk : inClauseChunks(asList(groupIds))) {
+                String sql = "SELECT groupId, metaKey, value"
+                        + " FROM groupMetadata"
+                        + " WHERE groupId IN (" + placeholders(chunk.size())
+                        + ")";
+                ps = prepareStatement(txn, sql);
+                int index = 1;
+                for (String groupId : chunk) ps.setString(index++, groupId);
+                rs = ps.executeQuery();
+                while (rs.next()) {
+                    String groupId = rs.getString(1);
+                    Metadata metadata = all.get(groupId);
+                    if (metadata == null) {
+                        metadata = new Metadata();
+                        all.put(groupId, metadata);
+                    }
+                    metadata.put(rs.getString(2), rs.getBytes(3));
                 }
-                metadata.put(rs.getString(2), rs.getBytes(3));
+                rs.close();
+                ps.close();
+            }
+            return all;
+        } catch (SQLException e) {
+            JdbcUtils.tryToClose(rs, LOG, WARNING);
+            JdbcUtils.tryToClose(ps, LOG, WARNING);
+            throw new DbException(e);
+        }
+    }
+
+    @Override
+    public Map<String, Metadata> getMessageMetadataByGroupId(Connection txn,
+            String groupId, Metadata query, @Nullable Collection<String> keys)
+            throws DbException {
+        return queryMetadata(txn, "messageMetadata", "messageId", "groupId",
+                singletonList(groupId), query, keys);
+    }
+
+    @Override
+    public Map<String, Metadata> getGroupMetadata(Connection txn,
+            String[] groupIds, Metadata query,
+            @Nullable Collection<String> keys) throws DbException {
+        return queryMetadata(txn, "groupMetadata", "groupId", "groupId",
+                asList(groupIds), query, keys);
+    }
+
+    /**
+     * Returns the metadata of the entities in the given metadata table whose
+     * scope column has one of the given values and whose metadata includes
+     * every key/value pair in the query. If {@code keys} is not null, only
+     * those keys are returned for each matching entity.
+     * <p/>
+     * Matching and projection are both done by the database, so metadata of
+     * entities that don't match is never read.
+     */
+    private Map<String, Metadata> queryMetadata(Connection txn, String table,
+            String idColumn, String scopeColumn, List<String> scope,
+            Metadata query, @Nullable Collection<String> keys)
+            throws DbException {
+        Map<String, Metadata> all = new HashMap<>();
+        List<String> projection = keys == null || keys.isEmpty()
+                ? null : padInClause(new ArrayList<>(keys));
+        List<Map.Entry<String, byte[]>> predicates =
+                new ArrayList<>(query.entrySet());
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        try {
+            for (List<String> chunk : inClauseChunks(scope)) {
+                // Find the entities with all of the given key/value pairs
+                StringBuilder matching = new StringBuilder("SELECT ");
+                if (predicates.isEmpty()) matching.append("DISTINCT ");
+                matching.append(idColumn).append(" FROM ").append(table)
+                        .append(" WHERE ").append(scopeColumn).append(" IN (")
+                        .append(placeholders(chunk.size())).append(")");
+                if (!predicates.isEmpty()) {
+                    matching.append(" AND (");
+                    for (int j = 0; j < predicates.size(); j++) {
+                        if (j > 0) matching.append(" OR ");
+                        matching.append("(metaKey = ? AND value = ?)");
+                    }
+                    matching.append(") GROUP BY ").append(idColumn)
+                            .append(" HAVING COUNT(*) = ?");
+                }
+                // Join them back to the table to read the projected keys
+                String sql;
+                if (keys != null && keys.isEmpty()) {
+                    sql = "SELECT " + idColumn + ", NULL, NULL FROM ("
+                            + matching + ") AS r";
+                } else {
+                    sql = "SELECT r." + idColumn + ", m.metaKey, m.value"
+                            + " FROM (" + matching + ") AS r"
+                            + " LEFT OUTER JOIN " + table + " AS m"
+                            + " ON m." + idColumn + " = r." + idColumn;
+                    if (projection != null) {
+                        sql += " AND m.metaKey IN ("
+                                + placeholders(projection.size()) + ")";
+                    }
+                }
+                ps = prepareStatement(txn, sql);
+                int index = 1;
+                for (String id : chunk) ps.setString(index++, id);
+                if (!predicates.isEmpty()) {
+                    for (Map.Entry<String, byte[]> e : predicates) {
+                        ps.setString(index++, e.getKey());
+                        ps.setBytes(index++, e.getValue());
+                    }
+                    ps.setInt(index++, predicates.size());
+                }
+                if (projection != null) {
+                    for (String key : projection) ps.setString(index++, key);
+                }
+                rs = ps.executeQuery();
+                while (rs.next()) {
+                    String id = rs.getString(1);
+                    Metadata metadata = all.get(id);
+                    if (metadata == null) {
+                        metadata = new Metadata();
+                        all.put(id, metadata);
+                    }
+                    String key = rs.getString(2);
+                    if (key != null) metadata.put(key, rs.getBytes(3));
+                }
+                rs.close();
+                ps.close();
             }
-            rs.close();
-            ps.close();
             return all;
         } catch (SQLException e) {
             JdbcUtils.tryToClose(rs, LOG, WARNING);
@@ -2037,10 +4007,11 @@ abstract class JdbcDatabase implements Database<Connection> {
     @Override
     public void removeContact(Connection txn, ContactId c)
             throws DbException {
+        blobRefsMayBeRemoved(txn);
         PreparedStatement ps = null;
         try {
             String sql = "DELETE FROM contacts WHERE contactId = ?";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             ps.setString(1, c.getId());
             int affected = ps.executeUpdate();
             if (affected != 1) throw new DbStateException();
@@ -2054,10 +4025,11 @@ abstract class JdbcDatabase implements Database<Connection> {
     @Override
     public void removeContactGroups(Connection txn, ContactId c)
             throws DbException {
+        blobRefsMayBeRemoved(txn);
         PreparedStatement ps = null;
         try {
             String sql = "DELETE FROM groups WHERE contactId = ?";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             ps.setString(1, c.getId());
             int affected = ps.executeUpdate();
             if (affected < 1) throw new DbStateException();
@@ -2074,7 +4046,7 @@ abstract class JdbcDatabase implements Database<Connection> {
         PreparedStatement ps = null;
         try {
             String sql = "DELETE FROM events WHERE eventId = ?";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             ps.setString(1, eventId);
             int affected = ps.executeUpdate();
             if (affected != 1) throw new DbStateException();
@@ -2090,7 +4062,7 @@ abstract class JdbcDatabase implements Database<Connection> {
         PreparedStatement ps = null;
         try {
             String sql = "UPDATE contexts SET privateName = ? WHERE contextId = ?";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             ps.setString(1, name);
             ps.setString(2, contextId);
 
@@ -2107,10 +4079,11 @@ abstract class JdbcDatabase implements Database<Connection> {
     @Override
     public void removeContext(Connection txn, String contextId)
             throws DbException {
+        blobRefsMayBeRemoved(txn);
         PreparedStatement ps = null;
         try {
             String sql = "DELETE FROM contexts WHERE contextId = ?";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             ps.setString(1, contextId);
             int affected = ps.executeUpdate();
             if (affected != 1) throw new DbStateException();
@@ -2124,10 +4097,11 @@ abstract class JdbcDatabase implements Database<Connection> {
     @Override
     public void removeContact(Connection txn, String contactId, String contextId)
             throws DbException {
+        blobRefsMayBeRemoved(txn);
         PreparedStatement ps = null;
         try {
             String sql = "DELETE FROM groups WHERE contactId = ? AND contextId = ?";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             ps.setString(1, contactId);
             ps.setString(2, contextId);
             int affected = ps.executeUpdate();
@@ -2147,7 +4121,7 @@ abstract class JdbcDatabase implements Database<Connection> {
         try {
             String sql =
                     "DELETE FROM forumMemberList WHERE groupId = ? AND fakeId = ?";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             ps.setString(1, groupId);
             ps.setString(2, fakeId);
             int affected = ps.executeUpdate();
@@ -2165,7 +4139,7 @@ abstract class JdbcDatabase implements Database<Connection> {
         PreparedStatement ps = null;
         try {
             String sql = "DELETE FROM forumMemberList WHERE groupId = ?";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             ps.setString(1, groupId);
             int affected = ps.executeUpdate();
             if (affected < 1) throw new DbStateException();
@@ -2179,10 +4153,11 @@ abstract class JdbcDatabase implements Database<Connection> {
     @Override
     public void removeGroup(Connection txn, String groupId)
             throws DbException {
+        blobRefsMayBeRemoved(txn);
         PreparedStatement ps = null;
         try {
             String sql = "DELETE FROM groups WHERE groupId = ?";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             ps.setString(1, groupId);
             int affected = ps.executeUpdate();
             if (affected < 1) throw new DbStateException();
@@ -2199,7 +4174,7 @@ abstract class JdbcDatabase implements Database<Connection> {
         PreparedStatement ps = null;
         try {
             String sql = "DELETE FROM contextMetadata WHERE contextId = ?";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             ps.setString(1, contextId);
             int affected = ps.executeUpdate();
             System.out.println("deleted affected: " + affected);
@@ -2218,7 +4193,7 @@ abstract class JdbcDatabase implements Database<Connection> {
         try {
             String sql =
                     "UPDATE contacts SET alias = ? WHERE contactId = ?";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             if (alias == null) ps.setNull(1, VARCHAR);
             else ps.setString(1, alias);
             ps.setString(2, c.getId());
@@ -2238,18 +4213,15 @@ abstract class JdbcDatabase implements Database<Connection> {
         LOG.info("DB: trying to add pending contact");
         try {
             String sql = "INSERT INTO pendingContacts (pendingContactId,"
-                    + " alias, message, type, timestamp, profilePicture, publicKey)"
+                    + " alias, message, type, timestamp, profilePictureRef, publicKey)"
                     + " VALUES (?, ?, ?, ?, ?, ?, ?)";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             ps.setString(1, p.getId().getId());
             ps.setString(2, p.getAlias());
             ps.setString(3, p.getMessage());
             ps.setInt(4, p.getPendingContactType().getValue());
             ps.setLong(5, p.getTimestamp());
-            if (p.getProfilePicture() != null)
-                ps.setBytes(6, p.getProfilePicture());
-            else
-                ps.setNull(6, BINARY);
+            setBlobRef(ps, 6, storeBlob(txn, p.getProfilePicture()));
             LOG.info("DB: before assign public key");
             if (p.getPublicKey() != null) {
                 ps.setBytes(7, p.getPublicKey().getEncoded());
@@ -2280,7 +4252,7 @@ abstract class JdbcDatabase implements Database<Connection> {
                     "INSERT INTO contextInvites (contactId, pendingContextId, name,"
                             + " jsonContext, type, incoming, timestamp)"
                             + " VALUES (?, ?, ?, ?, ?, ?, ?)";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             ps.setString(1, contextInvite.getContactId().getId());
             ps.setString(2, contextInvite.getContextId());
             ps.setString(3, contextInvite.getName());
@@ -2310,7 +4282,7 @@ abstract class JdbcDatabase implements Database<Connection> {
                     "INSERT INTO groupInvites (contactId, contextId, pendingGroupId, name,"
                             + " json, type, incoming, timestamp)"
                             + " VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             ps.setString(1, groupInvite.getContactId().getId());
             ps.setString(2, groupInvite.getContextId());
             ps.setString(3, groupInvite.getGroupId());
@@ -2340,7 +4312,7 @@ abstract class JdbcDatabase implements Database<Connection> {
         try {
             String sql = "SELECT NULL FROM pendingContacts"
                     + " WHERE pendingContactId = ?";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             ps.setString(1, pendingContactId.getId());
             rs = ps.executeQuery();
             boolean found = rs.next();
@@ -2364,7 +4336,7 @@ abstract class JdbcDatabase implements Database<Connection> {
         try {
             String sql = "SELECT NULL FROM contextInvites"
                     + " WHERE pendingContextId = ?";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             ps.setString(1, pendingContextId);
             rs = ps.executeQuery();
             boolean found = rs.next();
@@ -2388,7 +4360,7 @@ abstract class JdbcDatabase implements Database<Connection> {
         try {
             String sql = "SELECT NULL FROM groupInvites"
                     + " WHERE pendingGroupId = ?";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             ps.setString(1, pendingGroupId);
             rs = ps.executeQuery();
             boolean found = rs.next();
@@ -2413,7 +4385,7 @@ abstract class JdbcDatabase implements Database<Connection> {
         try {
             String sql = "SELECT NULL FROM contextInvites"
                     + " WHERE pendingContextId = ? AND contactId = ?";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             ps.setString(1, pendingContextId);
             ps.setString(2, contactId.getId());
             rs = ps.executeQuery();
@@ -2439,7 +4411,7 @@ abstract class JdbcDatabase implements Database<Connection> {
         try {
             String sql = "SELECT NULL FROM groupInvites"
                     + " WHERE pendingGroupId = ? AND contactId = ?";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             ps.setString(1, pendingGroupId);
             ps.setString(2, contactId.getId());
             rs = ps.executeQuery();
@@ -2463,7 +4435,7 @@ abstract class JdbcDatabase implements Database<Connection> {
         try {
             String sql = "SELECT NULL FROM profiles"
                     + " WHERE contextId = ?";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             ps.setString(1, contextId);
             rs = ps.executeQuery();
             boolean found = rs.next();
@@ -2487,7 +4459,7 @@ abstract class JdbcDatabase implements Database<Connection> {
         try {
             String sql = "SELECT NULL FROM messages"
                     + " WHERE messageId = ?";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             ps.setString(1, messageId);
             rs = ps.executeQuery();
             boolean found = rs.next();
@@ -2509,20 +4481,26 @@ abstract class JdbcDatabase implements Database<Connection> {
         PreparedStatement ps = null;
         ResultSet rs = null;
         try {
-            String sql = "SELECT alias, type, message, timestamp, profilePicture, publicKey"
+            String sql = "SELECT alias, type, message, timestamp, profilePictureRef, publicKey"
                     + " FROM pendingContacts"
                     + " WHERE pendingContactId = ?";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             ps.setString(1, pendingContactId.getId());
             rs = ps.executeQuery();
-            if (!rs.next()) throw new DbStateException();
+            if (!rs.next()) {
+                rs.close();
+                ps.close();
+                return null;
+            }
             String alias = rs.getString(1);
             PendingContactType type =
                     PendingContactType.fromValue(rs.getInt(2));
             String message = rs.getString(3);
             long timestamp = rs.getLong(4);
-            byte[] profilePicture = rs.getBytes(5);
+            byte[] profilePicture = loadBlob(rs.getBytes(5));
             byte[] publicKeyBytes = rs.getBytes(6);
+            rs.close();
+            ps.close();
             if (publicKeyBytes==null) {
                 return new PendingContact(pendingContactId, alias, profilePicture, type,
                         message,
@@ -2544,11 +4522,17 @@ abstract class JdbcDatabase implements Database<Connection> {
     @Override
     public Collection<PendingContact> getPendingContacts(Connection txn)
             throws DbException {
+        return getPendingContacts(txn, true);
+    }
+
+    @Override
+    public Collection<PendingContact> getPendingContacts(Connection txn,
+            boolean includePictures) throws DbException {
         Statement s = null;
         ResultSet rs = null;
         try {
             String sql =
-                    "SELECT pendingContactId, alias, type, timestamp, message, profilePicture, publicKey"
+                    "SELECT pendingContactId, alias, type, timestamp, message, profilePictureRef, publicKey"
                             + " FROM pendingContacts";
             s = txn.createStatement();
             rs = s.executeQuery(sql);
@@ -2560,15 +4544,16 @@ abstract class JdbcDatabase implements Database<Connection> {
                         PendingContactType.fromValue(rs.getInt(3));
                 long timestamp = rs.getLong(4);
                 String message = rs.getString(5);
-                byte[] profilePicture = rs.getBytes(6);
+                LazyPicture profilePicture =
+                        includePictures ? lazyPicture(rs.getBytes(6)) : null;
                 byte[] publicKeyBytes = rs.getBytes(7);
                 if (publicKeyBytes!=null) {
                     pendingContacts
-                            .add(new PendingContact(id, alias, profilePicture, type, message,
+                            .add(new LazyPendingContact(id, alias, profilePicture, type, message,
                                     timestamp, RSAKeyUtils.getPublicKeyFromBytes(publicKeyBytes)));
                 } else {
                     pendingContacts
-                            .add(new PendingContact(id, alias, profilePicture, type, message,
+                            .add(new LazyPendingContact(id, alias, profilePicture, type, message,
                                     timestamp, null));
                 }
             }
@@ -2591,7 +4576,7 @@ abstract class JdbcDatabase implements Database<Connection> {
             String sql =
                     "SELECT COUNT(*) AS total"
                             + " FROM pendingContacts WHERE type = ?";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             ps.setInt(1, pendingContactType.getValue());
             rs = ps.executeQuery();
             int count = 0;
@@ -2655,7 +4640,7 @@ abstract class JdbcDatabase implements Database<Connection> {
             String sql =
                     "SELECT COUNT(*) AS total"
                             + " FROM contextInvites WHERE incoming = ?";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             ps.setBoolean(1, isIncoming);
             rs = ps.executeQuery();
             int count = 0;
@@ -2716,7 +4701,7 @@ abstract class JdbcDatabase implements Database<Connection> {
             String sql =
                     "SELECT COUNT(*) AS total"
                             + " FROM groupInvites WHERE incoming = ?";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             ps.setBoolean(1, isIncoming);
             rs = ps.executeQuery();
             int count = 0;
@@ -2743,7 +4728,7 @@ abstract class JdbcDatabase implements Database<Connection> {
                     "SELECT pendingContextId, contactId, name, type, jsonContext, timestamp, " +
                             "incoming" +
                             " FROM contextInvites WHERE pendingContextId = ?";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             ps.setString(1, contextId);
             rs = ps.executeQuery();
             List<ContextInvitation> contextInvites = new ArrayList<>();
@@ -2783,15 +4768,21 @@ abstract class JdbcDatabase implements Database<Connection> {
                     "SELECT groupId, timestamp, text, type, mediaFileName, incoming"
                             + " FROM messages"
                             + " WHERE messageId = ?";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             ps.setString(1, messageId);
             rs = ps.executeQuery();
-            if (!rs.next()) throw new DbStateException();
+            if (!rs.next()) {
+                rs.close();
+                ps.close();
+                return null;
+            }
             String groupId = rs.getString(1);
             long timestamp = rs.getLong(2);
             String body = rs.getString(3);
             Message.Type type = Message.Type.fromValue(rs.getInt(4));
             String mediaFileName = rs.getString(5);
+            rs.close();
+            ps.close();
             Message message =
                     new Message(messageId, groupId, timestamp, body,
                                 mediaFileName, type);
@@ -2803,6 +4794,83 @@ abstract class JdbcDatabase implements Database<Connection> {
         }
     }
 
+    @Override
+    public Map<String, Message> getMessages(Connection txn,
+            Collection<String> messageIds) throws DbException {
+        String sql = "SELECT messageId, groupId, timestamp, text, type,"
+                + " mediaFileName FROM messages WHERE messageId IN (";
+        Map<String, Message> messages = new HashMap<>();
+        for (Message m : getByIds(txn, sql, messageIds, rs ->
+                new Message(rs.getString(1), rs.getString(2), rs.getLong(3),
+                        rs.getString(4), rs.getString(6),
+                        Message.Type.fromValue(rs.getInt(5))))) {
+            messages.put(m.getId(), m);
+        }
+        return messages;
+    }
+
+    @Override
+    public Map<String, Group> getGroups(Connection txn,
+            Collection<String> groupIds) throws DbException {
+        String sql = "SELECT groupId, contextId, descriptor, type"
+                + " FROM groups WHERE groupId IN (";
+        Map<String, Group> groups = new HashMap<>();
+        for (Group g : getByIds(txn, sql, groupIds, rs ->
+                new Group(rs.getString(1), rs.getString(2), rs.getBytes(3),
+                        GroupType.fromValue(rs.getInt(4))))) {
+            groups.put(g.getId(), g);
+        }
+        return groups;
+    }
+
+    @Override
+    public Map<ContactId, Contact> getContacts(Connection txn,
+            Collection<ContactId> contactIds) throws DbException {
+        List<String> ids = new ArrayList<>(contactIds.size());
+        for (ContactId c : contactIds) ids.add(c.getId());
+        String sql = "SELECT contactId, profilePictureRef, alias, publicKey"
+                + " FROM contacts WHERE contactId IN (";
+        Map<ContactId, Contact> contacts = new HashMap<>();
+        for (Contact c : getByIds(txn, sql, ids,
+                rs -> readContact(rs, true))) {
+            contacts.put(c.getId(), c);
+        }
+        return contacts;
+    }
+
+    /**
+     * Runs the given query, which must end with an unclosed IN clause, for
+     * each chunk of the given IDs and returns the rows read by the reader.
+     * IDs that don't match any rows are ignored.
+     */
+    private <V> List<V> getByIds(Connection txn, String sqlPrefix,
+            Collection<String> ids, RowReader<V> reader) throws DbException {
+        List<V> rows = new ArrayList<>();
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        try {
+            for (List<String> chunk : inClauseChunks(new HashSet<>(ids))) {
+                String sql = sqlPrefix + placeholders(chunk.size()) + ")";
+                ps = prepareStatement(txn, sql);
+                int index = 1;
+                for (String id : chunk) ps.setString(index++, id);
+                rs = ps.executeQuery();
+                while (rs.next()) rows.add(reader.read(rs));
+                rs.close();
+                ps.close();
+            }
+            return rows;
+        } catch (SQLException e) {
+            JdbcUtils.tryToClose(rs, LOG, WARNING);
+            JdbcUtils.tryToClose(ps, LOG, WARNING);
+            throw new DbException(e);
+        } catch (DbException e) {
+            JdbcUtils.tryToClose(rs, LOG, WARNING);
+            JdbcUtils.tryToClose(ps, LOG, WARNING);
+            throw e;
+        }
+    }
+
     @Override
     public MessageState getMessageState(Connection txn, String messageId)
             throws DbException {
@@ -2812,10 +4880,14 @@ abstract class JdbcDatabase implements Database<Connection> {
             String sql = "SELECT state"
                     + " FROM messages"
                     + " WHERE messageId = ?";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             ps.setString(1, messageId);
             rs = ps.executeQuery();
-            if (!rs.next()) throw new DbStateException();
+            if (!rs.next()) {
+                rs.close();
+                ps.close();
+                return null;
+            }
             MessageState state = MessageState.fromValue(rs.getInt(1));
             rs.close();
             ps.close();
@@ -2835,7 +4907,7 @@ abstract class JdbcDatabase implements Database<Connection> {
         try {
             String sql =
                     "SELECT messageId FROM messages WHERE groupId = ?";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             ps.setString(1, groupId);
             rs = ps.executeQuery();
             List<String> messages = new ArrayList<>();
@@ -2852,6 +4924,14 @@ abstract class JdbcDatabase implements Database<Connection> {
         }
     }
 
+    @Override
+    public void visitMessageIds(Connection txn, String groupId, int fetchSize,
+            RowVisitor<? super String> visitor) throws DbException {
+        String sql = "SELECT messageId FROM messages WHERE groupId = ?";
+        visitRows(txn, sql, fetchSize, rs -> rs.getString(1), visitor,
+                groupId);
+    }
+
     @Override
     public Collection<MessageHeader> getMessageHeaders(Connection txn,
                                                        String groupId)
@@ -2862,24 +4942,68 @@ abstract class JdbcDatabase implements Database<Connection> {
             String sql =
                     "SELECT messageId, timestamp, state, incoming, favourite, type, CASE WHEN text IS NULL THEN FALSE ELSE TRUE END AS hasText FROM messages " +
                             "WHERE groupId = ?";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             ps.setString(1, groupId);
             rs = ps.executeQuery();
             List<MessageHeader> messageHeaders = new ArrayList<>();
-            while (rs.next()) {
-                String messageId = rs.getString(1);
-                long timestamp = rs.getLong(2);
-                MessageState messageState =
-                        MessageState.fromValue(rs.getInt(3));
-                boolean incoming = rs.getBoolean(4);
-                boolean favourite = rs.getBoolean(5);
-                Message.Type msgType = Message.Type.fromValue(rs.getInt(6));
-                boolean hasText = rs.getBoolean(7);
-                messageHeaders.add(
-                        new MessageHeader(messageId, groupId, timestamp,
-                                          messageState, incoming, favourite, msgType, hasText)
-                );
+            while (rs.next())
+                messageHeaders.add(readMessageHeader(rs, groupId));
+            rs.close();
+            ps.close();
+            return messageHeaders;
+        } catch (SQLException e) {
+            JdbcUtils.tryToClose(rs, LOG, WARNING);
+            JdbcUtils.tryToClose(ps, LOG, WARNING);
+            throw new DbException(e);
+        }
+    }
+
+    @Override
+    public List<MessageHeader> getMessageHeaders(Connection txn,
+            String groupId, @Nullable MessageCursor cursor, int limit,
+            MessageCursor.Direction direction) throws DbException {
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        try {
+            boolean before = direction == MessageCursor.Direction.BEFORE;
+            // H2 only reads rows in index order if the ORDER BY lists the
+            // index's columns from the first, in the index's direction
+            String sql = "SELECT messageId, timestamp, state, incoming,"
+                    + " favourite, type,"
+                    + " CASE WHEN text IS NULL THEN FALSE ELSE TRUE END"
+                    + " AS hasText FROM messages USE INDEX ("
+                    + (before ? "messagesByGroupIdTimestampDesc"
+                    : "messagesByGroupIdTimestamp")
+                    + ") WHERE groupId = ?";
+            // The first comparison lets the index seek straight to the
+            // cursor
+            if (cursor != null && before) {
+                sql += " AND timestamp <= ?"
+                        + " AND (timestamp < ? OR messageId < ?)";
+            } else if (cursor != null) {
+                sql += " AND timestamp >= ?"
+                        + " AND (timestamp > ? OR messageId > ?)";
+            }
+            if (before) {
+                sql += " ORDER BY groupId DESC, timestamp DESC,"
+                        + " messageId DESC";
+            } else {
+                sql += " ORDER BY groupId, timestamp, messageId";
             }
+            sql += " LIMIT ?";
+            ps = prepareStatement(txn, sql);
+            int index = 1;
+            ps.setString(index++, groupId);
+            if (cursor != null) {
+                ps.setLong(index++, cursor.getTimestamp());
+                ps.setLong(index++, cursor.getTimestamp());
+                ps.setString(index++, cursor.getMessageId());
+            }
+            ps.setInt(index, limit);
+            rs = ps.executeQuery();
+            List<MessageHeader> messageHeaders = new ArrayList<>();
+            while (rs.next())
+                messageHeaders.add(readMessageHeader(rs, groupId));
             rs.close();
             ps.close();
             return messageHeaders;
@@ -2890,6 +5014,40 @@ abstract class JdbcDatabase implements Database<Connection> {
         }
     }
 
+    @Override
+    public void visitMessageHeaders(Connection txn, String groupId,
+            int fetchSize, RowVisitor<? super MessageHeader> visitor)
+            throws DbException {
+        // Uses the (groupId, timestamp, messageId) index, so rows can be
+        // produced in order without sorting the whole group first
+        String sql = "SELECT messageId, timestamp, state, incoming,"
+                + " favourite, type,"
+                + " CASE WHEN text IS NULL THEN FALSE ELSE TRUE END"
+                + " AS hasText FROM messages"
+                + " USE INDEX (messagesByGroupIdTimestamp) WHERE groupId = ?"
+                + " ORDER BY groupId, timestamp, messageId";
+        visitRows(txn, sql, fetchSize, rs -> readMessageHeader(rs, groupId),
+                visitor, groupId);
+    }
+
+    /**
+     * Reads a message header from a row containing messageId, timestamp,
+     * state, incoming, favourite, type and hasText.
+     */
+    private MessageHeader readMessageHeader(ResultSet rs, String groupId)
+            throws SQLException {
+        String messageId = rs.getString(1);
+        long timestamp = rs.getLong(2);
+        MessageState messageState =
+                MessageState.fromValue(rs.getInt(3));
+        boolean incoming = rs.getBoolean(4);
+        boolean favourite = rs.getBoolean(5);
+        Message.Type msgType = Message.Type.fromValue(rs.getInt(6));
+        boolean hasText = rs.getBoolean(7);
+        return new MessageHeader(messageId, groupId, timestamp,
+                messageState, incoming, favourite, msgType, hasText);
+    }
+
     @Override
     public MessageHeader getMessageHeader(Connection txn,
                                           String messageId)
@@ -2900,10 +5058,14 @@ abstract class JdbcDatabase implements Database<Connection> {
             String sql =
                     "SELECT groupId, timestamp, state, incoming, favourite, type, CASE WHEN text IS NULL THEN FALSE ELSE TRUE END AS hasText FROM messages " +
                             "WHERE messageId = ?";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             ps.setString(1, messageId);
             rs = ps.executeQuery();
-            if (!rs.next()) return null;
+            if (!rs.next()) {
+                rs.close();
+                ps.close();
+                return null;
+            }
             String groupId = rs.getString(1);
             long timestamp = rs.getLong(2);
             MessageState messageState =
@@ -2934,7 +5096,7 @@ abstract class JdbcDatabase implements Database<Connection> {
             String sql =
                     "SELECT messageId, groupId, text, timestamp, type FROM messages WHERE contextId = ?" +
                             " AND favourite = TRUE";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             ps.setString(1, contextId);
             rs = ps.executeQuery();
             List<Message> favourites = new ArrayList<>();
@@ -2967,11 +5129,14 @@ abstract class JdbcDatabase implements Database<Connection> {
             String sql =
                     "SELECT text FROM messages"
                             + " WHERE messageId = ?";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             ps.setString(1, messageId);
             rs = ps.executeQuery();
             if (!rs.next()) throw new DbStateException();
-            return rs.getString(1);
+            String text = rs.getString(1);
+            rs.close();
+            ps.close();
+            return text;
         } catch (SQLException e) {
             JdbcUtils.tryToClose(rs, LOG, WARNING);
             JdbcUtils.tryToClose(ps, LOG, WARNING);
@@ -2983,11 +5148,12 @@ abstract class JdbcDatabase implements Database<Connection> {
     public void removePendingContact(Connection txn, ContactId
             pendingContactId)
             throws DbException {
+        blobRefsMayBeRemoved(txn);
         PreparedStatement ps = null;
         try {
             String sql = "DELETE FROM pendingContacts"
                     + " WHERE pendingContactId = ?";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             ps.setString(1, pendingContactId.getId());
             int affected = ps.executeUpdate();
             if (affected != 1) throw new DbStateException();
@@ -3005,7 +5171,7 @@ abstract class JdbcDatabase implements Database<Connection> {
         try {
             String sql = "DELETE FROM contextInvites"
                     + " WHERE pendingContextId = ?";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             ps.setString(1, contextId);
             ps.executeUpdate();
             ps.close();
@@ -3022,7 +5188,7 @@ abstract class JdbcDatabase implements Database<Connection> {
         try {
             String sql = "DELETE FROM groupInvites"
                     + " WHERE pendingGroupId = ?";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             ps.setString(1, groupId);
             ps.executeUpdate();
             ps.close();
@@ -3041,7 +5207,7 @@ abstract class JdbcDatabase implements Database<Connection> {
         try {
             String sql = "DELETE FROM contextInvites"
                     + " WHERE pendingContextId = ? AND contactId = ?";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             ps.setString(1, contextId);
             ps.setString(2, contactId.getId());
             int affected = ps.executeUpdate();
@@ -3061,7 +5227,7 @@ abstract class JdbcDatabase implements Database<Connection> {
         try {
             String sql = "DELETE FROM groupInvites"
                     + " WHERE pendingGroupId = ? AND contactId = ?";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             ps.setString(1, pendingGroupId);
             ps.setString(2, contactId.getId());
             int affected = ps.executeUpdate();
@@ -3081,7 +5247,7 @@ abstract class JdbcDatabase implements Database<Connection> {
         try {
             String sql = "SELECT settingKey, value FROM settings"
                     + " WHERE namespace = ?";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             ps.setString(1, namespace);
             rs = ps.executeQuery();
             Settings s = new Settings();
@@ -3102,15 +5268,16 @@ abstract class JdbcDatabase implements Database<Connection> {
             throws DbException {
         PreparedStatement ps = null;
         try {
-            Map<String, byte[]> added = removeOrUpdateMetadata(txn,
-                                                               contextId, meta,
-                                                               "contextMetadata", "contextId");
+            Map<String, byte[]> added = removeMetadata(txn,
+                                                       contextId, meta,
+                                                       "contextMetadata", "contextId");
             if (added.isEmpty()) return;
-            // Insert any keys that don't already exist
+            // Insert or update the keys that aren't being removed
             String sql =
-                    "INSERT INTO contextMetadata (contextId, metaKey, value)"
+                    "MERGE INTO contextMetadata (contextId, metaKey, value)"
+                            + " KEY (contextId, metaKey)"
                             + " VALUES (?, ?, ?)";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             ps.setString(1, contextId);
             for (Map.Entry<String, byte[]> e : added.entrySet()) {
                 ps.setString(2, e.getKey());
@@ -3138,11 +5305,13 @@ abstract class JdbcDatabase implements Database<Connection> {
             String sql =
                     "SELECT contactId FROM groups"
                             + " WHERE groupId = ?";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             ps.setString(1, groupId);
             rs = ps.executeQuery();
-            if (!rs.next() || rs.getString(1) == null) return null;
-            return new ContactId(rs.getString(1));
+            String contactId = rs.next() ? rs.getString(1) : null;
+            rs.close();
+            ps.close();
+            return contactId == null ? null : new ContactId(contactId);
         } catch (SQLException e) {
             JdbcUtils.tryToClose(rs, LOG, WARNING);
             JdbcUtils.tryToClose(ps, LOG, WARNING);
@@ -3156,14 +5325,15 @@ abstract class JdbcDatabase implements Database<Connection> {
             throws DbException {
         PreparedStatement ps = null;
         try {
-            Map<String, byte[]> added = removeOrUpdateInvertedIndexMetadata(txn,
-                                                                            entityType.toString(), contextId, meta, "inverted_index", "entity");
+            Map<String, byte[]> added = removeInvertedIndexMetadata(txn,
+                                                                    entityType.toString(), contextId, meta, "inverted_index", "entity");
             if (added.isEmpty()) return;
-            // Insert any keys that don't already exist
+            // Insert or update the keys that aren't being removed
             String sql =
-                    "INSERT INTO inverted_index (entity, contextId, key, value)"
+                    "MERGE INTO inverted_index (entity, contextId, key, value)"
+                            + " KEY (entity, contextId, key)"
                             + " VALUES (?, ?, ?, ?)";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             ps.setString(1, entityType.toString());
             ps.setString(2, contextId);
             for (Map.Entry<String, byte[]> e : added.entrySet()) {
@@ -3189,24 +5359,25 @@ abstract class JdbcDatabase implements Database<Connection> {
         PreparedStatement ps = null;
         ResultSet rs = null;
         try {
-            Map<String, byte[]> added = removeOrUpdateMetadata(txn,
-                                                               messageId, meta, "messageMetadata", "messageId");
+            Map<String, byte[]> added = removeMetadata(txn,
+                                                       messageId, meta, "messageMetadata", "messageId");
             if (added.isEmpty()) return;
             // Get the group ID and message state for the denormalised columns
             String sql = "SELECT groupId, state FROM messages"
                     + " WHERE messageId = ?";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             ps.setString(1, messageId);
             rs = ps.executeQuery();
             if (!rs.next()) throw new DbStateException();
             String groupId = rs.getString(1);
             rs.close();
             ps.close();
-            // Insert any keys that don't already exist
-            sql = "INSERT INTO messageMetadata"
+            // Insert or update the keys that aren't being removed
+            sql = "MERGE INTO messageMetadata"
                     + " (messageId, groupId, metaKey, value)"
+                    + " KEY (messageId, metaKey)"
                     + " VALUES (?, ?, ?, ?)";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             ps.setString(1, messageId);
             ps.setString(2, groupId);
             for (Map.Entry<String, byte[]> e : added.entrySet()) {
@@ -3233,15 +5404,16 @@ abstract class JdbcDatabase implements Database<Connection> {
             throws DbException {
         PreparedStatement ps = null;
         try {
-            Map<String, byte[]> added = removeOrUpdateMetadata(txn,
-                                                               groupId, meta, "groupMetadata", "groupId");
+            Map<String, byte[]> added = removeMetadata(txn,
+                                                       groupId, meta, "groupMetadata", "groupId");
             if (added.isEmpty()) return;
-            // Insert any keys that don't already exist
+            // Insert or update the keys that aren't being removed
             String contextId = getGroupContext(txn, groupId);
             String sql =
-                    "INSERT INTO groupMetadata (groupId, contextId, metaKey, value)"
+                    "MERGE INTO groupMetadata (groupId, contextId, metaKey, value)"
+                            + " KEY (groupId, metaKey)"
                             + " VALUES (?, ?, ?, ?)";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             ps.setString(1, groupId);
             ps.setString(2, contextId);
             for (Map.Entry<String, byte[]> e : added.entrySet()) {
@@ -3261,8 +5433,12 @@ abstract class JdbcDatabase implements Database<Connection> {
         }
     }
 
-    private Map<String, byte[]> removeOrUpdateMetadata(Connection txn,
-                                                       String id, Metadata meta, String tableName
+    /**
+     * Deletes any keys that are being removed and returns the remaining
+     * keys, which the caller inserts or updates.
+     */
+    private Map<String, byte[]> removeMetadata(Connection txn,
+                                               String id, Metadata meta, String tableName
             , String columnName)
             throws DbException {
         PreparedStatement ps = null;
@@ -3278,7 +5454,7 @@ abstract class JdbcDatabase implements Database<Connection> {
             if (!removed.isEmpty()) {
                 String sql = "DELETE FROM " + tableName
                         + " WHERE " + columnName + " = ? AND metaKey = ?";
-                ps = txn.prepareStatement(sql);
+                ps = prepareStatement(txn, sql);
                 ps.setString(1, id);
                 for (String key : removed) {
                     ps.setString(2, key);
@@ -3293,43 +5469,407 @@ abstract class JdbcDatabase implements Database<Connection> {
                 }
                 ps.close();
             }
-            if (notRemoved.isEmpty()) return Collections.emptyMap();
-            // Update any keys that already exist
-            String sql = "UPDATE " + tableName + " SET value = ?"
-                    + " WHERE " + columnName + " = ? AND metaKey = ?";
-            ps = txn.prepareStatement(sql);
-            ps.setString(2, id);
-            for (Map.Entry<String, byte[]> e : notRemoved.entrySet()) {
-                ps.setBytes(1, e.getValue());
-                ps.setString(3, e.getKey());
-                ps.addBatch();
+            return notRemoved;
+        } catch (SQLException e) {
+            JdbcUtils.tryToClose(ps, LOG, WARNING);
+            throw new DbException(e);
+        }
+    }
+
+    @Override
+    public void addPostings(Connection txn, EntityType entityType,
+            String contextId, String term, Collection<String> docIds)
+            throws DbException {
+        if (docIds.isEmpty()) return;
+        String entity = entityType.toString();
+        int[] docs = getDocumentNumbers(txn, entity, contextId, docIds, true);
+        updatePostingList(txn, entity, contextId, term, docs, true);
+    }
+
+    @Override
+    public void removePostings(Connection txn, EntityType entityType,
+            String contextId, String term, Collection<String> docIds)
+            throws DbException {
+        if (docIds.isEmpty()) return;
+        String entity = entityType.toString();
+        int[] docs = getDocumentNumbers(txn, entity, contextId, docIds, false);
+        if (docs.length == 0) return;
+        updatePostingList(txn, entity, contextId, term, docs, false);
+    }
+
+    @Override
+    public List<String> queryPostings(Connection txn, EntityType entityType,
+            String contextId, Collection<String> terms, boolean matchAll)
+            throws DbException {
+        String entity = entityType.toString();
+        Map<String, Integer> sizes =
+                getPostingListSizes(txn, entity, contextId, terms);
+        if (sizes.isEmpty()) return new ArrayList<>();
+        if (matchAll && sizes.size() < new HashSet<>(terms).size())
+            return new ArrayList<>();
+        // Start with the shortest list, so an intersection only needs to
+        // load the blocks of longer lists that can contain a match
+        List<String> ordered = new ArrayList<>(sizes.keySet());
+        Collections.sort(ordered, (a, b) -> sizes.get(a) - sizes.get(b));
+        int[] docs = null;
+        for (String term : ordered) {
+            if (docs == null) {
+                docs = loadPostingList(txn, entity, contextId, term, null);
+            } else if (matchAll) {
+                docs = PostingList.intersect(docs,
+                        loadPostingList(txn, entity, contextId, term, docs));
+                if (docs.length == 0) break;
+            } else {
+                docs = PostingList.union(docs,
+                        loadPostingList(txn, entity, contextId, term, null));
             }
+        }
+        return getDocumentIds(txn, docs);
+    }
 
-            int[] batchAffected = ps.executeBatch();
-            if (batchAffected.length != notRemoved.size())
-                throw new DbStateException();
-            for (int rows : batchAffected) {
-                if (rows < 0) throw new DbStateException();
-                if (rows > 1) throw new DbStateException();
+    /**
+     * Returns the sorted numbers of the given documents, optionally
+     * numbering any documents that haven't been numbered yet. Documents
+     * that aren't numbered and aren't created are left out.
+     */
+    private int[] getDocumentNumbers(Connection txn, String entity,
+            String contextId, Collection<String> docIds, boolean create)
+            throws DbException {
+        Map<String, Integer> numbers = new HashMap<>();
+        selectDocumentNumbers(txn, entity, contextId,
+                new ArrayList<>(new HashSet<>(docIds)), numbers);
+        if (create && numbers.size() < docIds.size()) {
+            List<String> missing = new ArrayList<>();
+            for (String docId : new HashSet<>(docIds))
+                if (!numbers.containsKey(docId)) missing.add(docId);
+            if (!missing.isEmpty()) {
+                PreparedStatement ps = null;
+                try {
+                    String sql = "INSERT INTO postingDocuments"
+                            + " (entity, contextId, docId) VALUES (?, ?, ?)";
+                    ps = prepareStatement(txn, sql);
+                    ps.setString(1, entity);
+                    ps.setString(2, contextId);
+                    for (String docId : missing) {
+                        ps.setString(3, docId);
+                        ps.addBatch();
+                    }
+                    int[] batchAffected = ps.executeBatch();
+                    if (batchAffected.length != missing.size())
+                        throw new DbStateException();
+                    for (int rows : batchAffected)
+                        if (rows != 1) throw new DbStateException();
+                    ps.close();
+                } catch (SQLException e) {
+                    JdbcUtils.tryToClose(ps, LOG, WARNING);
+                    throw new DbException(e);
+                }
+                selectDocumentNumbers(txn, entity, contextId, missing,
+                        numbers);
+            }
+        }
+        int[] docs = new int[numbers.size()];
+        int i = 0;
+        for (int doc : numbers.values()) docs[i++] = doc;
+        Arrays.sort(docs);
+        return docs;
+    }
+
+    private void selectDocumentNumbers(Connection txn, String entity,
+            String contextId, List<String> docIds,
+            Map<String, Integer> numbers) throws DbException {
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        try {
+            for (List<String> chunk : inClauseChunks(docIds)) {
+                String sql = "SELECT docId, docNumber FROM postingDocuments"
+                        + " WHERE entity = ? AND contextId = ?"
+                        + " AND docId IN (" + placeholders(chunk.size()) + ")";
+                ps = prepareStatement(txn, sql);
+                ps.setString(1, entity);
+                ps.setString(2, contextId);
+                int index = 3;
+                for (String docId : chunk) ps.setString(index++, docId);
+                rs = ps.executeQuery();
+                while (rs.next()) numbers.put(rs.getString(1), rs.getInt(2));
+                rs.close();
+                ps.close();
+            }
+        } catch (SQLException e) {
+            JdbcUtils.tryToClose(rs, LOG, WARNING);
+            JdbcUtils.tryToClose(ps, LOG, WARNING);
+            throw new DbException(e);
+        }
+    }
+
+    /**
+     * Returns the IDs of the given documents, in the same order.
+     */
+    private List<String> getDocumentIds(Connection txn, int[] docs)
+            throws DbException {
+        Map<Integer, String> ids = new HashMap<>();
+        List<Integer> numbers = new ArrayList<>(docs.length);
+        for (int doc : docs) numbers.add(doc);
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        try {
+            for (List<Integer> chunk : inClauseChunks(numbers)) {
+                String sql = "SELECT docNumber, docId FROM postingDocuments"
+                        + " WHERE docNumber IN (" + placeholders(chunk.size())
+                        + ")";
+                ps = prepareStatement(txn, sql);
+                int index = 1;
+                for (int doc : chunk) ps.setInt(index++, doc);
+                rs = ps.executeQuery();
+                while (rs.next()) ids.put(rs.getInt(1), rs.getString(2));
+                rs.close();
+                ps.close();
+            }
+            List<String> docIds = new ArrayList<>(docs.length);
+            for (int doc : docs) {
+                String docId = ids.get(doc);
+                if (docId == null) throw new DbStateException();
+                docIds.add(docId);
+            }
+            return docIds;
+        } catch (SQLException e) {
+            JdbcUtils.tryToClose(rs, LOG, WARNING);
+            JdbcUtils.tryToClose(ps, LOG, WARNING);
+            throw new DbException(e);
+        }
+    }
+
+    /**
+     * Returns the number of postings in each of the given terms' lists.
+     * Terms with empty lists are left out.
+     */
+    private Map<String, Integer> getPostingListSizes(Connection txn,
+            String entity, String contextId, Collection<String> terms)
+            throws DbException {
+        Map<String, Integer> sizes = new HashMap<>();
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        try {
+            for (List<String> chunk : inClauseChunks(new HashSet<>(terms))) {
+                String sql = "SELECT term, SUM(postingCount)"
+                        + " FROM postingBlocks"
+                        + " WHERE entity = ? AND contextId = ?"
+                        + " AND term IN (" + placeholders(chunk.size()) + ")"
+                        + " GROUP BY term";
+                ps = prepareStatement(txn, sql);
+                ps.setString(1, entity);
+                ps.setString(2, contextId);
+                int index = 3;
+                for (String term : chunk) ps.setString(index++, term);
+                rs = ps.executeQuery();
+                while (rs.next()) sizes.put(rs.getString(1), rs.getInt(2));
+                rs.close();
+                ps.close();
             }
+            return sizes;
+        } catch (SQLException e) {
+            JdbcUtils.tryToClose(rs, LOG, WARNING);
+            JdbcUtils.tryToClose(ps, LOG, WARNING);
+            throw new DbException(e);
+        }
+    }
+
+    /**
+     * Returns the first document number of each block in the given term's
+     * posting list, in ascending order.
+     */
+    private int[] getPostingBlockStarts(Connection txn, String entity,
+            String contextId, String term) throws DbException {
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        try {
+            String sql = "SELECT firstDoc FROM postingBlocks"
+                    + " WHERE entity = ? AND contextId = ? AND term = ?"
+                    + " ORDER BY firstDoc";
+            ps = prepareStatement(txn, sql);
+            ps.setString(1, entity);
+            ps.setString(2, contextId);
+            ps.setString(3, term);
+            rs = ps.executeQuery();
+            List<Integer> starts = new ArrayList<>();
+            while (rs.next()) starts.add(rs.getInt(1));
+            rs.close();
+            ps.close();
+            int[] result = new int[starts.size()];
+            for (int i = 0; i < result.length; i++) result[i] = starts.get(i);
+            return result;
+        } catch (SQLException e) {
+            JdbcUtils.tryToClose(rs, LOG, WARNING);
+            JdbcUtils.tryToClose(ps, LOG, WARNING);
+            throw new DbException(e);
+        }
+    }
+
+    /**
+     * Returns the postings in the block of the given term's posting list
+     * that starts with the given document number.
+     */
+    private int[] loadPostingBlock(Connection txn, String entity,
+            String contextId, String term, int firstDoc) throws DbException {
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        try {
+            String sql = "SELECT postings FROM postingBlocks"
+                    + " WHERE entity = ? AND contextId = ? AND term = ?"
+                    + " AND firstDoc = ?";
+            ps = prepareStatement(txn, sql);
+            ps.setString(1, entity);
+            ps.setString(2, contextId);
+            ps.setString(3, term);
+            ps.setInt(4, firstDoc);
+            rs = ps.executeQuery();
+            if (!rs.next()) throw new DbStateException();
+            byte[] postings = rs.getBytes(1);
+            rs.close();
             ps.close();
-            // Are there any keys that don't already exist?
-            Map<String, byte[]> added = new HashMap<>();
-            int updateIndex = 0;
-            for (Map.Entry<String, byte[]> e : notRemoved.entrySet()) {
-                if (batchAffected[updateIndex++] == 0)
-                    added.put(e.getKey(), e.getValue());
+            return PostingList.decode(postings);
+        } catch (SQLException | IllegalArgumentException e) {
+            JdbcUtils.tryToClose(rs, LOG, WARNING);
+            JdbcUtils.tryToClose(ps, LOG, WARNING);
+            throw new DbException(e);
+        }
+    }
+
+    /**
+     * Returns the given term's posting list. If {@code candidates} is not
+     * null, only the blocks that could contain one of the candidates are
+     * loaded, so the result is only complete with respect to the
+     * candidates.
+     */
+    private int[] loadPostingList(Connection txn, String entity,
+            String contextId, String term, @Nullable int[] candidates)
+            throws DbException {
+        int[] starts = getPostingBlockStarts(txn, entity, contextId, term);
+        // Blocks are disjoint and in order, so they can be concatenated
+        int[] docs = new int[0];
+        int length = 0, c = 0;
+        for (int b = 0; b < starts.length; b++) {
+            if (candidates != null) {
+                // Skip the block unless a candidate falls within its range
+                while (c < candidates.length && candidates[c] < starts[b]) c++;
+                if (c == candidates.length) break;
+                if (b + 1 < starts.length && candidates[c] >= starts[b + 1])
+                    continue;
             }
-            return added;
+            int[] block =
+                    loadPostingBlock(txn, entity, contextId, term, starts[b]);
+            if (length + block.length > docs.length) {
+                docs = Arrays.copyOf(docs,
+                        Math.max(length + block.length, docs.length * 2));
+            }
+            System.arraycopy(block, 0, docs, length, block.length);
+            length += block.length;
+        }
+        return Arrays.copyOf(docs, length);
+    }
+
+    /**
+     * Adds or removes the given sorted document numbers to or from the
+     * given term's posting list. Only the blocks that contain the documents
+     * are rewritten.
+     */
+    private void updatePostingList(Connection txn, String entity,
+            String contextId, String term, int[] docs, boolean add)
+            throws DbException {
+        int[] starts = getPostingBlockStarts(txn, entity, contextId, term);
+        if (starts.length == 0) {
+            if (add) insertPostingBlocks(txn, entity, contextId, term, docs);
+            return;
+        }
+        // Each document belongs in the last block that starts at or before
+        // it, or in the first block if no block does
+        int from = 0;
+        for (int b = 0; b < starts.length && from < docs.length; b++) {
+            int to = from;
+            while (to < docs.length
+                    && (b + 1 == starts.length || docs[to] < starts[b + 1]))
+                to++;
+            if (to == from) continue;
+            int[] changed = Arrays.copyOfRange(docs, from, to);
+            from = to;
+            int[] old = loadPostingBlock(txn, entity, contextId, term,
+                    starts[b]);
+            int[] updated = add ? PostingList.union(old, changed)
+                    : PostingList.difference(old, changed);
+            if (updated.length == old.length) continue;
+            deletePostingBlock(txn, entity, contextId, term, starts[b]);
+            if (updated.length > 0)
+                insertPostingBlocks(txn, entity, contextId, term, updated);
+        }
+    }
+
+    /**
+     * Stores the given sorted document numbers as one block, or splits them
+     * into blocks of {@link DatabaseConstants#POSTING_BLOCK_SIZE} if there
+     * are more than twice that many.
+     */
+    private void insertPostingBlocks(Connection txn, String entity,
+            String contextId, String term, int[] docs) throws DbException {
+        int blockSize = DatabaseConstants.POSTING_BLOCK_SIZE;
+        if (docs.length <= 2 * blockSize) blockSize = docs.length;
+        PreparedStatement ps = null;
+        try {
+            String sql = "INSERT INTO postingBlocks (entity, contextId, term,"
+                    + " firstDoc, postingCount, postings)"
+                    + " VALUES (?, ?, ?, ?, ?, ?)";
+            ps = prepareStatement(txn, sql);
+            ps.setString(1, entity);
+            ps.setString(2, contextId);
+            ps.setString(3, term);
+            int blocks = 0;
+            for (int i = 0; i < docs.length; i += blockSize) {
+                int[] block = Arrays.copyOfRange(docs, i,
+                        Math.min(docs.length, i + blockSize));
+                ps.setInt(4, block[0]);
+                ps.setInt(5, block.length);
+                ps.setBytes(6, PostingList.encode(block, block.length));
+                ps.addBatch();
+                blocks++;
+            }
+            int[] batchAffected = ps.executeBatch();
+            if (batchAffected.length != blocks) throw new DbStateException();
+            for (int rows : batchAffected)
+                if (rows != 1) throw new DbStateException();
+            ps.close();
+        } catch (SQLException e) {
+            JdbcUtils.tryToClose(ps, LOG, WARNING);
+            throw new DbException(e);
+        }
+    }
+
+    private void deletePostingBlock(Connection txn, String entity,
+            String contextId, String term, int firstDoc) throws DbException {
+        PreparedStatement ps = null;
+        try {
+            String sql = "DELETE FROM postingBlocks"
+                    + " WHERE entity = ? AND contextId = ? AND term = ?"
+                    + " AND firstDoc = ?";
+            ps = prepareStatement(txn, sql);
+            ps.setString(1, entity);
+            ps.setString(2, contextId);
+            ps.setString(3, term);
+            ps.setInt(4, firstDoc);
+            int affected = ps.executeUpdate();
+            if (affected != 1) throw new DbStateException();
+            ps.close();
         } catch (SQLException e) {
             JdbcUtils.tryToClose(ps, LOG, WARNING);
             throw new DbException(e);
         }
     }
 
-    private Map<String, byte[]> removeOrUpdateInvertedIndexMetadata(Connection txn,
-                                                                    String id, String contextId,
-                                                                    Metadata meta, String tableName, String columnName)
+    /**
+     * Deletes any keys that are being removed from the inverted index and
+     * returns the remaining keys, which the caller inserts or updates.
+     */
+    private Map<String, byte[]> removeInvertedIndexMetadata(Connection txn,
+                                                            String id, String contextId,
+                                                            Metadata meta, String tableName, String columnName)
             throws DbException {
         PreparedStatement ps = null;
         try {
@@ -3344,7 +5884,7 @@ abstract class JdbcDatabase implements Database<Connection> {
             if (!removed.isEmpty()) {
                 String sql = "DELETE FROM " + tableName
                         + " WHERE " + columnName + " = ? AND key = ? AND contextId = ?";
-                ps = txn.prepareStatement(sql);
+                ps = prepareStatement(txn, sql);
                 ps.setString(1, id);
                 ps.setString(3, contextId);
                 for (String key : removed) {
@@ -3360,35 +5900,7 @@ abstract class JdbcDatabase implements Database<Connection> {
                 }
                 ps.close();
             }
-            if (notRemoved.isEmpty()) return Collections.emptyMap();
-            // Update any keys that already exist
-            String sql = "UPDATE " + tableName + " SET value = ?"
-                    + " WHERE " + columnName + " = ? AND key = ? AND contextId = ?";
-            ps = txn.prepareStatement(sql);
-            ps.setString(2, id);
-            for (Map.Entry<String, byte[]> e : notRemoved.entrySet()) {
-                ps.setBytes(1, e.getValue());
-                ps.setString(3, e.getKey());
-                ps.setString(4, contextId);
-                ps.addBatch();
-            }
-
-            int[] batchAffected = ps.executeBatch();
-            if (batchAffected.length != notRemoved.size())
-                throw new DbStateException();
-            for (int rows : batchAffected) {
-                if (rows < 0) throw new DbStateException();
-                if (rows > 1) throw new DbStateException();
-            }
-            ps.close();
-            // Are there any keys that don't already exist?
-            Map<String, byte[]> added = new HashMap<>();
-            int updateIndex = 0;
-            for (Map.Entry<String, byte[]> e : notRemoved.entrySet()) {
-                if (batchAffected[updateIndex++] == 0)
-                    added.put(e.getKey(), e.getValue());
-            }
-            return added;
+            return notRemoved;
         } catch (SQLException e) {
             JdbcUtils.tryToClose(ps, LOG, WARNING);
             throw new DbException(e);
@@ -3398,43 +5910,23 @@ abstract class JdbcDatabase implements Database<Connection> {
     @Override
     public void mergeSettings(Connection txn, Settings s, String namespace)
             throws DbException {
+        if (s.isEmpty()) return;
         PreparedStatement ps = null;
         try {
-            // Update any settings that already exist
-            String sql = "UPDATE settings SET value = ?"
-                    + " WHERE namespace = ? AND settingKey = ?";
-            ps = txn.prepareStatement(sql);
+            // Insert or update each setting in a single batch
+            String sql = "MERGE INTO settings (namespace, settingKey, value)"
+                    + " KEY (namespace, settingKey)"
+                    + " VALUES (?, ?, ?)";
+            ps = prepareStatement(txn, sql);
+            ps.setString(1, namespace);
             for (Map.Entry<String, String> e : s.entrySet()) {
-                ps.setString(1, e.getValue());
-                ps.setString(2, namespace);
-                ps.setString(3, e.getKey());
+                ps.setString(2, e.getKey());
+                ps.setString(3, e.getValue());
                 ps.addBatch();
             }
             int[] batchAffected = ps.executeBatch();
             if (batchAffected.length != s.size())
                 throw new DbStateException();
-            for (int rows : batchAffected) {
-                if (rows < 0) throw new DbStateException();
-                if (rows > 1) throw new DbStateException();
-            }
-            // Insert any settings that don't already exist
-            sql = "INSERT INTO settings (namespace, settingKey, value)"
-                    + " VALUES (?, ?, ?)";
-            ps = txn.prepareStatement(sql);
-            int updateIndex = 0, inserted = 0;
-            for (Map.Entry<String, String> e : s.entrySet()) {
-                if (batchAffected[updateIndex] == 0) {
-                    ps.setString(1, namespace);
-                    ps.setString(2, e.getKey());
-                    ps.setString(3, e.getValue());
-                    ps.addBatch();
-                    inserted++;
-                }
-                updateIndex++;
-            }
-            batchAffected = ps.executeBatch();
-            if (batchAffected.length != inserted)
-                throw new DbStateException();
             for (int rows : batchAffected)
                 if (rows != 1) throw new DbStateException();
             ps.close();
@@ -3449,7 +5941,7 @@ abstract class JdbcDatabase implements Database<Connection> {
         PreparedStatement ps = null;
         try {
             String sql = "UPDATE contexts SET name = ? WHERE contextId = ?";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             ps.setString(1, name);
             ps.setString(2, contextId);
 
@@ -3470,7 +5962,7 @@ abstract class JdbcDatabase implements Database<Connection> {
                     "INSERT INTO groupAccessRequests (contactId, contextId, pendingGroupId, name,"
                             + " type, incoming, timestamp, peerName)"
                             + " VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             ps.setString(1, forumAccessRequest.getContactId().getId());
             ps.setString(2, forumAccessRequest.getContextId());
             ps.setString(3, forumAccessRequest.getGroupId());
@@ -3495,7 +5987,7 @@ abstract class JdbcDatabase implements Database<Connection> {
         try {
             String sql = "SELECT NULL FROM groupAccessRequests"
                     + " WHERE pendingGroupId = ? AND contactId = ?";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             ps.setString(1, pendingGroupId);
             ps.setString(2, contactId.getId());
             rs = ps.executeQuery();
@@ -3555,7 +6047,7 @@ abstract class JdbcDatabase implements Database<Connection> {
             String sql =
                     "SELECT COUNT(*) AS total"
                             + " FROM groupAccessRequests WHERE incoming = ?";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             ps.setBoolean(1, isIncoming);
             rs = ps.executeQuery();
             int count = 0;
@@ -3576,7 +6068,7 @@ abstract class JdbcDatabase implements Database<Connection> {
         try {
             String sql = "DELETE FROM groupAccessRequests"
                     + " WHERE pendingGroupId = ? AND contactId = ?";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             ps.setString(1, pendingGroupId);
             ps.setString(2, contactId.getId());
             int affected = ps.executeUpdate();
@@ -3597,7 +6089,7 @@ abstract class JdbcDatabase implements Database<Connection> {
         try {
             String sql = "SELECT NULL FROM groupAccessRequests"
                     + " WHERE pendingGroupId = ?";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             ps.setString(1, pendingGroupId);
             rs = ps.executeQuery();
             boolean found = rs.next();
@@ -3615,22 +6107,27 @@ abstract class JdbcDatabase implements Database<Connection> {
     @Override
     public int countUnreadMessagesInContext(Connection txn, String contextId)
             throws DbException {
+        return countUnreadMessages(txn, "contextId", contextId);
+    }
+
+    @Override
+    public int countUnreadMessagesInGroup(Connection txn, String groupId)
+            throws DbException {
+        return countUnreadMessages(txn, "groupId", groupId);
+    }
+
+    private int countUnreadMessages(Connection txn, String columnName,
+            String id) throws DbException {
         PreparedStatement ps = null;
         ResultSet rs = null;
         try {
-//            String sql = "SELECT state"
-//                    + " FROM messages, incoming"
-//                    + " WHERE contextId = ?";
-            String sql = "SELECT COUNT(*) AS total"
-                    + " FROM messages WHERE contextId = ? AND incoming = ? AND state<>?";
-            ps = txn.prepareStatement(sql);
-            ps.setString(1, contextId);
-            ps.setBoolean(2, true);
-            // state 3 == SEEN
-            ps.setInt(3, 3);
+            String sql = "SELECT COALESCE(SUM(unread), 0) FROM unreadCounts"
+                    + " WHERE " + columnName + " = ?";
+            ps = prepareStatement(txn, sql);
+            ps.setString(1, id);
             rs = ps.executeQuery();
-            int unreadCounter = 0;
-            if (rs.next()) unreadCounter = rs.getInt("total");
+            if (!rs.next()) throw new DbStateException();
+            int unreadCounter = rs.getInt(1);
             rs.close();
             ps.close();
             return unreadCounter;
@@ -3648,7 +6145,7 @@ abstract class JdbcDatabase implements Database<Connection> {
             String sql = "INSERT INTO crypto_keys"
                     + " (privateKey, publicKey)"
                     + " VALUES (?, ?)";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             RSAKeyPair rsaKeyPair = new RSAKeyPair(keyPair);
             ps.setBytes(1, rsaKeyPair.getPrivateKeyBytes());
             ps.setBytes(2, rsaKeyPair.getPublicKeyBytes());
@@ -3669,7 +6166,7 @@ abstract class JdbcDatabase implements Database<Connection> {
             String sql =
                     "SELECT privateKey, publicKey"
                             + " FROM crypto_keys";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             rs = ps.executeQuery();
             if (!rs.next()) throw new DbStateException();
             byte[] privateKeyBytes = rs.getBytes(1);
@@ -3693,7 +6190,7 @@ abstract class JdbcDatabase implements Database<Connection> {
         ResultSet rs = null;
         try {
             String sql = "SELECT NULL FROM crypto_keys";
-            ps = txn.prepareStatement(sql);
+            ps = prepareStatement(txn, sql);
             rs = ps.executeQuery();
             boolean found = rs.next();
             if (rs.next()) throw new DbStateException();
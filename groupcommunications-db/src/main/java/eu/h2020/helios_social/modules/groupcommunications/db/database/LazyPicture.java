@@ -0,0 +1,131 @@
+package eu.h2020.helios_social.modules.groupcommunications.db.database;
+
+import eu.h2020.helios_social.modules.groupcommunications.api.contact.Contact;
+import eu.h2020.helios_social.modules.groupcommunications.api.contact.ContactId;
+import eu.h2020.helios_social.modules.groupcommunications.api.contact.PendingContact;
+import eu.h2020.helios_social.modules.groupcommunications.api.contact.PendingContactType;
+import eu.h2020.helios_social.modules.groupcommunications.api.group.GroupMember;
+import eu.h2020.helios_social.modules.groupcommunications.api.peer.PeerId;
+import eu.h2020.helios_social.modules.groupcommunications_utils.nullsafety.NotNullByDefault;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.security.PublicKey;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import static eu.h2020.helios_social.modules.groupcommunications_utils.util.LogUtils.logException;
+import static java.util.logging.Level.WARNING;
+import static java.util.logging.Logger.getLogger;
+
+/**
+ * A profile picture that is read from the {@link BlobStore} the first time
+ * it's needed, so listing contacts or group members doesn't decrypt every
+ * picture.
+ * <p/>
+ * The picture is read after the transaction that listed it has ended. If
+ * the picture has been deleted in the meantime, it's returned as null, as
+ * if the row had been read after the deletion.
+ */
+@ThreadSafe
+@NotNullByDefault
+class LazyPicture {
+
+	private static final Logger LOG = getLogger(LazyPicture.class.getName());
+
+	private final BlobStore blobStore;
+	private final byte[] ref;
+
+	@GuardedBy("this")
+	@Nullable
+	private byte[] picture = null;
+	@GuardedBy("this")
+	private boolean loaded = false;
+
+	LazyPicture(BlobStore blobStore, byte[] ref) {
+		this.blobStore = blobStore;
+		this.ref = ref;
+	}
+
+	@Nullable
+	synchronized byte[] get() {
+		if (!loaded) {
+			try {
+				picture = blobStore.get(ref);
+			} catch (FileNotFoundException e) {
+				// The picture was deleted after it was listed
+			} catch (IOException e) {
+				logException(LOG, WARNING, e);
+			}
+			loaded = true;
+		}
+		return picture;
+	}
+
+	@Nullable
+	private static byte[] get(@Nullable LazyPicture picture) {
+		return picture == null ? null : picture.get();
+	}
+
+	@NotNullByDefault
+	static class LazyContact extends Contact {
+
+		@Nullable
+		private final LazyPicture picture;
+
+		LazyContact(ContactId id, String alias, @Nullable LazyPicture picture,
+				@Nullable PublicKey publicKey) {
+			super(id, alias, null, publicKey);
+			this.picture = picture;
+		}
+
+		@Override
+		@Nullable
+		public byte[] getProfilePicture() {
+			return get(picture);
+		}
+	}
+
+	@NotNullByDefault
+	static class LazyGroupMember extends GroupMember {
+
+		@Nullable
+		private final LazyPicture picture;
+
+		LazyGroupMember(PeerId peerId, String alias,
+				@Nullable LazyPicture picture, String groupId) {
+			super(peerId, alias, null, groupId);
+			this.picture = picture;
+		}
+
+		@Override
+		@Nullable
+		public byte[] getProfilePic() {
+			return get(picture);
+		}
+	}
+
+	@NotNullByDefault
+	static class LazyPendingContact extends PendingContact {
+
+		@Nullable
+		private final LazyPicture picture;
+
+		LazyPendingContact(ContactId id, String alias,
+				@Nullable LazyPicture picture, PendingContactType type,
+				String message, long timestamp,
+				@Nullable PublicKey publicKey) {
+			super(id, alias, null, type, message, timestamp, publicKey);
+			this.picture = picture;
+		}
+
+		@Override
+		@Nullable
+		public byte[] getProfilePicture() {
+			return get(picture);
+		}
+	}
+}
@@ -0,0 +1,47 @@
+package eu.h2020.helios_social.modules.groupcommunications.db.database;
+
+import eu.h2020.helios_social.modules.groupcommunications_utils.nullsafety.NotNullByDefault;
+
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * A position in the timeline of a group, used for keyset pagination of
+ * message headers. Messages are ordered by timestamp, with ties broken by
+ * message ID.
+ */
+@Immutable
+@NotNullByDefault
+public class MessageCursor {
+
+	/**
+	 * The direction in which to page from a cursor.
+	 */
+	public enum Direction {
+
+		/**
+		 * Messages that sort before the cursor, newest first.
+		 */
+		BEFORE,
+
+		/**
+		 * Messages that sort after the cursor, oldest first.
+		 */
+		AFTER
+	}
+
+	private final long timestamp;
+	private final String messageId;
+
+	public MessageCursor(long timestamp, String messageId) {
+		this.timestamp = timestamp;
+		this.messageId = messageId;
+	}
+
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public String getMessageId() {
+		return messageId;
+	}
+}
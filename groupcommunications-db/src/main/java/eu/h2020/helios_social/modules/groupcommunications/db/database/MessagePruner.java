@@ -0,0 +1,112 @@
+package eu.h2020.helios_social.modules.groupcommunications.db.database;
+
+import eu.h2020.helios_social.modules.groupcommunications.api.exception.DbException;
+import eu.h2020.helios_social.modules.groupcommunications_utils.db.NoSuchGroupException;
+import eu.h2020.helios_social.modules.groupcommunications_utils.db.Transaction;
+import eu.h2020.helios_social.modules.groupcommunications_utils.lifecycle.LifecycleManager.OpenDatabaseHook;
+import eu.h2020.helios_social.modules.groupcommunications_utils.lifecycle.Service;
+import eu.h2020.helios_social.modules.groupcommunications_utils.nullsafety.NotNullByDefault;
+
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import static eu.h2020.helios_social.modules.groupcommunications.db.database.DatabaseConstants.PRUNING_BATCH_SIZE;
+import static eu.h2020.helios_social.modules.groupcommunications.db.database.DatabaseConstants.PRUNING_INTERVAL_MS;
+import static eu.h2020.helios_social.modules.groupcommunications_utils.util.LogUtils.logException;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.logging.Level.INFO;
+import static java.util.logging.Level.WARNING;
+import static java.util.logging.Logger.getLogger;
+
+/**
+ * Periodically removes messages from groups according to their retention
+ * policies. Messages are removed in small batches, each in its own
+ * transaction, so pruning a large group doesn't hold up other transactions.
+ * Pruning starts when the database is opened and stops when the services
+ * are stopped.
+ */
+@ThreadSafe
+@NotNullByDefault
+class MessagePruner implements OpenDatabaseHook, Service {
+
+	private static final Logger LOG =
+			getLogger(MessagePruner.class.getName());
+
+	private final ExtendedDatabaseComponent db;
+	private final Executor dbExecutor;
+	private final ScheduledExecutorService scheduler;
+	private final Object lock = new Object();
+
+	@GuardedBy("lock")
+	@Nullable
+	private ScheduledFuture<?> future = null;
+
+	MessagePruner(ExtendedDatabaseComponent db, Executor dbExecutor,
+			ScheduledExecutorService scheduler) {
+		this.db = db;
+		this.dbExecutor = dbExecutor;
+		this.scheduler = scheduler;
+	}
+
+	@Override
+	public void onDatabaseOpened(Transaction txn) {
+		synchronized (lock) {
+			if (future != null) return;
+			// Run the first pass soon after startup to catch up
+			future = scheduler.scheduleWithFixedDelay(
+					() -> dbExecutor.execute(this::pruneMessages),
+					0, PRUNING_INTERVAL_MS, MILLISECONDS);
+		}
+	}
+
+	@Override
+	public void startService() {
+	}
+
+	@Override
+	public void stopService() {
+		synchronized (lock) {
+			if (future != null) future.cancel(false);
+			future = null;
+		}
+	}
+
+	// Package access for testing
+	void pruneMessages() {
+		try {
+			Map<String, RetentionPolicy> policies =
+					db.transactionWithResult(true, db::getRetentionPolicies);
+			int removed = 0;
+			for (Map.Entry<String, RetentionPolicy> e : policies.entrySet())
+				removed += pruneGroup(e.getKey(), e.getValue());
+			if (removed > 0 && LOG.isLoggable(INFO))
+				LOG.info("Removed " + removed + " expired messages");
+		} catch (DbException e) {
+			logException(LOG, WARNING, e);
+		}
+	}
+
+	private int pruneGroup(String groupId, RetentionPolicy policy)
+			throws DbException {
+		int removed = 0;
+		try {
+			while (true) {
+				int batch = db.transactionWithResult(false, txn ->
+						db.pruneMessages(txn, groupId, policy,
+								PRUNING_BATCH_SIZE));
+				removed += batch;
+				if (batch < PRUNING_BATCH_SIZE) return removed;
+			}
+		} catch (NoSuchGroupException e) {
+			// The group was removed while it was being pruned
+			return removed;
+		}
+	}
+}
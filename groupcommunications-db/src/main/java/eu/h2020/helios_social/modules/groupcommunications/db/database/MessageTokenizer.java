@@ -0,0 +1,68 @@
+package eu.h2020.helios_social.modules.groupcommunications.db.database;
+
+import eu.h2020.helios_social.modules.groupcommunications_utils.nullsafety.NotNullByDefault;
+
+import java.text.Normalizer;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+/**
+ * Splits message text into the terms stored in the full-text index. The
+ * same rules are applied to search queries, so a query term matches a
+ * message term if they are equal after normalisation.
+ * <p/>
+ * Text is split at any character that isn't a letter or digit. Terms are
+ * lower-cased and stripped of accents, so "Cafe" matches "caf&eacute;".
+ */
+@NotNullByDefault
+class MessageTokenizer {
+
+	/**
+	 * Terms shorter than this are not indexed.
+	 */
+	static final int MIN_TERM_LENGTH = 2;
+
+	/**
+	 * Terms longer than this are truncated.
+	 */
+	static final int MAX_TERM_LENGTH = 64;
+
+	/**
+	 * Returns the terms in the given text, mapped to the number of times
+	 * each term occurs, in order of first occurrence.
+	 */
+	static Map<String, Integer> tokenize(@Nullable String text) {
+		Map<String, Integer> terms = new LinkedHashMap<>();
+		if (text == null) return terms;
+		String normalised = Normalizer.normalize(text, Normalizer.Form.NFKD)
+				.toLowerCase(Locale.ROOT);
+		StringBuilder term = new StringBuilder();
+		for (int i = 0; i < normalised.length(); ) {
+			int c = normalised.codePointAt(i);
+			i += Character.charCount(c);
+			if (Character.getType(c) == Character.NON_SPACING_MARK) continue;
+			if (Character.isLetterOrDigit(c)) {
+				term.appendCodePoint(c);
+			} else {
+				addTerm(terms, term);
+			}
+		}
+		addTerm(terms, term);
+		return terms;
+	}
+
+	private static void addTerm(Map<String, Integer> terms,
+			StringBuilder term) {
+		if (term.length() >= MIN_TERM_LENGTH) {
+			if (term.length() > MAX_TERM_LENGTH)
+				term.setLength(MAX_TERM_LENGTH);
+			String t = term.toString();
+			Integer count = terms.get(t);
+			terms.put(t, count == null ? 1 : count + 1);
+		}
+		term.setLength(0);
+	}
+}
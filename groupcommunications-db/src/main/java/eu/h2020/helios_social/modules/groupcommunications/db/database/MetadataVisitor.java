@@ -0,0 +1,20 @@
+package eu.h2020.helios_social.modules.groupcommunications.db.database;
+
+import eu.h2020.helios_social.modules.groupcommunications.api.exception.DbException;
+import eu.h2020.helios_social.modules.groupcommunications_utils.db.Metadata;
+import eu.h2020.helios_social.modules.groupcommunications_utils.nullsafety.NotNullByDefault;
+
+/**
+ * Receives the metadata of a sequence of messages one message at a time.
+ *
+ * @see RowVisitor
+ */
+@NotNullByDefault
+public interface MetadataVisitor {
+
+	/**
+	 * Called with all the metadata of each message. Returns true to continue
+	 * with the next message, or false to stop early.
+	 */
+	boolean visit(String messageId, Metadata metadata) throws DbException;
+}
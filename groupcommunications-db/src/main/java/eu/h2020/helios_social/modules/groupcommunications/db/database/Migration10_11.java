@@ -0,0 +1,61 @@
+package eu.h2020.helios_social.modules.groupcommunications.db.database;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.logging.Logger;
+
+import eu.h2020.helios_social.modules.groupcommunications.api.exception.DbException;
+
+import static eu.h2020.helios_social.modules.groupcommunications.db.database.JdbcUtils.tryToClose;
+import static java.util.logging.Level.WARNING;
+import static java.util.logging.Logger.getLogger;
+
+public class Migration10_11 implements Migration<Connection> {
+
+    private static final Logger LOG = getLogger(Migration10_11.class.getName());
+
+    private final DatabaseTypes dbTypes;
+
+    Migration10_11(DatabaseTypes dbTypes) {
+        this.dbTypes = dbTypes;
+    }
+
+    @Override
+    public int getStartVersion() {
+        return 10;
+    }
+
+    @Override
+    public int getEndVersion() {
+        return 11;
+    }
+
+    @Override
+    public void migrate(Connection txn) throws DbException {
+        Statement s = null;
+        try {
+            s = txn.createStatement();
+            s.execute(dbTypes.replaceTypes("CREATE TABLE unreadCounts"
+                    + " (groupId _STRING NOT NULL,"
+                    + " contextId _STRING NOT NULL,"
+                    + " unread INT NOT NULL,"
+                    + " PRIMARY KEY (groupId, contextId),"
+                    + " FOREIGN KEY (groupId)"
+                    + " REFERENCES groups (groupId)"
+                    + " ON DELETE CASCADE,"
+                    + " FOREIGN KEY (contextId)"
+                    + " REFERENCES contexts (contextId)"
+                    + " ON DELETE CASCADE)"));
+            // Count the unread messages that are already stored
+            s.execute("INSERT INTO unreadCounts (groupId, contextId, unread)"
+                    + " SELECT groupId, contextId, COUNT(*) FROM messages"
+                    + " WHERE incoming = TRUE AND state <> 3"
+                    + " GROUP BY groupId, contextId");
+            s.close();
+        } catch (SQLException e) {
+            tryToClose(s, LOG, WARNING);
+            throw new DbException(e);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package eu.h2020.helios_social.modules.groupcommunications.db.database;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
+import eu.h2020.helios_social.modules.groupcommunications.api.exception.DbException;
+import eu.h2020.helios_social.modules.groupcommunications_utils.db.DbClosedException;
+
+import static eu.h2020.helios_social.modules.groupcommunications.db.database.JdbcUtils.tryToClose;
+import static java.util.logging.Level.WARNING;
+import static java.util.logging.Logger.getLogger;
+
+public class Migration11_12 implements Migration<Connection> {
+
+    private static final Logger LOG = getLogger(Migration11_12.class.getName());
+
+    private final DatabaseTypes dbTypes;
+    @Nullable
+    private final BlobStore blobStore;
+
+    Migration11_12(DatabaseTypes dbTypes, @Nullable BlobStore blobStore) {
+        this.dbTypes = dbTypes;
+        this.blobStore = blobStore;
+    }
+
+    @Override
+    public int getStartVersion() {
+        return 11;
+    }
+
+    @Override
+    public int getEndVersion() {
+        return 12;
+    }
+
+    @Override
+    public void migrate(Connection txn) throws DbException {
+        if (blobStore == null) throw new DbClosedException();
+        List<byte[]> stored = new ArrayList<>();
+        try {
+            // Move the profile pictures out of each table into the blob store
+            movePictures(txn, stored, "identities", "profilePicture", "id");
+            movePictures(txn, stored, "profiles", "profilepic", "contextId");
+            movePictures(txn, stored, "contacts", "profilePicture",
+                    "contactId");
+            movePictures(txn, stored, "groupMembers", "profilePicture",
+                    "peerId", "groupId");
+            movePictures(txn, stored, "pendingContacts", "profilePicture",
+                    "pendingContactId");
+        } finally {
+            // Migrations run while the database is opening, before blobs
+            // can be collected, so the blobs needn't stay pending until
+            // the migration commits
+            for (byte[] ref : stored) blobStore.release(ref);
+        }
+    }
+
+    private void movePictures(Connection txn, List<byte[]> stored,
+            String table, String pictureColumn, String... keyColumns)
+            throws DbException {
+        Statement s = null;
+        ResultSet rs = null;
+        PreparedStatement ps = null;
+        try {
+            s = txn.createStatement();
+            s.execute(dbTypes.replaceTypes("ALTER TABLE " + table
+                    + " ADD COLUMN profilePictureRef _HASH"));
+            StringBuilder where = new StringBuilder();
+            for (String key : keyColumns) {
+                where.append(where.length() == 0 ? " WHERE " : " AND ");
+                where.append(key).append(" = ?");
+            }
+            ps = txn.prepareStatement("UPDATE " + table
+                    + " SET profilePictureRef = ?" + where);
+            StringBuilder select = new StringBuilder("SELECT ");
+            select.append(pictureColumn);
+            for (String key : keyColumns) select.append(", ").append(key);
+            rs = s.executeQuery(select + " FROM " + table
+                    + " WHERE " + pictureColumn + " IS NOT NULL");
+            while (rs.next()) {
+                byte[] ref = blobStore.put(rs.getBytes(1));
+                stored.add(ref);
+                ps.setBytes(1, ref);
+                for (int i = 0; i < keyColumns.length; i++)
+                    ps.setString(i + 2, rs.getString(i + 2));
+                if (ps.executeUpdate() != 1) throw new DbStateException();
+            }
+            rs.close();
+            ps.close();
+            s.execute("ALTER TABLE " + table + " DROP COLUMN "
+                    + pictureColumn);
+            s.close();
+        } catch (SQLException | IOException e) {
+            tryToClose(rs, LOG, WARNING);
+            tryToClose(ps, LOG, WARNING);
+            tryToClose(s, LOG, WARNING);
+            throw new DbException(e);
+        }
+    }
+}
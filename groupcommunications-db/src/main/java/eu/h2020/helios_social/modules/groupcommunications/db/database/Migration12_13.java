@@ -0,0 +1,90 @@
+package eu.h2020.helios_social.modules.groupcommunications.db.database;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import eu.h2020.helios_social.modules.groupcommunications.api.exception.DbException;
+
+import static eu.h2020.helios_social.modules.groupcommunications.db.database.JdbcUtils.tryToClose;
+import static java.util.logging.Level.WARNING;
+import static java.util.logging.Logger.getLogger;
+
+public class Migration12_13 implements Migration<Connection> {
+
+    private static final Logger LOG = getLogger(Migration12_13.class.getName());
+
+    private static final int BATCH_SIZE = 1000;
+
+    private final DatabaseTypes dbTypes;
+
+    Migration12_13(DatabaseTypes dbTypes) {
+        this.dbTypes = dbTypes;
+    }
+
+    @Override
+    public int getStartVersion() {
+        return 12;
+    }
+
+    @Override
+    public int getEndVersion() {
+        return 13;
+    }
+
+    @Override
+    public void migrate(Connection txn) throws DbException {
+        Statement s = null;
+        ResultSet rs = null;
+        PreparedStatement ps = null;
+        try {
+            s = txn.createStatement();
+            s.execute(dbTypes.replaceTypes("CREATE TABLE messageTerms"
+                    + " (term _STRING NOT NULL,"
+                    + " contextId _STRING NOT NULL,"
+                    + " groupId _STRING NOT NULL,"
+                    + " messageId _STRING NOT NULL,"
+                    + " occurrences INT NOT NULL,"
+                    + " PRIMARY KEY (term, contextId, groupId, messageId),"
+                    + " FOREIGN KEY (messageId)"
+                    + " REFERENCES messages (messageId)"
+                    + " ON DELETE CASCADE)"));
+            // Index the text of the messages that are already stored
+            ps = txn.prepareStatement("INSERT INTO messageTerms"
+                    + " (term, contextId, groupId, messageId, occurrences)"
+                    + " VALUES (?, ?, ?, ?, ?)");
+            rs = s.executeQuery("SELECT messageId, groupId, contextId, text"
+                    + " FROM messages WHERE text IS NOT NULL");
+            int batched = 0;
+            while (rs.next()) {
+                Map<String, Integer> terms =
+                        MessageTokenizer.tokenize(rs.getString(4));
+                for (Map.Entry<String, Integer> e : terms.entrySet()) {
+                    ps.setString(1, e.getKey());
+                    ps.setString(2, rs.getString(3));
+                    ps.setString(3, rs.getString(2));
+                    ps.setString(4, rs.getString(1));
+                    ps.setInt(5, e.getValue());
+                    ps.addBatch();
+                    if (++batched == BATCH_SIZE) {
+                        ps.executeBatch();
+                        batched = 0;
+                    }
+                }
+            }
+            if (batched > 0) ps.executeBatch();
+            rs.close();
+            ps.close();
+            s.close();
+        } catch (SQLException e) {
+            tryToClose(rs, LOG, WARNING);
+            tryToClose(ps, LOG, WARNING);
+            tryToClose(s, LOG, WARNING);
+            throw new DbException(e);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package eu.h2020.helios_social.modules.groupcommunications.db.database;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.logging.Logger;
+
+import eu.h2020.helios_social.modules.groupcommunications.api.exception.DbException;
+
+import static eu.h2020.helios_social.modules.groupcommunications.db.database.JdbcUtils.tryToClose;
+import static java.util.logging.Level.WARNING;
+import static java.util.logging.Logger.getLogger;
+
+public class Migration13_14 implements Migration<Connection> {
+
+    private static final Logger LOG = getLogger(Migration13_14.class.getName());
+
+    private final DatabaseTypes dbTypes;
+
+    Migration13_14(DatabaseTypes dbTypes) {
+        this.dbTypes = dbTypes;
+    }
+
+    @Override
+    public int getStartVersion() {
+        return 13;
+    }
+
+    @Override
+    public int getEndVersion() {
+        return 14;
+    }
+
+    @Override
+    public void migrate(Connection txn) throws DbException {
+        Statement s = null;
+        try {
+            s = txn.createStatement();
+            s.execute(dbTypes.replaceTypes("CREATE TABLE postingDocuments"
+                    + " (docNumber _COUNTER,"
+                    + " entity _STRING NOT NULL,"
+                    + " contextId _STRING NOT NULL,"
+                    + " docId _STRING NOT NULL,"
+                    + " PRIMARY KEY (docNumber),"
+                    + " UNIQUE (entity, contextId, docId),"
+                    + " FOREIGN KEY (contextId)"
+                    + " REFERENCES contexts (contextId)"
+                    + " ON DELETE CASCADE)"));
+            s.execute(dbTypes.replaceTypes("CREATE TABLE postingBlocks"
+                    + " (entity _STRING NOT NULL,"
+                    + " contextId _STRING NOT NULL,"
+                    + " term _STRING NOT NULL,"
+                    + " firstDoc INT NOT NULL,"
+                    + " postingCount INT NOT NULL,"
+                    + " postings _BINARY NOT NULL,"
+                    + " PRIMARY KEY (entity, contextId, term, firstDoc),"
+                    + " FOREIGN KEY (contextId)"
+                    + " REFERENCES contexts (contextId)"
+                    + " ON DELETE CASCADE)"));
+            s.close();
+        } catch (SQLException e) {
+            tryToClose(s, LOG, WARNING);
+            throw new DbException(e);
+        }
+    }
+}
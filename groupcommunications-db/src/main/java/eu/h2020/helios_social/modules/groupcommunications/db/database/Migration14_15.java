@@ -0,0 +1,64 @@
+package eu.h2020.helios_social.modules.groupcommunications.db.database;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.logging.Logger;
+
+import eu.h2020.helios_social.modules.groupcommunications.api.exception.DbException;
+
+import static eu.h2020.helios_social.modules.groupcommunications.db.database.JdbcUtils.tryToClose;
+import static java.util.logging.Level.WARNING;
+import static java.util.logging.Logger.getLogger;
+
+public class Migration14_15 implements Migration<Connection> {
+
+    private static final Logger LOG = getLogger(Migration14_15.class.getName());
+
+    private final DatabaseTypes dbTypes;
+
+    Migration14_15(DatabaseTypes dbTypes) {
+        this.dbTypes = dbTypes;
+    }
+
+    @Override
+    public int getStartVersion() {
+        return 14;
+    }
+
+    @Override
+    public int getEndVersion() {
+        return 15;
+    }
+
+    @Override
+    public void migrate(Connection txn) throws DbException {
+        Statement s = null;
+        try {
+            s = txn.createStatement();
+            s.execute(dbTypes.replaceTypes("CREATE TABLE groupRetentionPolicies"
+                    + " (groupId _STRING NOT NULL,"
+                    + " maxAge BIGINT NOT NULL,"
+                    + " maxCount INT NOT NULL,"
+                    + " keepFavourites BOOLEAN NOT NULL,"
+                    + " PRIMARY KEY (groupId),"
+                    + " FOREIGN KEY (groupId)"
+                    + " REFERENCES groups (groupId)"
+                    + " ON DELETE CASCADE)"));
+            s.execute(dbTypes.replaceTypes(
+                    "CREATE TABLE contextRetentionPolicies"
+                    + " (contextId _STRING NOT NULL,"
+                    + " maxAge BIGINT NOT NULL,"
+                    + " maxCount INT NOT NULL,"
+                    + " keepFavourites BOOLEAN NOT NULL,"
+                    + " PRIMARY KEY (contextId),"
+                    + " FOREIGN KEY (contextId)"
+                    + " REFERENCES contexts (contextId)"
+                    + " ON DELETE CASCADE)"));
+            s.close();
+        } catch (SQLException e) {
+            tryToClose(s, LOG, WARNING);
+            throw new DbException(e);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package eu.h2020.helios_social.modules.groupcommunications.db.database;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.logging.Logger;
+
+import eu.h2020.helios_social.modules.groupcommunications.api.exception.DbException;
+
+import static eu.h2020.helios_social.modules.groupcommunications.db.database.JdbcUtils.tryToClose;
+import static java.util.logging.Level.WARNING;
+import static java.util.logging.Logger.getLogger;
+
+public class Migration15_16 implements Migration<Connection> {
+
+    private static final Logger LOG = getLogger(Migration15_16.class.getName());
+
+    private final DatabaseTypes dbTypes;
+
+    Migration15_16(DatabaseTypes dbTypes) {
+        this.dbTypes = dbTypes;
+    }
+
+    @Override
+    public int getStartVersion() {
+        return 15;
+    }
+
+    @Override
+    public int getEndVersion() {
+        return 16;
+    }
+
+    @Override
+    public void migrate(Connection txn) throws DbException {
+        Statement s = null;
+        try {
+            s = txn.createStatement();
+            // Replace the per-message term rows with posting lists, which
+            // are built in the background
+            s.execute("DROP TABLE messageTerms");
+            s.execute(dbTypes.replaceTypes("CREATE TABLE searchDocuments"
+                    + " (docNumber _COUNTER,"
+                    + " messageId _STRING NOT NULL,"
+                    + " PRIMARY KEY (docNumber))"));
+            s.execute(dbTypes.replaceTypes("CREATE TABLE searchTerms"
+                    + " (contextId _STRING NOT NULL SELECTIVITY 1,"
+                    + " term _STRING NOT NULL,"
+                    + " documents INT NOT NULL,"
+                    + " postings _BINARY NOT NULL,"
+                    + " PRIMARY KEY (contextId, term),"
+                    + " FOREIGN KEY (contextId)"
+                    + " REFERENCES contexts (contextId)"
+                    + " ON DELETE CASCADE)"));
+            s.execute(dbTypes.replaceTypes("CREATE TABLE searchContexts"
+                    + " (contextId _STRING NOT NULL,"
+                    + " documents INT NOT NULL,"
+                    + " PRIMARY KEY (contextId),"
+                    + " FOREIGN KEY (contextId)"
+                    + " REFERENCES contexts (contextId)"
+                    + " ON DELETE CASCADE)"));
+            // Stop H2 from planning posting block lookups on the contextId
+            // index while the table is empty
+            s.execute("ALTER TABLE postingBlocks"
+                    + " ALTER COLUMN contextId SELECTIVITY 1");
+            // Queue the messages that are already stored for indexing,
+            // oldest first
+            s.execute("INSERT INTO searchDocuments (messageId)"
+                    + " SELECT messageId FROM messages WHERE text IS NOT NULL"
+                    + " ORDER BY timestamp, messageId");
+            s.close();
+        } catch (SQLException e) {
+            tryToClose(s, LOG, WARNING);
+            throw new DbException(e);
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package eu.h2020.helios_social.modules.groupcommunications.db.database;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.logging.Logger;
+
+import eu.h2020.helios_social.modules.groupcommunications.api.exception.DbException;
+
+import static eu.h2020.helios_social.modules.groupcommunications.db.database.JdbcUtils.tryToClose;
+import static java.util.logging.Level.WARNING;
+import static java.util.logging.Logger.getLogger;
+
+public class Migration9_10 implements Migration<Connection> {
+
+    private static final Logger LOG = getLogger(Migration9_10.class.getName());
+
+    Migration9_10() {
+
+    }
+
+    @Override
+    public int getStartVersion() {
+        return 9;
+    }
+
+    @Override
+    public int getEndVersion() {
+        return 10;
+    }
+
+    @Override
+    public void migrate(Connection txn) throws DbException {
+        Statement s = null;
+        try {
+            s = txn.createStatement();
+            s.execute("CREATE INDEX IF NOT EXISTS messagesByGroupIdTimestamp"
+                    + " ON messages (groupId, timestamp, messageId)");
+            s.execute("CREATE INDEX IF NOT EXISTS"
+                    + " messagesByContextIdIncomingState"
+                    + " ON messages (contextId, incoming, state)");
+            s.execute("CREATE INDEX IF NOT EXISTS messagesByContextIdFavourite"
+                    + " ON messages (contextId, favourite)");
+            s.execute("CREATE INDEX IF NOT EXISTS groupsByContextIdType"
+                    + " ON groups (contextId, type)");
+            s.execute("CREATE INDEX IF NOT EXISTS groupsByContactIdContextId"
+                    + " ON groups (contactId, contextId)");
+            s.execute("CREATE INDEX IF NOT EXISTS eventsByContextId"
+                    + " ON events (contextId)");
+            s.execute("CREATE INDEX IF NOT EXISTS messageMetadataByGroupId"
+                    + " ON messageMetadata (groupId)");
+            s.close();
+        } catch (SQLException e) {
+            tryToClose(s, LOG, WARNING);
+            throw new DbException(e);
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package eu.h2020.helios_social.modules.groupcommunications.db.database;
+
+import eu.h2020.helios_social.modules.groupcommunications.api.messaging.Message;
+import eu.h2020.helios_social.modules.groupcommunications.api.messaging.MessageState;
+import eu.h2020.helios_social.modules.groupcommunications_utils.nullsafety.NotNullByDefault;
+
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * A message to be stored by
+ * {@link ExtendedDatabaseComponent#addMessages}, together with the
+ * attributes that are stored alongside it.
+ */
+@Immutable
+@NotNullByDefault
+public class NewMessage {
+
+	private final Message message;
+	private final MessageState state;
+	private final String contextId;
+	private final boolean incoming;
+
+	public NewMessage(Message message, MessageState state, String contextId,
+			boolean incoming) {
+		this.message = message;
+		this.state = state;
+		this.contextId = contextId;
+		this.incoming = incoming;
+	}
+
+	public Message getMessage() {
+		return message;
+	}
+
+	public MessageState getState() {
+		return state;
+	}
+
+	public String getContextId() {
+		return contextId;
+	}
+
+	public boolean isIncoming() {
+		return incoming;
+	}
+}
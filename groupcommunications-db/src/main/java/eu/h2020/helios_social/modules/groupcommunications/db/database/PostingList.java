@@ -0,0 +1,137 @@
+package eu.h2020.helios_social.modules.groupcommunications.db.database;
+
+import eu.h2020.helios_social.modules.groupcommunications_utils.nullsafety.NotNullByDefault;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Encodes and decodes blocks of a posting list: a sorted list of distinct,
+ * non-negative document numbers.
+ * <p/>
+ * A block is encoded as the number of postings followed by the postings
+ * themselves. The first posting is stored as is and each later posting as
+ * its difference from the one before, so postings that are close together
+ * take a single byte. All numbers are stored as variable-length integers,
+ * seven bits per byte, least significant group first, with the high bit
+ * set on every byte except the last.
+ */
+@NotNullByDefault
+class PostingList {
+
+	/**
+	 * Returns the encoding of the first {@code length} postings in the given
+	 * array, which must be sorted and distinct.
+	 */
+	static byte[] encode(int[] postings, int length) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(length + 5);
+		writeVarInt(out, length);
+		int previous = 0;
+		for (int i = 0; i < length; i++) {
+			int posting = postings[i];
+			if (posting < previous || (i > 0 && posting == previous))
+				throw new IllegalArgumentException();
+			writeVarInt(out, posting - previous);
+			previous = posting;
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Returns the postings in the given encoded block.
+	 */
+	static int[] decode(byte[] encoded) {
+		int[] offset = new int[1];
+		int length = readVarInt(encoded, offset);
+		if (length < 0) throw new IllegalArgumentException();
+		int[] postings = new int[length];
+		int previous = 0;
+		for (int i = 0; i < length; i++) {
+			previous += readVarInt(encoded, offset);
+			postings[i] = previous;
+		}
+		if (offset[0] != encoded.length) throw new IllegalArgumentException();
+		return postings;
+	}
+
+	/**
+	 * Returns the postings that are in both of the given sorted arrays.
+	 */
+	static int[] intersect(int[] a, int[] b) {
+		int[] result = new int[Math.min(a.length, b.length)];
+		int i = 0, j = 0, n = 0;
+		while (i < a.length && j < b.length) {
+			if (a[i] < b[j]) i++;
+			else if (a[i] > b[j]) j++;
+			else {
+				result[n++] = a[i];
+				i++;
+				j++;
+			}
+		}
+		return trim(result, n);
+	}
+
+	/**
+	 * Returns the postings that are in either of the given sorted arrays.
+	 */
+	static int[] union(int[] a, int[] b) {
+		int[] result = new int[a.length + b.length];
+		int i = 0, j = 0, n = 0;
+		while (i < a.length || j < b.length) {
+			if (j == b.length || (i < a.length && a[i] < b[j])) {
+				result[n++] = a[i++];
+			} else if (i == a.length || b[j] < a[i]) {
+				result[n++] = b[j++];
+			} else {
+				result[n++] = a[i];
+				i++;
+				j++;
+			}
+		}
+		return trim(result, n);
+	}
+
+	/**
+	 * Returns the postings in the first sorted array that are not in the
+	 * second.
+	 */
+	static int[] difference(int[] a, int[] b) {
+		int[] result = new int[a.length];
+		int i = 0, j = 0, n = 0;
+		while (i < a.length) {
+			if (j == b.length || a[i] < b[j]) result[n++] = a[i++];
+			else if (a[i] > b[j]) j++;
+			else {
+				i++;
+				j++;
+			}
+		}
+		return trim(result, n);
+	}
+
+	private static int[] trim(int[] postings, int length) {
+		if (length == postings.length) return postings;
+		int[] trimmed = new int[length];
+		System.arraycopy(postings, 0, trimmed, 0, length);
+		return trimmed;
+	}
+
+	private static void writeVarInt(ByteArrayOutputStream out, int i) {
+		while ((i & ~0x7F) != 0) {
+			out.write((i & 0x7F) | 0x80);
+			i >>>= 7;
+		}
+		out.write(i);
+	}
+
+	private static int readVarInt(byte[] in, int[] offset) {
+		int value = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			if (offset[0] == in.length) throw new IllegalArgumentException();
+			int b = in[offset[0]++] & 0xFF;
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) return value;
+		}
+		throw new IllegalArgumentException();
+	}
+}
@@ -0,0 +1,211 @@
+package eu.h2020.helios_social.modules.groupcommunications.db.database;
+
+import eu.h2020.helios_social.modules.groupcommunications.api.context.DBContext;
+import eu.h2020.helios_social.modules.groupcommunications.api.group.Group;
+import eu.h2020.helios_social.modules.groupcommunications_utils.nullsafety.NotNullByDefault;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.NotThreadSafe;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * An in-memory cache of contexts and groups, which are read far more often
+ * than they change.
+ * <p/>
+ * The cache is used through a {@link Scope} belonging to each transaction.
+ * Entries are only filled by read-only transactions, so they always hold
+ * committed state. Changes made by a transaction are recorded in its scope:
+ * the transaction reads the changed entries from the database, and the
+ * entries are invalidated when the scope is committed, after the
+ * transaction commits and before its commit actions run.
+ * <p/>
+ * Each invalidation starts a new generation. A transaction that started
+ * before the latest invalidation may have read stale values, so it doesn't
+ * fill the cache.
+ */
+@ThreadSafe
+@NotNullByDefault
+class ReadCache {
+
+	private final Object lock = new Object();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	private final Map<String, DBContext> contexts = new ConcurrentHashMap<>();
+	private final Map<String, Integer> contextColors =
+			new ConcurrentHashMap<>();
+	private final Map<String, Group> groups = new ConcurrentHashMap<>();
+	private final Map<String, String> groupContexts =
+			new ConcurrentHashMap<>();
+
+	@Nullable
+	private volatile List<DBContext> allContexts = null;
+
+	@GuardedBy("lock")
+	private long generation = 0;
+
+	/**
+	 * Returns a new scope for a transaction that is about to start.
+	 */
+	Scope newScope(boolean readOnly) {
+		synchronized (lock) {
+			return new Scope(generation, readOnly);
+		}
+	}
+
+	long getHits() {
+		return hits.get();
+	}
+
+	long getMisses() {
+		return misses.get();
+	}
+
+	@Nullable
+	private <V> V get(Map<String, V> map, String key) {
+		V value = map.get(key);
+		if (value == null) misses.incrementAndGet();
+		else hits.incrementAndGet();
+		return value;
+	}
+
+	private <V> void put(long scopeGeneration, Map<String, V> map, String key,
+			V value) {
+		synchronized (lock) {
+			if (scopeGeneration == generation) map.put(key, value);
+		}
+	}
+
+	private void invalidate(Scope scope) {
+		synchronized (lock) {
+			generation++;
+			if (!scope.contextIds.isEmpty()) {
+				allContexts = null;
+				for (String contextId : scope.contextIds) {
+					contexts.remove(contextId);
+					contextColors.remove(contextId);
+				}
+			}
+			if (scope.allGroups) {
+				groups.clear();
+				groupContexts.clear();
+			} else {
+				for (String groupId : scope.groupIds) {
+					groups.remove(groupId);
+					groupContexts.remove(groupId);
+				}
+			}
+		}
+	}
+
+	/**
+	 * A transaction's view of the cache, which records the contexts and
+	 * groups the transaction changes.
+	 */
+	@NotThreadSafe
+	class Scope {
+
+		private final long generation;
+		private final boolean readOnly;
+		private final Set<String> contextIds = new HashSet<>();
+		private final Set<String> groupIds = new HashSet<>();
+
+		private boolean allGroups = false;
+
+		private Scope(long generation, boolean readOnly) {
+			this.generation = generation;
+			this.readOnly = readOnly;
+		}
+
+		boolean hasChanges() {
+			return allGroups || !contextIds.isEmpty() || !groupIds.isEmpty();
+		}
+
+		void contextChanged(String contextId) {
+			contextIds.add(contextId);
+		}
+
+		void groupChanged(String groupId) {
+			groupIds.add(groupId);
+		}
+
+		void allGroupsChanged() {
+			allGroups = true;
+		}
+
+		@Nullable
+		Collection<DBContext> getContexts() {
+			if (!contextIds.isEmpty()) return null;
+			List<DBContext> cached = allContexts;
+			if (cached == null) misses.incrementAndGet();
+			else hits.incrementAndGet();
+			return cached == null ? null : new ArrayList<>(cached);
+		}
+
+		void putContexts(Collection<DBContext> contexts) {
+			if (!readOnly) return;
+			synchronized (lock) {
+				if (generation == ReadCache.this.generation)
+					allContexts = new ArrayList<>(contexts);
+			}
+		}
+
+		@Nullable
+		DBContext getContext(String contextId) {
+			if (contextIds.contains(contextId)) return null;
+			return get(contexts, contextId);
+		}
+
+		void putContext(DBContext context) {
+			if (readOnly) put(generation, contexts, context.getId(), context);
+		}
+
+		@Nullable
+		Integer getContextColor(String contextId) {
+			if (contextIds.contains(contextId)) return null;
+			return get(contextColors, contextId);
+		}
+
+		void putContextColor(String contextId, Integer color) {
+			if (readOnly) put(generation, contextColors, contextId, color);
+		}
+
+		@Nullable
+		Group getGroup(String groupId) {
+			if (allGroups || groupIds.contains(groupId)) return null;
+			return get(groups, groupId);
+		}
+
+		void putGroup(Group group) {
+			if (readOnly) put(generation, groups, group.getId(), group);
+		}
+
+		@Nullable
+		String getGroupContext(String groupId) {
+			if (allGroups || groupIds.contains(groupId)) return null;
+			return get(groupContexts, groupId);
+		}
+
+		void putGroupContext(String groupId, String contextId) {
+			if (readOnly) put(generation, groupContexts, groupId, contextId);
+		}
+
+		/**
+		 * Invalidates the entries changed by the scope's transaction, which
+		 * has committed.
+		 */
+		void commit() {
+			if (hasChanges()) invalidate(this);
+		}
+	}
+}
@@ -0,0 +1,67 @@
+package eu.h2020.helios_social.modules.groupcommunications.db.database;
+
+import eu.h2020.helios_social.modules.groupcommunications_utils.nullsafety.NotNullByDefault;
+
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * Limits how long, and how many, messages are kept in a group. A policy can
+ * be set for a group or for a context, in which case it applies to each
+ * group in the context that doesn't have its own policy.
+ */
+@Immutable
+@NotNullByDefault
+public class RetentionPolicy {
+
+	/**
+	 * A value for either limit that means the messages aren't limited in
+	 * that way.
+	 */
+	public static final int NO_LIMIT = 0;
+
+	private final long maxAgeMs;
+	private final int maxCount;
+	private final boolean keepFavourites;
+
+	/**
+	 * @param maxAgeMs messages older than this are removed, or
+	 * {@link #NO_LIMIT}
+	 * @param maxCount only this many of the newest messages are kept, or
+	 * {@link #NO_LIMIT}
+	 * @param keepFavourites true if favourite messages should never be
+	 * removed. Favourites then don't count towards {@code maxCount}
+	 */
+	public RetentionPolicy(long maxAgeMs, int maxCount,
+			boolean keepFavourites) {
+		if (maxAgeMs < 0 || maxCount < 0) throw new IllegalArgumentException();
+		this.maxAgeMs = maxAgeMs;
+		this.maxCount = maxCount;
+		this.keepFavourites = keepFavourites;
+	}
+
+	public long getMaxAgeMs() {
+		return maxAgeMs;
+	}
+
+	public int getMaxCount() {
+		return maxCount;
+	}
+
+	public boolean isKeepFavourites() {
+		return keepFavourites;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof RetentionPolicy)) return false;
+		RetentionPolicy p = (RetentionPolicy) o;
+		return maxAgeMs == p.maxAgeMs && maxCount == p.maxCount
+				&& keepFavourites == p.keepFavourites;
+	}
+
+	@Override
+	public int hashCode() {
+		return (int) (maxAgeMs ^ (maxAgeMs >>> 32)) * 31 + maxCount * 2
+				+ (keepFavourites ? 1 : 0);
+	}
+}
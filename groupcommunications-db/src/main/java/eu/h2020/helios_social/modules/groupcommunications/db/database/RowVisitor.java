@@ -0,0 +1,22 @@
+package eu.h2020.helios_social.modules.groupcommunications.db.database;
+
+import eu.h2020.helios_social.modules.groupcommunications.api.exception.DbException;
+import eu.h2020.helios_social.modules.groupcommunications_utils.nullsafety.NotNullByDefault;
+
+/**
+ * Receives the rows of a query one at a time as they are read from the
+ * database, so large result sets can be processed without holding them in
+ * memory.
+ * <p/>
+ * The visitor is called inside the transaction that runs the query and may
+ * use that transaction, but must not keep references to it.
+ */
+@NotNullByDefault
+public interface RowVisitor<V> {
+
+	/**
+	 * Called for each row. Returns true to continue with the next row, or
+	 * false to stop early.
+	 */
+	boolean visit(V row) throws DbException;
+}
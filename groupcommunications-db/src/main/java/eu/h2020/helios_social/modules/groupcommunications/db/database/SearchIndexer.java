@@ -0,0 +1,93 @@
+package eu.h2020.helios_social.modules.groupcommunications.db.database;
+
+import eu.h2020.helios_social.modules.groupcommunications.api.exception.DbException;
+import eu.h2020.helios_social.modules.groupcommunications_utils.db.Transaction;
+import eu.h2020.helios_social.modules.groupcommunications_utils.lifecycle.LifecycleManager.OpenDatabaseHook;
+import eu.h2020.helios_social.modules.groupcommunications_utils.lifecycle.Service;
+import eu.h2020.helios_social.modules.groupcommunications_utils.nullsafety.NotNullByDefault;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import static eu.h2020.helios_social.modules.groupcommunications.db.database.DatabaseConstants.SEARCH_INDEXING_BATCH_SIZE;
+import static eu.h2020.helios_social.modules.groupcommunications.db.database.DatabaseConstants.SEARCH_INDEXING_INTERVAL_MS;
+import static eu.h2020.helios_social.modules.groupcommunications_utils.util.LogUtils.logException;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.logging.Level.INFO;
+import static java.util.logging.Level.WARNING;
+import static java.util.logging.Logger.getLogger;
+
+/**
+ * Periodically adds newly added messages to the full-text index, so adding
+ * messages doesn't wait for their text to be indexed. Messages are indexed
+ * in batches, each in its own transaction. Indexing starts when the
+ * database is opened and stops when the services are stopped.
+ */
+@ThreadSafe
+@NotNullByDefault
+class SearchIndexer implements OpenDatabaseHook, Service {
+
+	private static final Logger LOG =
+			getLogger(SearchIndexer.class.getName());
+
+	private final ExtendedDatabaseComponent db;
+	private final Executor dbExecutor;
+	private final ScheduledExecutorService scheduler;
+	private final Object lock = new Object();
+
+	@GuardedBy("lock")
+	@Nullable
+	private ScheduledFuture<?> future = null;
+
+	SearchIndexer(ExtendedDatabaseComponent db, Executor dbExecutor,
+			ScheduledExecutorService scheduler) {
+		this.db = db;
+		this.dbExecutor = dbExecutor;
+		this.scheduler = scheduler;
+	}
+
+	@Override
+	public void onDatabaseOpened(Transaction txn) {
+		synchronized (lock) {
+			if (future != null) return;
+			// Run the first pass soon after startup to catch up
+			future = scheduler.scheduleWithFixedDelay(
+					() -> dbExecutor.execute(this::indexMessages),
+					0, SEARCH_INDEXING_INTERVAL_MS, MILLISECONDS);
+		}
+	}
+
+	@Override
+	public void startService() {
+	}
+
+	@Override
+	public void stopService() {
+		synchronized (lock) {
+			if (future != null) future.cancel(false);
+			future = null;
+		}
+	}
+
+	private void indexMessages() {
+		try {
+			int indexed = 0;
+			while (true) {
+				int batch = db.transactionWithResult(false, txn ->
+						db.indexMessages(txn, SEARCH_INDEXING_BATCH_SIZE));
+				indexed += batch;
+				if (batch < SEARCH_INDEXING_BATCH_SIZE) break;
+			}
+			if (indexed > 0 && LOG.isLoggable(INFO))
+				LOG.info("Indexed " + indexed + " messages");
+		} catch (DbException e) {
+			logException(LOG, WARNING, e);
+		}
+	}
+}
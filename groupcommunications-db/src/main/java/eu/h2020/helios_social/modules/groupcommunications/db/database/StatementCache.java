@@ -0,0 +1,119 @@
+package eu.h2020.helios_social.modules.groupcommunications.db.database;
+
+import eu.h2020.helios_social.modules.groupcommunications_utils.nullsafety.NotNullByDefault;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.annotation.concurrent.NotThreadSafe;
+
+import static eu.h2020.helios_social.modules.groupcommunications.db.database.JdbcUtils.tryToClose;
+import static java.util.logging.Level.WARNING;
+import static java.util.logging.Logger.getLogger;
+
+/**
+ * A bounded, least-recently-used cache of {@link PreparedStatement prepared
+ * statements} belonging to a single pooled {@link Connection}, keyed by SQL.
+ * <p/>
+ * Statements handed out by the cache are wrapped in a
+ * {@link CachedPreparedStatement}, so that calling
+ * {@link PreparedStatement#close()} clears their parameters and batch and
+ * returns them to the cache instead of closing them. The underlying
+ * statements are closed when they are evicted or when {@link #close()} is
+ * called.
+ * <p/>
+ * Like the connection it belongs to, the cache must only be used by one
+ * transaction at a time.
+ */
+@NotThreadSafe
+@NotNullByDefault
+class StatementCache {
+
+	private static final Logger LOG =
+			getLogger(StatementCache.class.getName());
+
+	private final Connection connection;
+	private final AtomicLong hits, misses;
+	private final Map<String, PreparedStatement> statements;
+	private final Set<PreparedStatement> inUse = new HashSet<>();
+
+	StatementCache(Connection connection, int maxSize, AtomicLong hits,
+			AtomicLong misses) {
+		this.connection = connection;
+		this.hits = hits;
+		this.misses = misses;
+		statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f,
+				true) {
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<String, PreparedStatement> eldest) {
+				if (size() <= maxSize) return false;
+				PreparedStatement ps = eldest.getValue();
+				// A statement that's in use is closed when it's returned
+				if (!inUse.contains(ps)) tryToClose(ps, LOG, WARNING);
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Returns a prepared statement for the given SQL, reusing a cached
+	 * statement if one is available.
+	 */
+	PreparedStatement prepareStatement(String sql) throws SQLException {
+		PreparedStatement ps = statements.get(sql);
+		if (ps == null) {
+			misses.incrementAndGet();
+			ps = connection.prepareStatement(sql);
+			statements.put(sql, ps);
+		} else if (inUse.contains(ps)) {
+			// The same statement is needed twice at once - don't cache it
+			misses.incrementAndGet();
+			return connection.prepareStatement(sql);
+		} else {
+			hits.incrementAndGet();
+		}
+		inUse.add(ps);
+		return new CachedPreparedStatement(this, sql, ps);
+	}
+
+	/**
+	 * Closes all cached statements.
+	 */
+	void close() {
+		Iterator<PreparedStatement> it = statements.values().iterator();
+		while (it.hasNext()) {
+			tryToClose(it.next(), LOG, WARNING);
+			it.remove();
+		}
+		inUse.clear();
+	}
+
+	/**
+	 * Returns a statement handed out by {@link #prepareStatement(String)}
+	 * to the cache.
+	 */
+	void release(String sql, PreparedStatement ps) {
+		inUse.remove(ps);
+		if (statements.get(sql) != ps) {
+			// The statement was evicted while it was in use
+			tryToClose(ps, LOG, WARNING);
+			return;
+		}
+		try {
+			ps.clearParameters();
+			ps.clearBatch();
+		} catch (SQLException e) {
+			statements.remove(sql);
+			tryToClose(ps, LOG, WARNING);
+		}
+	}
+}
@@ -0,0 +1,18 @@
+package eu.h2020.helios_social.modules.groupcommunications.db.database;
+
+import eu.h2020.helios_social.modules.groupcommunications_utils.db.DatabaseConfig;
+import eu.h2020.helios_social.modules.groupcommunications_utils.nullsafety.NotNullByDefault;
+
+import javax.annotation.Nullable;
+
+/**
+ * A {@link DatabaseConfig} that chooses how the database is tuned. If the
+ * config doesn't implement this interface, or returns null, a profile is
+ * chosen from the maximum heap size.
+ */
+@NotNullByDefault
+public interface TunableDatabaseConfig extends DatabaseConfig {
+
+	@Nullable
+	TuningProfile getTuningProfile();
+}
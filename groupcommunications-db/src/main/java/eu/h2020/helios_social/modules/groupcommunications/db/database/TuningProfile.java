@@ -0,0 +1,67 @@
+package eu.h2020.helios_social.modules.groupcommunications.db.database;
+
+/**
+ * Named H2 page cache sizes for devices with different amounts of memory.
+ * The sizes come from {@code TuningProfilePerformanceTest}: with 50,000
+ * messages, read latency depends mostly on how much of the database fits in
+ * the cache.
+ *
+ * @see TunableDatabaseConfig
+ */
+public enum TuningProfile {
+
+	/**
+	 * For processes with a small heap. Half of H2's default page cache: the
+	 * open database used about as much heap as with a quarter of the default,
+	 * and reads were several times faster.
+	 */
+	LOW_MEMORY(8 * 1024),
+
+	/**
+	 * H2's default page cache, which is how the database was configured
+	 * before profiles were introduced.
+	 */
+	BALANCED(16 * 1024),
+
+	/**
+	 * For processes with a large heap. Four times H2's default page cache,
+	 * which used about 17 MB more heap than {@link #BALANCED} and made reads
+	 * about three times faster.
+	 */
+	THROUGHPUT(64 * 1024);
+
+	/**
+	 * Heaps smaller than this use {@link #LOW_MEMORY}.
+	 */
+	private static final long LOW_MEMORY_MAX_HEAP = 128L * 1024 * 1024;
+
+	/**
+	 * Heaps smaller than this, but not smaller than
+	 * {@link #LOW_MEMORY_MAX_HEAP}, use {@link #BALANCED}. Larger heaps use
+	 * {@link #THROUGHPUT}.
+	 */
+	private static final long BALANCED_MAX_HEAP = 1024L * 1024 * 1024;
+
+	private final int cacheSizeKb;
+
+	TuningProfile(int cacheSizeKb) {
+		this.cacheSizeKb = cacheSizeKb;
+	}
+
+	/**
+	 * Returns the size of H2's page cache in KB.
+	 */
+	int getCacheSizeKb() {
+		return cacheSizeKb;
+	}
+
+	/**
+	 * Returns the profile for a process with the given maximum heap size,
+	 * as reported by {@link Runtime#maxMemory()}.
+	 */
+	static TuningProfile forMaxMemory(long maxMemory) {
+		if (maxMemory < LOW_MEMORY_MAX_HEAP) return LOW_MEMORY;
+		if (maxMemory < BALANCED_MAX_HEAP) return BALANCED;
+		return THROUGHPUT;
+	}
+}
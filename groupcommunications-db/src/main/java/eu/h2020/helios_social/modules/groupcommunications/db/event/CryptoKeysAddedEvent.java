@@ -0,0 +1,14 @@
+package eu.h2020.helios_social.modules.groupcommunications.db.event;
+
+import eu.h2020.helios_social.modules.groupcommunications_utils.nullsafety.NotNullByDefault;
+import eu.h2020.helios_social.modules.groupcommunications_utils.sync.event.Event;
+
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * An event that is broadcast when the user's crypto key pair is stored.
+ */
+@Immutable
+@NotNullByDefault
+public class CryptoKeysAddedEvent extends Event {
+}
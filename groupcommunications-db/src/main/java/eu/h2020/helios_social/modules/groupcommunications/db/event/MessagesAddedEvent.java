@@ -0,0 +1,36 @@
+package eu.h2020.helios_social.modules.groupcommunications.db.event;
+
+import eu.h2020.helios_social.modules.groupcommunications_utils.nullsafety.NotNullByDefault;
+import eu.h2020.helios_social.modules.groupcommunications_utils.sync.event.Event;
+import eu.h2020.helios_social.modules.groupcommunications_utils.sync.event.MessageAddedEvent;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * An event that is broadcast when a batch of messages is added to the
+ * database. It's broadcast after the {@link MessageAddedEvent} for each
+ * message in the batch, so listeners that only need to react once per batch
+ * can handle this event and ignore the others.
+ */
+@Immutable
+@NotNullByDefault
+public class MessagesAddedEvent extends Event {
+
+	private final List<MessageAddedEvent> events;
+
+	public MessagesAddedEvent(List<MessageAddedEvent> events) {
+		this.events = Collections.unmodifiableList(new ArrayList<>(events));
+	}
+
+	/**
+	 * Returns an event for each message that was added, in the order the
+	 * messages were added.
+	 */
+	public List<MessageAddedEvent> getEvents() {
+		return events;
+	}
+}
@@ -0,0 +1,34 @@
+package eu.h2020.helios_social.modules.groupcommunications.db.event;
+
+import eu.h2020.helios_social.modules.groupcommunications_utils.nullsafety.NotNullByDefault;
+import eu.h2020.helios_social.modules.groupcommunications_utils.sync.event.Event;
+
+import java.util.Collection;
+
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * An event that is broadcast when messages are removed from a group by its
+ * retention policy.
+ */
+@Immutable
+@NotNullByDefault
+public class MessagesRemovedEvent extends Event {
+
+	private final String groupId;
+	private final Collection<String> messageIds;
+
+	public MessagesRemovedEvent(String groupId,
+			Collection<String> messageIds) {
+		this.groupId = groupId;
+		this.messageIds = messageIds;
+	}
+
+	public String getGroupId() {
+		return groupId;
+	}
+
+	public Collection<String> getMessageIds() {
+		return messageIds;
+	}
+}
@@ -0,0 +1,29 @@
+package eu.h2020.helios_social.modules.groupcommunications.db.event;
+
+import eu.h2020.helios_social.modules.groupcommunications_utils.nullsafety.NotNullByDefault;
+import eu.h2020.helios_social.modules.groupcommunications_utils.settings.Settings;
+import eu.h2020.helios_social.modules.groupcommunications_utils.settings.event.SettingsUpdatedEvent;
+
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * A {@link SettingsUpdatedEvent} that also carries the version of the
+ * change, so listeners that receive events out of order can tell which
+ * settings are newer. Versions increase with each committed change.
+ */
+@Immutable
+@NotNullByDefault
+public class VersionedSettingsUpdatedEvent extends SettingsUpdatedEvent {
+
+	private final long version;
+
+	public VersionedSettingsUpdatedEvent(String namespace, Settings settings,
+			long version) {
+		super(namespace, settings);
+		this.version = version;
+	}
+
+	public long getVersion() {
+		return version;
+	}
+}
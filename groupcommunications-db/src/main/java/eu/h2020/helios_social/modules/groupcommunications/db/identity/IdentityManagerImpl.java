@@ -2,6 +2,7 @@ package eu.h2020.helios_social.modules.groupcommunications.db.identity;
 
 import java.security.KeyPair;
 import eu.h2020.helios_social.modules.groupcommunications.db.crypto.security.HeliosCryptoManager;
+import eu.h2020.helios_social.modules.groupcommunications.db.event.CryptoKeysAddedEvent;
 import eu.h2020.helios_social.modules.groupcommunications_utils.crypto.CryptoComponent;
 import eu.h2020.helios_social.modules.groupcommunications_utils.db.DatabaseComponent;
 import eu.h2020.helios_social.modules.groupcommunications.api.context.ContextType;
@@ -12,6 +13,8 @@ import eu.h2020.helios_social.modules.groupcommunications_utils.identity.Identit
 import eu.h2020.helios_social.modules.groupcommunications_utils.identity.IdentityManager;
 import eu.h2020.helios_social.modules.groupcommunications_utils.lifecycle.LifecycleManager;
 import eu.h2020.helios_social.modules.groupcommunications_utils.nullsafety.NotNullByDefault;
+import eu.h2020.helios_social.modules.groupcommunications_utils.sync.event.Event;
+import eu.h2020.helios_social.modules.groupcommunications_utils.sync.event.EventListener;
 import eu.h2020.helios_social.modules.groupcommunications_utils.system.Clock;
 
 
@@ -20,6 +23,7 @@ import java.security.PublicKey;
 import java.util.logging.Logger;
 
 import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
 import javax.annotation.concurrent.ThreadSafe;
 import javax.inject.Inject;
 
@@ -31,7 +35,7 @@ import static eu.h2020.helios_social.modules.groupcommunications_utils.util.LogU
 @ThreadSafe
 @NotNullByDefault
 class IdentityManagerImpl implements IdentityManager,
-		LifecycleManager.OpenDatabaseHook {
+		LifecycleManager.OpenDatabaseHook, EventListener {
 
 	private static final Logger LOG =
 			getLogger(IdentityManagerImpl.class.getName());
@@ -55,6 +59,25 @@ class IdentityManagerImpl implements IdentityManager,
 
 	private volatile boolean shouldStoreIdentity = false;
 
+	private final Object keyPairLock = new Object();
+
+	/**
+	 * The user's crypto key pair, or null if it hasn't been loaded since
+	 * the stored key pair last changed. It's only set by the commit action
+	 * of the transaction that read or stored it, so it never holds a key
+	 * pair that was rolled back, and it's cleared when a
+	 * {@link CryptoKeysAddedEvent} is received.
+	 */
+	@Nullable
+	private volatile KeyPair cachedKeyPair = null;
+
+	/**
+	 * Incremented whenever the stored key pair changes, so a key pair read
+	 * before the change isn't cached after it.
+	 */
+	@GuardedBy("keyPairLock")
+	private long keyPairVersion = 0;
+
 	@Inject
 	IdentityManagerImpl(DatabaseComponent db, CryptoComponent crypto,
 			Clock clock) {
@@ -83,8 +106,14 @@ class IdentityManagerImpl implements IdentityManager,
 	public void onDatabaseOpened(Transaction txn) throws DbException {
 		Identity cached = getCachedIdentity(txn);
 		HeliosCryptoManager manager = HeliosCryptoManager.getInstance();
-		if (!db.containsCryptoKeys(txn))
-			db.addCryptoKeys(txn,manager.generateRSAKeyPair());
+		long version = getKeyPairVersion();
+		if (db.containsCryptoKeys(txn)) {
+			cacheKeyPairOnCommit(txn, db.getCryptoKeys(txn), version);
+		} else {
+			// Storing the key pair broadcasts an event that changes the
+			// version, so the key pair is loaded again when it's first used
+			db.addCryptoKeys(txn, manager.generateRSAKeyPair());
+		}
 		if (shouldStoreIdentity) {
 			// The identity was registered at startup - store it
 			db.addIdentity(txn, cached);
@@ -170,27 +199,56 @@ class IdentityManagerImpl implements IdentityManager,
 
 	@Override
 	public PrivateKey getPrivateKey() throws DbException {
-		Transaction txn = db.startTransaction(true);
-		KeyPair keyPair = null;
-		try {
-			keyPair = db.getCryptoKeys(txn);
-			db.commitTransaction(txn);
-		} finally {
-			db.endTransaction(txn);
-		}
-		return keyPair.getPrivate();
+		return getKeyPair().getPrivate();
 	}
 
 	@Override
 	public PublicKey getPublicKey() throws DbException {
-		Transaction txn = db.startTransaction(true);
-		KeyPair keyPair = null;
-		try {
-			keyPair = db.getCryptoKeys(txn);
-			db.commitTransaction(txn);
-		} finally {
-			db.endTransaction(txn);
+		return getKeyPair().getPublic();
+	}
+
+	@Override
+	public void eventOccurred(Event e) {
+		if (e instanceof CryptoKeysAddedEvent) {
+			synchronized (keyPairLock) {
+				keyPairVersion++;
+				cachedKeyPair = null;
+			}
 		}
-		return keyPair.getPublic();
+	}
+
+	/**
+	 * Returns the cached key pair, loading and decoding it if it isn't
+	 * cached.
+	 */
+	private KeyPair getKeyPair() throws DbException {
+		KeyPair keyPair = cachedKeyPair;
+		if (keyPair != null) return keyPair;
+		long version = getKeyPairVersion();
+		return db.transactionWithResult(true, txn -> {
+			KeyPair loaded = db.getCryptoKeys(txn);
+			cacheKeyPairOnCommit(txn, loaded, version);
+			return loaded;
+		});
+	}
+
+	private long getKeyPairVersion() {
+		synchronized (keyPairLock) {
+			return keyPairVersion;
+		}
+	}
+
+	/**
+	 * Caches the given key pair, which was read or stored by the given
+	 * transaction, when the transaction commits, unless the stored key pair
+	 * has changed since the given version.
+	 */
+	private void cacheKeyPairOnCommit(Transaction txn, KeyPair keyPair,
+			long version) {
+		txn.attach(() -> {
+			synchronized (keyPairLock) {
+				if (keyPairVersion == version) cachedKeyPair = keyPair;
+			}
+		});
 	}
 }
@@ -2,6 +2,7 @@ package eu.h2020.helios_social.modules.groupcommunications.db.identity;
 
 import eu.h2020.helios_social.modules.groupcommunications_utils.identity.IdentityManager;
 import eu.h2020.helios_social.modules.groupcommunications_utils.lifecycle.LifecycleManager;
+import eu.h2020.helios_social.modules.groupcommunications_utils.sync.event.EventBus;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
@@ -20,8 +21,10 @@ public class IdentityModule {
 	@Provides
 	@Singleton
 	IdentityManager provideIdentityManager(LifecycleManager lifecycleManager,
-			IdentityManagerImpl identityManager) {
+			EventBus eventBus, IdentityManagerImpl identityManager) {
 		lifecycleManager.registerOpenDatabaseHook(identityManager);
+		// The cached key pair is cleared when the stored key pair changes
+		eventBus.addListener(identityManager);
 		return identityManager;
 	}
 }
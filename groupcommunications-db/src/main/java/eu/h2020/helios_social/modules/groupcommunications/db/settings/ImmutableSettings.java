@@ -0,0 +1,65 @@
+package eu.h2020.helios_social.modules.groupcommunications.db.settings;
+
+import eu.h2020.helios_social.modules.groupcommunications_utils.nullsafety.NotNullByDefault;
+import eu.h2020.helios_social.modules.groupcommunications_utils.settings.Settings;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * Settings that can't be changed, so one instance can be handed to every
+ * caller. Changes through the methods of {@link Settings} and its views
+ * throw {@link UnsupportedOperationException}.
+ */
+@Immutable
+@NotNullByDefault
+class ImmutableSettings extends Settings {
+
+	private final Map<String, String> view;
+
+	ImmutableSettings(Settings s) {
+		for (Map.Entry<String, String> e : s.entrySet())
+			super.put(e.getKey(), e.getValue());
+		view = Collections.unmodifiableMap(new HashMap<>(s));
+	}
+
+	@Override
+	public synchronized String put(String key, String value) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public synchronized void putAll(Map<? extends String, ? extends String> m) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public synchronized String remove(Object key) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public synchronized void clear() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public Set<String> keySet() {
+		return view.keySet();
+	}
+
+	@Override
+	public Set<Map.Entry<String, String>> entrySet() {
+		return view.entrySet();
+	}
+
+	@Override
+	public Collection<String> values() {
+		return view.values();
+	}
+}
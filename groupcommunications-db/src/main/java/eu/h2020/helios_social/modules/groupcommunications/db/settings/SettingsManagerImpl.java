@@ -1,30 +1,77 @@
 package eu.h2020.helios_social.modules.groupcommunications.db.settings;
 
-import eu.h2020.helios_social.modules.groupcommunications_utils.db.DatabaseComponent;
 import eu.h2020.helios_social.modules.groupcommunications.api.exception.DbException;
+import eu.h2020.helios_social.modules.groupcommunications.db.database.ExtendedDatabaseComponent;
+import eu.h2020.helios_social.modules.groupcommunications.db.event.VersionedSettingsUpdatedEvent;
 import eu.h2020.helios_social.modules.groupcommunications_utils.db.Transaction;
 import eu.h2020.helios_social.modules.groupcommunications_utils.nullsafety.NotNullByDefault;
 import eu.h2020.helios_social.modules.groupcommunications_utils.settings.Settings;
 import eu.h2020.helios_social.modules.groupcommunications_utils.settings.SettingsManager;
+import eu.h2020.helios_social.modules.groupcommunications_utils.settings.event.SettingsUpdatedEvent;
+import eu.h2020.helios_social.modules.groupcommunications_utils.sync.event.Event;
+import eu.h2020.helios_social.modules.groupcommunications_utils.sync.event.EventListener;
 
-import javax.annotation.concurrent.Immutable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
 import javax.inject.Inject;
 
-@Immutable
+/**
+ * Caches the settings of each namespace after they're first read outside a
+ * transaction. The cache is kept up to date by
+ * {@link VersionedSettingsUpdatedEvent VersionedSettingsUpdatedEvents},
+ * which carry the merged settings of a namespace whether they were changed
+ * through this class or through the database component.
+ * <p/>
+ * Settings read outside a transaction are shared by every caller and can't
+ * be changed, so a cached read doesn't lock or allocate. Reads within a
+ * transaction go to the database, so a transaction sees its own changes,
+ * and return settings the caller can change.
+ * <p/>
+ * Each namespace has the version of the newest change seen. An event only
+ * replaces the cached settings if it's newer, and settings read from the
+ * database only if they're at least as new, so a late event or a slow read
+ * can't replace newer settings.
+ */
+@ThreadSafe
 @NotNullByDefault
-class SettingsManagerImpl implements SettingsManager {
+class SettingsManagerImpl implements SettingsManager, EventListener {
 
-	private final DatabaseComponent db;
+	private final ExtendedDatabaseComponent db;
+	private final Object lock = new Object();
+	private final Map<String, Settings> cache = new ConcurrentHashMap<>();
+	/**
+	 * The version of the newest settings seen for each namespace, which
+	 * may be newer than the cached settings if the cache entry was removed.
+	 */
+	@GuardedBy("lock")
+	private final Map<String, Long> versions = new HashMap<>();
 
 	@Inject
-	SettingsManagerImpl(DatabaseComponent db) {
+	SettingsManagerImpl(ExtendedDatabaseComponent db) {
 		this.db = db;
 	}
 
 	@Override
 	public Settings getSettings(String namespace) throws DbException {
-		return db.transactionWithResult(true, txn ->
-				db.getSettings(txn, namespace));
+		Settings cached = cache.get(namespace);
+		if (cached != null) return cached;
+		// The settings read next include at least the changes up to this
+		// version, and maybe some later ones
+		long version = db.getSettingsVersion(namespace);
+		Settings s = new ImmutableSettings(db.transactionWithResult(true,
+				txn -> db.getSettings(txn, namespace)));
+		synchronized (lock) {
+			// A newer event may have arrived while the settings were read
+			if (version >= getVersion(namespace)) {
+				versions.put(namespace, version);
+				cache.put(namespace, s);
+			}
+		}
+		return s;
 	}
 
 	@Override
@@ -36,5 +83,39 @@ class SettingsManagerImpl implements SettingsManager {
 	@Override
 	public void mergeSettings(Settings s, String namespace) throws DbException {
 		db.transaction(false, txn -> db.mergeSettings(txn, s, namespace));
+		// The update event may still be on its way, so the caller shouldn't
+		// read the old settings from the cache, and a read that started
+		// before the change mustn't cache them again
+		synchronized (lock) {
+			long version = db.getSettingsVersion(namespace);
+			if (version > getVersion(namespace))
+				versions.put(namespace, version);
+			cache.remove(namespace);
+		}
+	}
+
+	@Override
+	public void eventOccurred(Event e) {
+		if (e instanceof VersionedSettingsUpdatedEvent) {
+			VersionedSettingsUpdatedEvent s = (VersionedSettingsUpdatedEvent) e;
+			String namespace = s.getNamespace();
+			synchronized (lock) {
+				// Events may be delivered out of order
+				if (s.getVersion() > getVersion(namespace)) {
+					versions.put(namespace, s.getVersion());
+					cache.put(namespace,
+							new ImmutableSettings(s.getSettings()));
+				}
+			}
+		} else if (e instanceof SettingsUpdatedEvent) {
+			// Without a version there's no telling whether it's newer
+			cache.remove(((SettingsUpdatedEvent) e).getNamespace());
+		}
+	}
+
+	@GuardedBy("lock")
+	private long getVersion(String namespace) {
+		Long version = versions.get(namespace);
+		return version == null ? 0 : version;
 	}
 }
@@ -1,7 +1,10 @@
 package eu.h2020.helios_social.modules.groupcommunications.db.settings;
 
-import eu.h2020.helios_social.modules.groupcommunications_utils.db.DatabaseComponent;
+import eu.h2020.helios_social.modules.groupcommunications.db.database.ExtendedDatabaseComponent;
 import eu.h2020.helios_social.modules.groupcommunications_utils.settings.SettingsManager;
+import eu.h2020.helios_social.modules.groupcommunications_utils.sync.event.EventBus;
+
+import javax.inject.Singleton;
 
 import dagger.Module;
 import dagger.Provides;
@@ -10,8 +13,13 @@ import dagger.Provides;
 public class SettingsModule {
 
 	@Provides
-	SettingsManager provideSettingsManager(DatabaseComponent db) {
-		return new SettingsManagerImpl(db);
+	@Singleton
+	SettingsManager provideSettingsManager(
+			ExtendedDatabaseComponent db, EventBus eventBus) {
+		SettingsManagerImpl settingsManager = new SettingsManagerImpl(db);
+		// The settings cache is kept up to date by update events
+		eventBus.addListener(settingsManager);
+		return settingsManager;
 	}
 
 }
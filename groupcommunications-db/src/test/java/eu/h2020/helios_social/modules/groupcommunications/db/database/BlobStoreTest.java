@@ -0,0 +1,231 @@
+package eu.h2020.helios_social.modules.groupcommunications.db.database;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.deleteTestDirectory;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getRandomBytes;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getSecretKey;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getTestDirectory;
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BlobStoreTest {
+
+	private static final int CHUNK_LENGTH = 64 * 1024;
+
+	private final File testDir = getTestDirectory();
+	private final BlobStore store = new BlobStore(testDir, getSecretKey());
+
+	@After
+	public void tearDown() {
+		deleteTestDirectory(testDir);
+	}
+
+	@Test
+	public void testBlobsRoundTrip() throws Exception {
+		for (int length : asList(0, 1, CHUNK_LENGTH - 1, CHUNK_LENGTH,
+				CHUNK_LENGTH + 1, 3 * CHUNK_LENGTH + 5)) {
+			byte[] blob = getRandomBytes(length);
+			byte[] ref = store.put(blob);
+			assertEquals(BlobStore.REF_LENGTH, ref.length);
+			assertArrayEquals(blob, store.get(ref));
+			assertArrayEquals(blob, readByteByByte(store.open(ref)));
+		}
+	}
+
+	@Test
+	public void testIdenticalBlobsAreStoredOnce() throws Exception {
+		byte[] blob = getRandomBytes(1000);
+		byte[] ref = store.put(blob);
+		assertArrayEquals(ref, store.put(blob.clone()));
+		assertEquals(1, store.listFiles().size());
+	}
+
+	@Test
+	public void testBlobsAreEncryptedAndNamedWithKey() throws Exception {
+		byte[] blob = new byte[2 * CHUNK_LENGTH];
+		byte[] ref = store.put(blob);
+		File f = getFile();
+		// The file doesn't contain the runs of zeroes in the blob
+		byte[] contents = readFile(f);
+		assertFalse(containsZeroes(contents, 64));
+		assertTrue(BlobStore.isFileName(f.getName()));
+
+		// A store with another key names the blob differently and can't
+		// decrypt this store's copy
+		BlobStore other = new BlobStore(testDir, getSecretKey());
+		byte[] otherRef = other.put(blob);
+		assertFalse(Arrays.equals(ref, otherRef));
+		assertEquals(2, store.listFiles().size());
+		try {
+			other.get(ref);
+			fail();
+		} catch (IOException expected) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void testModifiedBlobIsRejected() throws Exception {
+		byte[] ref = store.put(getRandomBytes(1000));
+		RandomAccessFile raf = new RandomAccessFile(getFile(), "rw");
+		try {
+			raf.seek(100);
+			int b = raf.read();
+			raf.seek(100);
+			raf.write(b ^ 1);
+		} finally {
+			raf.close();
+		}
+		try {
+			store.get(ref);
+			fail();
+		} catch (IOException expected) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void testTruncatedBlobIsRejected() throws Exception {
+		byte[] ref = store.put(getRandomBytes(2 * CHUNK_LENGTH));
+		// Drop the second chunk, leaving a valid first chunk
+		int firstChunk = 1 + 12 + 4 + CHUNK_LENGTH + 16;
+		RandomAccessFile raf = new RandomAccessFile(getFile(), "rw");
+		try {
+			raf.setLength(firstChunk);
+		} finally {
+			raf.close();
+		}
+		try {
+			store.get(ref);
+			fail();
+		} catch (IOException expected) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void testRetainOnlyKeepsReferencedAndPendingBlobs()
+			throws Exception {
+		byte[] referenced = store.put(getRandomBytes(100));
+		byte[] unreferenced = store.put(getRandomBytes(100));
+		byte[] pending = store.put(getRandomBytes(100));
+		store.release(referenced);
+		store.release(unreferenced);
+		// A blob that's being stored by another thread
+		File temp = new File(testDir, getFile(pending).getName() + ".1.tmp");
+		assertTrue(temp.createNewFile());
+
+		store.retainOnly(() -> singletonList(referenced));
+		assertFiles(referenced, pending);
+		assertTrue(temp.exists());
+
+		// Once the pending blob is released it can be deleted
+		store.release(pending);
+		store.retainOnly(() -> singletonList(referenced));
+		assertFiles(referenced);
+		assertTrue(temp.exists());
+
+		store.deleteTemporaryFiles();
+		assertFalse(temp.exists());
+		assertArrayEquals(new String[] {getFile(referenced).getName()},
+				testDir.list());
+	}
+
+	@Test
+	public void testBlobStoredTwiceIsPendingUntilReleasedTwice()
+			throws Exception {
+		byte[] blob = getRandomBytes(100);
+		byte[] ref = store.put(blob);
+		store.put(blob);
+		store.release(ref);
+		store.retainOnly(ArrayList::new);
+		assertFiles(ref);
+		store.release(ref);
+		store.retainOnly(ArrayList::new);
+		assertFiles();
+	}
+
+	@Test
+	public void testRetainOnlyDoesNotDeleteWhileHeld() throws Exception {
+		byte[] ref = store.put(getRandomBytes(100));
+		store.release(ref);
+		store.holdDeletion();
+		store.retainOnly(ArrayList::new);
+		assertFiles(ref);
+		store.allowDeletion();
+		store.retainOnly(ArrayList::new);
+		assertFiles();
+	}
+
+	private void assertFiles(byte[]... refs) {
+		List<String> expected = new ArrayList<>();
+		for (byte[] ref : refs) expected.add(getFile(ref).getName());
+		Collection<String> actual = store.listFiles();
+		assertEquals(expected.size(), actual.size());
+		assertTrue(actual.containsAll(expected));
+	}
+
+	/**
+	 * Returns the only file in the store.
+	 */
+	private File getFile() {
+		Collection<String> names = store.listFiles();
+		assertEquals(1, names.size());
+		return new File(testDir, names.iterator().next());
+	}
+
+	private File getFile(byte[] ref) {
+		StringBuilder sb = new StringBuilder();
+		for (byte b : ref) sb.append(String.format("%02x", b & 0xFF));
+		return new File(testDir, sb.toString());
+	}
+
+	private byte[] readFile(File f) throws IOException {
+		byte[] b = new byte[(int) f.length()];
+		RandomAccessFile raf = new RandomAccessFile(f, "r");
+		try {
+			raf.readFully(b);
+		} finally {
+			raf.close();
+		}
+		return b;
+	}
+
+	private byte[] readByteByByte(InputStream in) throws IOException {
+		List<Byte> bytes = new ArrayList<>();
+		try {
+			int b;
+			while ((b = in.read()) != -1) bytes.add((byte) b);
+		} finally {
+			in.close();
+		}
+		byte[] result = new byte[bytes.size()];
+		for (int i = 0; i < result.length; i++) result[i] = bytes.get(i);
+		return result;
+	}
+
+	private boolean containsZeroes(byte[] b, int run) {
+		int zeroes = 0;
+		for (byte x : b) {
+			zeroes = x == 0 ? zeroes + 1 : 0;
+			if (zeroes == run) return true;
+		}
+		return false;
+	}
+}
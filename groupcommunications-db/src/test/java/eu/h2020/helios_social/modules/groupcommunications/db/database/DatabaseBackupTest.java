@@ -0,0 +1,236 @@
+package eu.h2020.helios_social.modules.groupcommunications.db.database;
+
+import eu.h2020.helios_social.modules.groupcommunications.api.context.DBContext;
+import eu.h2020.helios_social.modules.groupcommunications.api.group.Group;
+import eu.h2020.helios_social.modules.groupcommunications.api.group.GroupType;
+import eu.h2020.helios_social.modules.groupcommunications.api.messaging.Message;
+import eu.h2020.helios_social.modules.groupcommunications.api.messaging.MessageHeader;
+import eu.h2020.helios_social.modules.groupcommunications.api.messaging.MessageState;
+import eu.h2020.helios_social.modules.groupcommunications.api.profile.Profile;
+import eu.h2020.helios_social.modules.groupcommunications.api.profile.ProfileBuilder;
+import eu.h2020.helios_social.modules.groupcommunications.db.system.SystemClock;
+import eu.h2020.helios_social.modules.groupcommunications.db.test.TestDatabaseConfig;
+import eu.h2020.helios_social.modules.groupcommunications_utils.crypto.SecretKey;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.List;
+
+import static eu.h2020.helios_social.modules.groupcommunications.db.database.DatabaseBackup.BLOB_DIRECTORY_NAME;
+import static eu.h2020.helios_social.modules.groupcommunications.db.database.MessageCursor.Direction.BEFORE;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.deleteTestDirectory;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getContext;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getGroup;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getMessage;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getRandomBytes;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getRandomText;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getSecretKey;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getTestDirectory;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DatabaseBackupTest {
+
+	private static final int MESSAGES = 1000;
+
+	private final File testDir = getTestDirectory();
+	private final File originalDir = new File(testDir, "original");
+	private final File restoredDir = new File(testDir, "restored");
+	private final SecretKey key = getSecretKey();
+	private final DBContext context = getContext();
+	private final DBContext otherContext = getContext();
+	private final Group group = getGroup(context.getId());
+	private final byte[] picture = getRandomBytes(1000);
+	private final byte[] otherPicture = getRandomBytes(1000);
+
+	private H2Database db;
+	private long timestamp = 0;
+
+	@Before
+	public void setUp() throws Exception {
+		db = openDatabase(originalDir);
+		Connection txn = db.startTransaction();
+		try {
+			db.addContext(txn, context);
+			db.addContext(txn, otherContext);
+			db.addGroup(txn, group, new byte[0],
+					GroupType.PrivateConversation);
+			db.addProfile(txn, getProfile(context.getId(), picture));
+			db.commitTransaction(txn);
+		} catch (Exception e) {
+			db.abortTransaction(txn);
+			throw e;
+		}
+		addMessages(MESSAGES);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (db != null) db.close();
+		deleteTestDirectory(testDir);
+	}
+
+	@Test
+	public void testFullAndIncrementalBackupsRoundTrip() throws Exception {
+		ByteArrayOutputStream full = new ByteArrayOutputStream();
+		// Callers store the manifest in its encoded form
+		BackupManifest fullManifest =
+				BackupManifest.fromBytes(db.backup(full, null).getBytes());
+
+		// Add messages and a blob, then back up what has changed
+		addMessages(10);
+		addProfile(otherContext.getId(), otherPicture);
+		ByteArrayOutputStream incremental = new ByteArrayOutputStream();
+		db.backup(incremental, fullManifest);
+		// Only the changed blocks and the new blob were written
+		assertTrue(incremental.size() < full.size());
+		db.close();
+		db = null;
+
+		// Restoring the full backup alone gives the first snapshot
+		restore(full);
+		H2Database restored = openDatabase(restoredDir);
+		try {
+			assertEquals(MESSAGES, countMessages(restored));
+			assertArrayEquals(picture, getPicture(restored, context));
+			assertNull(getPicture(restored, otherContext));
+		} finally {
+			restored.close();
+		}
+		deleteTestDirectory(restoredDir);
+
+		// Restoring both backups in order gives the second snapshot
+		restore(full);
+		restore(incremental);
+		restored = openDatabase(restoredDir);
+		try {
+			assertEquals(MESSAGES + 10, countMessages(restored));
+			assertArrayEquals(picture, getPicture(restored, context));
+			assertArrayEquals(otherPicture,
+					getPicture(restored, otherContext));
+		} finally {
+			restored.close();
+		}
+		// The blob files were restored under their original names
+		File[] blobs = new File(getDatabaseDirectory(restoredDir),
+				BLOB_DIRECTORY_NAME).listFiles();
+		assertEquals(2, blobs == null ? 0 : blobs.length);
+	}
+
+	@Test
+	public void testChunksAreNotMovedWhileSnapshotIsOpen()
+			throws Exception {
+		Connection txn = db.startTransaction();
+		try {
+			InputStream snapshot = db.openSnapshot(txn);
+			try {
+				// Chunks aren't moved while the snapshot is open
+				assertFalse(db.compactStep(txn, 100));
+			} finally {
+				snapshot.close();
+			}
+			db.commitTransaction(txn);
+		} catch (Exception e) {
+			db.abortTransaction(txn);
+			throw e;
+		}
+		// The store is still usable after the snapshot is closed
+		addMessages(10);
+		assertEquals(MESSAGES + 10, countMessages(db));
+	}
+
+	private H2Database openDatabase(File dir) throws Exception {
+		H2Database h2 = new H2Database(
+				new TestDatabaseConfig(dir, TuningProfile.LOW_MEMORY),
+				new SystemClock());
+		h2.open(key, null);
+		return h2;
+	}
+
+	private File getDatabaseDirectory(File dir) {
+		return new TestDatabaseConfig(dir).getDatabaseDirectory();
+	}
+
+	private void restore(ByteArrayOutputStream backup) throws Exception {
+		DatabaseBackup.restore(new ByteArrayInputStream(backup.toByteArray()),
+				getDatabaseDirectory(restoredDir));
+	}
+
+	private Profile getProfile(String contextId, byte[] picture) {
+		return new ProfileBuilder(contextId)
+				.setAlias(getRandomText(1))
+				.setFullname(getRandomText(2))
+				.setUniversity("")
+				.setWork("")
+				.setInterests("")
+				.setQuote("")
+				.setProfilePicture(picture)
+				.build();
+	}
+
+	private void addProfile(String contextId, byte[] picture)
+			throws Exception {
+		Connection txn = db.startTransaction();
+		try {
+			db.addProfile(txn, getProfile(contextId, picture));
+			db.commitTransaction(txn);
+		} catch (Exception e) {
+			db.abortTransaction(txn);
+			throw e;
+		}
+	}
+
+	private void addMessages(int count) throws Exception {
+		List<NewMessage> messages = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			Message m = getMessage(group.getId(), ++timestamp,
+					getRandomText(20));
+			messages.add(new NewMessage(m, MessageState.values()[0],
+					context.getId(), true));
+		}
+		Connection txn = db.startTransaction();
+		try {
+			db.addMessages(txn, messages);
+			db.commitTransaction(txn);
+		} catch (Exception e) {
+			db.abortTransaction(txn);
+			throw e;
+		}
+	}
+
+	private int countMessages(H2Database h2) throws Exception {
+		Connection txn = h2.startTransaction();
+		try {
+			List<MessageHeader> headers = h2.getMessageHeaders(txn,
+					group.getId(), null, Integer.MAX_VALUE, BEFORE);
+			h2.commitTransaction(txn);
+			return headers.size();
+		} catch (Exception e) {
+			h2.abortTransaction(txn);
+			throw e;
+		}
+	}
+
+	private byte[] getPicture(H2Database h2, DBContext c) throws Exception {
+		Connection txn = h2.startTransaction();
+		try {
+			Profile p = h2.getProfile(txn, c.getId());
+			h2.commitTransaction(txn);
+			return p == null ? null : p.getProfilePic();
+		} catch (Exception e) {
+			h2.abortTransaction(txn);
+			throw e;
+		}
+	}
+}
@@ -0,0 +1,176 @@
+package eu.h2020.helios_social.modules.groupcommunications.db.database;
+
+import eu.h2020.helios_social.modules.groupcommunications.api.exception.DbException;
+import eu.h2020.helios_social.modules.groupcommunications.db.system.SystemClock;
+import eu.h2020.helios_social.modules.groupcommunications.db.test.NoOpShutdownManager;
+import eu.h2020.helios_social.modules.groupcommunications.db.test.RecordingEventBus;
+import eu.h2020.helios_social.modules.groupcommunications.db.test.TestDatabaseConfig;
+import eu.h2020.helios_social.modules.groupcommunications_utils.crypto.SecretKey;
+import eu.h2020.helios_social.modules.groupcommunications_utils.db.MigrationListener;
+import eu.h2020.helios_social.modules.groupcommunications_utils.db.Transaction;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.sql.Connection;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nullable;
+
+import static eu.h2020.helios_social.modules.groupcommunications.db.database.DatabaseConstants.MIN_FILL_RATE;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.deleteTestDirectory;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getSecretKey;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getTestDirectory;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DatabaseCompactionTest {
+
+	private final File testDir = getTestDirectory();
+	private final SecretKey key = getSecretKey();
+	private final AtomicInteger steps = new AtomicInteger(0);
+	private final AtomicInteger compactions = new AtomicInteger(0);
+	private final MigrationListener listener = new MigrationListener() {
+		@Override
+		public void onDatabaseMigration() {
+		}
+
+		@Override
+		public void onDatabaseCompaction() {
+			compactions.incrementAndGet();
+		}
+	};
+
+	private volatile int fillRate = 0;
+	private volatile int maxSteps = Integer.MAX_VALUE;
+	/**
+	 * A transaction started by the first compaction step, if the test asks
+	 * for one.
+	 */
+	@Nullable
+	private volatile Connection otherTxn = null;
+	private volatile boolean startOtherTransaction = false;
+
+	private H2Database db;
+	private DatabaseComponentImpl<Connection> dc;
+
+	@Before
+	public void setUp() throws Exception {
+		open();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		dc.close();
+		deleteTestDirectory(testDir);
+	}
+
+	@Test
+	public void testCompactsAndReportsToListener() throws Exception {
+		maxSteps = 3;
+		assertTrue(dc.compactIfIdle(MIN_FILL_RATE));
+		assertEquals(3, steps.get());
+		assertEquals(1, compactions.get());
+	}
+
+	@Test
+	public void testDoesNotCompactWhenFillRateIsHigh() throws Exception {
+		fillRate = MIN_FILL_RATE;
+		assertFalse(dc.compactIfIdle(MIN_FILL_RATE));
+		assertEquals(0, steps.get());
+		assertEquals(0, compactions.get());
+	}
+
+	@Test
+	public void testStopsWhenAnotherTransactionStarts() throws Exception {
+		startOtherTransaction = true;
+		try {
+			assertTrue(dc.compactIfIdle(MIN_FILL_RATE));
+		} finally {
+			Connection txn = otherTxn;
+			if (txn != null) db.abortTransaction(txn);
+		}
+		// The transaction started during the first step stopped the pass
+		assertEquals(1, steps.get());
+	}
+
+	@Test
+	public void testDoesNotWaitForWriteLock() throws Exception {
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch finish = new CountDownLatch(1);
+		Thread writer = new Thread(() -> {
+			try {
+				dc.transaction(false, txn -> {
+					started.countDown();
+					finish.await();
+				});
+			} catch (DbException | InterruptedException e) {
+				fail();
+			}
+		});
+		writer.start();
+		try {
+			assertTrue(started.await(10, SECONDS));
+			assertFalse(dc.compactIfIdle(MIN_FILL_RATE));
+		} finally {
+			finish.countDown();
+			writer.join();
+		}
+		assertEquals(0, steps.get());
+		assertEquals(0, compactions.get());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testCannotCompactWithinTransaction() throws Exception {
+		Transaction txn = dc.startTransaction(true);
+		try {
+			dc.compactIfIdle(MIN_FILL_RATE);
+		} finally {
+			dc.endTransaction(txn);
+		}
+	}
+
+	@Test
+	public void testOpeningDoesNotCompact() throws Exception {
+		dc.close();
+		// Reopen the existing database with a low fill rate
+		assertTrue(open());
+		assertEquals(0, steps.get());
+		assertEquals(0, compactions.get());
+		// The listener passed to open() is told about later compaction
+		maxSteps = 1;
+		assertTrue(dc.compactIfIdle(MIN_FILL_RATE));
+		assertEquals(1, compactions.get());
+	}
+
+	private boolean open() throws Exception {
+		db = new H2Database(
+				new TestDatabaseConfig(testDir, TuningProfile.LOW_MEMORY),
+				new SystemClock()) {
+			@Override
+			public int getFillRate(Connection txn) {
+				return fillRate;
+			}
+
+			@Override
+			protected boolean compactStep(Connection txn,
+					int targetFillRate) throws DbException {
+				if (steps.get() == maxSteps) return false;
+				if (startOtherTransaction && otherTxn == null)
+					otherTxn = startTransaction();
+				steps.incrementAndGet();
+				return true;
+			}
+		};
+		dc = new DatabaseComponentImpl<>(db, Connection.class,
+				new RecordingEventBus(), Runnable::run,
+				new NoOpShutdownManager());
+		return dc.open(key, listener);
+	}
+}
@@ -0,0 +1,221 @@
+package eu.h2020.helios_social.modules.groupcommunications.db.database;
+
+import eu.h2020.helios_social.modules.groupcommunications.api.context.DBContext;
+import eu.h2020.helios_social.modules.groupcommunications.api.exception.DbException;
+import eu.h2020.helios_social.modules.groupcommunications.api.group.Group;
+import eu.h2020.helios_social.modules.groupcommunications.api.group.GroupType;
+import eu.h2020.helios_social.modules.groupcommunications.api.messaging.Message;
+import eu.h2020.helios_social.modules.groupcommunications.api.messaging.MessageState;
+import eu.h2020.helios_social.modules.groupcommunications.api.profile.Profile;
+import eu.h2020.helios_social.modules.groupcommunications.api.profile.ProfileBuilder;
+import eu.h2020.helios_social.modules.groupcommunications.db.event.MessagesAddedEvent;
+import eu.h2020.helios_social.modules.groupcommunications.db.system.SystemClock;
+import eu.h2020.helios_social.modules.groupcommunications.db.test.NoOpShutdownManager;
+import eu.h2020.helios_social.modules.groupcommunications.db.test.RecordingEventBus;
+import eu.h2020.helios_social.modules.groupcommunications.db.test.TestDatabaseConfig;
+import eu.h2020.helios_social.modules.groupcommunications_utils.db.DbRunnable;
+import eu.h2020.helios_social.modules.groupcommunications_utils.sync.event.Event;
+import eu.h2020.helios_social.modules.groupcommunications_utils.sync.event.MessageAddedEvent;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.List;
+
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.deleteTestDirectory;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getContext;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getGroup;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getMessage;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getRandomText;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getSecretKey;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getTestDirectory;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks how many queries the lookups that return a single row make, and
+ * that cached lookups are read again after changes are committed.
+ */
+public class DatabaseComponentImplTest {
+
+	private final File testDir = getTestDirectory();
+	private final DBContext context = getContext();
+	private final Group group = getGroup(context.getId());
+	private final Message message =
+			getMessage(group.getId(), 1, getRandomText(10));
+
+	private final RecordingEventBus eventBus = new RecordingEventBus();
+
+	private DatabaseComponentImpl<Connection> dc;
+
+	@Before
+	public void setUp() throws Exception {
+		H2Database db = new H2Database(
+				new TestDatabaseConfig(testDir, TuningProfile.LOW_MEMORY),
+				new SystemClock());
+		assertFalse(db.open(getSecretKey(), null));
+		dc = new DatabaseComponentImpl<>(db, Connection.class, eventBus,
+				Runnable::run, new NoOpShutdownManager());
+		dc.transaction(false, txn -> {
+			dc.addContext(txn, context);
+			dc.addGroup(txn, group, new byte[0],
+					GroupType.PrivateConversation);
+			dc.addMessage(txn, message, MessageState.values()[0],
+					context.getId(), true);
+		});
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		dc.close();
+		deleteTestDirectory(testDir);
+	}
+
+	@Test
+	public void testGetProfileMakesOneQuery() throws Exception {
+		dc.transaction(false, txn -> dc.addProfile(txn, getProfile()));
+		assertEquals(1, countQueries(txn ->
+				dc.getProfile(txn, context.getId())));
+	}
+
+	@Test
+	public void testGetMissingProfileChecksContext() throws Exception {
+		// The context is only checked when there's no profile
+		assertEquals(2, countQueries(txn ->
+				dc.getProfile(txn, context.getId())));
+	}
+
+	@Test
+	public void testGetMessageMakesOneQuery() throws Exception {
+		assertEquals(1, countQueries(txn ->
+				dc.getMessage(txn, message.getId())));
+	}
+
+	@Test
+	public void testGetMessageHeaderMakesOneQuery() throws Exception {
+		assertEquals(1, countQueries(txn ->
+				dc.getMessageHeader(txn, message.getId())));
+	}
+
+	@Test
+	public void testChangeInvalidatesOnlyChangedContext() throws Exception {
+		DBContext other = getContext();
+		dc.transaction(false, txn -> dc.addContext(txn, other));
+		// Fill the cache
+		dc.transaction(true, txn -> {
+			dc.getContext(txn, context.getId());
+			dc.getContext(txn, other.getId());
+		});
+		assertEquals(0, countQueries(txn ->
+				dc.getContext(txn, context.getId())));
+
+		dc.transaction(false, txn -> {
+			dc.setContextName(txn, context.getId(), "renamed");
+			// The writer reads its own change
+			assertEquals("renamed",
+					dc.getContext(txn, context.getId()).getName());
+		});
+		// The renamed context is read again, the other is still cached
+		assertEquals(0, countQueries(txn ->
+				dc.getContext(txn, other.getId())));
+		assertEquals(1, countQueries(txn -> assertEquals("renamed",
+				dc.getContext(txn, context.getId()).getName())));
+		assertEquals(0, countQueries(txn ->
+				dc.getContext(txn, context.getId())));
+	}
+
+	@Test
+	public void testAbortedChangeDoesNotInvalidate() throws Exception {
+		dc.transaction(true, txn -> dc.getContext(txn, context.getId()));
+		try {
+			dc.transaction(false, txn -> {
+				dc.setContextName(txn, context.getId(), "renamed");
+				throw new DbException();
+			});
+			fail();
+		} catch (DbException expected) {
+			// Expected
+		}
+		assertEquals(0, countQueries(txn -> assertEquals(
+				context.getName(),
+				dc.getContext(txn, context.getId()).getName())));
+	}
+
+	@Test
+	public void testAddMessagesBroadcastsEventForEachMessageAndBatch()
+			throws Exception {
+		List<NewMessage> batch = new ArrayList<>();
+		for (int i = 0; i < 3; i++)
+			batch.add(getNewMessage(getMessage(group.getId(), 2 + i,
+					getRandomText(10))));
+		// Messages already in the database or earlier in the batch are
+		// skipped
+		batch.add(getNewMessage(message));
+		batch.add(batch.get(0));
+		int before = eventBus.getEvents().size();
+		dc.transaction(false, txn -> dc.addMessages(txn, batch));
+
+		List<Event> events = eventBus.getEvents();
+		assertEquals(before + 4, events.size());
+		MessagesAddedEvent batchEvent =
+				(MessagesAddedEvent) events.get(before + 3);
+		assertEquals(3, batchEvent.getEvents().size());
+		for (int i = 0; i < 3; i++) {
+			assertSame(events.get(before + i),
+					batchEvent.getEvents().get(i));
+		}
+		try {
+			batchEvent.getEvents().clear();
+			fail();
+		} catch (UnsupportedOperationException expected) {
+			// Expected
+		}
+
+		// A batch with no new messages isn't announced
+		dc.transaction(false, txn -> dc.addMessages(txn, batch));
+		assertEquals(before + 4, eventBus.getEvents().size());
+	}
+
+	@Test
+	public void testMessagesAddedEventCopiesEvents() {
+		List<MessageAddedEvent> events = new ArrayList<>();
+		events.add(new MessageAddedEvent(message, true,
+				MessageState.values()[0]));
+		MessagesAddedEvent e = new MessagesAddedEvent(events);
+		events.clear();
+		assertEquals(1, e.getEvents().size());
+	}
+
+	private NewMessage getNewMessage(Message m) {
+		return new NewMessage(m, MessageState.values()[0], context.getId(),
+				true);
+	}
+
+	private Profile getProfile() {
+		return new ProfileBuilder(context.getId())
+				.setAlias(getRandomText(1))
+				.build();
+	}
+
+	/**
+	 * Returns the number of statements the given task prepares when run in
+	 * a read-only transaction.
+	 */
+	private long countQueries(DbRunnable<DbException> task)
+			throws DbException {
+		long before = getStatements();
+		dc.transaction(true, task);
+		return getStatements() - before;
+	}
+
+	private long getStatements() {
+		ConnectionPoolStats stats = dc.getConnectionPoolStats();
+		return stats.getStatementCacheHits() + stats.getStatementCacheMisses();
+	}
+}
@@ -0,0 +1,261 @@
+package eu.h2020.helios_social.modules.groupcommunications.db.database;
+
+import eu.h2020.helios_social.modules.groupcommunications.api.exception.DbException;
+import eu.h2020.helios_social.modules.groupcommunications.db.system.SystemClock;
+import eu.h2020.helios_social.modules.groupcommunications.db.test.NoOpShutdownManager;
+import eu.h2020.helios_social.modules.groupcommunications.db.test.RecordingEventBus;
+import eu.h2020.helios_social.modules.groupcommunications.db.test.TestDatabaseConfig;
+import eu.h2020.helios_social.modules.groupcommunications_utils.settings.Settings;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nullable;
+
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.deleteTestDirectory;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getSecretKey;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getTestDirectory;
+import static eu.h2020.helios_social.modules.groupcommunications_utils.util.LogUtils.now;
+import static java.util.Arrays.asList;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class GroupCommitTest {
+
+	private static final String NAMESPACE = "namespace";
+	private static final long LONG_DELAY_MS = SECONDS.toMillis(60);
+	private static final long SHORT_DELAY_MS = 200;
+
+	private final File testDir = getTestDirectory();
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+	private final AtomicBoolean failCommits = new AtomicBoolean(false);
+	private final AtomicInteger commits = new AtomicInteger(0);
+	/**
+	 * Database transactions started and committed, in order.
+	 */
+	private final List<String> events = new ArrayList<>();
+
+	/**
+	 * If set, the next commit waits for this latch after counting down
+	 * {@link #commitStarted}.
+	 */
+	@Nullable
+	private volatile CountDownLatch commitMayFinish = null;
+	private final CountDownLatch commitStarted = new CountDownLatch(1);
+
+	private DatabaseComponentImpl<Connection> dc;
+
+	@After
+	public void tearDown() throws Exception {
+		executor.shutdownNow();
+		if (dc != null) dc.close();
+		deleteTestDirectory(testDir);
+	}
+
+	@Test
+	public void testGroupCommitsWhenFull() throws Exception {
+		open(LONG_DELAY_MS, 3);
+		long start = now();
+		List<Future<?>> futures = new ArrayList<>();
+		for (String key : asList("a", "b", "c")) {
+			futures.add(executor.submit(() -> {
+				merge(key);
+				return null;
+			}));
+		}
+		for (Future<?> f : futures) f.get(10, SECONDS);
+		// The group was committed without waiting for the delay
+		assertTrue(now() - start < LONG_DELAY_MS);
+		assertEquals(1, commits.get());
+		assertStored("a", "b", "c");
+	}
+
+	@Test
+	public void testGroupCommitsAfterDelay() throws Exception {
+		open(SHORT_DELAY_MS, 3);
+		long start = now();
+		merge("a");
+		// The group wasn't full, so the leader waited for the delay
+		assertTrue(now() - start >= SHORT_DELAY_MS);
+		assertEquals(1, commits.get());
+		assertStored("a");
+	}
+
+	@Test
+	public void testAbortedMemberRollsBackOnlyItsChanges() throws Exception {
+		open(LONG_DELAY_MS, 2);
+		Future<?> leader = startLeader("a");
+		// Abort a member of the leader's group
+		try {
+			dc.transaction(false, txn -> {
+				dc.mergeSettings(txn, getSettings("b"), NAMESPACE);
+				throw new DbException();
+			});
+			fail();
+		} catch (DbException expected) {
+			// Expected
+		}
+		// Another member fills the group, which commits
+		merge("c");
+		leader.get(10, SECONDS);
+		assertEquals(1, commits.get());
+		assertStored("a", "c");
+		assertNotStored("b");
+	}
+
+	@Test
+	public void testFailedGroupCommitFailsEveryMember() throws Exception {
+		open(LONG_DELAY_MS, 2);
+		failCommits.set(true);
+		Future<?> leader = startLeader("a");
+		try {
+			merge("b");
+			fail();
+		} catch (DbException expected) {
+			// Expected
+		}
+		try {
+			leader.get(10, SECONDS);
+			fail();
+		} catch (ExecutionException expected) {
+			assertTrue(expected.getCause() instanceof DbException);
+		}
+		failCommits.set(false);
+		assertNotStored("a");
+		assertNotStored("b");
+	}
+
+	@Test
+	public void testTransactionStartedDuringGroupCommitJoinsNextGroup()
+			throws Exception {
+		open(SHORT_DELAY_MS, 2);
+		CountDownLatch mayFinish = new CountDownLatch(1);
+		commitMayFinish = mayFinish;
+		Future<?> leader = startLeader("a");
+		Future<?> member = executor.submit(() -> {
+			merge("b");
+			return null;
+		});
+		// Start a transaction while the full group is committing
+		assertTrue(commitStarted.await(10, SECONDS));
+		Future<?> late = executor.submit(() -> {
+			merge("c");
+			return null;
+		});
+		// Give the late transaction a chance to join the committing group
+		Thread.sleep(SHORT_DELAY_MS);
+		mayFinish.countDown();
+		leader.get(10, SECONDS);
+		member.get(10, SECONDS);
+		late.get(10, SECONDS);
+		// The late transaction opened a new group after the first commit
+		synchronized (events) {
+			assertEquals(asList("start", "commit", "start", "commit"),
+					events.subList(0, 4));
+		}
+		assertStored("a", "b", "c");
+	}
+
+	private void open(long maxDelayMs, int maxSize) throws Exception {
+		H2Database db = new H2Database(
+				new TestDatabaseConfig(testDir, TuningProfile.LOW_MEMORY),
+				new SystemClock()) {
+			@Override
+			public Connection startTransaction() throws DbException {
+				Connection txn = super.startTransaction();
+				record("start");
+				return txn;
+			}
+
+			@Override
+			public void commitTransaction(Connection txn) throws DbException {
+				CountDownLatch mayFinish = commitMayFinish;
+				if (mayFinish != null) {
+					commitMayFinish = null;
+					commitStarted.countDown();
+					try {
+						if (!mayFinish.await(10, SECONDS))
+							throw new DbException();
+					} catch (InterruptedException e) {
+						throw new DbException(e);
+					}
+				}
+				if (failCommits.get()) throw new DbException();
+				super.commitTransaction(txn);
+				commits.incrementAndGet();
+				record("commit");
+			}
+		};
+		dc = new DatabaseComponentImpl<>(db, Connection.class,
+				new RecordingEventBus(), Runnable::run,
+				new NoOpShutdownManager(), maxDelayMs, maxSize);
+		dc.open(getSecretKey(), null);
+		synchronized (events) {
+			events.clear();
+		}
+		commits.set(0);
+	}
+
+	private void record(String event) {
+		synchronized (events) {
+			events.add(event);
+		}
+	}
+
+	/**
+	 * Starts a transaction on another thread and returns once it has made
+	 * its changes, so it leads the next group.
+	 */
+	private Future<?> startLeader(String key) throws Exception {
+		CountDownLatch changed = new CountDownLatch(1);
+		Future<?> leader = executor.submit(() -> {
+			dc.transaction(false, txn -> {
+				dc.mergeSettings(txn, getSettings(key), NAMESPACE);
+				changed.countDown();
+			});
+			return null;
+		});
+		assertTrue(changed.await(10, SECONDS));
+		return leader;
+	}
+
+	private void merge(String key) throws DbException {
+		dc.transaction(false, txn ->
+				dc.mergeSettings(txn, getSettings(key), NAMESPACE));
+	}
+
+	private Settings getSettings(String key) {
+		Settings s = new Settings();
+		s.put(key, "value");
+		return s;
+	}
+
+	private Settings getStoredSettings() throws DbException {
+		return dc.transactionWithResult(true, txn ->
+				dc.getSettings(txn, NAMESPACE));
+	}
+
+	private void assertStored(String... keys) throws DbException {
+		Settings s = getStoredSettings();
+		for (String key : keys) assertEquals("value", s.get(key));
+	}
+
+	private void assertNotStored(String key) throws DbException {
+		assertNull(getStoredSettings().get(key));
+	}
+}
@@ -0,0 +1,184 @@
+package eu.h2020.helios_social.modules.groupcommunications.db.database;
+
+import eu.h2020.helios_social.modules.groupcommunications.api.exception.DbException;
+import eu.h2020.helios_social.modules.groupcommunications.db.system.SystemClock;
+import eu.h2020.helios_social.modules.groupcommunications.db.test.NoOpShutdownManager;
+import eu.h2020.helios_social.modules.groupcommunications.db.test.RecordingEventBus;
+import eu.h2020.helios_social.modules.groupcommunications.db.test.TestDatabaseConfig;
+import eu.h2020.helios_social.modules.groupcommunications_utils.settings.Settings;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static eu.h2020.helios_social.modules.groupcommunications.db.database.DatabaseConstants.MAX_CONNECTIONS;
+import static eu.h2020.helios_social.modules.groupcommunications.db.database.DatabaseConstants.PREWARM_CONNECTIONS;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.deleteTestDirectory;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getSecretKey;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getTestDirectory;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class H2DatabaseTest {
+
+	private static final String NAMESPACE = "namespace";
+	private static final TuningProfile PROFILE = TuningProfile.LOW_MEMORY;
+
+	private final File testDir = getTestDirectory();
+	private final AtomicBoolean failCommits = new AtomicBoolean(false);
+	private final RecordingEventBus eventBus = new RecordingEventBus();
+
+	private H2Database db;
+	private DatabaseComponentImpl<Connection> dc;
+
+	@Before
+	public void setUp() throws Exception {
+		db = new H2Database(new TestDatabaseConfig(testDir, PROFILE),
+				new SystemClock()) {
+			@Override
+			protected Connection createConnection()
+					throws DbException, SQLException {
+				return failCommitsWhenAsked(super.createConnection());
+			}
+		};
+		assertFalse(db.open(getSecretKey(), null));
+		dc = new DatabaseComponentImpl<>(db, Connection.class,
+				eventBus, Runnable::run,
+				new NoOpShutdownManager());
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		db.close();
+		deleteTestDirectory(testDir);
+	}
+
+	@Test
+	public void testFailedCommitClosesConnection() throws Exception {
+		Connection txn = db.startTransaction();
+		db.mergeSettings(txn, getSettings(), NAMESPACE);
+		failCommits.set(true);
+		try {
+			db.commitTransaction(txn);
+			fail();
+		} catch (DbException expected) {
+			db.abortTransaction(txn);
+		}
+		failCommits.set(false);
+		// The connection may be broken, so it isn't reused, and its
+		// statement cache is discarded with it
+		ConnectionPoolStats stats = dc.getConnectionPoolStats();
+		assertEquals(0, stats.getActiveConnections());
+		assertEquals(PREWARM_CONNECTIONS - 1, stats.getIdleConnections());
+		assertEquals(PREWARM_CONNECTIONS - 1, stats.getStatementCaches());
+
+		// The changes weren't applied and the database is still usable
+		txn = db.startTransaction();
+		assertTrue(db.getSettings(txn, NAMESPACE).isEmpty());
+		db.commitTransaction(txn);
+		stats = dc.getConnectionPoolStats();
+		assertEquals(0, stats.getActiveConnections());
+		assertEquals(Math.max(1, PREWARM_CONNECTIONS - 1),
+				stats.getIdleConnections());
+	}
+
+	@Test
+	public void testRepeatedFailedCommitsDoNotExhaustPool()
+			throws Exception {
+		failCommits.set(true);
+		// More failures than the pool has connections
+		for (int i = 0; i <= MAX_CONNECTIONS; i++) {
+			Connection txn = db.startTransaction();
+			try {
+				db.commitTransaction(txn);
+				fail();
+			} catch (DbException expected) {
+				db.abortTransaction(txn);
+			}
+		}
+		assertEquals(0, dc.getConnectionPoolStats().getActiveConnections());
+	}
+
+	@Test
+	public void testFailedCommitIsAbortedByComponent() throws Exception {
+		failCommits.set(true);
+		// More failures than the pool has connections
+		for (int i = 0; i <= MAX_CONNECTIONS; i++) {
+			try {
+				dc.transaction(false, txn ->
+						dc.mergeSettings(txn, getSettings(), NAMESPACE));
+				fail();
+			} catch (DbException expected) {
+				// Expected
+			}
+		}
+		failCommits.set(false);
+		assertEquals(0, dc.getConnectionPoolStats().getActiveConnections());
+		// The commit actions of the failed transactions didn't run
+		assertTrue(eventBus.getEvents().isEmpty());
+
+		// The locks were released and the changes weren't applied
+		Settings s = dc.transactionWithResult(false, txn ->
+				dc.getSettings(txn, NAMESPACE));
+		assertTrue(s.isEmpty());
+	}
+
+	@Test
+	public void testConnectionPoolStats() throws Exception {
+		ConnectionPoolStats before = dc.getConnectionPoolStats();
+		Connection txn = db.startTransaction();
+		db.getSettings(txn, NAMESPACE);
+		ConnectionPoolStats during = dc.getConnectionPoolStats();
+		assertEquals(before.getActiveConnections() + 1,
+				during.getActiveConnections());
+		assertEquals(before.getConnectionWaits() + 1,
+				during.getConnectionWaits());
+		// The same query on the same connection reuses the statement
+		db.getSettings(txn, NAMESPACE);
+		db.commitTransaction(txn);
+		ConnectionPoolStats after = dc.getConnectionPoolStats();
+		assertEquals(before.getActiveConnections(),
+				after.getActiveConnections());
+		assertEquals(before.getConnectionWaits() + 1,
+				after.getConnectionWaits());
+		assertEquals(during.getStatementCacheHits() + 1,
+				after.getStatementCacheHits());
+		assertEquals(during.getStatementCacheMisses(),
+				after.getStatementCacheMisses());
+		assertTrue(after.getMaxConnectionWaitTimeMs()
+				<= after.getConnectionWaitTimeMs());
+	}
+
+	private Settings getSettings() {
+		Settings s = new Settings();
+		s.put("key", "value");
+		return s;
+	}
+
+	/**
+	 * Wraps the given connection so its commits fail while
+	 * {@link #failCommits} is set.
+	 */
+	private Connection failCommitsWhenAsked(Connection c) {
+		return (Connection) Proxy.newProxyInstance(
+				getClass().getClassLoader(), new Class<?>[] {Connection.class},
+				(proxy, method, args) -> {
+					if (method.getName().equals("commit") && failCommits.get())
+						throw new SQLException("Commit failed");
+					try {
+						return method.invoke(c, args);
+					} catch (InvocationTargetException e) {
+						throw e.getCause();
+					}
+				});
+	}
+}
@@ -0,0 +1,222 @@
+package eu.h2020.helios_social.modules.groupcommunications.db.database;
+
+import eu.h2020.helios_social.modules.groupcommunications.api.context.DBContext;
+import eu.h2020.helios_social.modules.groupcommunications.api.group.Group;
+import eu.h2020.helios_social.modules.groupcommunications.api.group.GroupType;
+import eu.h2020.helios_social.modules.groupcommunications.api.messaging.MessageState;
+import eu.h2020.helios_social.modules.groupcommunications.db.system.SystemClock;
+import eu.h2020.helios_social.modules.groupcommunications.db.test.TestDatabaseConfig;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.deleteTestDirectory;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getContext;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getGroup;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getMessage;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getRandomText;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getSecretKey;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getTestDirectory;
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the queries on the hot paths are answered from an index
+ * rather than by scanning their tables, and that pages of messages are
+ * read in index order rather than by sorting the whole group.
+ */
+public class HotQueryIndexTest {
+
+	private static final String[] HOT_QUERIES = {
+			// getMessageHeaders(groupId)
+			"SELECT messageId, timestamp, state, incoming, favourite, type,"
+					+ " CASE WHEN text IS NULL THEN FALSE ELSE TRUE END"
+					+ " AS hasText FROM messages WHERE groupId = ?",
+			// countUnreadMessagesInContext
+			"SELECT COALESCE(SUM(unread), 0) FROM unreadCounts"
+					+ " WHERE contextId = ?",
+			// countUnreadMessagesInGroup
+			"SELECT COALESCE(SUM(unread), 0) FROM unreadCounts"
+					+ " WHERE groupId = ?",
+			// getFavourites
+			"SELECT messageId, groupId, text, timestamp, type FROM messages"
+					+ " WHERE contextId = ? AND favourite = TRUE",
+			// getGroups(contextId, type)
+			"SELECT groupId, descriptor, type FROM groups"
+					+ " WHERE contextId = ? AND type = ?",
+			// getContactIds
+			"SELECT contactId FROM groups"
+					+ " WHERE contextId = ? AND contactId IS NOT NULL",
+			// getEvents(contextId)
+			"SELECT eventId, title, description, url, lat, lng, type,"
+					+ " timestamp FROM events WHERE contextId = ?",
+			// getMessageMetadataByGroupId
+			"SELECT messageId, metaKey, value FROM messageMetadata"
+					+ " WHERE groupId = ?",
+			// getForumMembers
+			"SELECT peerId, fakeId, alias, fakename, role, timestamp"
+					+ " FROM forumMemberList WHERE groupId = ?",
+			// getExpiredMessageIds()
+			"SELECT COUNT(*) FROM messages"
+					+ " WHERE groupId = ? AND favourite = FALSE"
+	};
+
+	// Queries that read a page of a group's messages in order, and their
+	// arguments, where ? in an argument is replaced by the group ID
+	private static final String[] PAGE_QUERIES = {
+			// getMessageHeaders(groupId, null, limit, BEFORE)
+			"SELECT messageId, timestamp, state, incoming, favourite, type,"
+					+ " CASE WHEN text IS NULL THEN FALSE ELSE TRUE END"
+					+ " AS hasText FROM messages"
+					+ " USE INDEX (messagesByGroupIdTimestampDesc)"
+					+ " WHERE groupId = ?"
+					+ " ORDER BY groupId DESC, timestamp DESC,"
+					+ " messageId DESC LIMIT 20",
+			// getMessageHeaders(groupId, cursor, limit, BEFORE)
+			"SELECT messageId, timestamp, state, incoming, favourite, type,"
+					+ " CASE WHEN text IS NULL THEN FALSE ELSE TRUE END"
+					+ " AS hasText FROM messages"
+					+ " USE INDEX (messagesByGroupIdTimestampDesc)"
+					+ " WHERE groupId = ?"
+					+ " AND timestamp <= 500"
+					+ " AND (timestamp < 500 OR messageId < '')"
+					+ " ORDER BY groupId DESC, timestamp DESC,"
+					+ " messageId DESC LIMIT 20",
+			// getMessageHeaders(groupId, cursor, limit, AFTER)
+			"SELECT messageId, timestamp, state, incoming, favourite, type,"
+					+ " CASE WHEN text IS NULL THEN FALSE ELSE TRUE END"
+					+ " AS hasText FROM messages"
+					+ " USE INDEX (messagesByGroupIdTimestamp)"
+					+ " WHERE groupId = ?"
+					+ " AND timestamp >= 500"
+					+ " AND (timestamp > 500 OR messageId > '')"
+					+ " ORDER BY groupId, timestamp, messageId LIMIT 20",
+			// getExpiredMessageIds()
+			"SELECT messageId, timestamp FROM messages"
+					+ " USE INDEX (messagesByGroupIdTimestamp)"
+					+ " WHERE groupId = ? AND favourite = FALSE"
+					+ " ORDER BY groupId, timestamp, messageId LIMIT 20"
+	};
+
+	// The most rows each page query may read: the offset, the page and
+	// one more row to find the end of the page
+	private static final int MAX_PAGE_SCAN_COUNT = 100 + 20 + 1;
+
+	private static final int MESSAGES_PER_GROUP = 1000;
+
+	private static final Pattern SCAN_COUNT =
+			Pattern.compile("scanCount: (\\d+)");
+
+	private final File testDir = getTestDirectory();
+
+	private H2Database db;
+
+	@Before
+	public void setUp() throws Exception {
+		db = new H2Database(new TestDatabaseConfig(testDir),
+				new SystemClock());
+		assertFalse(db.open(getSecretKey(), null));
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		db.close();
+		deleteTestDirectory(testDir);
+	}
+
+	@Test
+	public void testHotQueriesDoNotScanTables() throws Exception {
+		Connection txn = db.startTransaction();
+		try {
+			for (String sql : HOT_QUERIES) {
+				String plan = explain(txn, sql);
+				assertFalse("Table scan: " + plan, plan.contains("tableScan"));
+				// H2 names the index it uses in a comment
+				assertTrue("No index: " + plan, plan.contains("/* PUBLIC."));
+			}
+			db.commitTransaction(txn);
+		} catch (Exception e) {
+			db.abortTransaction(txn);
+			throw e;
+		}
+	}
+
+	@Test
+	public void testPagesAreReadInIndexOrder() throws Exception {
+		// Two groups, so a page can't be read by scanning the whole table
+		DBContext context = getContext();
+		Group group = getGroup(context.getId());
+		Group otherGroup = getGroup(context.getId());
+		Connection txn = db.startTransaction();
+		try {
+			db.addContext(txn, context);
+			List<NewMessage> messages = new ArrayList<>();
+			for (Group g : asList(group, otherGroup)) {
+				db.addGroup(txn, g, new byte[0],
+						GroupType.PrivateConversation);
+				for (int i = 0; i < MESSAGES_PER_GROUP; i++) {
+					messages.add(new NewMessage(getMessage(g.getId(), i,
+							getRandomText(3)), MessageState.values()[0],
+							context.getId(), true));
+				}
+			}
+			db.addMessages(txn, messages);
+			db.commitTransaction(txn);
+		} catch (Exception e) {
+			db.abortTransaction(txn);
+			throw e;
+		}
+		txn = db.startTransaction();
+		try {
+			for (String sql : PAGE_QUERIES) {
+				String plan = explainAnalyze(txn, sql, group.getId());
+				// H2 notes when it doesn't have to sort the rows
+				assertTrue("Not index sorted: " + plan,
+						plan.contains("/* index sorted */"));
+				Matcher m = SCAN_COUNT.matcher(plan);
+				assertTrue("No scan count: " + plan, m.find());
+				int scanCount = Integer.parseInt(m.group(1));
+				assertTrue("Scanned " + scanCount + " rows: " + plan,
+						scanCount <= MAX_PAGE_SCAN_COUNT);
+			}
+			db.commitTransaction(txn);
+		} catch (Exception e) {
+			db.abortTransaction(txn);
+			throw e;
+		}
+	}
+
+	private String explainAnalyze(Connection txn, String sql, String groupId)
+			throws Exception {
+		PreparedStatement ps = txn.prepareStatement("EXPLAIN ANALYZE " + sql);
+		ps.setString(1, groupId);
+		ResultSet rs = ps.executeQuery();
+		assertTrue(rs.next());
+		String plan = rs.getString(1);
+		rs.close();
+		ps.close();
+		return plan;
+	}
+
+	private String explain(Connection txn, String sql) throws Exception {
+		Statement s = txn.createStatement();
+		ResultSet rs = s.executeQuery("EXPLAIN " + sql);
+		assertTrue(rs.next());
+		String plan = rs.getString(1);
+		rs.close();
+		s.close();
+		return plan;
+	}
+}
@@ -0,0 +1,83 @@
+package eu.h2020.helios_social.modules.groupcommunications.db.database;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static eu.h2020.helios_social.modules.groupcommunications.db.database.DatabaseConstants.MAX_IN_CLAUSE_PARAMETERS;
+import static eu.h2020.helios_social.modules.groupcommunications.db.database.JdbcDatabase.inClauseChunks;
+import static eu.h2020.helios_social.modules.groupcommunications.db.database.JdbcDatabase.padInClause;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class InClauseTest {
+
+	@Test
+	public void testValuesArePaddedToPowerOfTwo() {
+		int[][] sizes = {{1, 1}, {2, 2}, {3, 4}, {4, 4}, {5, 8}, {17, 32},
+				{128, 128}, {129, 256}, {256, 256}};
+		for (int[] size : sizes) {
+			List<Integer> values = getValues(size[0]);
+			List<Integer> padded = padInClause(values);
+			assertEquals(size[1], padded.size());
+			assertPaddedWithLastValue(values, padded);
+		}
+	}
+
+	@Test
+	public void testPaddingIsCappedAtMaxParameters() {
+		assertEquals(500, MAX_IN_CLAUSE_PARAMETERS);
+		for (int size : new int[] {257, 499, 500}) {
+			List<Integer> values = getValues(size);
+			List<Integer> padded = padInClause(values);
+			assertEquals(MAX_IN_CLAUSE_PARAMETERS, padded.size());
+			assertPaddedWithLastValue(values, padded);
+		}
+		// Longer lists aren't padded or truncated
+		List<Integer> values = getValues(MAX_IN_CLAUSE_PARAMETERS + 1);
+		assertEquals(values, padInClause(values));
+	}
+
+	@Test
+	public void testValuesAreSplitIntoPaddedChunks() {
+		assertTrue(inClauseChunks(new ArrayList<Integer>()).isEmpty());
+		assertChunkSizes(1, 1);
+		assertChunkSizes(500, 500);
+		// Values past the cap start a new chunk, which is padded on its own
+		assertChunkSizes(501, 500, 1);
+		assertChunkSizes(1000, 500, 500);
+		assertChunkSizes(1001, 500, 500, 1);
+		assertChunkSizes(700, 500, 256);
+	}
+
+	private void assertChunkSizes(int size, int... chunkSizes) {
+		List<Integer> values = getValues(size);
+		List<List<Integer>> chunks = inClauseChunks(values);
+		assertEquals(chunkSizes.length, chunks.size());
+		int start = 0;
+		for (int i = 0; i < chunks.size(); i++) {
+			List<Integer> chunk = chunks.get(i);
+			assertEquals(chunkSizes[i], chunk.size());
+			// Each chunk holds the next values in order
+			int end = Math.min(size, start + MAX_IN_CLAUSE_PARAMETERS);
+			assertPaddedWithLastValue(values.subList(start, end), chunk);
+			start = end;
+		}
+		assertEquals(size, start);
+	}
+
+	private void assertPaddedWithLastValue(List<Integer> values,
+			List<Integer> padded) {
+		assertEquals(values, padded.subList(0, values.size()));
+		Integer last = values.get(values.size() - 1);
+		for (Integer value : padded.subList(values.size(), padded.size()))
+			assertEquals(last, value);
+	}
+
+	private List<Integer> getValues(int size) {
+		List<Integer> values = new ArrayList<>(size);
+		for (int i = 0; i < size; i++) values.add(i);
+		return values;
+	}
+}
@@ -0,0 +1,202 @@
+package eu.h2020.helios_social.modules.groupcommunications.db.database;
+
+import eu.h2020.helios_social.modules.groupcommunications.api.context.DBContext;
+import eu.h2020.helios_social.modules.groupcommunications.api.group.Group;
+import eu.h2020.helios_social.modules.groupcommunications.api.group.GroupType;
+import eu.h2020.helios_social.modules.groupcommunications.api.messaging.Message;
+import eu.h2020.helios_social.modules.groupcommunications.api.messaging.MessageHeader;
+import eu.h2020.helios_social.modules.groupcommunications.api.messaging.MessageState;
+import eu.h2020.helios_social.modules.groupcommunications.db.system.SystemClock;
+import eu.h2020.helios_social.modules.groupcommunications.db.test.NoOpShutdownManager;
+import eu.h2020.helios_social.modules.groupcommunications.db.test.RecordingEventBus;
+import eu.h2020.helios_social.modules.groupcommunications.db.test.TestDatabaseConfig;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+import static eu.h2020.helios_social.modules.groupcommunications.db.database.DatabaseConstants.POSTING_BLOCK_SIZE;
+import static eu.h2020.helios_social.modules.groupcommunications.db.database.DatabaseConstants.SEARCH_INDEXING_BATCH_SIZE;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.deleteTestDirectory;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getContext;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getGroup;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getMessage;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getSecretKey;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getTestDirectory;
+import static java.util.Collections.singletonList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MessageSearchTest {
+
+	private final File testDir = getTestDirectory();
+	private final DBContext context = getContext();
+	private final Group group = getGroup(context.getId());
+	private final Group otherGroup = getGroup(context.getId());
+
+	private H2Database db;
+	private DatabaseComponentImpl<Connection> dc;
+	private long timestamp = 0;
+
+	@Before
+	public void setUp() throws Exception {
+		db = new H2Database(
+				new TestDatabaseConfig(testDir, TuningProfile.LOW_MEMORY),
+				new SystemClock());
+		assertFalse(db.open(getSecretKey(), null));
+		dc = new DatabaseComponentImpl<>(db, Connection.class,
+				new RecordingEventBus(), Runnable::run,
+				new NoOpShutdownManager());
+		dc.transaction(false, txn -> {
+			dc.addContext(txn, context);
+			dc.addGroup(txn, group, new byte[0],
+					GroupType.PrivateConversation);
+			dc.addGroup(txn, otherGroup, new byte[0],
+					GroupType.PrivateConversation);
+		});
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		dc.close();
+		deleteTestDirectory(testDir);
+	}
+
+	@Test
+	public void testFindsMessagesBeforeAndAfterIndexing() throws Exception {
+		Message match = addMessage(group, "The quick brown Fox");
+		addMessage(group, "the lazy dog");
+		assertEquals(singletonList(match.getId()), search(null, "fox"));
+		assertEquals(2, indexAll());
+		assertEquals(singletonList(match.getId()), search(null, "fox"));
+		// Every term must match, in any case and order
+		assertEquals(singletonList(match.getId()),
+				search(null, "FOX quick"));
+		assertTrue(search(null, "fox dog").isEmpty());
+		assertTrue(search(null, "cat").isEmpty());
+	}
+
+	@Test
+	public void testFindsIndexedAndUnindexedMessagesTogether()
+			throws Exception {
+		Message indexed = addMessage(group, "hello world");
+		assertEquals(1, indexAll());
+		Message unindexed = addMessage(group, "hello again");
+		// Newest first when the matches are equally relevant
+		List<String> expected = new ArrayList<>();
+		expected.add(unindexed.getId());
+		expected.add(indexed.getId());
+		assertEquals(expected, search(null, "hello"));
+	}
+
+	@Test
+	public void testSearchIsLimitedToGroup() throws Exception {
+		Message inGroup = addMessage(group, "shared term");
+		Message inOtherGroup = addMessage(otherGroup, "shared term");
+		assertEquals(2, indexAll());
+		assertEquals(singletonList(inGroup.getId()),
+				search(group.getId(), "shared"));
+		assertEquals(singletonList(inOtherGroup.getId()),
+				search(otherGroup.getId(), "shared"));
+		assertEquals(2, search(null, "shared").size());
+	}
+
+	@Test
+	public void testRemovedMessagesAreNotFound() throws Exception {
+		Message removedBeforeIndexing = addMessage(group, "removed early");
+		Message removedAfterIndexing = addMessage(group, "removed late");
+		Message kept = addMessage(group, "removed never");
+		removeMessage(removedBeforeIndexing);
+		assertEquals(3, indexAll());
+		removeMessage(removedAfterIndexing);
+		assertEquals(singletonList(kept.getId()), search(null, "removed"));
+	}
+
+	@Test
+	public void testRarerTermsRankHigher() throws Exception {
+		// Many messages contain "common", few contain "rare"
+		for (int i = 0; i < 10; i++) addMessage(otherGroup, "common");
+		Message rareTwice = addMessage(group, "common rare rare");
+		Message commonTwice = addMessage(group, "common common rare");
+		indexAll();
+		List<String> expected = new ArrayList<>();
+		expected.add(rareTwice.getId());
+		expected.add(commonTwice.getId());
+		assertEquals(expected, search(group.getId(), "rare common"));
+	}
+
+	@Test
+	public void testFindsMessagesInManyBlocks() throws Exception {
+		// Enough postings to split the posting lists into several blocks,
+		// indexed in more than one batch
+		int count = Math.max(5 * POSTING_BLOCK_SIZE,
+				SEARCH_INDEXING_BATCH_SIZE + 1);
+		Set<String> even = new HashSet<>();
+		for (int i = 0; i < count; i++) {
+			Message m = addMessage(i % 3 == 0 ? otherGroup : group,
+					i % 2 == 0 ? "block even" : "block odd");
+			if (i % 2 == 0 && i % 3 != 0) even.add(m.getId());
+		}
+		assertEquals(count, indexAll());
+		List<String> found = dc.transactionWithResult(true, txn -> {
+			List<String> ids = new ArrayList<>();
+			for (MessageHeader h : dc.searchMessages(txn, context.getId(),
+					group.getId(), "even block", count)) {
+				ids.add(h.getMessageId());
+			}
+			return ids;
+		});
+		assertEquals(even.size(), found.size());
+		assertEquals(even, new HashSet<>(found));
+	}
+
+	private Message addMessage(Group g, String text) throws Exception {
+		Message m = getMessage(g.getId(), ++timestamp, text);
+		dc.transaction(false, txn -> dc.addMessage(txn, m,
+				MessageState.values()[0], context.getId(), true));
+		return m;
+	}
+
+	private void removeMessage(Message m) throws Exception {
+		Connection txn = db.startTransaction();
+		try {
+			db.removeMessages(txn, singletonList(m.getId()));
+			db.commitTransaction(txn);
+		} catch (Exception e) {
+			db.abortTransaction(txn);
+			throw e;
+		}
+	}
+
+	private int indexAll() throws Exception {
+		int indexed = 0;
+		while (true) {
+			int batch = dc.transactionWithResult(false, txn ->
+					dc.indexMessages(txn, SEARCH_INDEXING_BATCH_SIZE));
+			indexed += batch;
+			if (batch < SEARCH_INDEXING_BATCH_SIZE) return indexed;
+		}
+	}
+
+	private List<String> search(@Nullable String groupId, String query)
+			throws Exception {
+		return dc.transactionWithResult(true, txn -> {
+			List<String> ids = new ArrayList<>();
+			for (MessageHeader h : dc.searchMessages(txn, context.getId(),
+					groupId, query, 10)) {
+				ids.add(h.getMessageId());
+			}
+			return ids;
+		});
+	}
+}
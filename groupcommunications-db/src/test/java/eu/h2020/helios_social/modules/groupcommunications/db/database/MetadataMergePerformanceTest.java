@@ -0,0 +1,170 @@
+package eu.h2020.helios_social.modules.groupcommunications.db.database;
+
+import eu.h2020.helios_social.modules.groupcommunications.api.context.DBContext;
+import eu.h2020.helios_social.modules.groupcommunications.api.group.Group;
+import eu.h2020.helios_social.modules.groupcommunications.api.group.GroupType;
+import eu.h2020.helios_social.modules.groupcommunications.api.messaging.Message;
+import eu.h2020.helios_social.modules.groupcommunications.api.messaging.MessageState;
+import eu.h2020.helios_social.modules.groupcommunications.db.system.SystemClock;
+import eu.h2020.helios_social.modules.groupcommunications.db.test.TestDatabaseConfig;
+import eu.h2020.helios_social.modules.groupcommunications_utils.db.Metadata;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.List;
+
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.deleteTestDirectory;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getContext;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getGroup;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getMessage;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getPercentile;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getRandomBytes;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getRandomText;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getSecretKey;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getTestDirectory;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Measures how long {@link Database#mergeMessageMetadata} and
+ * {@link Database#mergeGroupMetadata} take to insert new keys and to update
+ * existing keys.
+ */
+public class MetadataMergePerformanceTest {
+
+	private static final int ENTITIES = 200;
+	private static final int KEYS = 5;
+	private static final int VALUE_LENGTH = 32;
+	private static final int WARM_UP_ROUNDS = 3, ROUNDS = 10;
+
+	private final File testDir = getTestDirectory();
+	private final List<String> messageIds = new ArrayList<>(ENTITIES);
+	private final List<String> groupIds = new ArrayList<>(ENTITIES);
+
+	private H2Database db;
+
+	@Before
+	public void setUp() throws Exception {
+		db = new H2Database(
+				new TestDatabaseConfig(testDir, TuningProfile.BALANCED),
+				new SystemClock());
+		assertFalse(db.open(getSecretKey(), null));
+		DBContext context = getContext();
+		Connection txn = db.startTransaction();
+		try {
+			db.addContext(txn, context);
+			for (int i = 0; i < ENTITIES; i++) {
+				Group group = getGroup(context.getId());
+				db.addGroup(txn, group, new byte[0],
+						GroupType.PrivateConversation);
+				groupIds.add(group.getId());
+			}
+			String groupId = groupIds.get(0);
+			for (int i = 0; i < ENTITIES; i++) {
+				Message m = getMessage(groupId, i, getRandomText(10));
+				db.addMessage(txn, m, MessageState.values()[0],
+						context.getId(), true);
+				messageIds.add(m.getId());
+			}
+			db.commitTransaction(txn);
+		} catch (Exception e) {
+			db.abortTransaction(txn);
+			throw e;
+		}
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		db.close();
+		deleteTestDirectory(testDir);
+	}
+
+	@Test
+	public void testMergeMessageMetadata() throws Exception {
+		measure("mergeMessageMetadata", messageIds, (txn, id, meta) ->
+				db.mergeMessageMetadata(txn, id, meta));
+		Connection txn = db.startTransaction();
+		try {
+			assertEquals(KEYS * (WARM_UP_ROUNDS + ROUNDS),
+					db.getMessageMetadata(txn, messageIds.get(0)).size());
+			db.commitTransaction(txn);
+		} catch (Exception e) {
+			db.abortTransaction(txn);
+			throw e;
+		}
+	}
+
+	@Test
+	public void testMergeGroupMetadata() throws Exception {
+		measure("mergeGroupMetadata", groupIds, (txn, id, meta) ->
+				db.mergeGroupMetadata(txn, id, meta));
+		Connection txn = db.startTransaction();
+		try {
+			assertEquals(KEYS * (WARM_UP_ROUNDS + ROUNDS),
+					db.getGroupMetadata(txn, groupIds.get(0)).size());
+			db.commitTransaction(txn);
+		} catch (Exception e) {
+			db.abortTransaction(txn);
+			throw e;
+		}
+	}
+
+	/**
+	 * Each round merges new keys into the metadata of every entity, then
+	 * merges new values for the same keys, in one transaction per pass.
+	 * Prints the median time per call of each pass.
+	 */
+	private void measure(String name, List<String> ids, Merge merge)
+			throws Exception {
+		List<Long> inserts = new ArrayList<>(), updates = new ArrayList<>();
+		for (int round = 0; round < WARM_UP_ROUNDS + ROUNDS; round++) {
+			long insert = mergeAll(ids, merge, round);
+			long update = mergeAll(ids, merge, round);
+			if (round >= WARM_UP_ROUNDS) {
+				inserts.add(insert);
+				updates.add(update);
+			}
+		}
+		System.out.println(String.format("%s: insert %d us/call,"
+						+ " update %d us/call", name,
+				getPercentile(inserts, 50) / 1000 / ids.size(),
+				getPercentile(updates, 50) / 1000 / ids.size()));
+	}
+
+	/**
+	 * Merges the keys of the given round into the metadata of each entity
+	 * and returns the time taken in nanoseconds, excluding the commit.
+	 */
+	private long mergeAll(List<String> ids, Merge merge, int round)
+			throws Exception {
+		List<Metadata> metadata = new ArrayList<>(ids.size());
+		for (int i = 0; i < ids.size(); i++) {
+			Metadata meta = new Metadata();
+			for (int j = 0; j < KEYS; j++)
+				meta.put("key" + round + "_" + j, getRandomBytes(VALUE_LENGTH));
+			metadata.add(meta);
+		}
+		Connection txn = db.startTransaction();
+		try {
+			long start = System.nanoTime();
+			for (int i = 0; i < ids.size(); i++)
+				merge.merge(txn, ids.get(i), metadata.get(i));
+			long duration = System.nanoTime() - start;
+			db.commitTransaction(txn);
+			return duration;
+		} catch (Exception e) {
+			db.abortTransaction(txn);
+			throw e;
+		}
+	}
+
+	private interface Merge {
+
+		void merge(Connection txn, String id, Metadata meta) throws Exception;
+	}
+}
@@ -0,0 +1,143 @@
+package eu.h2020.helios_social.modules.groupcommunications.db.database;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+
+import javax.annotation.Nullable;
+
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.deleteTestDirectory;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getRandomBytes;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getSecretKey;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getTestDirectory;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+public class Migration11_12Test {
+
+	private static final DatabaseTypes DB_TYPES = new DatabaseTypes(
+			"BINARY(32)", "BINARY(32)", "BINARY",
+			"INT NOT NULL AUTO_INCREMENT", "VARCHAR");
+
+	private final File testDir = getTestDirectory();
+	private final BlobStore blobStore = new BlobStore(testDir, getSecretKey());
+	private final byte[] picture = getRandomBytes(1000);
+	private final byte[] otherPicture = getRandomBytes(100 * 1000);
+
+	private Connection txn;
+
+	@Before
+	public void setUp() throws Exception {
+		txn = DriverManager.getConnection("jdbc:h2:mem:");
+		txn.setAutoCommit(false);
+		// The tables as they were before the migration, with only the
+		// columns the migration uses
+		execute("CREATE TABLE identities (id VARCHAR NOT NULL,"
+				+ " profilePicture BINARY, PRIMARY KEY (id))");
+		execute("CREATE TABLE profiles (contextId VARCHAR NOT NULL,"
+				+ " profilepic BINARY, PRIMARY KEY (contextId))");
+		execute("CREATE TABLE contacts (contactId VARCHAR NOT NULL,"
+				+ " profilePicture BINARY, PRIMARY KEY (contactId))");
+		execute("CREATE TABLE groupMembers (peerId VARCHAR NOT NULL,"
+				+ " profilePicture BINARY, groupId VARCHAR NOT NULL,"
+				+ " PRIMARY KEY (peerId, groupId))");
+		execute("CREATE TABLE pendingContacts"
+				+ " (pendingContactId VARCHAR NOT NULL,"
+				+ " profilePicture BINARY, PRIMARY KEY (pendingContactId))");
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		txn.close();
+		deleteTestDirectory(testDir);
+	}
+
+	@Test
+	public void testMovesPicturesToBlobStore() throws Exception {
+		insert("INSERT INTO identities VALUES (?, ?)", "id", picture);
+		insert("INSERT INTO profiles VALUES (?, ?)", "context", picture);
+		insert("INSERT INTO profiles VALUES (?, ?)", "other", null);
+		insert("INSERT INTO contacts VALUES (?, ?)", "contact",
+				otherPicture);
+		insert("INSERT INTO groupMembers VALUES (?, ?, ?)", "peer",
+				picture, "group");
+		insert("INSERT INTO groupMembers VALUES (?, ?, ?)", "peer",
+				otherPicture, "otherGroup");
+		insert("INSERT INTO pendingContacts VALUES (?, ?)", "pending",
+				null);
+
+		new Migration11_12(DB_TYPES, blobStore).migrate(txn);
+
+		assertPicture(picture, "SELECT profilePictureRef FROM identities");
+		assertPicture(picture, "SELECT profilePictureRef FROM profiles"
+				+ " WHERE contextId = 'context'");
+		assertPicture(null, "SELECT profilePictureRef FROM profiles"
+				+ " WHERE contextId = 'other'");
+		assertPicture(otherPicture, "SELECT profilePictureRef FROM contacts");
+		assertPicture(picture, "SELECT profilePictureRef FROM groupMembers"
+				+ " WHERE groupId = 'group'");
+		assertPicture(otherPicture, "SELECT profilePictureRef"
+				+ " FROM groupMembers WHERE groupId = 'otherGroup'");
+		assertPicture(null, "SELECT profilePictureRef FROM pendingContacts");
+		// Identical pictures were stored once
+		assertEquals(2, blobStore.listFiles().size());
+		// The old columns were dropped
+		assertFalse(hasColumn("IDENTITIES", "PROFILEPICTURE"));
+		assertFalse(hasColumn("PROFILES", "PROFILEPIC"));
+		assertFalse(hasColumn("CONTACTS", "PROFILEPICTURE"));
+		assertFalse(hasColumn("GROUPMEMBERS", "PROFILEPICTURE"));
+		assertFalse(hasColumn("PENDINGCONTACTS", "PROFILEPICTURE"));
+		// The migration released the blobs, so they can be collected
+		blobStore.retainOnly(ArrayList::new);
+		assertEquals(0, blobStore.listFiles().size());
+	}
+
+	private void execute(String sql) throws SQLException {
+		Statement s = txn.createStatement();
+		s.execute(sql);
+		s.close();
+	}
+
+	private void insert(String sql, String key, @Nullable byte[] picture,
+			String... moreKeys) throws SQLException {
+		PreparedStatement ps = txn.prepareStatement(sql);
+		ps.setString(1, key);
+		ps.setBytes(2, picture);
+		for (int i = 0; i < moreKeys.length; i++)
+			ps.setString(i + 3, moreKeys[i]);
+		assertEquals(1, ps.executeUpdate());
+		ps.close();
+	}
+
+	private void assertPicture(@Nullable byte[] expected, String sql)
+			throws Exception {
+		Statement s = txn.createStatement();
+		ResultSet rs = s.executeQuery(sql);
+		rs.next();
+		byte[] ref = rs.getBytes(1);
+		rs.close();
+		s.close();
+		if (expected == null) assertNull(ref);
+		else assertArrayEquals(expected, blobStore.get(ref));
+	}
+
+	private boolean hasColumn(String table, String column)
+			throws SQLException {
+		ResultSet rs = txn.getMetaData().getColumns(null, null, table,
+				column);
+		boolean found = rs.next();
+		rs.close();
+		return found;
+	}
+}
@@ -0,0 +1,285 @@
+package eu.h2020.helios_social.modules.groupcommunications.db.database;
+
+import eu.h2020.helios_social.modules.groupcommunications.api.context.DBContext;
+import eu.h2020.helios_social.modules.groupcommunications.api.group.Group;
+import eu.h2020.helios_social.modules.groupcommunications.api.group.GroupType;
+import eu.h2020.helios_social.modules.groupcommunications.api.messaging.Message;
+import eu.h2020.helios_social.modules.groupcommunications.api.messaging.MessageHeader;
+import eu.h2020.helios_social.modules.groupcommunications.api.messaging.MessageState;
+import eu.h2020.helios_social.modules.groupcommunications.db.system.SystemClock;
+import eu.h2020.helios_social.modules.groupcommunications.db.test.TestDatabaseConfig;
+import eu.h2020.helios_social.modules.groupcommunications_utils.db.Metadata;
+
+import org.h2.engine.Session;
+import org.h2.jdbc.JdbcConnection;
+import org.h2.mvstore.db.ValueDataType;
+import org.h2.mvstore.tx.Transaction;
+import org.h2.mvstore.tx.TransactionMap;
+import org.h2.value.Value;
+import org.h2.value.ValueBytes;
+import org.h2.value.ValueString;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static eu.h2020.helios_social.modules.groupcommunications.db.database.MessageCursor.Direction.BEFORE;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.deleteTestDirectory;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getContext;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getGroup;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getMessage;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getPercentile;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getRandomBytes;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getRandomText;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getSecretKey;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getTestDirectory;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Runs the same workload against the JDBC tables and against MVStore maps
+ * in the same encrypted file, to measure what storing messages, headers
+ * and metadata in native maps would save. The maps are opened through the
+ * SQL session's transaction, so their changes commit with the SQL changes.
+ * <p/>
+ * The native side only stores and reads the data; it doesn't maintain the
+ * unread counts, search queue or foreign keys that the JDBC side does.
+ * <p/>
+ * The number of messages can be changed with the
+ * {@code nativeBenchmarkMessages} system property.
+ */
+public class NativeMapPerformanceTest {
+
+	private static final int MESSAGES =
+			Integer.getInteger("nativeBenchmarkMessages", 100_000);
+	private static final int GROUPS = 100;
+	private static final int MESSAGES_PER_TRANSACTION = 1000;
+	private static final int METADATA_KEYS = 3, VALUE_LENGTH = 32;
+	private static final int QUERIES = 1000;
+	private static final int PAGE_SIZE = 20;
+
+	private static final String HEADERS = "benchmarkHeaders";
+	private static final String METADATA = "benchmarkMetadata";
+
+	private final File testDir = getTestDirectory();
+	private final Random random = new Random(0);
+	private final List<String> groupIds = new ArrayList<>(GROUPS);
+	private final List<String> messageIds = new ArrayList<>(MESSAGES);
+
+	private H2Database db;
+	private DBContext context;
+
+	@Before
+	public void setUp() throws Exception {
+		db = new H2Database(
+				new TestDatabaseConfig(testDir, TuningProfile.BALANCED),
+				new SystemClock());
+		assertFalse(db.open(getSecretKey(), null));
+		context = getContext();
+		Connection txn = db.startTransaction();
+		try {
+			db.addContext(txn, context);
+			for (int i = 0; i < GROUPS; i++) {
+				Group group = getGroup(context.getId());
+				db.addGroup(txn, group, new byte[0],
+						GroupType.PrivateConversation);
+				groupIds.add(group.getId());
+			}
+			db.commitTransaction(txn);
+		} catch (Exception e) {
+			db.abortTransaction(txn);
+			throw e;
+		}
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		db.close();
+		deleteTestDirectory(testDir);
+	}
+
+	@Test
+	public void testNativeMaps() throws Exception {
+		long jdbc = 0, nativeMaps = 0;
+		for (int i = 0; i < MESSAGES; i += MESSAGES_PER_TRANSACTION) {
+			List<NewMessage> messages = createMessages(
+					Math.min(MESSAGES_PER_TRANSACTION, MESSAGES - i));
+			Metadata meta = createMetadata();
+			long start = System.nanoTime();
+			addMessagesWithJdbc(messages, meta);
+			jdbc += System.nanoTime() - start;
+			start = System.nanoTime();
+			addMessagesToMaps(messages, meta);
+			nativeMaps += System.nanoTime() - start;
+		}
+		System.out.println(String.format("Add %d messages with metadata:"
+						+ " JDBC %d ms, native maps %d ms", MESSAGES,
+				NANOSECONDS.toMillis(jdbc), NANOSECONDS.toMillis(nativeMaps)));
+
+		List<Long> jdbcPages = new ArrayList<>(), nativePages =
+				new ArrayList<>();
+		List<Long> jdbcMeta = new ArrayList<>(), nativeMeta =
+				new ArrayList<>();
+		for (int i = 0; i < QUERIES; i++) {
+			String groupId = groupIds.get(random.nextInt(GROUPS));
+			String messageId = messageIds.get(random.nextInt(MESSAGES));
+			Connection txn = db.startTransaction();
+			try {
+				long start = System.nanoTime();
+				List<MessageHeader> page = db.getMessageHeaders(txn, groupId,
+						null, PAGE_SIZE, BEFORE);
+				jdbcPages.add(System.nanoTime() - start);
+				start = System.nanoTime();
+				List<String> nativePage = getNewestFromMap(txn, groupId);
+				nativePages.add(System.nanoTime() - start);
+				assertEquals(page.size(), nativePage.size());
+				start = System.nanoTime();
+				Metadata meta = db.getMessageMetadata(txn, messageId);
+				jdbcMeta.add(System.nanoTime() - start);
+				start = System.nanoTime();
+				int found = getMetadataFromMap(txn, messageId);
+				nativeMeta.add(System.nanoTime() - start);
+				assertEquals(meta.size(), found);
+				db.commitTransaction(txn);
+			} catch (Exception e) {
+				db.abortTransaction(txn);
+				throw e;
+			}
+		}
+		print("Newest page of headers", jdbcPages, nativePages);
+		print("Message metadata", jdbcMeta, nativeMeta);
+	}
+
+	private List<NewMessage> createMessages(int count) {
+		List<NewMessage> messages = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			String groupId = groupIds.get(random.nextInt(GROUPS));
+			Message m = getMessage(groupId, messageIds.size(),
+					getRandomText(10));
+			messageIds.add(m.getId());
+			messages.add(new NewMessage(m, MessageState.values()[0],
+					context.getId(), true));
+		}
+		return messages;
+	}
+
+	private Metadata createMetadata() {
+		Metadata meta = new Metadata();
+		for (int i = 0; i < METADATA_KEYS; i++)
+			meta.put("key" + i, getRandomBytes(VALUE_LENGTH));
+		return meta;
+	}
+
+	private void addMessagesWithJdbc(List<NewMessage> messages, Metadata meta)
+			throws Exception {
+		Connection txn = db.startTransaction();
+		try {
+			db.addMessages(txn, messages);
+			for (NewMessage m : messages) {
+				db.mergeMessageMetadata(txn, m.getMessage().getId(), meta);
+			}
+			db.commitTransaction(txn);
+		} catch (Exception e) {
+			db.abortTransaction(txn);
+			throw e;
+		}
+	}
+
+	/**
+	 * Stores each message's header and text under a key that sorts the
+	 * messages of a group by timestamp, and each metadata entry under the
+	 * message ID and metadata key.
+	 */
+	private void addMessagesToMaps(List<NewMessage> messages, Metadata meta)
+			throws Exception {
+		Connection txn = db.startTransaction();
+		try {
+			Transaction t = getTransaction(txn);
+			TransactionMap<Value, Value> headers = openMap(t, HEADERS);
+			TransactionMap<Value, Value> metadata = openMap(t, METADATA);
+			for (NewMessage n : messages) {
+				Message m = n.getMessage();
+				headers.put(getHeaderKey(m.getGroupId(), m.getTimestamp(),
+						m.getId()), ValueString.get(n.getState().ordinal()
+						+ "|" + n.isIncoming() + "|" + m.getMessageBody()));
+				for (String key : meta.keySet()) {
+					metadata.put(ValueString.get(m.getId() + "|" + key),
+							ValueBytes.get(meta.get(key)));
+				}
+			}
+			db.commitTransaction(txn);
+		} catch (Exception e) {
+			db.abortTransaction(txn);
+			throw e;
+		}
+	}
+
+	private List<String> getNewestFromMap(Connection txn, String groupId)
+			throws Exception {
+		TransactionMap<Value, Value> headers =
+				openMap(getTransaction(txn), HEADERS);
+		List<String> page = new ArrayList<>(PAGE_SIZE);
+		// '}' sorts after the separator, so this finds the group's last key
+		Value key = headers.lowerKey(ValueString.get(groupId + "}"));
+		while (key != null && key.getString().startsWith(groupId + "|")
+				&& page.size() < PAGE_SIZE) {
+			page.add(headers.get(key).getString());
+			key = headers.lowerKey(key);
+		}
+		return page;
+	}
+
+	private int getMetadataFromMap(Connection txn, String messageId)
+			throws Exception {
+		TransactionMap<Value, Value> metadata =
+				openMap(getTransaction(txn), METADATA);
+		int found = 0;
+		for (int i = 0; i < METADATA_KEYS; i++) {
+			if (metadata.get(ValueString.get(messageId + "|key" + i)) != null)
+				found++;
+		}
+		return found;
+	}
+
+	/**
+	 * Opens a map in the given transaction. The transaction's undo log
+	 * stores old values as H2 values, so the map's keys and values must be
+	 * H2 values too.
+	 */
+	private TransactionMap<Value, Value> openMap(Transaction t, String name) {
+		return t.openMap(name, new ValueDataType(), new ValueDataType());
+	}
+
+	private Transaction getTransaction(Connection txn) throws Exception {
+		Session session =
+				(Session) txn.unwrap(JdbcConnection.class).getSession();
+		return session.getTransaction();
+	}
+
+	private Value getHeaderKey(String groupId, long timestamp,
+			String messageId) {
+		return ValueString.get(groupId + "|"
+				+ String.format("%019d", timestamp) + "|" + messageId);
+	}
+
+	private void print(String name, List<Long> jdbc, List<Long> nativeMaps) {
+		System.out.println(String.format("%s: JDBC median %.3f ms,"
+						+ " p99 %.3f ms; native maps median %.3f ms,"
+						+ " p99 %.3f ms", name,
+				toMillis(getPercentile(jdbc, 50)),
+				toMillis(getPercentile(jdbc, 99)),
+				toMillis(getPercentile(nativeMaps, 50)),
+				toMillis(getPercentile(nativeMaps, 99))));
+	}
+
+	private double toMillis(long nanos) {
+		return nanos / (double) NANOSECONDS.convert(1, MILLISECONDS);
+	}
+}
@@ -0,0 +1,210 @@
+package eu.h2020.helios_social.modules.groupcommunications.db.database;
+
+import eu.h2020.helios_social.modules.groupcommunications.api.context.DBContext;
+import eu.h2020.helios_social.modules.groupcommunications.db.system.SystemClock;
+import eu.h2020.helios_social.modules.groupcommunications.db.test.NoOpShutdownManager;
+import eu.h2020.helios_social.modules.groupcommunications.db.test.RecordingEventBus;
+import eu.h2020.helios_social.modules.groupcommunications.db.test.TestDatabaseConfig;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import static eu.h2020.helios_social.modules.groupcommunications.api.resourcediscovery.EntityType.GROUP;
+import static eu.h2020.helios_social.modules.groupcommunications.db.database.DatabaseConstants.POSTING_BLOCK_SIZE;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.deleteTestDirectory;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getContext;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getSecretKey;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getTestDirectory;
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks how posting lists are split into blocks as documents are added
+ * and removed, and that queries read them back across block boundaries.
+ */
+public class PostingBlocksTest {
+
+	private static final String TERM = "term";
+	private static final String OTHER_TERM = "other";
+
+	private final File testDir = getTestDirectory();
+	private final DBContext context = getContext();
+
+	private H2Database db;
+	private DatabaseComponentImpl<Connection> dc;
+
+	@Before
+	public void setUp() throws Exception {
+		db = new H2Database(
+				new TestDatabaseConfig(testDir, TuningProfile.LOW_MEMORY),
+				new SystemClock());
+		db.open(getSecretKey(), null);
+		dc = new DatabaseComponentImpl<>(db, Connection.class,
+				new RecordingEventBus(), Runnable::run,
+				new NoOpShutdownManager());
+		dc.transaction(false, txn -> dc.addContext(txn, context));
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		dc.close();
+		deleteTestDirectory(testDir);
+	}
+
+	@Test
+	public void testListIsSplitWhenItOutgrowsTwoBlocks() throws Exception {
+		List<String> docs = getDocIds(0, 2 * POSTING_BLOCK_SIZE + 1);
+		// A full block is stored as one block
+		addPostingsInOrder(TERM, docs.subList(0, POSTING_BLOCK_SIZE));
+		assertEquals(singletonList(POSTING_BLOCK_SIZE), getBlockSizes(TERM));
+		// The block grows until it holds two blocks' worth of postings
+		addPostingsInOrder(TERM, docs.subList(POSTING_BLOCK_SIZE,
+				2 * POSTING_BLOCK_SIZE));
+		assertEquals(singletonList(2 * POSTING_BLOCK_SIZE),
+				getBlockSizes(TERM));
+		// Then it's split into full blocks and the rest
+		addPostings(TERM, docs.subList(2 * POSTING_BLOCK_SIZE, docs.size()));
+		assertEquals(asList(POSTING_BLOCK_SIZE, POSTING_BLOCK_SIZE, 1),
+				getBlockSizes(TERM));
+		assertEquals(docs, query(true, TERM));
+	}
+
+	@Test
+	public void testListAddedAtOnceIsSplitIntoFullBlocks() throws Exception {
+		addPostings(TERM, getDocIds(0, 2 * POSTING_BLOCK_SIZE));
+		assertEquals(singletonList(2 * POSTING_BLOCK_SIZE),
+				getBlockSizes(TERM));
+		addPostings(OTHER_TERM, getDocIds(0, 3 * POSTING_BLOCK_SIZE - 1));
+		assertEquals(asList(POSTING_BLOCK_SIZE, POSTING_BLOCK_SIZE,
+				POSTING_BLOCK_SIZE - 1), getBlockSizes(OTHER_TERM));
+		assertEquals(3 * POSTING_BLOCK_SIZE - 1,
+				query(true, OTHER_TERM).size());
+	}
+
+	@Test
+	public void testEmptiedBlocksAreDeleted() throws Exception {
+		List<String> docs = getDocIds(0, 3 * POSTING_BLOCK_SIZE);
+		addPostingsInOrder(TERM, docs);
+		assertEquals(asList(POSTING_BLOCK_SIZE, POSTING_BLOCK_SIZE,
+				POSTING_BLOCK_SIZE), getBlockSizes(TERM));
+		// Empty the middle block
+		removePostings(TERM, docs.subList(POSTING_BLOCK_SIZE,
+				2 * POSTING_BLOCK_SIZE));
+		assertEquals(asList(POSTING_BLOCK_SIZE, POSTING_BLOCK_SIZE),
+				getBlockSizes(TERM));
+		List<String> expected = new ArrayList<>(docs);
+		expected.removeAll(docs.subList(POSTING_BLOCK_SIZE,
+				2 * POSTING_BLOCK_SIZE));
+		assertEquals(expected, query(true, TERM));
+
+		removePostings(TERM, docs);
+		assertTrue(getBlockSizes(TERM).isEmpty());
+		assertTrue(query(true, TERM).isEmpty());
+	}
+
+	@Test
+	public void testUnchangedBlocksAreNotRewritten() throws Exception {
+		List<String> docs = getDocIds(0, POSTING_BLOCK_SIZE);
+		addPostings(TERM, docs);
+		// Repeated, empty and unknown updates leave the list as it was
+		addPostings(TERM, docs.subList(0, 10));
+		addPostings(TERM, new ArrayList<>());
+		removePostings(TERM, singletonList("unknown"));
+		removePostings(OTHER_TERM, docs);
+		assertEquals(singletonList(POSTING_BLOCK_SIZE), getBlockSizes(TERM));
+		assertTrue(getBlockSizes(OTHER_TERM).isEmpty());
+	}
+
+	@Test
+	public void testQueriesMatchAcrossBlocks() throws Exception {
+		List<String> docs = getDocIds(0, 4 * POSTING_BLOCK_SIZE);
+		addPostingsInOrder(TERM, docs);
+		// The other term matches the first and last document of each block
+		// and one document past the end of the list
+		List<String> other = new ArrayList<>();
+		for (int i = 0; i < docs.size(); i += POSTING_BLOCK_SIZE) {
+			other.add(docs.get(i));
+			other.add(docs.get(i + POSTING_BLOCK_SIZE - 1));
+		}
+		addPostingsInOrder(OTHER_TERM, other);
+		addPostings(OTHER_TERM, singletonList("extra"));
+
+		assertEquals(other, query(true, TERM, OTHER_TERM));
+		List<String> all = new ArrayList<>(docs);
+		all.add("extra");
+		assertEquals(all, query(false, TERM, OTHER_TERM));
+		// A term that isn't indexed matches nothing when all must match
+		assertTrue(query(true, TERM, "missing").isEmpty());
+		assertEquals(docs, query(false, TERM, "missing"));
+	}
+
+	private List<String> getDocIds(int start, int end) {
+		List<String> ids = new ArrayList<>();
+		for (int i = start; i < end; i++) ids.add("doc" + i);
+		return ids;
+	}
+
+	private void addPostings(String term, Collection<String> docIds)
+			throws Exception {
+		dc.transaction(false, txn ->
+				dc.addPostings(txn, GROUP, context.getId(), term, docIds));
+	}
+
+	/**
+	 * Adds the given documents one at a time, so they're numbered and
+	 * returned by queries in the given order.
+	 */
+	private void addPostingsInOrder(String term, List<String> docIds)
+			throws Exception {
+		dc.transaction(false, txn -> {
+			for (String docId : docIds) {
+				dc.addPostings(txn, GROUP, context.getId(), term,
+						singletonList(docId));
+			}
+		});
+	}
+
+	private void removePostings(String term, Collection<String> docIds)
+			throws Exception {
+		dc.transaction(false, txn ->
+				dc.removePostings(txn, GROUP, context.getId(), term, docIds));
+	}
+
+	private List<String> query(boolean matchAll, String... terms)
+			throws Exception {
+		return dc.transactionWithResult(true, txn -> dc.queryPostings(txn,
+				GROUP, context.getId(), asList(terms), matchAll));
+	}
+
+	/**
+	 * Returns the number of postings in each block of the given term's
+	 * posting list, in document order.
+	 */
+	private List<Integer> getBlockSizes(String term) throws Exception {
+		return dc.transactionWithResult(true, txn -> {
+			Connection c = (Connection) txn.unbox();
+			PreparedStatement ps = c.prepareStatement("SELECT postingCount"
+					+ " FROM postingBlocks WHERE contextId = ? AND term = ?"
+					+ " ORDER BY firstDoc");
+			ps.setString(1, context.getId());
+			ps.setString(2, term);
+			ResultSet rs = ps.executeQuery();
+			List<Integer> sizes = new ArrayList<>();
+			while (rs.next()) sizes.add(rs.getInt(1));
+			rs.close();
+			ps.close();
+			return sizes;
+		});
+	}
+}
@@ -0,0 +1,114 @@
+package eu.h2020.helios_social.modules.groupcommunications.db.database;
+
+import org.junit.Test;
+
+import static eu.h2020.helios_social.modules.groupcommunications.db.database.DatabaseConstants.POSTING_BLOCK_SIZE;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class PostingListTest {
+
+	@Test
+	public void testBlocksRoundTrip() {
+		for (int length : new int[] {0, 1, POSTING_BLOCK_SIZE - 1,
+				POSTING_BLOCK_SIZE, POSTING_BLOCK_SIZE + 1,
+				2 * POSTING_BLOCK_SIZE}) {
+			int[] postings = new int[length];
+			for (int i = 0; i < length; i++) postings[i] = i * 1000 + 7;
+			assertArrayEquals(postings,
+					PostingList.decode(PostingList.encode(postings, length)));
+		}
+	}
+
+	@Test
+	public void testEmptyBlockIsOneByte() {
+		byte[] encoded = PostingList.encode(new int[0], 0);
+		assertArrayEquals(new byte[] {0}, encoded);
+		assertEquals(0, PostingList.decode(encoded).length);
+	}
+
+	@Test
+	public void testFullBlockOfCloseDocumentsTakesOneByteEach() {
+		int[] postings = new int[POSTING_BLOCK_SIZE];
+		for (int i = 0; i < postings.length; i++) postings[i] = i;
+		byte[] encoded = PostingList.encode(postings, postings.length);
+		// The length of a full block doesn't fit in one byte
+		assertEquals(2 + POSTING_BLOCK_SIZE, encoded.length);
+		assertArrayEquals(postings, PostingList.decode(encoded));
+	}
+
+	@Test
+	public void testOnlyGivenLengthIsEncoded() {
+		int[] postings = {1, 2, 3, 0};
+		assertArrayEquals(new int[] {1, 2, 3},
+				PostingList.decode(PostingList.encode(postings, 3)));
+	}
+
+	@Test
+	public void testGapsAtVarIntBoundariesRoundTrip() {
+		int[] gaps = {0, 127, 128, 16383, 16384, 2097151, 2097152};
+		int[] postings = new int[gaps.length];
+		int previous = 0;
+		for (int i = 0; i < gaps.length; i++) {
+			previous += gaps[i];
+			postings[i] = previous;
+		}
+		byte[] encoded = PostingList.encode(postings, postings.length);
+		// The length, then gaps of 1, 1, 2, 2, 3, 3 and 4 bytes
+		assertEquals(1 + 1 + 1 + 2 + 2 + 3 + 3 + 4, encoded.length);
+		assertArrayEquals(postings, PostingList.decode(encoded));
+
+		int[] largest = {Integer.MAX_VALUE};
+		encoded = PostingList.encode(largest, 1);
+		assertEquals(1 + 5, encoded.length);
+		assertArrayEquals(largest, PostingList.decode(encoded));
+	}
+
+	@Test
+	public void testUnsortedOrRepeatedPostingsAreRejected() {
+		for (int[] postings : new int[][] {{2, 1}, {1, 1}, {-1}}) {
+			try {
+				PostingList.encode(postings, postings.length);
+				fail();
+			} catch (IllegalArgumentException expected) {
+				// Expected
+			}
+		}
+	}
+
+	@Test
+	public void testMalformedBlocksAreRejected() {
+		byte[] encoded = PostingList.encode(new int[] {1, 200}, 2);
+		byte[] truncated = new byte[encoded.length - 1];
+		System.arraycopy(encoded, 0, truncated, 0, truncated.length);
+		byte[] extended = new byte[encoded.length + 1];
+		System.arraycopy(encoded, 0, extended, 0, encoded.length);
+		byte[] overlong = {1, (byte) 0x80, (byte) 0x80, (byte) 0x80,
+				(byte) 0x80, (byte) 0x80, 0};
+		for (byte[] b : new byte[][] {new byte[0], truncated, extended,
+				overlong}) {
+			try {
+				PostingList.decode(b);
+				fail();
+			} catch (IllegalArgumentException expected) {
+				// Expected
+			}
+		}
+	}
+
+	@Test
+	public void testSetOperations() {
+		int[] a = {1, 3, 5, 7};
+		int[] b = {3, 4, 7, 8};
+		int[] empty = new int[0];
+		assertArrayEquals(new int[] {3, 7}, PostingList.intersect(a, b));
+		assertArrayEquals(new int[] {1, 3, 4, 5, 7, 8},
+				PostingList.union(a, b));
+		assertArrayEquals(new int[] {1, 5}, PostingList.difference(a, b));
+		assertArrayEquals(empty, PostingList.intersect(a, empty));
+		assertArrayEquals(a, PostingList.union(empty, a));
+		assertArrayEquals(a, PostingList.difference(a, empty));
+		assertArrayEquals(empty, PostingList.difference(a, a));
+	}
+}
@@ -0,0 +1,172 @@
+package eu.h2020.helios_social.modules.groupcommunications.db.database;
+
+import eu.h2020.helios_social.modules.groupcommunications.api.contact.Contact;
+import eu.h2020.helios_social.modules.groupcommunications.api.contact.ContactId;
+import eu.h2020.helios_social.modules.groupcommunications.db.system.SystemClock;
+import eu.h2020.helios_social.modules.groupcommunications.db.test.TestDatabaseConfig;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.sql.Connection;
+import java.util.Collection;
+
+import javax.annotation.Nullable;
+
+import static eu.h2020.helios_social.modules.groupcommunications.db.database.DatabaseBackup.BLOB_DIRECTORY_NAME;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.deleteTestDirectory;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getRandomBytes;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getSecretKey;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getTestDirectory;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ProfilePictureTest {
+
+	private final File testDir = getTestDirectory();
+	private final File blobDir = new File(
+			new TestDatabaseConfig(testDir).getDatabaseDirectory(),
+			BLOB_DIRECTORY_NAME);
+	private final ContactId contactId = new ContactId("contact");
+	private final ContactId otherContactId = new ContactId("other");
+	private final byte[] picture = getRandomBytes(1000);
+
+	private H2Database db;
+	private PublicKey publicKey;
+
+	@Before
+	public void setUp() throws Exception {
+		KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+		generator.initialize(1024);
+		publicKey = generator.generateKeyPair().getPublic();
+		db = new H2Database(
+				new TestDatabaseConfig(testDir, TuningProfile.LOW_MEMORY),
+				new SystemClock());
+		db.open(getSecretKey(), null);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		db.close();
+		deleteTestDirectory(testDir);
+	}
+
+	@Test
+	public void testUnreferencedPictureIsDeletedWhenRemovalCommits()
+			throws Exception {
+		// Two contacts share a picture, which is stored once
+		addContact(contactId, picture);
+		addContact(otherContactId, picture);
+		assertEquals(1, countBlobs());
+
+		// The picture is still referenced by the other contact
+		removeContact(contactId, true);
+		assertEquals(1, countBlobs());
+
+		// An aborted removal doesn't delete the picture
+		removeContact(otherContactId, false);
+		assertEquals(1, countBlobs());
+
+		removeContact(otherContactId, true);
+		assertEquals(0, countBlobs());
+	}
+
+	@Test
+	public void testPictureStoredByOpenTransactionIsNotDeleted()
+			throws Exception {
+		addContact(contactId, picture);
+		// Another transaction stores the same picture but hasn't committed
+		Connection txn = db.startTransaction();
+		try {
+			db.addContact(txn, new Contact(otherContactId, "alias", picture,
+					publicKey));
+			removeContact(contactId, true);
+			assertEquals(1, countBlobs());
+			db.commitTransaction(txn);
+		} catch (Exception e) {
+			db.abortTransaction(txn);
+			throw e;
+		}
+		assertArrayEquals(picture, getPicture(otherContactId));
+	}
+
+	@Test
+	public void testListedPicturesAreLoadedWhenFirstNeeded()
+			throws Exception {
+		addContact(contactId, picture);
+		addContact(otherContactId, null);
+		Collection<Contact> contacts = getContacts();
+		assertEquals(2, contacts.size());
+		// The pictures are read after the transaction has ended
+		for (Contact c : contacts) {
+			if (c.getId().equals(contactId))
+				assertArrayEquals(picture, c.getProfilePicture());
+			else assertNull(c.getProfilePicture());
+		}
+
+		// A picture that's deleted before it's read is returned as null
+		contacts = getContacts();
+		removeContact(contactId, true);
+		for (Contact c : contacts) assertNull(c.getProfilePicture());
+	}
+
+	private void addContact(ContactId c, @Nullable byte[] picture)
+			throws Exception {
+		Connection txn = db.startTransaction();
+		try {
+			db.addContact(txn, new Contact(c, "alias", picture, publicKey));
+			db.commitTransaction(txn);
+		} catch (Exception e) {
+			db.abortTransaction(txn);
+			throw e;
+		}
+	}
+
+	private void removeContact(ContactId c, boolean commit)
+			throws Exception {
+		Connection txn = db.startTransaction();
+		try {
+			db.removeContact(txn, c);
+			if (commit) db.commitTransaction(txn);
+			else db.abortTransaction(txn);
+		} catch (Exception e) {
+			db.abortTransaction(txn);
+			throw e;
+		}
+	}
+
+	private Collection<Contact> getContacts() throws Exception {
+		Connection txn = db.startTransaction();
+		try {
+			Collection<Contact> contacts = db.getContacts(txn);
+			db.commitTransaction(txn);
+			return contacts;
+		} catch (Exception e) {
+			db.abortTransaction(txn);
+			throw e;
+		}
+	}
+
+	@Nullable
+	private byte[] getPicture(ContactId c) throws Exception {
+		Connection txn = db.startTransaction();
+		try {
+			byte[] picture = db.getContact(txn, c).getProfilePicture();
+			db.commitTransaction(txn);
+			return picture;
+		} catch (Exception e) {
+			db.abortTransaction(txn);
+			throw e;
+		}
+	}
+
+	private int countBlobs() {
+		String[] names = blobDir.list();
+		return names == null ? 0 : names.length;
+	}
+}
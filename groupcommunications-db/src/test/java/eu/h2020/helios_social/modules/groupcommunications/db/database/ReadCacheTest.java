@@ -0,0 +1,109 @@
+package eu.h2020.helios_social.modules.groupcommunications.db.database;
+
+import eu.h2020.helios_social.modules.groupcommunications.api.context.DBContext;
+import eu.h2020.helios_social.modules.groupcommunications.api.group.Group;
+
+import org.junit.Test;
+
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getContext;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getGroup;
+import static java.util.Collections.singletonList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class ReadCacheTest {
+
+	private final ReadCache cache = new ReadCache();
+	private final DBContext context = getContext();
+	private final Group group = getGroup(context.getId());
+	private final Group otherGroup = getGroup(context.getId());
+
+	@Test
+	public void testOnlyReadOnlyScopesFillCache() {
+		ReadCache.Scope write = cache.newScope(false);
+		write.putGroup(group);
+		write.putContext(context);
+		write.putContexts(singletonList(context));
+		ReadCache.Scope read = cache.newScope(true);
+		assertNull(read.getGroup(group.getId()));
+		assertNull(read.getContext(context.getId()));
+		assertNull(read.getContexts());
+
+		read.putGroup(group);
+		read.putContext(context);
+		read.putContexts(singletonList(context));
+		ReadCache.Scope later = cache.newScope(true);
+		assertSame(group, later.getGroup(group.getId()));
+		assertSame(context, later.getContext(context.getId()));
+		assertNotNull(later.getContexts());
+		// Write transactions read the entries filled by readers
+		assertSame(group, cache.newScope(false).getGroup(group.getId()));
+	}
+
+	@Test
+	public void testCommittedChangesInvalidateOnlyChangedEntries() {
+		ReadCache.Scope read = cache.newScope(true);
+		read.putGroup(group);
+		read.putGroup(otherGroup);
+
+		ReadCache.Scope write = cache.newScope(false);
+		write.groupChanged(group.getId());
+		// The writer reads its own change from the database
+		assertNull(write.getGroup(group.getId()));
+		assertSame(otherGroup, write.getGroup(otherGroup.getId()));
+		// Other scopes see the committed state until the writer commits
+		assertSame(group, cache.newScope(true).getGroup(group.getId()));
+
+		write.commit();
+		ReadCache.Scope after = cache.newScope(true);
+		assertNull(after.getGroup(group.getId()));
+		assertSame(otherGroup, after.getGroup(otherGroup.getId()));
+	}
+
+	@Test
+	public void testScopeFromEarlierGenerationDoesNotFillCache() {
+		// A reader starts, then a writer commits a change
+		ReadCache.Scope read = cache.newScope(true);
+		ReadCache.Scope write = cache.newScope(false);
+		write.contextChanged(context.getId());
+		write.commit();
+		// The reader may have read the old value, so it isn't cached
+		read.putContext(context);
+		read.putGroup(group);
+		read.putContexts(singletonList(context));
+		ReadCache.Scope later = cache.newScope(true);
+		assertNull(later.getContext(context.getId()));
+		assertNull(later.getGroup(group.getId()));
+		assertNull(later.getContexts());
+		// A reader that starts after the change fills the cache again
+		later.putContext(context);
+		assertSame(context, cache.newScope(true).getContext(context.getId()));
+	}
+
+	@Test
+	public void testUncommittedChangesDoNotInvalidate() {
+		ReadCache.Scope read = cache.newScope(true);
+		read.putGroup(group);
+		ReadCache.Scope write = cache.newScope(false);
+		write.allGroupsChanged();
+		assertNull(write.getGroup(group.getId()));
+		// The writer aborted, so its scope is dropped without committing
+		ReadCache.Scope later = cache.newScope(true);
+		assertSame(group, later.getGroup(group.getId()));
+		later.putGroup(otherGroup);
+		assertSame(otherGroup,
+				cache.newScope(true).getGroup(otherGroup.getId()));
+	}
+
+	@Test
+	public void testCountsHitsAndMisses() {
+		ReadCache.Scope read = cache.newScope(true);
+		assertNull(read.getGroup(group.getId()));
+		read.putGroup(group);
+		assertSame(group, read.getGroup(group.getId()));
+		assertEquals(1, cache.getHits());
+		assertEquals(1, cache.getMisses());
+	}
+}
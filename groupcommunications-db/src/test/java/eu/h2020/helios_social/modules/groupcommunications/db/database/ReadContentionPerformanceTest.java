@@ -0,0 +1,183 @@
+package eu.h2020.helios_social.modules.groupcommunications.db.database;
+
+import eu.h2020.helios_social.modules.groupcommunications.api.context.DBContext;
+import eu.h2020.helios_social.modules.groupcommunications.api.group.Group;
+import eu.h2020.helios_social.modules.groupcommunications.api.group.GroupType;
+import eu.h2020.helios_social.modules.groupcommunications.api.messaging.MessageState;
+import eu.h2020.helios_social.modules.groupcommunications.db.system.SystemClock;
+import eu.h2020.helios_social.modules.groupcommunications.db.test.NoOpShutdownManager;
+import eu.h2020.helios_social.modules.groupcommunications.db.test.RecordingEventBus;
+import eu.h2020.helios_social.modules.groupcommunications.db.test.TestDatabaseConfig;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static eu.h2020.helios_social.modules.groupcommunications.db.database.DatabaseConstants.MAX_GROUP_COMMIT_DELAY_MS;
+import static eu.h2020.helios_social.modules.groupcommunications.db.database.DatabaseConstants.MAX_GROUP_COMMIT_SIZE;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.deleteTestDirectory;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getContext;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getGroup;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getMessage;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getPercentile;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getRandomText;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getSecretKey;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getTestDirectory;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Measures the throughput and read latency while one thread writes messages
+ * to a conversation and several threads read it, with and without group
+ * commit.
+ */
+public class ReadContentionPerformanceTest {
+
+	private static final int READERS = 4;
+	private static final int INITIAL_MESSAGES = 1000;
+	private static final int MESSAGES_PER_WRITE = 10;
+	private static final int PAGE_SIZE = 20;
+	private static final long WARM_UP_MS = 2_000, DURATION_MS = 10_000;
+
+	private final List<File> testDirs = new ArrayList<>();
+
+	@After
+	public void tearDown() {
+		for (File testDir : testDirs) deleteTestDirectory(testDir);
+	}
+
+	@Test
+	public void testReadContention() throws Exception {
+		System.out.println("Without group commit: " + measure(0, 1));
+		System.out.println("With group commit: " + measure(
+				MAX_GROUP_COMMIT_DELAY_MS, MAX_GROUP_COMMIT_SIZE));
+	}
+
+	private Result measure(long maxGroupCommitDelayMs, int maxGroupCommitSize)
+			throws Exception {
+		File testDir = getTestDirectory();
+		testDirs.add(testDir);
+		H2Database db = new H2Database(
+				new TestDatabaseConfig(testDir, TuningProfile.BALANCED),
+				new SystemClock());
+		assertFalse(db.open(getSecretKey(), null));
+		DatabaseComponentImpl<Connection> dc = new DatabaseComponentImpl<>(
+				db, Connection.class, new RecordingEventBus(), Runnable::run,
+				new NoOpShutdownManager(), maxGroupCommitDelayMs,
+				maxGroupCommitSize);
+		try {
+			DBContext context = getContext();
+			Group group = getGroup(context.getId());
+			AtomicLong timestamp = new AtomicLong(1);
+			dc.transaction(false, txn -> {
+				dc.addContext(txn, context);
+				dc.addGroup(txn, group, new byte[0],
+						GroupType.PrivateConversation);
+				dc.addMessages(txn, getMessages(group, context,
+						INITIAL_MESSAGES, timestamp));
+			});
+
+			AtomicBoolean measuring = new AtomicBoolean(false);
+			AtomicBoolean stopped = new AtomicBoolean(false);
+			AtomicLong writes = new AtomicLong(0);
+			List<List<Long>> latencies = new ArrayList<>();
+			CountDownLatch finished = new CountDownLatch(READERS + 1);
+			List<Thread> threads = new ArrayList<>();
+			threads.add(new Thread(() -> {
+				try {
+					while (!stopped.get()) {
+						dc.transaction(false, txn ->
+								dc.addMessages(txn, getMessages(group, context,
+										MESSAGES_PER_WRITE, timestamp)));
+						if (measuring.get()) writes.incrementAndGet();
+					}
+				} catch (Exception e) {
+					e.printStackTrace();
+				} finally {
+					finished.countDown();
+				}
+			}));
+			for (int i = 0; i < READERS; i++) {
+				List<Long> readerLatencies = new ArrayList<>();
+				latencies.add(readerLatencies);
+				threads.add(new Thread(() -> {
+					try {
+						while (!stopped.get()) {
+							long start = System.nanoTime();
+							dc.transaction(true, txn -> {
+								dc.getMessageHeaders(txn, group.getId(), null,
+										PAGE_SIZE, MessageCursor.Direction.BEFORE);
+								dc.countUnreadMessagesInGroup(txn, group.getId());
+							});
+							long duration = System.nanoTime() - start;
+							if (measuring.get()) readerLatencies.add(duration);
+						}
+					} catch (Exception e) {
+						e.printStackTrace();
+					} finally {
+						finished.countDown();
+					}
+				}));
+			}
+			for (Thread t : threads) t.start();
+			Thread.sleep(WARM_UP_MS);
+			measuring.set(true);
+			Thread.sleep(DURATION_MS);
+			measuring.set(false);
+			stopped.set(true);
+			assertTrue(finished.await(DURATION_MS, MILLISECONDS));
+
+			List<Long> allLatencies = new ArrayList<>();
+			for (List<Long> l : latencies) allLatencies.addAll(l);
+			return new Result(allLatencies, writes.get());
+		} finally {
+			dc.close();
+		}
+	}
+
+	private List<NewMessage> getMessages(Group group, DBContext context,
+			int count, AtomicLong timestamp) {
+		List<NewMessage> messages = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			messages.add(new NewMessage(getMessage(group.getId(),
+					timestamp.getAndIncrement(), getRandomText(10)),
+					MessageState.values()[0], context.getId(), true));
+		}
+		return messages;
+	}
+
+	private static class Result {
+
+		private final List<Long> readLatencies;
+		private final long writes;
+
+		private Result(List<Long> readLatencies, long writes) {
+			this.readLatencies = Collections.unmodifiableList(readLatencies);
+			this.writes = writes;
+		}
+
+		@Override
+		public String toString() {
+			double seconds = DURATION_MS / 1000.0;
+			return String.format("%.0f reads/s, %.0f writes/s,"
+							+ " read latency median %.2f ms, p99 %.2f ms",
+					readLatencies.size() / seconds, writes / seconds,
+					toMillis(getPercentile(readLatencies, 50)),
+					toMillis(getPercentile(readLatencies, 99)));
+		}
+
+		private double toMillis(long nanos) {
+			return nanos / (double) NANOSECONDS.convert(1, MILLISECONDS);
+		}
+	}
+}
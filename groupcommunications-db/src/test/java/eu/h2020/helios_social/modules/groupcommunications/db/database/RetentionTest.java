@@ -0,0 +1,265 @@
+package eu.h2020.helios_social.modules.groupcommunications.db.database;
+
+import eu.h2020.helios_social.modules.groupcommunications.api.context.DBContext;
+import eu.h2020.helios_social.modules.groupcommunications.api.group.Group;
+import eu.h2020.helios_social.modules.groupcommunications.api.group.GroupType;
+import eu.h2020.helios_social.modules.groupcommunications.api.messaging.Message;
+import eu.h2020.helios_social.modules.groupcommunications.api.messaging.MessageHeader;
+import eu.h2020.helios_social.modules.groupcommunications.api.messaging.MessageState;
+import eu.h2020.helios_social.modules.groupcommunications.db.system.SystemClock;
+import eu.h2020.helios_social.modules.groupcommunications.db.test.NoOpShutdownManager;
+import eu.h2020.helios_social.modules.groupcommunications.db.test.RecordingEventBus;
+import eu.h2020.helios_social.modules.groupcommunications.db.test.TestDatabaseConfig;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static eu.h2020.helios_social.modules.groupcommunications.db.database.DatabaseConstants.PRUNING_BATCH_SIZE;
+import static eu.h2020.helios_social.modules.groupcommunications.db.database.RetentionPolicy.NO_LIMIT;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.deleteTestDirectory;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getContext;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getGroup;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getMessage;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getRandomText;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getSecretKey;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getTestDirectory;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks which messages retention policies expire, and that the pruner
+ * removes them from every group with a policy.
+ */
+public class RetentionTest {
+
+	private static final long HOUR = 60 * 60 * 1000;
+	private static final int MESSAGES = 10;
+
+	private final File testDir = getTestDirectory();
+	private final DBContext context = getContext();
+	private final Group group = getGroup(context.getId());
+	private final ScheduledExecutorService scheduler =
+			Executors.newSingleThreadScheduledExecutor();
+
+	private H2Database db;
+	private DatabaseComponentImpl<Connection> dc;
+	// The IDs of the messages in the group, oldest first. Message i is
+	// MESSAGES - i hours old
+	private List<String> messageIds;
+
+	@Before
+	public void setUp() throws Exception {
+		db = new H2Database(
+				new TestDatabaseConfig(testDir, TuningProfile.LOW_MEMORY),
+				new SystemClock());
+		db.open(getSecretKey(), null);
+		dc = new DatabaseComponentImpl<>(db, Connection.class,
+				new RecordingEventBus(), Runnable::run,
+				new NoOpShutdownManager());
+		dc.transaction(false, txn -> {
+			dc.addContext(txn, context);
+			dc.addGroup(txn, group, new byte[0],
+					GroupType.PrivateConversation);
+		});
+		messageIds = addMessages(group, MESSAGES);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		scheduler.shutdownNow();
+		dc.close();
+		deleteTestDirectory(testDir);
+	}
+
+	@Test
+	public void testMaxAgeExpiresOlderMessages() throws Exception {
+		RetentionPolicy policy =
+				new RetentionPolicy(hours(5.5), NO_LIMIT, false);
+		assertEquals(messages(0, 5), getExpired(policy, 100));
+	}
+
+	@Test
+	public void testMaxCountExpiresAllButNewestMessages() throws Exception {
+		RetentionPolicy policy = new RetentionPolicy(NO_LIMIT, 3, false);
+		assertEquals(messages(0, 7), getExpired(policy, 100));
+		// Nothing expires while the group is within the limit
+		policy = new RetentionPolicy(NO_LIMIT, MESSAGES, false);
+		assertEquals(messages(0, 0), getExpired(policy, 100));
+	}
+
+	@Test
+	public void testNoLimitsExpireNothing() throws Exception {
+		RetentionPolicy policy =
+				new RetentionPolicy(NO_LIMIT, NO_LIMIT, false);
+		assertEquals(messages(0, 0), getExpired(policy, 100));
+	}
+
+	@Test
+	public void testKeepFavouritesWithMaxAge() throws Exception {
+		addToFavourites(0, 3);
+		RetentionPolicy policy =
+				new RetentionPolicy(hours(5.5), NO_LIMIT, true);
+		List<String> expected = messages(1, 5);
+		expected.remove(messageIds.get(3));
+		assertEquals(expected, getExpired(policy, 100));
+		// Without keepFavourites, favourites expire like other messages
+		policy = new RetentionPolicy(hours(5.5), NO_LIMIT, false);
+		assertEquals(messages(0, 5), getExpired(policy, 100));
+	}
+
+	@Test
+	public void testFavouritesDoNotCountTowardsMaxCount() throws Exception {
+		addToFavourites(0, 8);
+		// The newest three messages other than favourites are 6, 7 and 9
+		RetentionPolicy policy = new RetentionPolicy(NO_LIMIT, 3, true);
+		assertEquals(messages(1, 6), getExpired(policy, 100));
+		policy = new RetentionPolicy(NO_LIMIT, 3, false);
+		assertEquals(messages(0, 7), getExpired(policy, 100));
+	}
+
+	@Test
+	public void testMaxAgeAndMaxCountAreCombined() throws Exception {
+		// Age expires 0-4 and count expires 0-2, so each message that's
+		// expired by both is only listed once
+		RetentionPolicy policy = new RetentionPolicy(hours(5.5), 7, false);
+		assertEquals(messages(0, 5), getExpired(policy, 100));
+		// Age expires 0-1 and count expires 0-6
+		policy = new RetentionPolicy(hours(8.5), 3, false);
+		assertEquals(messages(0, 7), getExpired(policy, 100));
+	}
+
+	@Test
+	public void testMaxAgeAndMaxCountAreCombinedWithFavourites()
+			throws Exception {
+		addToFavourites(1, 7);
+		// Age expires 0 and 2-4, count keeps 6, 8 and 9
+		RetentionPolicy policy = new RetentionPolicy(hours(5.5), 3, true);
+		List<String> expected = messages(0, 6);
+		expected.remove(messageIds.get(1));
+		assertEquals(expected, getExpired(policy, 100));
+	}
+
+	@Test
+	public void testLimitReturnsOldestExpiredMessages() throws Exception {
+		// Both limits expire the oldest messages, which fill the batch
+		RetentionPolicy policy = new RetentionPolicy(hours(5.5), 7, false);
+		assertEquals(messages(0, 3), getExpired(policy, 3));
+		policy = new RetentionPolicy(NO_LIMIT, 3, false);
+		assertEquals(messages(0, 5), getExpired(policy, 5));
+	}
+
+	@Test
+	public void testPruneMessagesRemovesExpiredMessages() throws Exception {
+		RetentionPolicy policy = new RetentionPolicy(hours(5.5), 7, false);
+		int removed = dc.transactionWithResult(false, txn ->
+				dc.pruneMessages(txn, group.getId(), policy, 3));
+		assertEquals(3, removed);
+		removed = dc.transactionWithResult(false, txn ->
+				dc.pruneMessages(txn, group.getId(), policy, 3));
+		assertEquals(2, removed);
+		assertEquals(new HashSet<>(messages(5, MESSAGES)),
+				getMessageIds(group));
+	}
+
+	@Test
+	public void testPrunerRemovesMessagesFromEachGroupInBatches()
+			throws Exception {
+		// The context's policy applies to groups without their own policy
+		Group large = getGroup(context.getId());
+		Group other = getGroup(context.getId());
+		dc.transaction(false, txn -> {
+			dc.addGroup(txn, large, new byte[0],
+					GroupType.PrivateConversation);
+			dc.addGroup(txn, other, new byte[0],
+					GroupType.PrivateConversation);
+		});
+		List<String> largeIds = addMessages(large, 2 * PRUNING_BATCH_SIZE + 5);
+		List<String> otherIds = addMessages(other, MESSAGES);
+		dc.transaction(false, txn -> {
+			dc.setContextRetentionPolicy(txn, context.getId(),
+					new RetentionPolicy(NO_LIMIT, 4, false));
+			dc.setGroupRetentionPolicy(txn, group.getId(),
+					new RetentionPolicy(hours(5.5), NO_LIMIT, false));
+		});
+
+		new MessagePruner(dc, Runnable::run, scheduler).pruneMessages();
+
+		assertEquals(new HashSet<>(messages(5, MESSAGES)),
+				getMessageIds(group));
+		assertEquals(new HashSet<>(largeIds.subList(largeIds.size() - 4,
+				largeIds.size())), getMessageIds(large));
+		assertEquals(new HashSet<>(otherIds.subList(MESSAGES - 4, MESSAGES)),
+				getMessageIds(other));
+	}
+
+	private long hours(double hours) {
+		return (long) (hours * HOUR);
+	}
+
+	/**
+	 * Adds the given number of messages to the given group, an hour apart
+	 * with the newest an hour old, and returns their IDs oldest first.
+	 */
+	private List<String> addMessages(Group g, int count) throws Exception {
+		long now = System.currentTimeMillis();
+		List<NewMessage> messages = new ArrayList<>();
+		List<String> ids = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			Message m = getMessage(g.getId(), now - (count - i) * HOUR,
+					getRandomText(5));
+			messages.add(new NewMessage(m, MessageState.values()[0],
+					context.getId(), true));
+			ids.add(m.getId());
+		}
+		dc.transaction(false, txn -> dc.addMessages(txn, messages));
+		return ids;
+	}
+
+	private void addToFavourites(int... indices) throws Exception {
+		dc.transaction(false, txn -> {
+			for (int i : indices)
+				dc.addToFavourites(txn, messageIds.get(i));
+		});
+	}
+
+	/**
+	 * Returns the IDs of the messages in the group from {@code start}
+	 * inclusive to {@code end} exclusive, oldest first.
+	 */
+	private List<String> messages(int start, int end) {
+		return new ArrayList<>(messageIds.subList(start, end));
+	}
+
+	private List<String> getExpired(RetentionPolicy policy, int limit)
+			throws Exception {
+		Connection txn = db.startTransaction();
+		try {
+			List<String> expired = db.getExpiredMessageIds(txn,
+					group.getId(), policy, limit);
+			db.commitTransaction(txn);
+			return expired;
+		} catch (Exception e) {
+			db.abortTransaction(txn);
+			throw e;
+		}
+	}
+
+	private Set<String> getMessageIds(Group g) throws Exception {
+		Collection<MessageHeader> headers = dc.transactionWithResult(true,
+				txn -> dc.getMessageHeaders(txn, g.getId()));
+		Set<String> ids = new HashSet<>();
+		for (MessageHeader h : headers) assertTrue(ids.add(h.getMessageId()));
+		return ids;
+	}
+}
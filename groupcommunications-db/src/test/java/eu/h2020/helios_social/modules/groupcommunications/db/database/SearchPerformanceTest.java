@@ -0,0 +1,235 @@
+package eu.h2020.helios_social.modules.groupcommunications.db.database;
+
+import eu.h2020.helios_social.modules.groupcommunications.api.context.DBContext;
+import eu.h2020.helios_social.modules.groupcommunications.api.group.Group;
+import eu.h2020.helios_social.modules.groupcommunications.api.group.GroupType;
+import eu.h2020.helios_social.modules.groupcommunications.api.messaging.MessageState;
+import eu.h2020.helios_social.modules.groupcommunications.db.system.SystemClock;
+import eu.h2020.helios_social.modules.groupcommunications.db.test.TestDatabaseConfig;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Supplier;
+
+import javax.annotation.Nullable;
+
+import static eu.h2020.helios_social.modules.groupcommunications.db.database.DatabaseBackup.DATABASE_FILE_NAME;
+import static eu.h2020.helios_social.modules.groupcommunications.db.database.DatabaseConstants.SEARCH_INDEXING_BATCH_SIZE;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.deleteTestDirectory;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getContext;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getGroup;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getMessage;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getPercentile;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getRandomText;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getSecretKey;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getTestDirectory;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Measures the latency of {@link Database#searchMessages} over a large
+ * number of messages, compared with scanning the message text with LIKE,
+ * and how long it takes to add the messages and to index them.
+ * <p/>
+ * The number of messages can be changed with the
+ * {@code searchBenchmarkMessages} system property.
+ */
+public class SearchPerformanceTest {
+
+	private static final int MESSAGES =
+			Integer.getInteger("searchBenchmarkMessages", 1_000_000);
+	private static final int GROUPS = 100;
+	private static final int VOCABULARY = 20_000;
+	private static final int WORDS_PER_MESSAGE = 10;
+	private static final int MESSAGES_PER_TRANSACTION = 1000;
+	private static final int QUERIES = 50, LIKE_QUERIES = 5;
+	private static final int LIMIT = 20;
+
+	private final File testDir = getTestDirectory();
+	private final Random random = new Random(0);
+	private final List<String> vocabulary = new ArrayList<>(VOCABULARY);
+	private final List<String> groupIds = new ArrayList<>(GROUPS);
+
+	private H2Database db;
+	private DBContext context;
+
+	@Before
+	public void setUp() throws Exception {
+		db = new H2Database(
+				new TestDatabaseConfig(testDir, TuningProfile.BALANCED),
+				new SystemClock());
+		assertFalse(db.open(getSecretKey(), null));
+		for (int i = 0; i < VOCABULARY; i++)
+			vocabulary.add(getRandomText(1) + i);
+		context = getContext();
+		Connection txn = db.startTransaction();
+		try {
+			db.addContext(txn, context);
+			for (int i = 0; i < GROUPS; i++) {
+				Group group = getGroup(context.getId());
+				db.addGroup(txn, group, new byte[0],
+						GroupType.PrivateConversation);
+				groupIds.add(group.getId());
+			}
+			db.commitTransaction(txn);
+		} catch (Exception e) {
+			db.abortTransaction(txn);
+			throw e;
+		}
+		long start = System.nanoTime();
+		for (int i = 0; i < MESSAGES; i += MESSAGES_PER_TRANSACTION)
+			addMessages(i, Math.min(MESSAGES_PER_TRANSACTION, MESSAGES - i));
+		System.out.println(String.format("Added %d messages in %d s,"
+						+ " database file %d MB", MESSAGES,
+				NANOSECONDS.toSeconds(System.nanoTime() - start),
+				getDatabaseFileSize()));
+		// Index the messages as the background indexer would
+		start = System.nanoTime();
+		int indexed = 0;
+		while (indexed < MESSAGES) indexed += indexMessages();
+		System.out.println(String.format("Indexed %d messages in %d s,"
+						+ " database file %d MB", indexed,
+				NANOSECONDS.toSeconds(System.nanoTime() - start),
+				getDatabaseFileSize()));
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		db.close();
+		deleteTestDirectory(testDir);
+	}
+
+	@Test
+	public void testSearchMessages() throws Exception {
+		// Common words are near the start of the vocabulary, rare words
+		// near the end
+		measure("common term", () -> getWord(0, 100), null);
+		measure("rare term", () -> getWord(VOCABULARY / 2, VOCABULARY),
+				null);
+		measure("two terms", () -> getWord(0, 100) + " "
+				+ getWord(100, 1000), null);
+		measure("common term in group", () -> getWord(0, 100),
+				() -> groupIds.get(random.nextInt(GROUPS)));
+	}
+
+	private void measure(String name, Supplier<String> query,
+			@Nullable Supplier<String> groups) throws Exception {
+		List<Long> search = new ArrayList<>(), like = new ArrayList<>();
+		for (int i = 0; i < QUERIES; i++) {
+			String q = query.get();
+			String groupId = groups == null ? null : groups.get();
+			Connection txn = db.startTransaction();
+			try {
+				long start = System.nanoTime();
+				db.searchMessages(txn, context.getId(), groupId, q, LIMIT);
+				search.add(System.nanoTime() - start);
+				if (i < LIKE_QUERIES) {
+					start = System.nanoTime();
+					searchWithLike(txn, groupId, q);
+					like.add(System.nanoTime() - start);
+				}
+				db.commitTransaction(txn);
+			} catch (Exception e) {
+				db.abortTransaction(txn);
+				throw e;
+			}
+		}
+		System.out.println(String.format("%s: searchMessages median %.1f ms,"
+						+ " p99 %.1f ms; LIKE scan median %.1f ms", name,
+				toMillis(getPercentile(search, 50)),
+				toMillis(getPercentile(search, 99)),
+				toMillis(getPercentile(like, 50))));
+	}
+
+	/**
+	 * Finds up to {@link #LIMIT} of the newest messages whose text contains
+	 * every word of the query, by scanning the text.
+	 */
+	private void searchWithLike(Connection txn, @Nullable String groupId,
+			String query) throws Exception {
+		String[] words = query.split(" ");
+		StringBuilder sql = new StringBuilder("SELECT messageId FROM messages"
+				+ " WHERE contextId = ?");
+		if (groupId != null) sql.append(" AND groupId = ?");
+		for (int i = 0; i < words.length; i++)
+			sql.append(" AND LOWER(text) LIKE ?");
+		sql.append(" ORDER BY timestamp DESC LIMIT ?");
+		PreparedStatement ps = txn.prepareStatement(sql.toString());
+		int index = 1;
+		ps.setString(index++, context.getId());
+		if (groupId != null) ps.setString(index++, groupId);
+		for (String word : words) ps.setString(index++, "%" + word + "%");
+		ps.setInt(index, LIMIT);
+		ResultSet rs = ps.executeQuery();
+		while (rs.next()) rs.getString(1);
+		rs.close();
+		ps.close();
+	}
+
+	private void addMessages(int first, int count) throws Exception {
+		List<NewMessage> messages = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			String groupId = groupIds.get(random.nextInt(GROUPS));
+			StringBuilder text = new StringBuilder();
+			for (int j = 0; j < WORDS_PER_MESSAGE; j++) {
+				if (j > 0) text.append(' ');
+				text.append(getWord(0, VOCABULARY));
+			}
+			messages.add(new NewMessage(
+					getMessage(groupId, first + i, text.toString()),
+					MessageState.values()[0], context.getId(), true));
+		}
+		Connection txn = db.startTransaction();
+		try {
+			db.addMessages(txn, messages);
+			db.commitTransaction(txn);
+		} catch (Exception e) {
+			db.abortTransaction(txn);
+			throw e;
+		}
+	}
+
+	private int indexMessages() throws Exception {
+		Connection txn = db.startTransaction();
+		try {
+			int indexed = db.indexMessages(txn, SEARCH_INDEXING_BATCH_SIZE);
+			db.commitTransaction(txn);
+			return indexed;
+		} catch (Exception e) {
+			db.abortTransaction(txn);
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns a word from the given range of the vocabulary, with a
+	 * log-uniform distribution so that words near the start of the
+	 * vocabulary are much more common than words near the end, as in
+	 * natural language.
+	 */
+	private String getWord(int from, int to) {
+		double r = Math.log(from + 1) + random.nextDouble()
+				* (Math.log(to + 1) - Math.log(from + 1));
+		int index = (int) Math.exp(r) - 1;
+		return vocabulary.get(Math.max(from, Math.min(to - 1, index)));
+	}
+
+	private long getDatabaseFileSize() {
+		File file = new File(new File(testDir, "db"), DATABASE_FILE_NAME);
+		return file.length() / (1024 * 1024);
+	}
+
+	private double toMillis(long nanos) {
+		return nanos / (double) NANOSECONDS.convert(1, MILLISECONDS);
+	}
+}
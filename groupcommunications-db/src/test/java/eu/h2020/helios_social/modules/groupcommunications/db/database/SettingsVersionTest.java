@@ -0,0 +1,143 @@
+package eu.h2020.helios_social.modules.groupcommunications.db.database;
+
+import eu.h2020.helios_social.modules.groupcommunications.db.event.VersionedSettingsUpdatedEvent;
+import eu.h2020.helios_social.modules.groupcommunications.db.system.SystemClock;
+import eu.h2020.helios_social.modules.groupcommunications.db.test.NoOpShutdownManager;
+import eu.h2020.helios_social.modules.groupcommunications.db.test.TestDatabaseConfig;
+import eu.h2020.helios_social.modules.groupcommunications_utils.settings.Settings;
+import eu.h2020.helios_social.modules.groupcommunications_utils.sync.event.Event;
+import eu.h2020.helios_social.modules.groupcommunications_utils.sync.event.EventBus;
+import eu.h2020.helios_social.modules.groupcommunications_utils.sync.event.EventListener;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.sql.Connection;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.deleteTestDirectory;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getSecretKey;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getTestDirectory;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that each committed change to a namespace's settings is announced
+ * with a new version, and that the version is recorded before the event
+ * is broadcast.
+ */
+public class SettingsVersionTest {
+
+	private static final String NAMESPACE = "namespace";
+	private static final String OTHER_NAMESPACE = "other";
+
+	private final File testDir = getTestDirectory();
+	private final List<VersionedSettingsUpdatedEvent> events =
+			new CopyOnWriteArrayList<>();
+	// The version each namespace had when its event was broadcast
+	private final List<Long> versionsAtBroadcast =
+			new CopyOnWriteArrayList<>();
+
+	private DatabaseComponentImpl<Connection> dc;
+
+	@Before
+	public void setUp() throws Exception {
+		H2Database db = new H2Database(
+				new TestDatabaseConfig(testDir, TuningProfile.LOW_MEMORY),
+				new SystemClock());
+		db.open(getSecretKey(), null);
+		dc = new DatabaseComponentImpl<>(db, Connection.class,
+				new VersionRecordingEventBus(), Runnable::run,
+				new NoOpShutdownManager());
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		dc.close();
+		deleteTestDirectory(testDir);
+	}
+
+	@Test
+	public void testCommittedChangesHaveIncreasingVersions()
+			throws Exception {
+		assertEquals(0, dc.getSettingsVersion(NAMESPACE));
+		merge(NAMESPACE, "value");
+		merge(OTHER_NAMESPACE, "value");
+		merge(NAMESPACE, "other");
+
+		assertEquals(3, events.size());
+		long first = events.get(0).getVersion();
+		long second = events.get(1).getVersion();
+		long third = events.get(2).getVersion();
+		assertTrue(first > 0);
+		assertTrue(second > first);
+		assertTrue(third > second);
+		assertEquals(third, dc.getSettingsVersion(NAMESPACE));
+		assertEquals(second, dc.getSettingsVersion(OTHER_NAMESPACE));
+		// Each event carries the merged settings
+		assertEquals("other", events.get(2).getSettings().get("key"));
+		// Each version was recorded before its event was broadcast
+		assertEquals(first, (long) versionsAtBroadcast.get(0));
+		assertEquals(second, (long) versionsAtBroadcast.get(1));
+		assertEquals(third, (long) versionsAtBroadcast.get(2));
+	}
+
+	@Test
+	public void testUnchangedAndAbortedMergesKeepVersion() throws Exception {
+		merge(NAMESPACE, "value");
+		long version = dc.getSettingsVersion(NAMESPACE);
+		// Merging the same settings doesn't change them
+		merge(NAMESPACE, "value");
+		try {
+			dc.transaction(false, txn -> {
+				dc.mergeSettings(txn, getSettings("other"), NAMESPACE);
+				throw new IllegalStateException();
+			});
+			fail();
+		} catch (IllegalStateException expected) {
+			// Expected
+		}
+		assertEquals(1, events.size());
+		assertEquals(version, dc.getSettingsVersion(NAMESPACE));
+		Settings s = dc.transactionWithResult(true, txn ->
+				dc.getSettings(txn, NAMESPACE));
+		assertEquals("value", s.get("key"));
+	}
+
+	private void merge(String namespace, String value) throws Exception {
+		dc.transaction(false, txn ->
+				dc.mergeSettings(txn, getSettings(value), namespace));
+	}
+
+	private Settings getSettings(String value) {
+		Settings s = new Settings();
+		s.put("key", value);
+		return s;
+	}
+
+	private class VersionRecordingEventBus implements EventBus {
+
+		@Override
+		public void addListener(EventListener l) {
+		}
+
+		@Override
+		public void removeListener(EventListener l) {
+		}
+
+		@Override
+		public void broadcast(Event e) {
+			if (e instanceof VersionedSettingsUpdatedEvent) {
+				VersionedSettingsUpdatedEvent s =
+						(VersionedSettingsUpdatedEvent) e;
+				events.add(s);
+				versionsAtBroadcast.add(
+						dc.getSettingsVersion(s.getNamespace()));
+			}
+		}
+	}
+}
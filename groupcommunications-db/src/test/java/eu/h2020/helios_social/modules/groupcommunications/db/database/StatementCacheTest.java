@@ -0,0 +1,154 @@
+package eu.h2020.helios_social.modules.groupcommunications.db.database;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class StatementCacheTest {
+
+	private static final String SQL_A = "SELECT ? + 1";
+	private static final String SQL_B = "SELECT ? + 2";
+	private static final String SQL_C = "SELECT ? + 3";
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	private Connection connection;
+	private StatementCache cache;
+
+	@Before
+	public void setUp() throws Exception {
+		connection = DriverManager.getConnection("jdbc:h2:mem:");
+		cache = new StatementCache(connection, 2, hits, misses);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		cache.close();
+		connection.close();
+	}
+
+	@Test
+	public void testCloseReturnsStatementToCache() throws Exception {
+		PreparedStatement ps = cache.prepareStatement(SQL_A);
+		PreparedStatement underlying = getUnderlying(ps);
+		assertEquals(2, query(ps, 1));
+		ps.close();
+		// The underlying statement stays open for reuse
+		assertTrue(ps.isClosed());
+		assertFalse(underlying.isClosed());
+		try {
+			ps.setInt(1, 1);
+			fail();
+		} catch (SQLException expected) {
+			// Expected
+		}
+		// Closing it again has no effect
+		ps.close();
+
+		PreparedStatement reused = cache.prepareStatement(SQL_A);
+		assertSame(underlying, getUnderlying(reused));
+		assertEquals(3, query(reused, 2));
+		reused.close();
+		assertEquals(1, hits.get());
+		assertEquals(1, misses.get());
+	}
+
+	@Test
+	public void testLeastRecentlyUsedStatementIsEvicted() throws Exception {
+		PreparedStatement a = prepareAndClose(SQL_A);
+		PreparedStatement b = prepareAndClose(SQL_B);
+		// Using A makes B the least recently used statement
+		assertSame(a, prepareAndClose(SQL_A));
+		PreparedStatement c = prepareAndClose(SQL_C);
+		assertTrue(b.isClosed());
+		assertFalse(a.isClosed());
+		assertFalse(c.isClosed());
+		assertSame(a, prepareAndClose(SQL_A));
+		assertNotSame(b, prepareAndClose(SQL_B));
+		assertEquals(2, hits.get());
+		assertEquals(4, misses.get());
+	}
+
+	@Test
+	public void testStatementEvictedWhileInUseIsClosedWhenReturned()
+			throws Exception {
+		PreparedStatement a = cache.prepareStatement(SQL_A);
+		PreparedStatement underlying = getUnderlying(a);
+		prepareAndClose(SQL_B);
+		prepareAndClose(SQL_C);
+		// A was evicted but is still usable until it's returned
+		assertFalse(underlying.isClosed());
+		assertEquals(2, query(a, 1));
+		a.close();
+		assertTrue(underlying.isClosed());
+	}
+
+	@Test
+	public void testStatementInUseIsNotSharedOrCached() throws Exception {
+		PreparedStatement first = cache.prepareStatement(SQL_A);
+		PreparedStatement second = cache.prepareStatement(SQL_A);
+		assertNotSame(getUnderlying(first), getUnderlying(second));
+		assertEquals(2, misses.get());
+		// Both statements can be used at once
+		assertEquals(2, query(first, 1));
+		assertEquals(3, query(second, 2));
+		// The duplicate is closed rather than cached
+		second.close();
+		assertTrue(second.isClosed());
+		PreparedStatement underlying = getUnderlying(first);
+		first.close();
+		assertSame(underlying, prepareAndClose(SQL_A));
+		assertEquals(1, hits.get());
+	}
+
+	@Test
+	public void testCloseClosesCachedStatements() throws Exception {
+		PreparedStatement a = prepareAndClose(SQL_A);
+		PreparedStatement b = prepareAndClose(SQL_B);
+		cache.close();
+		assertTrue(a.isClosed());
+		assertTrue(b.isClosed());
+		// Statements prepared afterwards aren't the closed ones
+		assertNotSame(a, prepareAndClose(SQL_A));
+	}
+
+	/**
+	 * Prepares and returns a statement, and returns the underlying
+	 * statement.
+	 */
+	private PreparedStatement prepareAndClose(String sql) throws SQLException {
+		PreparedStatement ps = cache.prepareStatement(sql);
+		PreparedStatement underlying = getUnderlying(ps);
+		ps.close();
+		return underlying;
+	}
+
+	private PreparedStatement getUnderlying(PreparedStatement ps)
+			throws SQLException {
+		return ps.unwrap(PreparedStatement.class);
+	}
+
+	private int query(PreparedStatement ps, int x) throws SQLException {
+		ps.setInt(1, x);
+		ResultSet rs = ps.executeQuery();
+		assertTrue(rs.next());
+		int result = rs.getInt(1);
+		rs.close();
+		return result;
+	}
+}
@@ -0,0 +1,173 @@
+package eu.h2020.helios_social.modules.groupcommunications.db.database;
+
+import eu.h2020.helios_social.modules.groupcommunications.api.context.DBContext;
+import eu.h2020.helios_social.modules.groupcommunications.api.group.Group;
+import eu.h2020.helios_social.modules.groupcommunications.api.group.GroupType;
+import eu.h2020.helios_social.modules.groupcommunications.api.messaging.Message;
+import eu.h2020.helios_social.modules.groupcommunications.api.messaging.MessageState;
+import eu.h2020.helios_social.modules.groupcommunications.db.system.SystemClock;
+import eu.h2020.helios_social.modules.groupcommunications.db.test.TestDatabaseConfig;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.deleteTestDirectory;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getContext;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getGroup;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getMessage;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getPercentile;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getRandomText;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getSecretKey;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getTestDirectory;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Compares the {@link TuningProfile TuningProfiles} on a database that's
+ * larger than the smaller page caches: how fast messages can be added, how
+ * long random reads take, and how much heap the open database uses.
+ */
+public class TuningProfilePerformanceTest {
+
+	private static final int GROUPS = 100;
+	private static final int MESSAGES = 50_000;
+	private static final int MESSAGES_PER_TRANSACTION = 1000;
+	private static final int WORDS_PER_MESSAGE = 10;
+	private static final int WARM_UP_READS = 500, READS = 2000;
+	private static final int PAGE_SIZE = 20;
+
+	private final List<File> testDirs = new ArrayList<>();
+	private final Random random = new Random();
+
+	@After
+	public void tearDown() {
+		for (File testDir : testDirs) deleteTestDirectory(testDir);
+	}
+
+	@Test
+	public void testTuningProfiles() throws Exception {
+		for (TuningProfile profile : TuningProfile.values()) {
+			Result result = measure(profile);
+			System.out.println(profile + ": " + result);
+		}
+	}
+
+	private Result measure(TuningProfile profile) throws Exception {
+		File testDir = getTestDirectory();
+		testDirs.add(testDir);
+		H2Database db = new H2Database(
+				new TestDatabaseConfig(testDir, profile), new SystemClock());
+		assertFalse(db.open(getSecretKey(), null));
+		boolean closed = false;
+		try {
+			DBContext context = getContext();
+			List<String> groupIds = new ArrayList<>(GROUPS);
+			Connection txn = db.startTransaction();
+			try {
+				db.addContext(txn, context);
+				for (int i = 0; i < GROUPS; i++) {
+					Group group = getGroup(context.getId());
+					db.addGroup(txn, group, new byte[0],
+							GroupType.PrivateConversation);
+					groupIds.add(group.getId());
+				}
+				db.commitTransaction(txn);
+			} catch (Exception e) {
+				db.abortTransaction(txn);
+				throw e;
+			}
+
+			List<String> messageIds = new ArrayList<>(MESSAGES);
+			long start = System.nanoTime();
+			for (int i = 0; i < MESSAGES; i += MESSAGES_PER_TRANSACTION) {
+				List<NewMessage> messages =
+						new ArrayList<>(MESSAGES_PER_TRANSACTION);
+				for (int j = 0; j < MESSAGES_PER_TRANSACTION; j++) {
+					String groupId = groupIds.get(random.nextInt(GROUPS));
+					Message m = getMessage(groupId, i + j,
+							getRandomText(WORDS_PER_MESSAGE));
+					messages.add(new NewMessage(m, MessageState.values()[0],
+							context.getId(), true));
+					messageIds.add(m.getId());
+				}
+				txn = db.startTransaction();
+				try {
+					db.addMessages(txn, messages);
+					db.commitTransaction(txn);
+				} catch (Exception e) {
+					db.abortTransaction(txn);
+					throw e;
+				}
+			}
+			long addNanos = System.nanoTime() - start;
+
+			List<Long> latencies = new ArrayList<>(READS);
+			for (int i = 0; i < WARM_UP_READS + READS; i++) {
+				String groupId = groupIds.get(random.nextInt(GROUPS));
+				String messageId =
+						messageIds.get(random.nextInt(messageIds.size()));
+				start = System.nanoTime();
+				txn = db.startTransaction();
+				try {
+					db.getMessageHeaders(txn, groupId, null, PAGE_SIZE,
+							MessageCursor.Direction.BEFORE);
+					db.getMessage(txn, messageId);
+					db.commitTransaction(txn);
+				} catch (Exception e) {
+					db.abortTransaction(txn);
+					throw e;
+				}
+				if (i >= WARM_UP_READS) latencies.add(System.nanoTime() - start);
+			}
+			// The heap used by the open database, including its page cache
+			long heapOpen = getUsedHeap();
+			db.close();
+			closed = true;
+			long heap = heapOpen - getUsedHeap();
+			return new Result(addNanos, latencies, heap);
+		} finally {
+			if (!closed) db.close();
+		}
+	}
+
+	private long getUsedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) System.gc();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	private static class Result {
+
+		private final long addNanos;
+		private final List<Long> readLatencies;
+		private final long heap;
+
+		private Result(long addNanos, List<Long> readLatencies, long heap) {
+			this.addNanos = addNanos;
+			this.readLatencies = readLatencies;
+			this.heap = heap;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%.0f messages/s added,"
+							+ " read median %.2f ms, p99 %.2f ms,"
+							+ " heap %d MB",
+					MESSAGES / (addNanos / 1e9),
+					toMillis(getPercentile(readLatencies, 50)),
+					toMillis(getPercentile(readLatencies, 99)),
+					heap / 1024 / 1024);
+		}
+
+		private double toMillis(long nanos) {
+			return nanos / (double) NANOSECONDS.convert(1, MILLISECONDS);
+		}
+	}
+}
@@ -0,0 +1,246 @@
+package eu.h2020.helios_social.modules.groupcommunications.db.database;
+
+import eu.h2020.helios_social.modules.groupcommunications.api.context.DBContext;
+import eu.h2020.helios_social.modules.groupcommunications.api.group.Group;
+import eu.h2020.helios_social.modules.groupcommunications.api.group.GroupType;
+import eu.h2020.helios_social.modules.groupcommunications.api.messaging.Message;
+import eu.h2020.helios_social.modules.groupcommunications.api.messaging.MessageState;
+import eu.h2020.helios_social.modules.groupcommunications.db.system.SystemClock;
+import eu.h2020.helios_social.modules.groupcommunications.db.test.NoOpShutdownManager;
+import eu.h2020.helios_social.modules.groupcommunications.db.test.RecordingEventBus;
+import eu.h2020.helios_social.modules.groupcommunications.db.test.TestDatabaseConfig;
+import eu.h2020.helios_social.modules.groupcommunications_utils.db.Transaction;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.List;
+
+import static eu.h2020.helios_social.modules.groupcommunications.api.messaging.MessageState.DELIVERED;
+import static eu.h2020.helios_social.modules.groupcommunications.api.messaging.MessageState.PENDING;
+import static eu.h2020.helios_social.modules.groupcommunications.api.messaging.MessageState.SEEN;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.deleteTestDirectory;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getContext;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getGroup;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getMessage;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getRandomText;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getSecretKey;
+import static eu.h2020.helios_social.modules.groupcommunications.db.test.TestUtils.getTestDirectory;
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the unread counters always match the number of unread
+ * messages counted from the messages table.
+ */
+public class UnreadCountTest {
+
+	private final File testDir = getTestDirectory();
+	private final DBContext context = getContext();
+	private final DBContext otherContext = getContext();
+	private final Group group = getGroup(context.getId());
+	private final Group otherGroup = getGroup(context.getId());
+	private final List<String> contextIds =
+			asList(context.getId(), otherContext.getId());
+	private final List<String> groupIds =
+			asList(group.getId(), otherGroup.getId());
+
+	private H2Database db;
+	private DatabaseComponentImpl<Connection> dc;
+	private long timestamp = 0;
+
+	@Before
+	public void setUp() throws Exception {
+		db = new H2Database(
+				new TestDatabaseConfig(testDir, TuningProfile.LOW_MEMORY),
+				new SystemClock());
+		db.open(getSecretKey(), null);
+		dc = new DatabaseComponentImpl<>(db, Connection.class,
+				new RecordingEventBus(), Runnable::run,
+				new NoOpShutdownManager());
+		dc.transaction(false, txn -> {
+			dc.addContext(txn, context);
+			dc.addContext(txn, otherContext);
+			dc.addGroup(txn, group, new byte[0],
+					GroupType.PrivateConversation);
+			dc.addGroup(txn, otherGroup, new byte[0],
+					GroupType.PrivateConversation);
+		});
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		dc.close();
+		deleteTestDirectory(testDir);
+	}
+
+	@Test
+	public void testCountersMatchAfterAddingMessages() throws Exception {
+		// Only incoming messages that haven't been seen are unread
+		addMessage(group, context, DELIVERED, true);
+		addMessage(group, context, SEEN, true);
+		addMessage(group, context, DELIVERED, false);
+		addMessage(group, otherContext, PENDING, true);
+		assertCountersMatch();
+		assertEquals(2, countUnreadInGroup(group));
+		assertEquals(1, countUnreadInContext(context));
+
+		// A batch updates each counter it affects
+		List<NewMessage> batch = new ArrayList<>();
+		for (MessageState state : MessageState.values()) {
+			batch.add(newMessage(group, context, state, true));
+			batch.add(newMessage(otherGroup, otherContext, state, true));
+			batch.add(newMessage(otherGroup, context, state, false));
+		}
+		dc.transaction(false, txn -> dc.addMessages(txn, batch));
+		assertCountersMatch();
+		assertEquals(5, countUnreadInGroup(group));
+		assertEquals(3, countUnreadInGroup(otherGroup));
+	}
+
+	@Test
+	public void testCountersMatchAfterStateChanges() throws Exception {
+		String incoming = addMessage(group, context, DELIVERED, true);
+		String outgoing = addMessage(group, context, PENDING, false);
+		addMessage(otherGroup, otherContext, DELIVERED, true);
+		assertCountersMatch();
+
+		setState(incoming, SEEN);
+		assertCountersMatch();
+		assertEquals(0, countUnreadInGroup(group));
+		// Setting the same state again doesn't change the counter
+		setState(incoming, SEEN);
+		assertCountersMatch();
+		// A message that's no longer seen is unread again
+		setState(incoming, DELIVERED);
+		assertCountersMatch();
+		assertEquals(1, countUnreadInGroup(group));
+		// Outgoing messages are never unread
+		setState(outgoing, SEEN);
+		setState(outgoing, DELIVERED);
+		assertCountersMatch();
+		assertEquals(1, countUnreadInGroup(group));
+		assertFalse(dc.transactionWithResult(false, txn ->
+				db.setMessageState(unbox(txn), "missing", SEEN)));
+		assertCountersMatch();
+	}
+
+	@Test
+	public void testCountersMatchAfterRemovingMessages() throws Exception {
+		List<String> ids = new ArrayList<>();
+		for (int i = 0; i < 3; i++) {
+			ids.add(addMessage(group, context, DELIVERED, true));
+			ids.add(addMessage(group, otherContext, SEEN, true));
+			ids.add(addMessage(otherGroup, context, DELIVERED, true));
+		}
+		assertCountersMatch();
+
+		// Missing and repeated IDs are ignored
+		List<String> removed = new ArrayList<>(ids.subList(0, 5));
+		removed.add(ids.get(0));
+		removed.add("missing");
+		dc.transaction(false, txn ->
+				db.removeMessages(unbox(txn), removed));
+		assertCountersMatch();
+		assertEquals(1, countUnreadInGroup(group));
+		assertEquals(2, countUnreadInGroup(otherGroup));
+
+		dc.transaction(false, txn -> db.removeMessages(unbox(txn), ids));
+		assertCountersMatch();
+		assertEquals(0, countUnreadInContext(context));
+	}
+
+	@Test
+	public void testCountersAreRemovedWithGroupsAndContexts()
+			throws Exception {
+		addMessage(group, context, DELIVERED, true);
+		addMessage(group, otherContext, DELIVERED, true);
+		addMessage(otherGroup, context, DELIVERED, true);
+
+		dc.transaction(false, txn -> dc.removeGroup(txn, group.getId()));
+		assertCountersMatch();
+		assertEquals(1, countUnreadInContext(context));
+		assertEquals(0, countUnreadInContext(otherContext));
+
+		dc.transaction(false, txn ->
+				dc.removeContext(txn, context.getId()));
+		assertCountersMatch();
+		assertEquals(0, countUnreadInContext(context));
+	}
+
+	private String addMessage(Group g, DBContext c, MessageState state,
+			boolean incoming) throws Exception {
+		NewMessage m = newMessage(g, c, state, incoming);
+		dc.transaction(false, txn -> dc.addMessage(txn, m.getMessage(),
+				state, c.getId(), incoming));
+		return m.getMessage().getId();
+	}
+
+	private NewMessage newMessage(Group g, DBContext c, MessageState state,
+			boolean incoming) {
+		Message m = getMessage(g.getId(), timestamp++, getRandomText(5));
+		return new NewMessage(m, state, c.getId(), incoming);
+	}
+
+	private void setState(String messageId, MessageState state)
+			throws Exception {
+		assertTrue(dc.transactionWithResult(false, txn ->
+				dc.setMessageState(txn, messageId, state)));
+	}
+
+	private int countUnreadInGroup(Group g) throws Exception {
+		return dc.transactionWithResult(true, txn ->
+				dc.countUnreadMessagesInGroup(txn, g.getId()));
+	}
+
+	private int countUnreadInContext(DBContext c) throws Exception {
+		return dc.transactionWithResult(true, txn ->
+				dc.countUnreadMessagesInContext(txn, c.getId()));
+	}
+
+	/**
+	 * Checks the counter of each group and context, including any that
+	 * have been removed, against the number of unread messages in the
+	 * messages table.
+	 */
+	private void assertCountersMatch() throws Exception {
+		dc.transaction(true, txn -> {
+			for (String groupId : groupIds) {
+				assertEquals(countRows(txn, "groupId", groupId),
+						db.countUnreadMessagesInGroup(unbox(txn), groupId));
+			}
+			for (String contextId : contextIds) {
+				assertEquals(countRows(txn, "contextId", contextId),
+						db.countUnreadMessagesInContext(unbox(txn),
+								contextId));
+			}
+		});
+	}
+
+	private int countRows(Transaction txn, String column, String id)
+			throws Exception {
+		PreparedStatement ps = unbox(txn).prepareStatement(
+				"SELECT COUNT(*) FROM messages WHERE " + column + " = ?"
+						+ " AND incoming = TRUE AND state <> ?");
+		ps.setString(1, id);
+		ps.setInt(2, SEEN.getValue());
+		ResultSet rs = ps.executeQuery();
+		assertTrue(rs.next());
+		int count = rs.getInt(1);
+		rs.close();
+		ps.close();
+		return count;
+	}
+
+	private Connection unbox(Transaction txn) {
+		return (Connection) txn.unbox();
+	}
+}
@@ -0,0 +1,246 @@
+package eu.h2020.helios_social.modules.groupcommunications.db.settings;
+
+import eu.h2020.helios_social.modules.groupcommunications.db.database.ExtendedDatabaseComponent;
+import eu.h2020.helios_social.modules.groupcommunications.db.event.VersionedSettingsUpdatedEvent;
+import eu.h2020.helios_social.modules.groupcommunications_utils.db.DbCallable;
+import eu.h2020.helios_social.modules.groupcommunications_utils.db.DbRunnable;
+import eu.h2020.helios_social.modules.groupcommunications_utils.db.Transaction;
+import eu.h2020.helios_social.modules.groupcommunications_utils.settings.Settings;
+import eu.h2020.helios_social.modules.groupcommunications_utils.settings.event.SettingsUpdatedEvent;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks the settings cache against a fake database component that
+ * records update events instead of delivering them, so the test controls
+ * the order in which the cache sees reads and events.
+ */
+public class SettingsManagerImplTest {
+
+	private static final String NAMESPACE = "namespace";
+	private static final String OTHER_NAMESPACE = "other";
+
+	private final Map<String, Settings> stored = new HashMap<>();
+	private final Map<String, Long> committedVersions = new HashMap<>();
+	private final List<VersionedSettingsUpdatedEvent> events =
+			new ArrayList<>();
+
+	private SettingsManagerImpl settingsManager;
+	private long nextVersion = 1;
+	private int reads = 0;
+	// Runs after the fake reads the settings, before they're returned
+	@Nullable
+	private Runnable duringRead = null;
+
+	@Before
+	public void setUp() {
+		ExtendedDatabaseComponent db = (ExtendedDatabaseComponent)
+				Proxy.newProxyInstance(getClass().getClassLoader(),
+						new Class<?>[] {ExtendedDatabaseComponent.class},
+						(proxy, method, args) -> invoke(method, args));
+		settingsManager = new SettingsManagerImpl(db);
+	}
+
+	@Test
+	public void testCachedReadsShareOneInstance() throws Exception {
+		commit(NAMESPACE, "key", "value");
+		Settings s = settingsManager.getSettings(NAMESPACE);
+		assertEquals("value", s.get("key"));
+		assertSame(s, settingsManager.getSettings(NAMESPACE));
+		assertEquals(1, reads);
+		// Each namespace has its own entry
+		assertEquals(0, settingsManager.getSettings(OTHER_NAMESPACE).size());
+		assertEquals(2, reads);
+	}
+
+	@Test
+	public void testCachedSettingsCannotBeChanged() throws Exception {
+		commit(NAMESPACE, "key", "value");
+		Settings s = settingsManager.getSettings(NAMESPACE);
+		assertUnsupported(() -> s.put("key", "other"));
+		assertUnsupported(() -> s.putInt("int", 1));
+		assertUnsupported(() -> s.remove("key"));
+		assertUnsupported(s::clear);
+		assertUnsupported(() -> s.putAll(new Settings()));
+		assertUnsupported(() -> s.keySet().remove("key"));
+		assertUnsupported(() -> s.values().clear());
+		assertUnsupported(() ->
+				s.entrySet().iterator().next().setValue("other"));
+		assertEquals("value", settingsManager.getSettings(NAMESPACE)
+				.get("key"));
+		// Settings read within a transaction belong to the caller
+		Settings copy = settingsManager.getSettings(
+				new Transaction(new Object(), true), NAMESPACE);
+		assertNotSame(s, copy);
+		copy.put("key", "other");
+	}
+
+	@Test
+	public void testEventsReplaceCachedSettings() throws Exception {
+		settingsManager.getSettings(NAMESPACE);
+		commit(NAMESPACE, "key", "value");
+		deliverEvents(0);
+		assertEquals("value", settingsManager.getSettings(NAMESPACE)
+				.get("key"));
+		assertEquals(1, reads);
+	}
+
+	@Test
+	public void testLateOlderEventDoesNotReplaceNewerSettings()
+			throws Exception {
+		settingsManager.getSettings(NAMESPACE);
+		commit(NAMESPACE, "key", "older");
+		commit(NAMESPACE, "key", "newer");
+		deliverEvents(1, 0);
+		assertEquals("newer", settingsManager.getSettings(NAMESPACE)
+				.get("key"));
+		assertEquals(1, reads);
+	}
+
+	@Test
+	public void testSlowReadDoesNotReplaceNewerSettings() throws Exception {
+		commit(NAMESPACE, "key", "older");
+		// A change is committed and announced while the settings are read
+		duringRead = () -> {
+			duringRead = null;
+			commit(NAMESPACE, "key", "newer");
+			deliverEvents(1);
+		};
+		assertEquals("older", settingsManager.getSettings(NAMESPACE)
+				.get("key"));
+		assertEquals("newer", settingsManager.getSettings(NAMESPACE)
+				.get("key"));
+		assertEquals(1, reads);
+	}
+
+	@Test
+	public void testMergedSettingsAreReadBeforeEventArrives()
+			throws Exception {
+		commit(NAMESPACE, "key", "older");
+		settingsManager.getSettings(NAMESPACE);
+		Settings s = new Settings();
+		s.put("key", "newer");
+		settingsManager.mergeSettings(s, NAMESPACE);
+		assertEquals("newer", settingsManager.getSettings(NAMESPACE)
+				.get("key"));
+		assertEquals(2, reads);
+		// The event doesn't replace settings that are as new
+		deliverEvents(1);
+		settingsManager.getSettings(NAMESPACE);
+		assertEquals(2, reads);
+	}
+
+	@Test
+	public void testReadStartedBeforeMergeIsNotCached() throws Exception {
+		commit(NAMESPACE, "key", "older");
+		Settings s = new Settings();
+		s.put("key", "newer");
+		duringRead = () -> {
+			duringRead = null;
+			try {
+				settingsManager.mergeSettings(s, NAMESPACE);
+			} catch (Exception e) {
+				throw new AssertionError(e);
+			}
+		};
+		assertEquals("older", settingsManager.getSettings(NAMESPACE)
+				.get("key"));
+		assertEquals("newer", settingsManager.getSettings(NAMESPACE)
+				.get("key"));
+		assertEquals(2, reads);
+	}
+
+	@Test
+	public void testUnversionedEventRemovesCachedSettings() throws Exception {
+		commit(NAMESPACE, "key", "value");
+		Settings cached = settingsManager.getSettings(NAMESPACE);
+		settingsManager.eventOccurred(
+				new SettingsUpdatedEvent(NAMESPACE, new Settings()));
+		assertNotSame(cached, settingsManager.getSettings(NAMESPACE));
+		assertEquals(2, reads);
+	}
+
+	private void assertUnsupported(Runnable r) {
+		try {
+			r.run();
+			fail();
+		} catch (UnsupportedOperationException expected) {
+			// Expected
+		}
+	}
+
+	/**
+	 * Stores a change as the database component would, recording its event
+	 * for later delivery.
+	 */
+	private void commit(String namespace, String key, String value) {
+		Settings s = new Settings();
+		s.put(key, value);
+		merge(s, namespace);
+	}
+
+	private void merge(Settings s, String namespace) {
+		Settings merged = new Settings();
+		Settings old = stored.get(namespace);
+		if (old != null) merged.putAll(old);
+		merged.putAll(s);
+		stored.put(namespace, merged);
+		long version = nextVersion++;
+		committedVersions.put(namespace, version);
+		Settings copy = new Settings();
+		copy.putAll(merged);
+		events.add(new VersionedSettingsUpdatedEvent(namespace, copy,
+				version));
+	}
+
+	private void deliverEvents(int... indices) {
+		for (int i : indices) settingsManager.eventOccurred(events.get(i));
+	}
+
+	private Settings read(String namespace) {
+		reads++;
+		Settings s = new Settings();
+		Settings old = stored.get(namespace);
+		if (old != null) s.putAll(old);
+		if (duringRead != null) duringRead.run();
+		return s;
+	}
+
+	@Nullable
+	@SuppressWarnings("unchecked")
+	private Object invoke(Method method, Object[] args) throws Exception {
+		Transaction txn = new Transaction(new Object(), false);
+		switch (method.getName()) {
+			case "getSettingsVersion":
+				Long version = committedVersions.get((String) args[0]);
+				return version == null ? 0L : version;
+			case "transaction":
+				((DbRunnable<Exception>) args[1]).run(txn);
+				return null;
+			case "transactionWithResult":
+				return ((DbCallable<Object, Exception>) args[1]).call(txn);
+			case "getSettings":
+				return read((String) args[1]);
+			case "mergeSettings":
+				merge((Settings) args[1], (String) args[2]);
+				return null;
+			default:
+				throw new UnsupportedOperationException(method.getName());
+		}
+	}
+}
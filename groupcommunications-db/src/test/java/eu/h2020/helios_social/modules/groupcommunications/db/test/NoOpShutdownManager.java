@@ -0,0 +1,16 @@
+package eu.h2020.helios_social.modules.groupcommunications.db.test;
+
+import eu.h2020.helios_social.modules.groupcommunications_utils.lifecycle.ShutdownManager;
+
+public class NoOpShutdownManager implements ShutdownManager {
+
+	@Override
+	public int addShutdownHook(Runnable hook) {
+		return 0;
+	}
+
+	@Override
+	public boolean removeShutdownHook(int handle) {
+		return true;
+	}
+}
@@ -0,0 +1,35 @@
+package eu.h2020.helios_social.modules.groupcommunications.db.test;
+
+import eu.h2020.helios_social.modules.groupcommunications_utils.sync.event.Event;
+import eu.h2020.helios_social.modules.groupcommunications_utils.sync.event.EventBus;
+import eu.h2020.helios_social.modules.groupcommunications_utils.sync.event.EventListener;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * An event bus that records the events broadcast to it, without delivering
+ * them to any listeners.
+ */
+public class RecordingEventBus implements EventBus {
+
+	private final List<Event> events = new CopyOnWriteArrayList<>();
+
+	@Override
+	public void addListener(EventListener l) {
+	}
+
+	@Override
+	public void removeListener(EventListener l) {
+	}
+
+	@Override
+	public void broadcast(Event e) {
+		events.add(e);
+	}
+
+	public List<Event> getEvents() {
+		return new ArrayList<>(events);
+	}
+}
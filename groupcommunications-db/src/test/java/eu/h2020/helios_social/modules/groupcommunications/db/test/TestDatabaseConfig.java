@@ -0,0 +1,48 @@
+package eu.h2020.helios_social.modules.groupcommunications.db.test;
+
+import eu.h2020.helios_social.modules.groupcommunications.db.database.TunableDatabaseConfig;
+import eu.h2020.helios_social.modules.groupcommunications.db.database.TuningProfile;
+import eu.h2020.helios_social.modules.groupcommunications_utils.crypto.KeyStrengthener;
+
+import java.io.File;
+
+import javax.annotation.Nullable;
+
+public class TestDatabaseConfig implements TunableDatabaseConfig {
+
+	private final File dbDir, keyDir;
+	@Nullable
+	private final TuningProfile profile;
+
+	public TestDatabaseConfig(File testDir) {
+		this(testDir, null);
+	}
+
+	public TestDatabaseConfig(File testDir, @Nullable TuningProfile profile) {
+		dbDir = new File(testDir, "db");
+		keyDir = new File(testDir, "key");
+		this.profile = profile;
+	}
+
+	@Override
+	public File getDatabaseDirectory() {
+		return dbDir;
+	}
+
+	@Override
+	public File getDatabaseKeyDirectory() {
+		return keyDir;
+	}
+
+	@Nullable
+	@Override
+	public KeyStrengthener getKeyStrengthener() {
+		return null;
+	}
+
+	@Nullable
+	@Override
+	public TuningProfile getTuningProfile() {
+		return profile;
+	}
+}
@@ -0,0 +1,100 @@
+package eu.h2020.helios_social.modules.groupcommunications.db.test;
+
+import eu.h2020.helios_social.modules.groupcommunications.api.context.ContextType;
+import eu.h2020.helios_social.modules.groupcommunications.api.context.DBContext;
+import eu.h2020.helios_social.modules.groupcommunications.api.group.Group;
+import eu.h2020.helios_social.modules.groupcommunications.api.group.GroupType;
+import eu.h2020.helios_social.modules.groupcommunications.api.messaging.Message;
+import eu.h2020.helios_social.modules.groupcommunications_utils.crypto.SecretKey;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TestUtils {
+
+	private static final Random random = new Random();
+	private static final AtomicInteger nextTestDir =
+			new AtomicInteger(random.nextInt(1000 * 1000));
+
+	/**
+	 * Returns a directory for a test to use, which doesn't exist yet.
+	 */
+	public static File getTestDirectory() {
+		return new File("test.tmp/" + nextTestDir.getAndIncrement());
+	}
+
+	public static void deleteTestDirectory(File dir) {
+		File[] children = dir.listFiles();
+		if (children != null) {
+			for (File child : children) deleteTestDirectory(child);
+		}
+		dir.delete();
+		File parent = dir.getParentFile();
+		if (parent != null && parent.getName().equals("test.tmp")) {
+			String[] siblings = parent.list();
+			if (siblings != null && siblings.length == 0) parent.delete();
+		}
+	}
+
+	public static byte[] getRandomBytes(int length) {
+		byte[] b = new byte[length];
+		random.nextBytes(b);
+		return b;
+	}
+
+	public static SecretKey getSecretKey() {
+		return new SecretKey(getRandomBytes(SecretKey.LENGTH));
+	}
+
+	public static String getRandomId() {
+		return UUID.randomUUID().toString();
+	}
+
+	/**
+	 * Returns a random string of lower-case words of between 3 and 10
+	 * letters, separated by spaces.
+	 */
+	public static String getRandomText(int words) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < words; i++) {
+			if (i > 0) sb.append(' ');
+			int length = 3 + random.nextInt(8);
+			for (int j = 0; j < length; j++)
+				sb.append((char) ('a' + random.nextInt(26)));
+		}
+		return sb.toString();
+	}
+
+	public static DBContext getContext() {
+		String contextId = getRandomId();
+		return new DBContext(contextId, getRandomText(1), 0,
+				ContextType.GENERAL, getRandomText(1));
+	}
+
+	public static Group getGroup(String contextId) {
+		return new Group(getRandomId(), contextId,
+				GroupType.PrivateConversation);
+	}
+
+	public static Message getMessage(String groupId, long timestamp,
+			String text) {
+		return new Message(getRandomId(), groupId, timestamp, text,
+				Message.Type.values()[0]);
+	}
+
+	/**
+	 * Returns the given percentile of the given values.
+	 */
+	public static long getPercentile(List<Long> values, int percentile) {
+		if (values.isEmpty()) throw new IllegalArgumentException();
+		List<Long> sorted = new ArrayList<>(values);
+		Collections.sort(sorted);
+		int index = (int) Math.ceil(sorted.size() * percentile / 100.0) - 1;
+		return sorted.get(Math.max(0, index));
+	}
+}